@@ -15,6 +15,7 @@
  */
 package com.crazymaker.servlet.container.circuitbreaker;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -47,9 +48,17 @@ public interface CircuitBreaker
      */
     void markSuccess();
 
-    public static CircuitBreaker getInstance()
+    /**
+     * 打开期间放行的试探请求没有执行（被限流、健康状态或削峰拒绝）时调用，让之后的请求不必再等一个 sleepWindow 就能重新试探
+     */
+    void markTestAborted();
+
+    /**
+     * @param routeKey 路由的 Key，每个 Key 一个熔断器，各自统计健康状况
+     */
+    public static CircuitBreaker getInstance(String routeKey)
     {
-        return CircuitBreakerImpl.getInstance();
+        return CircuitBreakerImpl.getInstance(routeKey);
     }
 
 
@@ -62,15 +71,12 @@ public interface CircuitBreaker
     class CircuitBreakerImpl implements CircuitBreaker
     {
 
-        static CircuitBreaker existingInstance = null;
+        // String is the route key
+        private static final ConcurrentHashMap<String, CircuitBreaker> circuitBreakersByRoute = new ConcurrentHashMap<String, CircuitBreaker>();
 
-        public static CircuitBreaker getInstance()
+        public static CircuitBreaker getInstance(String routeKey)
         {
-            if (existingInstance == null)
-            {
-                existingInstance = new CircuitBreakerImpl();
-            }
-            return existingInstance;
+            return circuitBreakersByRoute.computeIfAbsent(routeKey, CircuitBreakerImpl::new);
         }
 
         private final NettyWebServerConfig properties;
@@ -82,10 +88,10 @@ public interface CircuitBreaker
         /* when the circuit was marked open or was last allowed to try a 'singleTest' */
         private AtomicLong circuitOpenedOrLastTestedTime = new AtomicLong();
 
-        protected CircuitBreakerImpl()
+        protected CircuitBreakerImpl(String routeKey)
         {
             this.properties = NettyWebServerConfig.getInstance();
-            this.metrics = RequestMetrics.getInstance();
+            this.metrics = RequestMetrics.getInstance(routeKey);
         }
 
         public void markSuccess()
@@ -102,6 +108,16 @@ public interface CircuitBreaker
             }
         }
 
+        @Override
+        public void markTestAborted()
+        {
+            if (circuitOpen.get())
+            {
+                circuitOpenedOrLastTestedTime.set(
+                        System.currentTimeMillis() - properties.getCircuitBreakerSleepWindowInMilliseconds() - 1);
+            }
+        }
+
         @Override
         public boolean allowRequest()
         {
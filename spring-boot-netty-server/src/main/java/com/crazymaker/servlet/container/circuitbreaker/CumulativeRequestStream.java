@@ -3,17 +3,19 @@ package com.crazymaker.servlet.container.circuitbreaker;
 
 import rx.functions.Func2;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class CumulativeRequestStream extends BaseBucketedCumulativeStream<RequestEvent, long[], long[]>
 {
 
 
     private static final int NUM_EVENT_TYPES = EventType.values().length;
 
-    private static CumulativeRequestStream existingStream = null;
+    private static final ConcurrentHashMap<String, CumulativeRequestStream> streams = new ConcurrentHashMap<>();
 
-    public static CumulativeRequestStream getInstance()
+    public static CumulativeRequestStream getInstance(String routeKey)
     {
-        if (existingStream == null)
+        return streams.computeIfAbsent(routeKey, key ->
         {
             int counterMetricWindow = 1000;
             int numCounterBuckets = 10;
@@ -21,19 +23,17 @@ public class CumulativeRequestStream extends BaseBucketedCumulativeStream<Reques
 
             Func2<long[], RequestEvent, long[]> reduceCommandCompletion = RequestMetrics.appendEventToBucket;
             Func2<long[], long[], long[]> reduceBucket = RequestMetrics.bucketAggregator;
-            existingStream = new CumulativeRequestStream(numCounterBuckets,
+            return new CumulativeRequestStream(key, numCounterBuckets,
                     counterBucketSizeInMs,
                     reduceCommandCompletion, reduceBucket);
-
-        }
-        return existingStream;
+        });
     }
 
-    private CumulativeRequestStream(int numCounterBuckets, int counterBucketSizeInMs,
+    private CumulativeRequestStream(String routeKey, int numCounterBuckets, int counterBucketSizeInMs,
                                     Func2<long[], RequestEvent, long[]> reduceCommandCompletion,
                                     Func2<long[], long[], long[]> reduceBucket)
     {
-        super(RequestFinishedStream.getInstance(),
+        super(RequestFinishedStream.getInstance(routeKey),
                 numCounterBuckets,
                 counterBucketSizeInMs,
                 reduceCommandCompletion, reduceBucket);
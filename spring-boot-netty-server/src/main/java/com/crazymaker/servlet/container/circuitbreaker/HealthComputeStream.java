@@ -3,6 +3,8 @@ package com.crazymaker.servlet.container.circuitbreaker;
 
 import rx.functions.Func2;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 
 public class HealthComputeStream extends BaseRollingStream<RequestEvent, long[], RequestMetrics.HealthCounts>
 {
@@ -18,27 +20,26 @@ public class HealthComputeStream extends BaseRollingStream<RequestEvent, long[],
         }
     };
 
-    private static HealthComputeStream existingStream = null;
+    private static final ConcurrentHashMap<String, HealthComputeStream> streams = new ConcurrentHashMap<>();
 
-    public static HealthComputeStream getInstance()
+    /**
+     * 每个路由一个健康统计流，统计窗口由 circuit-breaker-rolling-window-ms 决定，固定分成 10 个桶
+     */
+    public static HealthComputeStream getInstance(String routeKey)
     {
-        if (null == existingStream)
+        return streams.computeIfAbsent(routeKey, key ->
         {
-            int bucketSizeInMs = 100;
-
-            int numBuckets = 1000 / bucketSizeInMs;
-            Func2<long[], RequestEvent, long[]> reduceCommandCompletion = RequestMetrics.appendEventToBucket;
-
-            existingStream = new HealthComputeStream(numBuckets, bucketSizeInMs, RequestMetrics.appendEventToBucket);
-        }
-        return existingStream;
+            int numBuckets = 10;
+            int bucketSizeInMs = Math.max(1, NettyWebServerConfig.getInstance().getCircuitBreakerRollingWindowMs() / numBuckets);
+            return new HealthComputeStream(key, numBuckets, bucketSizeInMs, RequestMetrics.appendEventToBucket);
+        });
     }
 
 
-    private HealthComputeStream(final int numBuckets, final int bucketSizeInMs,
+    private HealthComputeStream(String routeKey, final int numBuckets, final int bucketSizeInMs,
                                 Func2<long[], RequestEvent, long[]> reduceCommandCompletion)
     {
-        super(RequestFinishedStream.getInstance(), numBuckets, bucketSizeInMs, reduceCommandCompletion, healthCheckAccumulator);
+        super(RequestFinishedStream.getInstance(routeKey), numBuckets, bucketSizeInMs, reduceCommandCompletion, healthCheckAccumulator);
     }
 
     @Override
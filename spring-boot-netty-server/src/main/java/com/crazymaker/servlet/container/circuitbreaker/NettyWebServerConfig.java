@@ -1,8 +1,432 @@
 package com.crazymaker.servlet.container.circuitbreaker;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 服务器配置，对应 application.yml 中 server.netty 前缀的配置项
+ */
 public class NettyWebServerConfig
 {
+    /**
+     * 业务线程池的调度模式
+     */
+    public enum ServletExecutorMode
+    {
+        /**
+         * 每个连接固定绑定到一个单线程的 DefaultEventExecutor
+         */
+        PINNED,
+        /**
+         * 连接内保持顺序，但连接之间的任务可以被空闲线程窃取执行
+         */
+        WORK_STEALING
+    }
+
+    /**
+     * Session 持久化存储的类型
+     */
+    public enum SessionStoreType
+    {
+        /**
+         * 不持久化，重启后 Session 全部丢失
+         */
+        NONE,
+        /**
+         * 保存到 session-store-file 指定的内存映射文件
+         */
+        MAPPED_FILE
+    }
+
+    /**
+     * 业务线程池在各优先级之间的调度方式
+     */
+    public enum PriorityScheduling
+    {
+        /**
+         * 严格优先级：高优先级有任务时总是先执行高优先级
+         */
+        STRICT,
+        /**
+         * 按权重轮转，低优先级也能按比例得到执行机会
+         */
+        WEIGHTED
+    }
+
+    /**
+     * 业务线程池的调度模式
+     */
+    private ServletExecutorMode servletExecutorMode = ServletExecutorMode.WORK_STEALING;
+
+    /**
+     * 业务线程池的线程数
+     */
+    private int servletExecutorThreads = 50;
+
+    /**
+     * 直接在 IO 线程（EventLoop）上执行的非阻塞路由，Ant 风格的 URL Pattern，不含 contextPath
+     */
+    private List<String> nonBlockingUrlPatterns = new ArrayList<>();
+
+    /**
+     * 非阻塞路由单次执行的耗时上限（毫秒），超过即记为一次慢调用
+     */
+    private long nonBlockingMaxMillis = 10;
+
+    /**
+     * 非阻塞路由在一个统计窗口内出现多少次慢调用之后，退回到业务线程池执行
+     */
+    private int nonBlockingSlowCallThreshold = 3;
+
+    /**
+     * 非阻塞路由慢调用的统计窗口（调用次数），每满一个窗口慢调用计数清零，偶发的慢调用不会累积成退回
+     */
+    private int nonBlockingSlowCallWindow = 100;
+
+    /**
+     * 监听同一端口的 accept 线程数，大于 1 时在 Epoll 下使用 SO_REUSEPORT 绑定多个 ServerChannel，NIO 下忽略
+     */
+    private int acceptors = 1;
+
+    /**
+     * 是否流式接收请求体：请求头到达就分发给 Servlet，请求体边到边读；关闭时整个请求体聚合在内存中再分发
+     */
+    private boolean requestBodyStreaming = false;
+
+    /**
+     * 请求体的最大字节数，超过时返回 413，小于 0 表示不限制
+     */
+    private long maxRequestBodySize = 100 * 1024;
+
+    /**
+     * 流式模式下，未读取的请求体超过该字节数后，后续数据写入临时文件
+     */
+    private int requestBodySpillThreshold = 64 * 1024;
+
+    /**
+     * 流式模式下，未读取的请求体（内存 + 临时文件）超过该字节数时暂停读取 Socket，读走一半后恢复
+     */
+    private long requestBodyMaxBufferedBytes = 4 * 1024 * 1024;
+
+    /**
+     * multipart 请求中单个 Part 留在内存中的最大字节数，超过后写入临时文件；Servlet 的 MultipartConfigElement 设置了 fileSizeThreshold 时以它为准
+     */
+    private long multipartFileSizeThreshold = 16 * 1024;
+
+    /**
+     * 是否支持 sendfile：默认 Servlet 输出文件系统中的静态资源、业务代码设置 org.apache.tomcat.sendfile.* 请求属性时，由容器直接把文件写到 Socket
+     */
+    private boolean sendfile = true;
+
+    /**
+     * 默认 Servlet 使用 sendfile 的最小文件大小，更小的文件直接经输出流写出（与 Tomcat 的 sendfileSize 一致）
+     */
+    private long sendfileMinSize = 48 * 1024;
+
+    /**
+     * 是否在 StandardRoot 前面启用静态资源缓存
+     */
+    private boolean resourceCache = true;
+
+    /**
+     * 静态资源缓存的最大字节数（元数据估算 + 堆外内容），超过后按最近访问时间淘汰
+     */
+    private long resourceCacheMaxSize = 10 * 1024 * 1024;
+
+    /**
+     * 单个资源的内容能进入缓存的最大字节数，不超过 resourceCacheMaxSize 的 1/20
+     */
+    private long resourceCacheObjectMaxSize = 512 * 1024;
+
+    /**
+     * 缓存条目重新校验（比较 lastModified 和长度）的间隔，毫秒
+     */
+    private long resourceCacheTtl = 5000;
+
+    /**
+     * 是否为 StandardRoot 构建合并的路径索引（归档条目 -> WebResourceSet），查找时跳过不包含该路径的 Jar/War
+     */
+    private boolean resourceIndex = true;
+
+    /**
+     * 路径索引中未命中缓存的最大条目数，有效期与 resourceCacheTtl 相同，0 表示不缓存未命中
+     */
+    private int resourceNegativeCacheSize = 10000;
+
+    /**
+     * 是否用 Recycler 复用请求、响应对象及其解析器、输入输出流，响应结束后归还对象池
+     */
+    private boolean recycleRequests = true;
+
+    /**
+     * 调试用：对象回收后不再放回对象池，而是标记为已回收，之后再使用会抛出 IllegalStateException，并带上回收时的调用栈
+     */
+    private boolean recycleCheck = false;
+
+    /**
+     * 无状态模式：不解析、不创建 Session，getSession(false) 始终返回 null，getSession(true) 抛出 IllegalStateException
+     */
+    private boolean sessionStateless = false;
+
+    /**
+     * Session 存储的分片数，向上取整为 2 的幂，每个分片有自己的锁
+     */
+    private int sessionShards = 16;
+
+    /**
+     * 最大 Session 数，超过时淘汰最久没有访问的 Session，不大于 0 表示不限制
+     */
+    private int sessionMaxCount = -1;
+
+    /**
+     * Session 过期时间轮每一格的时长（毫秒），即过期检查的精度
+     */
+    private long sessionExpireTickMs = 1000;
+
+    /**
+     * 是否把空闲 Session 的属性序列化到堆外，再次访问时恢复，属性必须可以序列化
+     */
+    private boolean sessionOffHeap = false;
+
+    /**
+     * Session 空闲多久（毫秒）之后把属性转存到堆外
+     */
+    private long sessionOffHeapIdleMs = 60000;
+
+    /**
+     * 堆外保存 Session 属性的总字节数上限，超过时属性留在堆上，不大于 0 表示不限制
+     */
+    private long sessionOffHeapMaxBytes = 256 * 1024 * 1024;
+
+    /**
+     * Session 持久化存储的类型，用于容器重启后恢复 Session
+     */
+    private SessionStoreType sessionStoreType = SessionStoreType.NONE;
+
+    /**
+     * MAPPED_FILE 存储的文件路径，相对路径基于工作目录
+     */
+    private String sessionStoreFile = "netty-sessions.log";
+
+    /**
+     * 有变化的 Session 批量写入持久化存储的间隔（毫秒）
+     */
+    private long sessionStoreFlushMs = 1000L;
+
+    /**
+     * AsyncContext 的默认超时时间（毫秒），不大于 0 表示不超时
+     */
+    private long asyncTimeoutMs = 10000L;
+
+    /**
+     * AsyncContext 超时时间轮每一格的时长（毫秒），超时最多推迟一格
+     */
+    private long asyncTimeoutTickMs = 100L;
+
+    /**
+     * 连接写缓冲区的低水位（字节），待发送数据降到低水位以下时连接重新变为可写，触发 WriteListener.onWritePossible()
+     */
+    private int writeBufferLowWaterMark = 32 * 1024;
+
+    /**
+     * 连接写缓冲区的高水位（字节），待发送数据超过高水位时连接变为不可写，ServletOutputStream.isReady() 返回 false
+     */
+    private int writeBufferHighWaterMark = 64 * 1024;
+
+    /**
+     * 是否按路由熔断：每个路由一个熔断器，熔断期间直接在 IO 线程上返回 503 或登记的降级响应，不进入业务线程池
+     */
+    private boolean circuitBreakerEnabled = true;
+
+    /**
+     * 熔断器统计健康状况的滚动窗口（毫秒）
+     */
+    private int circuitBreakerRollingWindowMs = 10000;
+
+    /**
+     * 滚动窗口内的请求数达到该值后才会计算错误率、判断是否熔断
+     */
+    private long circuitBreakerRequestVolumeThreshold = 20;
+
+    /**
+     * 错误率（百分比）达到该值时熔断；状态码大于等于 500 或 Servlet 抛出异常记为错误
+     */
+    private int circuitBreakerErrorThresholdPercentage = 50;
+
+    /**
+     * 熔断之后经过该时间（毫秒）放行一个试探请求，成功则关闭熔断器
+     */
+    private long circuitBreakerSleepWindowInMilliseconds = 5000;
+
+    /**
+     * 熔断器的路由分组：分组名 → Ant 风格的 URL Pattern（不含 contextPath），同一分组共用一个熔断器；没有命中分组的请求按第一级路径（如 /orders）各用一个熔断器
+     */
+    private Map<String, List<String>> circuitBreakerRouteGroups = new LinkedHashMap<>();
+
+    /**
+     * 按第一级路径自动创建的熔断器的最大个数，超过后其余路径共用 default 熔断器
+     */
+    private int circuitBreakerMaxRoutes = 256;
+
+    /**
+     * 是否在交给业务线程池之前做自适应并发限流：按请求延迟相对最小 RTT 的变化增减并发上限，超出上限的请求直接返回 503。
+     * 默认关闭，上限要按实际的延迟分布调整之后再打开
+     */
+    private boolean concurrencyLimitEnabled = false;
+
+    /**
+     * 自适应并发上限的初始值
+     */
+    private int concurrencyLimitInitial = 100;
+
+    /**
+     * 自适应并发上限的最小值
+     */
+    private int concurrencyLimitMin = 10;
+
+    /**
+     * 自适应并发上限的最大值
+     */
+    private int concurrencyLimitMax = 1000;
+
+    /**
+     * 延迟容忍倍数：窗口平均延迟不超过最小 RTT 的这么多倍时不收缩上限
+     */
+    private double concurrencyLimitRttTolerance = 2.0;
+
+    /**
+     * 采样窗口（毫秒），每个窗口至少 10 个样本，窗口结束时按平均延迟调整一次上限
+     */
+    private long concurrencyLimitWindowMs = 100L;
+
+    /**
+     * 每隔这么多个窗口用当前的平均延迟重置最小 RTT，使其跟上应用本身变慢（如数据量增长）的情况
+     */
+    private int concurrencyLimitProbeWindows = 600;
+
+    /**
+     * 是否按排队时间削峰（CoDel）：业务线程池持续排队时，丢弃排队超过 2 * codel-target-ms 的请求，直接返回 503。
+     * 默认关闭，target 要按业务的延迟要求设置之后再打开
+     */
+    private boolean codelEnabled = false;
+
+    /**
+     * CoDel 的目标排队时间（毫秒），一个统计周期内排队时间的最小值超过它即进入过载状态
+     */
+    private long codelTargetMs = 5L;
+
+    /**
+     * CoDel 的统计周期（毫秒）
+     */
+    private long codelIntervalMs = 100L;
+
+    /**
+     * 最高优先级（CRITICAL）的路由，Ant 风格的 URL Pattern，不含 contextPath，如健康检查、登录、支付
+     */
+    private List<String> priorityCriticalUrlPatterns = new ArrayList<>();
+
+    /**
+     * 最低优先级（BULK）的路由，如批处理、导出；其余请求为 NORMAL
+     */
+    private List<String> priorityBulkUrlPatterns = new ArrayList<>();
 
+    /**
+     * 指定优先级的请求头（取值 critical / normal / bulk），优先于 URL Pattern；为空表示不使用。只应由可信的网关设置
+     */
+    private String priorityHeader = "";
+
+    /**
+     * 业务线程池（work-stealing 模式）在各优先级队列之间的调度方式
+     */
+    private PriorityScheduling priorityScheduling = PriorityScheduling.WEIGHTED;
+
+    /**
+     * WEIGHTED 调度时 CRITICAL 的权重
+     */
+    private int priorityCriticalWeight = 8;
+
+    /**
+     * WEIGHTED 调度时 NORMAL 的权重
+     */
+    private int priorityNormalWeight = 4;
+
+    /**
+     * WEIGHTED 调度时 BULK 的权重
+     */
+    private int priorityBulkWeight = 1;
+
+    /**
+     * NORMAL 请求只能占用自适应并发上限的这个百分比，剩余的名额留给 CRITICAL
+     */
+    private int priorityNormalQuotaPercent = 90;
+
+    /**
+     * BULK 请求只能占用自适应并发上限的这个百分比，过载时最先被拒绝
+     */
+    private int priorityBulkQuotaPercent = 50;
+
+    /**
+     * 是否计算服务器健康状态（GREEN / YELLOW / RED）并据此控制准入：YELLOW 拒绝 BULK 请求，RED 只接收 CRITICAL 请求。
+     * 默认关闭，打开前先按 priority-* 配置好 CRITICAL 请求，没有配置时 RED 和 YELLOW 一样只拒绝 BULK
+     */
+    private boolean healthEnabled = false;
+
+    /**
+     * 健康状态的计算间隔（毫秒）
+     */
+    private long healthCheckIntervalMs = 100L;
+
+    /**
+     * 按路由熔断统计的滚动窗口内，总错误率（百分比）达到该值进入 YELLOW
+     */
+    private int healthErrorPercentYellow = 20;
+
+    /**
+     * 总错误率（百分比）达到该值进入 RED
+     */
+    private int healthErrorPercentRed = 50;
+
+    /**
+     * 业务线程池中等待执行的任务数达到该值进入 YELLOW
+     */
+    private long healthExecutorQueueYellow = 1000L;
+
+    /**
+     * 业务线程池中等待执行的任务数达到该值进入 RED
+     */
+    private long healthExecutorQueueRed = 5000L;
+
+    /**
+     * IO 线程（EventLoop）的任务延迟（毫秒）达到该值进入 YELLOW
+     */
+    private long healthEventLoopLagYellowMs = 50L;
+
+    /**
+     * IO 线程（EventLoop）的任务延迟（毫秒）达到该值进入 RED
+     */
+    private long healthEventLoopLagRedMs = 200L;
+
+    /**
+     * 尚未完成的请求数达到该值进入 YELLOW
+     */
+    private int healthPendingRequestsYellow = 2000;
+
+    /**
+     * 尚未完成的请求数达到该值进入 RED
+     */
+    private int healthPendingRequestsRed = 10000;
+
+    /**
+     * 回差：所有指标都降到阈值的这个比例以下才算恢复
+     */
+    private double healthRecoverRatio = 0.8;
+
+    /**
+     * 连续这么多次计算都满足恢复条件，才降低一级（RED → YELLOW → GREEN）；变差时立即切换
+     */
+    private int healthRecoverChecks = 20;
 
     private static NettyWebServerConfig instance;
 
@@ -15,19 +439,744 @@ public class NettyWebServerConfig
         return instance;
     }
 
-    public long getCircuitBreakerRequestVolumeThreshold()
+    public ServletExecutorMode getServletExecutorMode()
     {
-        return 0;
+        return servletExecutorMode;
     }
 
-    public int getCircuitBreakerErrorThresholdPercentage()
+    public void setServletExecutorMode(ServletExecutorMode servletExecutorMode)
     {
-        return 0;
+        this.servletExecutorMode = servletExecutorMode;
     }
 
-    public long getCircuitBreakerSleepWindowInMilliseconds()
+    public int getServletExecutorThreads()
     {
-        return 0;
+        return servletExecutorThreads;
+    }
+
+    public void setServletExecutorThreads(int servletExecutorThreads)
+    {
+        this.servletExecutorThreads = servletExecutorThreads;
+    }
+
+    public List<String> getNonBlockingUrlPatterns()
+    {
+        return nonBlockingUrlPatterns;
+    }
+
+    public void setNonBlockingUrlPatterns(List<String> nonBlockingUrlPatterns)
+    {
+        this.nonBlockingUrlPatterns = nonBlockingUrlPatterns;
+    }
+
+    public long getNonBlockingMaxMillis()
+    {
+        return nonBlockingMaxMillis;
+    }
+
+    public void setNonBlockingMaxMillis(long nonBlockingMaxMillis)
+    {
+        this.nonBlockingMaxMillis = nonBlockingMaxMillis;
+    }
+
+    public int getNonBlockingSlowCallThreshold()
+    {
+        return nonBlockingSlowCallThreshold;
+    }
+
+    public void setNonBlockingSlowCallThreshold(int nonBlockingSlowCallThreshold)
+    {
+        this.nonBlockingSlowCallThreshold = nonBlockingSlowCallThreshold;
+    }
+
+    public int getNonBlockingSlowCallWindow()
+    {
+        return nonBlockingSlowCallWindow;
+    }
+
+    public void setNonBlockingSlowCallWindow(int nonBlockingSlowCallWindow)
+    {
+        this.nonBlockingSlowCallWindow = nonBlockingSlowCallWindow;
+    }
+
+    public int getAcceptors()
+    {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors)
+    {
+        this.acceptors = acceptors;
+    }
+
+    public boolean isRequestBodyStreaming()
+    {
+        return requestBodyStreaming;
+    }
+
+    public void setRequestBodyStreaming(boolean requestBodyStreaming)
+    {
+        this.requestBodyStreaming = requestBodyStreaming;
+    }
+
+    public long getMaxRequestBodySize()
+    {
+        return maxRequestBodySize;
+    }
+
+    public void setMaxRequestBodySize(long maxRequestBodySize)
+    {
+        this.maxRequestBodySize = maxRequestBodySize;
+    }
+
+    public int getRequestBodySpillThreshold()
+    {
+        return requestBodySpillThreshold;
+    }
+
+    public void setRequestBodySpillThreshold(int requestBodySpillThreshold)
+    {
+        this.requestBodySpillThreshold = requestBodySpillThreshold;
+    }
+
+    public long getRequestBodyMaxBufferedBytes()
+    {
+        return requestBodyMaxBufferedBytes;
+    }
+
+    public void setRequestBodyMaxBufferedBytes(long requestBodyMaxBufferedBytes)
+    {
+        this.requestBodyMaxBufferedBytes = requestBodyMaxBufferedBytes;
+    }
+
+    public long getMultipartFileSizeThreshold()
+    {
+        return multipartFileSizeThreshold;
+    }
+
+    public void setMultipartFileSizeThreshold(long multipartFileSizeThreshold)
+    {
+        this.multipartFileSizeThreshold = multipartFileSizeThreshold;
+    }
+
+    public boolean isSendfile()
+    {
+        return sendfile;
+    }
+
+    public void setSendfile(boolean sendfile)
+    {
+        this.sendfile = sendfile;
+    }
+
+    public long getSendfileMinSize()
+    {
+        return sendfileMinSize;
+    }
+
+    public void setSendfileMinSize(long sendfileMinSize)
+    {
+        this.sendfileMinSize = sendfileMinSize;
+    }
+
+    public boolean isResourceCache()
+    {
+        return resourceCache;
+    }
+
+    public void setResourceCache(boolean resourceCache)
+    {
+        this.resourceCache = resourceCache;
+    }
+
+    public long getResourceCacheMaxSize()
+    {
+        return resourceCacheMaxSize;
+    }
+
+    public void setResourceCacheMaxSize(long resourceCacheMaxSize)
+    {
+        this.resourceCacheMaxSize = resourceCacheMaxSize;
+    }
+
+    public long getResourceCacheObjectMaxSize()
+    {
+        return resourceCacheObjectMaxSize;
+    }
+
+    public void setResourceCacheObjectMaxSize(long resourceCacheObjectMaxSize)
+    {
+        this.resourceCacheObjectMaxSize = resourceCacheObjectMaxSize;
+    }
+
+    public long getResourceCacheTtl()
+    {
+        return resourceCacheTtl;
+    }
+
+    public void setResourceCacheTtl(long resourceCacheTtl)
+    {
+        this.resourceCacheTtl = resourceCacheTtl;
+    }
+
+    public boolean isResourceIndex()
+    {
+        return resourceIndex;
+    }
+
+    public void setResourceIndex(boolean resourceIndex)
+    {
+        this.resourceIndex = resourceIndex;
+    }
+
+    public int getResourceNegativeCacheSize()
+    {
+        return resourceNegativeCacheSize;
+    }
+
+    public void setResourceNegativeCacheSize(int resourceNegativeCacheSize)
+    {
+        this.resourceNegativeCacheSize = resourceNegativeCacheSize;
+    }
+
+    public boolean isRecycleRequests()
+    {
+        return recycleRequests;
+    }
+
+    public void setRecycleRequests(boolean recycleRequests)
+    {
+        this.recycleRequests = recycleRequests;
+    }
+
+    public boolean isRecycleCheck()
+    {
+        return recycleCheck;
+    }
+
+    public void setRecycleCheck(boolean recycleCheck)
+    {
+        this.recycleCheck = recycleCheck;
+    }
+
+    public boolean isSessionStateless()
+    {
+        return sessionStateless;
+    }
+
+    public void setSessionStateless(boolean sessionStateless)
+    {
+        this.sessionStateless = sessionStateless;
+    }
+
+    public int getSessionShards()
+    {
+        return sessionShards;
+    }
+
+    public void setSessionShards(int sessionShards)
+    {
+        this.sessionShards = sessionShards;
+    }
+
+    public int getSessionMaxCount()
+    {
+        return sessionMaxCount;
+    }
+
+    public void setSessionMaxCount(int sessionMaxCount)
+    {
+        this.sessionMaxCount = sessionMaxCount;
+    }
+
+    public long getSessionExpireTickMs()
+    {
+        return sessionExpireTickMs;
+    }
+
+    public void setSessionExpireTickMs(long sessionExpireTickMs)
+    {
+        this.sessionExpireTickMs = sessionExpireTickMs;
+    }
+
+    public boolean isSessionOffHeap()
+    {
+        return sessionOffHeap;
+    }
+
+    public void setSessionOffHeap(boolean sessionOffHeap)
+    {
+        this.sessionOffHeap = sessionOffHeap;
+    }
+
+    public long getSessionOffHeapIdleMs()
+    {
+        return sessionOffHeapIdleMs;
+    }
+
+    public void setSessionOffHeapIdleMs(long sessionOffHeapIdleMs)
+    {
+        this.sessionOffHeapIdleMs = sessionOffHeapIdleMs;
+    }
+
+    public long getSessionOffHeapMaxBytes()
+    {
+        return sessionOffHeapMaxBytes;
+    }
+
+    public void setSessionOffHeapMaxBytes(long sessionOffHeapMaxBytes)
+    {
+        this.sessionOffHeapMaxBytes = sessionOffHeapMaxBytes;
+    }
+
+    public SessionStoreType getSessionStoreType()
+    {
+        return sessionStoreType;
+    }
+
+    public void setSessionStoreType(SessionStoreType sessionStoreType)
+    {
+        this.sessionStoreType = sessionStoreType;
+    }
+
+    public String getSessionStoreFile()
+    {
+        return sessionStoreFile;
+    }
+
+    public void setSessionStoreFile(String sessionStoreFile)
+    {
+        this.sessionStoreFile = sessionStoreFile;
+    }
+
+    public long getSessionStoreFlushMs()
+    {
+        return sessionStoreFlushMs;
+    }
+
+    public void setSessionStoreFlushMs(long sessionStoreFlushMs)
+    {
+        this.sessionStoreFlushMs = sessionStoreFlushMs;
+    }
+
+    public long getAsyncTimeoutMs()
+    {
+        return asyncTimeoutMs;
+    }
+
+    public void setAsyncTimeoutMs(long asyncTimeoutMs)
+    {
+        this.asyncTimeoutMs = asyncTimeoutMs;
+    }
+
+    public long getAsyncTimeoutTickMs()
+    {
+        return asyncTimeoutTickMs;
+    }
+
+    public void setAsyncTimeoutTickMs(long asyncTimeoutTickMs)
+    {
+        this.asyncTimeoutTickMs = asyncTimeoutTickMs;
+    }
+
+    public int getWriteBufferLowWaterMark()
+    {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark)
+    {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark()
+    {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark)
+    {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public boolean isCircuitBreakerEnabled()
+    {
+        return circuitBreakerEnabled;
+    }
+
+    public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled)
+    {
+        this.circuitBreakerEnabled = circuitBreakerEnabled;
+    }
+
+    public int getCircuitBreakerRollingWindowMs()
+    {
+        return circuitBreakerRollingWindowMs;
+    }
+
+    public void setCircuitBreakerRollingWindowMs(int circuitBreakerRollingWindowMs)
+    {
+        this.circuitBreakerRollingWindowMs = circuitBreakerRollingWindowMs;
+    }
+
+    public long getCircuitBreakerRequestVolumeThreshold()
+    {
+        return circuitBreakerRequestVolumeThreshold;
+    }
+
+    public void setCircuitBreakerRequestVolumeThreshold(long circuitBreakerRequestVolumeThreshold)
+    {
+        this.circuitBreakerRequestVolumeThreshold = circuitBreakerRequestVolumeThreshold;
+    }
+
+    public int getCircuitBreakerErrorThresholdPercentage()
+    {
+        return circuitBreakerErrorThresholdPercentage;
+    }
+
+    public void setCircuitBreakerErrorThresholdPercentage(int circuitBreakerErrorThresholdPercentage)
+    {
+        this.circuitBreakerErrorThresholdPercentage = circuitBreakerErrorThresholdPercentage;
+    }
+
+    public long getCircuitBreakerSleepWindowInMilliseconds()
+    {
+        return circuitBreakerSleepWindowInMilliseconds;
+    }
+
+    public void setCircuitBreakerSleepWindowInMilliseconds(long circuitBreakerSleepWindowInMilliseconds)
+    {
+        this.circuitBreakerSleepWindowInMilliseconds = circuitBreakerSleepWindowInMilliseconds;
+    }
+
+    public Map<String, List<String>> getCircuitBreakerRouteGroups()
+    {
+        return circuitBreakerRouteGroups;
+    }
+
+    public void setCircuitBreakerRouteGroups(Map<String, List<String>> circuitBreakerRouteGroups)
+    {
+        this.circuitBreakerRouteGroups = circuitBreakerRouteGroups;
+    }
+
+    public int getCircuitBreakerMaxRoutes()
+    {
+        return circuitBreakerMaxRoutes;
+    }
+
+    public void setCircuitBreakerMaxRoutes(int circuitBreakerMaxRoutes)
+    {
+        this.circuitBreakerMaxRoutes = circuitBreakerMaxRoutes;
+    }
+
+    public boolean isConcurrencyLimitEnabled()
+    {
+        return concurrencyLimitEnabled;
+    }
+
+    public void setConcurrencyLimitEnabled(boolean concurrencyLimitEnabled)
+    {
+        this.concurrencyLimitEnabled = concurrencyLimitEnabled;
+    }
+
+    public int getConcurrencyLimitInitial()
+    {
+        return concurrencyLimitInitial;
+    }
+
+    public void setConcurrencyLimitInitial(int concurrencyLimitInitial)
+    {
+        this.concurrencyLimitInitial = concurrencyLimitInitial;
+    }
+
+    public int getConcurrencyLimitMin()
+    {
+        return concurrencyLimitMin;
+    }
+
+    public void setConcurrencyLimitMin(int concurrencyLimitMin)
+    {
+        this.concurrencyLimitMin = concurrencyLimitMin;
+    }
+
+    public int getConcurrencyLimitMax()
+    {
+        return concurrencyLimitMax;
+    }
+
+    public void setConcurrencyLimitMax(int concurrencyLimitMax)
+    {
+        this.concurrencyLimitMax = concurrencyLimitMax;
+    }
+
+    public double getConcurrencyLimitRttTolerance()
+    {
+        return concurrencyLimitRttTolerance;
+    }
+
+    public void setConcurrencyLimitRttTolerance(double concurrencyLimitRttTolerance)
+    {
+        this.concurrencyLimitRttTolerance = concurrencyLimitRttTolerance;
+    }
+
+    public long getConcurrencyLimitWindowMs()
+    {
+        return concurrencyLimitWindowMs;
+    }
+
+    public void setConcurrencyLimitWindowMs(long concurrencyLimitWindowMs)
+    {
+        this.concurrencyLimitWindowMs = concurrencyLimitWindowMs;
+    }
+
+    public int getConcurrencyLimitProbeWindows()
+    {
+        return concurrencyLimitProbeWindows;
+    }
+
+    public void setConcurrencyLimitProbeWindows(int concurrencyLimitProbeWindows)
+    {
+        this.concurrencyLimitProbeWindows = concurrencyLimitProbeWindows;
+    }
+
+    public boolean isCodelEnabled()
+    {
+        return codelEnabled;
+    }
+
+    public void setCodelEnabled(boolean codelEnabled)
+    {
+        this.codelEnabled = codelEnabled;
+    }
+
+    public long getCodelTargetMs()
+    {
+        return codelTargetMs;
+    }
+
+    public void setCodelTargetMs(long codelTargetMs)
+    {
+        this.codelTargetMs = codelTargetMs;
+    }
+
+    public long getCodelIntervalMs()
+    {
+        return codelIntervalMs;
+    }
+
+    public void setCodelIntervalMs(long codelIntervalMs)
+    {
+        this.codelIntervalMs = codelIntervalMs;
+    }
+
+    public List<String> getPriorityCriticalUrlPatterns()
+    {
+        return priorityCriticalUrlPatterns;
+    }
+
+    public void setPriorityCriticalUrlPatterns(List<String> priorityCriticalUrlPatterns)
+    {
+        this.priorityCriticalUrlPatterns = priorityCriticalUrlPatterns;
+    }
+
+    public List<String> getPriorityBulkUrlPatterns()
+    {
+        return priorityBulkUrlPatterns;
+    }
+
+    public void setPriorityBulkUrlPatterns(List<String> priorityBulkUrlPatterns)
+    {
+        this.priorityBulkUrlPatterns = priorityBulkUrlPatterns;
+    }
+
+    public String getPriorityHeader()
+    {
+        return priorityHeader;
+    }
+
+    public void setPriorityHeader(String priorityHeader)
+    {
+        this.priorityHeader = priorityHeader;
+    }
+
+    public PriorityScheduling getPriorityScheduling()
+    {
+        return priorityScheduling;
+    }
+
+    public void setPriorityScheduling(PriorityScheduling priorityScheduling)
+    {
+        this.priorityScheduling = priorityScheduling;
+    }
+
+    public int getPriorityCriticalWeight()
+    {
+        return priorityCriticalWeight;
+    }
+
+    public void setPriorityCriticalWeight(int priorityCriticalWeight)
+    {
+        this.priorityCriticalWeight = priorityCriticalWeight;
+    }
+
+    public int getPriorityNormalWeight()
+    {
+        return priorityNormalWeight;
+    }
+
+    public void setPriorityNormalWeight(int priorityNormalWeight)
+    {
+        this.priorityNormalWeight = priorityNormalWeight;
+    }
+
+    public int getPriorityBulkWeight()
+    {
+        return priorityBulkWeight;
+    }
+
+    public void setPriorityBulkWeight(int priorityBulkWeight)
+    {
+        this.priorityBulkWeight = priorityBulkWeight;
+    }
+
+    public int getPriorityNormalQuotaPercent()
+    {
+        return priorityNormalQuotaPercent;
+    }
+
+    public void setPriorityNormalQuotaPercent(int priorityNormalQuotaPercent)
+    {
+        this.priorityNormalQuotaPercent = priorityNormalQuotaPercent;
+    }
+
+    public int getPriorityBulkQuotaPercent()
+    {
+        return priorityBulkQuotaPercent;
+    }
+
+    public void setPriorityBulkQuotaPercent(int priorityBulkQuotaPercent)
+    {
+        this.priorityBulkQuotaPercent = priorityBulkQuotaPercent;
+    }
+
+    public boolean isHealthEnabled()
+    {
+        return healthEnabled;
+    }
+
+    public void setHealthEnabled(boolean healthEnabled)
+    {
+        this.healthEnabled = healthEnabled;
+    }
+
+    public long getHealthCheckIntervalMs()
+    {
+        return healthCheckIntervalMs;
+    }
+
+    public void setHealthCheckIntervalMs(long healthCheckIntervalMs)
+    {
+        this.healthCheckIntervalMs = healthCheckIntervalMs;
+    }
+
+    public int getHealthErrorPercentYellow()
+    {
+        return healthErrorPercentYellow;
+    }
+
+    public void setHealthErrorPercentYellow(int healthErrorPercentYellow)
+    {
+        this.healthErrorPercentYellow = healthErrorPercentYellow;
+    }
+
+    public int getHealthErrorPercentRed()
+    {
+        return healthErrorPercentRed;
+    }
+
+    public void setHealthErrorPercentRed(int healthErrorPercentRed)
+    {
+        this.healthErrorPercentRed = healthErrorPercentRed;
+    }
+
+    public long getHealthExecutorQueueYellow()
+    {
+        return healthExecutorQueueYellow;
+    }
+
+    public void setHealthExecutorQueueYellow(long healthExecutorQueueYellow)
+    {
+        this.healthExecutorQueueYellow = healthExecutorQueueYellow;
+    }
+
+    public long getHealthExecutorQueueRed()
+    {
+        return healthExecutorQueueRed;
+    }
+
+    public void setHealthExecutorQueueRed(long healthExecutorQueueRed)
+    {
+        this.healthExecutorQueueRed = healthExecutorQueueRed;
+    }
+
+    public long getHealthEventLoopLagYellowMs()
+    {
+        return healthEventLoopLagYellowMs;
+    }
+
+    public void setHealthEventLoopLagYellowMs(long healthEventLoopLagYellowMs)
+    {
+        this.healthEventLoopLagYellowMs = healthEventLoopLagYellowMs;
+    }
+
+    public long getHealthEventLoopLagRedMs()
+    {
+        return healthEventLoopLagRedMs;
+    }
+
+    public void setHealthEventLoopLagRedMs(long healthEventLoopLagRedMs)
+    {
+        this.healthEventLoopLagRedMs = healthEventLoopLagRedMs;
+    }
+
+    public int getHealthPendingRequestsYellow()
+    {
+        return healthPendingRequestsYellow;
+    }
+
+    public void setHealthPendingRequestsYellow(int healthPendingRequestsYellow)
+    {
+        this.healthPendingRequestsYellow = healthPendingRequestsYellow;
+    }
+
+    public int getHealthPendingRequestsRed()
+    {
+        return healthPendingRequestsRed;
+    }
+
+    public void setHealthPendingRequestsRed(int healthPendingRequestsRed)
+    {
+        this.healthPendingRequestsRed = healthPendingRequestsRed;
+    }
+
+    public double getHealthRecoverRatio()
+    {
+        return healthRecoverRatio;
+    }
+
+    public void setHealthRecoverRatio(double healthRecoverRatio)
+    {
+        this.healthRecoverRatio = healthRecoverRatio;
+    }
+
+    public int getHealthRecoverChecks()
+    {
+        return healthRecoverChecks;
+    }
+
+    public void setHealthRecoverChecks(int healthRecoverChecks)
+    {
+        this.healthRecoverChecks = healthRecoverChecks;
     }
 
     public int getQueueSizeRejectionThreshold()
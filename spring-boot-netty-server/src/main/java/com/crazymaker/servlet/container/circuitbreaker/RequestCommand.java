@@ -38,9 +38,14 @@ public class RequestCommand<R>
         NOT_USING_THREAD, STARTED, UNSUBSCRIBED, TERMINAL
     }
 
-    protected final RequestMetrics metrics = RequestMetrics.getInstance();
+    /**
+     * 没有指定路由时使用的 Key
+     */
+    public static final String DEFAULT_ROUTE_KEY = "default";
+
+    protected final RequestMetrics metrics;
 
-    protected final CircuitBreaker circuitBreaker = CircuitBreaker.getInstance();
+    protected final CircuitBreaker circuitBreaker;
     protected final AtomicReference<Reference<TimerListener>> timeoutTimer = new AtomicReference<Reference<TimerListener>>();
 
     protected AtomicReference<CommandState> commandState = new AtomicReference<CommandState>(CommandState.NOT_STARTED);
@@ -54,6 +59,20 @@ public class RequestCommand<R>
     protected final RequestThreadPool threadPool = RequestThreadPool.Factory.getInstance();
     private static final NettyWebServerConfig properties = NettyWebServerConfig.getInstance();
 
+    public RequestCommand()
+    {
+        this(DEFAULT_ROUTE_KEY);
+    }
+
+    /**
+     * @param routeKey 路由的 Key，同一个 Key 的命令共用一个熔断器和一组滚动统计
+     */
+    public RequestCommand(String routeKey)
+    {
+        this.metrics = RequestMetrics.getInstance(routeKey);
+        this.circuitBreaker = CircuitBreaker.getInstance(routeKey);
+    }
+
     private void handleCommandEnd(boolean commandExecutionStarted)
     {
         Reference<TimerListener> tl = timeoutTimer.get();
@@ -16,9 +16,14 @@ public class RequestEvent
      */
     private boolean succeed;
 
-    public static RequestEvent from(ExecutionResult executionResult)
+    /**
+     * 事件所属的路由（熔断器的 Key）
+     */
+    private final String routeKey;
+
+    public static RequestEvent from(String routeKey, ExecutionResult executionResult)
     {
-        return new RequestEvent(executionResult);
+        return new RequestEvent(routeKey, executionResult);
     }
 
 
@@ -29,8 +34,9 @@ public class RequestEvent
 
     protected final ExecutionResult executionResult;
 
-    private RequestEvent(ExecutionResult executionResult)
+    private RequestEvent(String routeKey, ExecutionResult executionResult)
     {
+        this.routeKey = routeKey;
         this.executionResult = executionResult;
     }
 
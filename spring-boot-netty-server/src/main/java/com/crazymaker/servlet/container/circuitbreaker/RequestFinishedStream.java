@@ -5,19 +5,19 @@ import rx.subjects.PublishSubject;
 import rx.subjects.SerializedSubject;
 import rx.subjects.Subject;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class RequestFinishedStream implements EventStream<RequestEvent>
 {
 
-    private static RequestFinishedStream existingStream = null;
+    /**
+     * 每个路由一个流
+     */
+    private static final ConcurrentHashMap<String, RequestFinishedStream> streams = new ConcurrentHashMap<>();
 
-    public static RequestFinishedStream getInstance()
+    public static RequestFinishedStream getInstance(String routeKey)
     {
-        if (existingStream == null)
-        {
-            existingStream = new RequestFinishedStream();
-
-        }
-        return existingStream;
+        return streams.computeIfAbsent(routeKey, key -> new RequestFinishedStream());
     }
 
 
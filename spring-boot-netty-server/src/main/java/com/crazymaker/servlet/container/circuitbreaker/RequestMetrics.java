@@ -5,6 +5,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rx.functions.Func2;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -47,52 +49,64 @@ public class RequestMetrics
         }
     };
 
-    // String is HystrixCommandKey.name() (we can't use HystrixCommandKey directly as we can't guarantee it implements hashcode/equals correctly)
+    // String is the route key (route group name or route prefix)
     private static final ConcurrentHashMap<String, RequestMetrics> metrics = new ConcurrentHashMap<String, RequestMetrics>();
 
+    private static final ExecutionResult SUCCESS_RESULT = ExecutionResult.from(EventType.SUCCESS);
+    private static final ExecutionResult FAILURE_RESULT = ExecutionResult.from(EventType.FAILURE);
 
-    static RequestMetrics metricsInstance = null;
+    /**
+     * 每个路由一个实例
+     */
+    public static RequestMetrics getInstance(String routeKey)
+    {
+        return metrics.computeIfAbsent(routeKey, RequestMetrics::new);
+    }
 
     /**
-     * 单例
+     * @return 已经创建的各路由实例
      */
-    public static RequestMetrics getInstance()
+    public static Collection<RequestMetrics> getInstances()
     {
-        if (null == metricsInstance)
-        {
-            metricsInstance = new RequestMetrics();
-        }
-        return metricsInstance;
+        return Collections.unmodifiableCollection(metrics.values());
     }
 
 
     static void reset()
     {
-
-        metricsInstance.unsubscribeAll();
-
+        for (RequestMetrics instance : metrics.values())
+        {
+            instance.unsubscribeAll();
+        }
+        metrics.clear();
     }
 
 
+    private final String routeKey;
     private final AtomicInteger concurrentExecutionCount = new AtomicInteger();
 
     private HealthComputeStream healthCountsStream;
     private final RollingRequestEventStream rollingRequestEventStream;
     private final CumulativeRequestStream cumulativeCommandEventCounterStream;
 
-    RequestMetrics()
+    RequestMetrics(String routeKey)
     {
-
-        healthCountsStream = HealthComputeStream.getInstance();
-        rollingRequestEventStream = RollingRequestEventStream.getInstance();
-        cumulativeCommandEventCounterStream = CumulativeRequestStream.getInstance();
+        this.routeKey = routeKey;
+        healthCountsStream = HealthComputeStream.getInstance(routeKey);
+        rollingRequestEventStream = RollingRequestEventStream.getInstance(routeKey);
+        cumulativeCommandEventCounterStream = CumulativeRequestStream.getInstance(routeKey);
 
     }
 
     synchronized void resetStream()
     {
         healthCountsStream.unsubscribe();
-        healthCountsStream = HealthComputeStream.getInstance();
+        healthCountsStream = HealthComputeStream.getInstance(routeKey);
+    }
+
+    public String getRouteKey()
+    {
+        return routeKey;
     }
 
     public long getRollingCount(EventType eventType)
@@ -119,13 +133,21 @@ public class RequestMetrics
 
     void markCommandDone(ExecutionResult executionResult, boolean executionStarted)
     {
-        ThreadEventStream.getInstance().executionDone(executionResult);
+        ThreadEventStream.getInstance().executionDone(routeKey, executionResult);
         if (executionStarted)
         {
             concurrentExecutionCount.decrementAndGet();
         }
     }
 
+    /**
+     * 记录一次不经过 RequestCommand 的执行（容器直接分发的请求），计入该路由的滚动窗口
+     */
+    public void markExecutionDone(boolean failed)
+    {
+        ThreadEventStream.getInstance().executionDone(routeKey, failed ? FAILURE_RESULT : SUCCESS_RESULT);
+    }
+
 
     public HealthCounts getHealthCounts()
     {
@@ -2,6 +2,8 @@ package com.crazymaker.servlet.container.circuitbreaker;
 
 import rx.functions.Func2;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class RollingRequestEventStream
         extends BaseRollingStream<RequestEvent, long[], long[]>
 {
@@ -9,11 +11,11 @@ public class RollingRequestEventStream
     private static final int NUM_EVENT_TYPES = EventType.values().length;
 
 
-    private RollingRequestEventStream(int numCounterBuckets, int counterBucketSizeInMs,
+    private RollingRequestEventStream(String routeKey, int numCounterBuckets, int counterBucketSizeInMs,
                                       Func2<long[], RequestEvent, long[]> reduceCommandCompletion,
                                       Func2<long[], long[], long[]> reduceBucket)
     {
-        super(RequestFinishedStream.getInstance(),
+        super(RequestFinishedStream.getInstance(routeKey),
                 numCounterBuckets,
                 counterBucketSizeInMs,
                 reduceCommandCompletion,
@@ -39,22 +41,20 @@ public class RollingRequestEventStream
     }
 
 
-    private static RollingRequestEventStream existingStream = null;
+    private static final ConcurrentHashMap<String, RollingRequestEventStream> streams = new ConcurrentHashMap<>();
 
-    public static RollingRequestEventStream getInstance()
+    public static RollingRequestEventStream getInstance(String routeKey)
     {
-        if (existingStream == null)
+        return streams.computeIfAbsent(routeKey, key ->
         {
             int counterMetricWindow = 1000;
             int numCounterBuckets = 10;
             int counterBucketSizeInMs = counterMetricWindow / numCounterBuckets;
-            existingStream = new RollingRequestEventStream(
+            return new RollingRequestEventStream(key,
                     numCounterBuckets, counterBucketSizeInMs,
                     RequestMetrics.appendEventToBucket,
                     RequestMetrics.bucketAggregator);
-
-        }
-        return existingStream;
+        });
     }
 
 }
@@ -1,30 +1,39 @@
 package com.crazymaker.servlet.container.circuitbreaker;
 
 
+import io.netty.util.concurrent.FastThreadLocal;
 import rx.functions.Action1;
 import rx.observers.Subscribers;
 import rx.subjects.PublishSubject;
 import rx.subjects.Subject;
 
+/**
+ * 每个线程一个事件流，与 HystrixThreadEventStream 相同
+ * <p>
+ * 一个线程上的 onNext 天然是串行的，不需要 SerializedSubject；事件直接转发到所属路由的 RequestFinishedStream，
+ * 多个线程只在同一个路由的流上竞争，不会在一个全局的流上互相等待。
+ */
 public class ThreadEventStream
 {
 
     private final Subject<RequestEvent, RequestEvent> writeOnlyRequestCompletionSubject;
     private final Subject<RequestEvent, RequestEvent> writeOnlyRequestFailureSubject;
 
+    private static final FastThreadLocal<ThreadEventStream> threadLocalStreams = new FastThreadLocal<ThreadEventStream>()
+    {
+        @Override
+        protected ThreadEventStream initialValue()
+        {
+            return new ThreadEventStream();
+        }
+    };
+
     /**
-     * 单例
+     * @return 当前线程的事件流
      */
-    private static ThreadEventStream existingStream = null;
-
     public static ThreadEventStream getInstance()
     {
-        if (existingStream == null)
-        {
-            existingStream = new ThreadEventStream();
-
-        }
-        return existingStream;
+        return threadLocalStreams.get();
     }
 
     private static final Action1<RequestEvent> writeCommandCompletionsToShardedStreams = new Action1<RequestEvent>()
@@ -32,7 +41,7 @@ public class ThreadEventStream
         @Override
         public void call(RequestEvent commandCompletion)
         {
-            RequestFinishedStream commandStream = RequestFinishedStream.getInstance();
+            RequestFinishedStream commandStream = RequestFinishedStream.getInstance(commandCompletion.getRouteKey());
             commandStream.write(commandCompletion);
         }
     };
@@ -42,14 +51,13 @@ public class ThreadEventStream
         @Override
         public void call(RequestEvent collapserEvent)
         {
-            RequestFinishedStream collapserStream = RequestFinishedStream.getInstance();
+            RequestFinishedStream collapserStream = RequestFinishedStream.getInstance(collapserEvent.getRouteKey());
             collapserStream.write(collapserEvent);
         }
     };
 
     private ThreadEventStream()
     {
-
         writeOnlyRequestCompletionSubject = PublishSubject.create();
 
         writeOnlyRequestCompletionSubject
@@ -71,15 +79,15 @@ public class ThreadEventStream
         writeOnlyRequestFailureSubject.onCompleted();
     }
 
-    public void executionDone(ExecutionResult executionResult)
+    public void executionDone(String routeKey, ExecutionResult executionResult)
     {
-        RequestEvent event = RequestEvent.from(executionResult);
+        RequestEvent event = RequestEvent.from(routeKey, executionResult);
         writeOnlyRequestCompletionSubject.onNext(event);
     }
 
-    public void executionFailure(ExecutionResult executionResult)
+    public void executionFailure(String routeKey, ExecutionResult executionResult)
     {
-        RequestEvent event = RequestEvent.from(executionResult);
+        RequestEvent event = RequestEvent.from(routeKey, executionResult);
         writeOnlyRequestFailureSubject.onNext(event);
     }
 
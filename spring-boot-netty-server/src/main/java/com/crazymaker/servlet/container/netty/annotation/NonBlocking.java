@@ -0,0 +1,21 @@
+package com.crazymaker.servlet.container.netty.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标记非阻塞的接口（如健康检查、缓存查询），请求会直接在 IO 线程（EventLoop）上执行，省去两次线程切换。
+ * 可以标注在 Controller 类或者 @RequestMapping 方法上。
+ * <p>
+ * 被标记的接口中不能有任何阻塞调用；如果执行耗时持续超过 server.netty.non-blocking-max-millis，
+ * 服务器会把该路由退回到业务线程池执行。
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface NonBlocking
+{
+}
@@ -1,14 +1,27 @@
 package com.crazymaker.servlet.container.netty.async;
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.core.InlineDispatchHandler;
 import com.crazymaker.servlet.container.netty.core.NettyRequestDispatcherHandler;
+import com.crazymaker.servlet.container.netty.core.NettyServletContext;
 import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
 import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeanUtils;
-import org.springframework.web.util.WebUtils;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -18,32 +31,115 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
+/**
+ * 非阻塞的 AsyncContext
+ * <p>
+ * startAsync() 只登记状态，立即返回。容器的这次分发返回之后请求就"停放"起来，不占用任何线程：
+ * 只在超时时间轮上有一个任务，在 Channel 的 closeFuture 上有一个监听器。之后：
+ * <ul>
+ * <li>complete()：在这个连接的业务线程上通知 onComplete，关闭响应并回收请求，用户的监听器不会占用 IO 线程</li>
+ * <li>dispatch()：在业务线程上按 dispatch 的路径重新查找 Servlet，执行过滤器链和 Servlet，返回后同样在业务线程上完成响应</li>
+ * <li>超时：在业务线程上通知 onTimeout，监听器既没有 complete() 也没有 dispatch() 时返回 500 并完成</li>
+ * <li>连接关闭：在业务线程上通知 onError，然后完成</li>
+ * </ul>
+ * 与 Servlet 规范一致，容器分发过程中调用的 complete() / dispatch() 推迟到分发返回之后执行，
+ * 超时也从分发返回时开始计算。
+ */
 public class AsyncContextImpl implements AsyncContext
 {
+    private static final Logger log = LoggerFactory.getLogger(AsyncContextImpl.class);
 
-    private final HttpServletRequest request;
+    private enum State
+    {
+        /**
+         * 分发过程中调用了 startAsync()，分发还没有返回
+         */
+        STARTING,
+        /**
+         * 分发已返回，等待 complete()、dispatch() 或超时
+         */
+        STARTED,
+        /**
+         * 已超时，正在通知 onTimeout
+         */
+        TIMING_OUT,
+        /**
+         * 连接已关闭，正在通知 onError
+         */
+        ERROR,
+        /**
+         * 已调用 dispatch()，异步分发等待执行或正在执行
+         */
+        DISPATCHED,
+        /**
+         * 正在完成，之后不能再做任何操作
+         */
+        COMPLETING
+    }
 
-    private final HttpServletResponse response;
+    /**
+     * 分发过程中调用、推迟到分发返回之后执行的操作
+     */
+    private enum Pending
+    {
+        NONE,
+        COMPLETE,
+        DISPATCH
+    }
 
-    private final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+    /**
+     * 所有异步请求共用的超时时间轮，第一次使用时启动，守护线程
+     */
+    private static volatile Timer timeoutTimer;
 
-    private String dispatchedPath;
-    private long timeout = 10 * 1000L;    // 10 seconds is Tomcat's default
+    private final NettyServletRequest nettyRequest;
 
-    private TracingThreadPoolExecutor asyncExecutor;
+    private final NettyServletResponse nettyResponse;
 
+    private final Channel channel;
 
-    public AsyncContextImpl(ServletRequest request, ServletResponse response)
-    {
-//        this.asyncExecutor = ServletContextImpl.get().getPandaServerBuilder().executor();
+    /**
+     * 这个连接的业务线程，异步分发和监听器回调在这里执行
+     */
+    private final EventExecutor servletExecutor;
+
+    private volatile ServletRequest request;
+
+    private volatile ServletResponse response;
+
+    private final List<ListenerHolder> listeners = new ArrayList<>(2);
+
+    /**
+     * dispatch 的目标，相对于 ServletContext 的路径，可以带查询串
+     */
+    private volatile String dispatchedPath;
+
+    private volatile long timeout = NettyWebServerConfig.getInstance().getAsyncTimeoutMs();
 
-        this.request = (HttpServletRequest) request;
-        this.response = (HttpServletResponse) response;
+    /**
+     * 以下字段由 this 锁保护
+     */
+    private State state = State.STARTING;
+    private Pending pending = Pending.NONE;
+    private Timeout timeoutTask;
+    private boolean closeListenerAdded;
+
+    private final ChannelFutureListener closeListener = future -> onChannelClosed();
+
+    public AsyncContextImpl(NettyServletRequest nettyRequest, ServletRequest request, ServletResponse response)
+    {
+        this.nettyRequest = nettyRequest;
+        this.nettyResponse = (NettyServletResponse) nettyRequest.getServletResponse();
+        ChannelHandlerContext ctx = nettyResponse.getCtx();
+        this.channel = ctx.channel();
+        //过滤器链所在 Handler 绑定的执行器；非阻塞路由在 IO 线程上执行，异步分发同样交给业务线程池
+        ChannelHandlerContext dispatcherCtx = ctx.pipeline().context(NettyRequestDispatcherHandler.class);
+        this.servletExecutor = null != dispatcherCtx ? dispatcherCtx.executor() : channel.eventLoop();
+        this.request = request;
+        this.response = response;
     }
 
     @Override
@@ -61,13 +157,17 @@ public class AsyncContextImpl implements AsyncContext
     @Override
     public boolean hasOriginalRequestAndResponse()
     {
-        return (this.request instanceof NettyServletRequest) && (this.response instanceof NettyServletResponse);
+        return this.request == nettyRequest && this.response == nettyResponse;
     }
 
+    /**
+     * 分发到当前请求的 URI；请求被包装过（例如 forward 之后）时以包装后的 URI 为准
+     */
     @Override
     public void dispatch()
     {
-        dispatch(this.request.getRequestURI());
+        String uri = ((HttpServletRequest) this.request).getRequestURI();
+        dispatch(((NettyServletContext) nettyRequest.getServletContext()).getRequestPath(uri));
     }
 
     @Override
@@ -79,31 +179,32 @@ public class AsyncContextImpl implements AsyncContext
     @Override
     public void dispatch(ServletContext context, String path)
     {
-        this.dispatchedPath = path;
-//        addListener(new AsyncListenerImpl());
-        Runnable runnable = new Runnable()
+        synchronized (this)
         {
-            @Override
-            public void run()
+            switch (state)
             {
-                NettyServletRequest nettyServletRequest = (NettyServletRequest) request;
-                NettyServletResponse nettyResponseImpl = (NettyServletResponse) response;
-                try
-                {
-                    NettyRequestDispatcherHandler.handleRequest0(nettyServletRequest, nettyResponseImpl);
-                    complete();
-                } finally
-                {
-                    if (!nettyServletRequest.isAsyncStarted())
-                    {
-                        nettyResponseImpl.close();
-                    }
-                }
+                case STARTING:
+                    checkNoPending();
+                    pending = Pending.DISPATCH;
+                    this.dispatchedPath = path;
+                    return;
+                case STARTED:
+                case TIMING_OUT:
+                case ERROR:
+                    cancelTimeout();
+                    state = State.DISPATCHED;
+                    this.dispatchedPath = path;
+                    break;
+                default:
+                    throw new IllegalStateException("Cannot dispatch in async state " + state);
             }
-        };
-        start(runnable);
+        }
+        servletExecutor.execute(this::runDispatch);
     }
 
+    /**
+     * @return dispatch 的目标路径，还没有 dispatch 时为 null
+     */
     public String getDispatchedPath()
     {
         return this.dispatchedPath;
@@ -112,57 +213,59 @@ public class AsyncContextImpl implements AsyncContext
     @Override
     public void complete()
     {
-        NettyServletRequest request = WebUtils.getNativeRequest(this.request, NettyServletRequest.class);
-        if (request != null)
+        synchronized (this)
         {
-            request.setAsyncStarted(false);
-        }
-        for (AsyncListener listener : this.listeners)
-        {
-            try
-            {
-                listener.onComplete(new AsyncEvent(this, this.request, this.response));
-            } catch (IOException ex)
+            switch (state)
             {
-                throw new IllegalStateException("AsyncListener failure", ex);
+                case STARTING:
+                    checkNoPending();
+                    pending = Pending.COMPLETE;
+                    return;
+                case STARTED:
+                case TIMING_OUT:
+                case ERROR:
+                    cancelTimeout();
+                    state = State.COMPLETING;
+                    break;
+                case COMPLETING:
+                    //重复调用忽略
+                    return;
+                default:
+                    throw new IllegalStateException("Cannot complete in async state " + state);
             }
         }
+        finishOnExecutor();
     }
 
+    /**
+     * 在业务线程上执行任务，不会阻塞调用方
+     */
     @Override
     public void start(Runnable runnable)
     {
-        Future futureTask = asyncExecutor.submit(runnable);
-        try
-        {
-            futureTask.get(timeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e)
-        {
-            futureTask.cancel(true);
-        } catch (ExecutionException e)
-        {
-            futureTask.cancel(true);
-        } catch (TimeoutException e)
-        {
-            futureTask.cancel(true);
-        }
+        servletExecutor.execute(runnable);
     }
 
     @Override
     public void addListener(AsyncListener listener)
     {
-        this.listeners.add(listener);
+        addListener(listener, this.request, this.response);
     }
 
     @Override
-    public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response)
+    public synchronized void addListener(AsyncListener listener, ServletRequest request, ServletResponse response)
     {
-        this.listeners.add(listener);
+        this.listeners.add(new ListenerHolder(listener, request, response));
     }
 
-    public List<AsyncListener> getListeners()
+    public synchronized List<AsyncListener> getListeners()
     {
-        return this.listeners;
+        List<AsyncListener> result = new ArrayList<>(listeners.size());
+        for (ListenerHolder holder : listeners)
+        {
+            result.add(holder.listener);
+        }
+        return result;
     }
 
     @Override
@@ -183,4 +286,297 @@ public class AsyncContextImpl implements AsyncContext
         return this.timeout;
     }
 
+    /**
+     * 异步分发中再次调用 startAsync()：通知 onStartAsync 并清空监听器（需要的监听器会重新注册），开始新一轮异步处理
+     */
+    public void restart(ServletRequest request, ServletResponse response)
+    {
+        List<ListenerHolder> previous;
+        synchronized (this)
+        {
+            if (state != State.DISPATCHED)
+            {
+                throw new IllegalStateException("Cannot start async in async state " + state);
+            }
+            state = State.STARTING;
+            this.request = request;
+            this.response = response;
+            previous = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        notifyListeners(previous, AsyncListener::onStartAsync, null);
+    }
+
+    /**
+     * 调用了 startAsync() 的分发返回之后调用：执行分发期间推迟的操作，或者登记超时，把请求停放起来
+     */
+    public void dispatchReturned()
+    {
+        Pending action;
+        synchronized (this)
+        {
+            action = pending;
+            pending = Pending.NONE;
+            switch (action)
+            {
+                case COMPLETE:
+                    state = State.COMPLETING;
+                    break;
+                case DISPATCH:
+                    state = State.DISPATCHED;
+                    break;
+                default:
+                    state = State.STARTED;
+                    long timeout = this.timeout;
+                    if (timeout > 0)
+                    {
+                        timeoutTask = timer().newTimeout(t -> onTimeout(), timeout, TimeUnit.MILLISECONDS);
+                    }
+                    break;
+            }
+        }
+        switch (action)
+        {
+            case COMPLETE:
+                finishOnExecutor();
+                break;
+            case DISPATCH:
+                servletExecutor.execute(this::runDispatch);
+                break;
+            default:
+                addCloseListener();
+                break;
+        }
+    }
+
+    /**
+     * 业务线程：按 dispatch 的路径查找 Servlet 并分发，分发中没有再次 startAsync() 时完成响应
+     */
+    private void runDispatch()
+    {
+        String path = dispatchedPath;
+        if (path != null)
+        {
+            int query = path.indexOf('?');
+            if (query >= 0)
+            {
+                path = path.substring(0, query);
+            }
+        }
+        nettyRequest.setAsyncStarted(false);
+        nettyRequest.setDispatcherType(DispatcherType.ASYNC);
+        try
+        {
+            NettyRequestDispatcherHandler.handleRequest0(nettyRequest, nettyResponse, path);
+        } finally
+        {
+            if (nettyRequest.isAsyncStarted())
+            {
+                dispatchReturned();
+            } else
+            {
+                synchronized (this)
+                {
+                    state = State.COMPLETING;
+                }
+                finish();
+            }
+        }
+    }
+
+    /**
+     * 时间轮线程：超时后交给业务线程通知 onTimeout
+     */
+    private void onTimeout()
+    {
+        synchronized (this)
+        {
+            if (state != State.STARTED)
+            {
+                return;
+            }
+            state = State.TIMING_OUT;
+            timeoutTask = null;
+        }
+        servletExecutor.execute(() ->
+        {
+            notifyListeners(snapshotListeners(), AsyncListener::onTimeout, null);
+            if (completeIfStill(State.TIMING_OUT))
+            {
+                //与 Tomcat 一样，没有监听器处理超时就返回 500
+                if (!nettyResponse.isCommitted())
+                {
+                    nettyResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+                finish();
+            }
+        });
+    }
+
+    /**
+     * EventLoop：停放期间连接被关闭，交给业务线程通知 onError 并完成，不必等到超时
+     */
+    private void onChannelClosed()
+    {
+        synchronized (this)
+        {
+            if (state != State.STARTED)
+            {
+                return;
+            }
+            cancelTimeout();
+            state = State.ERROR;
+        }
+        servletExecutor.execute(() ->
+        {
+            notifyListeners(snapshotListeners(), AsyncListener::onError, new IOException("Connection closed"));
+            if (completeIfStill(State.ERROR))
+            {
+                finish();
+            }
+        });
+    }
+
+    /**
+     * @return 监听器没有调用 complete() 或 dispatch() 时转为完成状态，返回 true
+     */
+    private synchronized boolean completeIfStill(State expected)
+    {
+        if (state != expected)
+        {
+            return false;
+        }
+        state = State.COMPLETING;
+        return true;
+    }
+
+    private void finishOnExecutor()
+    {
+        if (servletExecutor.inEventLoop())
+        {
+            finish();
+            return;
+        }
+        try
+        {
+            servletExecutor.execute(this::finish);
+        } catch (RejectedExecutionException e)
+        {
+            //业务线程池正在关闭，就地完成，保证请求被回收
+            finish();
+        }
+    }
+
+    /**
+     * 业务线程：通知 onComplete，关闭响应并回收请求；响应的写入由 Channel 交给 EventLoop
+     */
+    private void finish()
+    {
+        channel.closeFuture().removeListener(closeListener);
+        notifyListeners(snapshotListeners(), AsyncListener::onComplete, null);
+        nettyRequest.setAsyncStarted(false);
+        NettyServletContext.get().getCircuitBreakers().requestDone(nettyRequest, nettyResponse.getStatus());
+        try
+        {
+            nettyResponse.close();
+        } catch (RuntimeException e)
+        {
+            log.error("Failed to complete async response", e);
+        } finally
+        {
+            InlineDispatchHandler.requestCompleted(nettyRequest);
+            nettyRequest.recycle();
+        }
+    }
+
+    private void addCloseListener()
+    {
+        synchronized (this)
+        {
+            if (closeListenerAdded)
+            {
+                return;
+            }
+            closeListenerAdded = true;
+        }
+        //连接已经关闭时监听器会立即执行，所以在锁外添加
+        channel.closeFuture().addListener(closeListener);
+    }
+
+    private void cancelTimeout()
+    {
+        if (timeoutTask != null)
+        {
+            timeoutTask.cancel();
+            timeoutTask = null;
+        }
+    }
+
+    private void checkNoPending()
+    {
+        if (pending != Pending.NONE)
+        {
+            throw new IllegalStateException("Async " + pending + " has already been called");
+        }
+    }
+
+    private synchronized List<ListenerHolder> snapshotListeners()
+    {
+        return new ArrayList<>(listeners);
+    }
+
+    /**
+     * 依次通知监听器，单个监听器的异常只记录日志，不影响其他监听器和请求的完成
+     */
+    private void notifyListeners(List<ListenerHolder> holders, ListenerCallback callback, Throwable throwable)
+    {
+        for (ListenerHolder holder : holders)
+        {
+            try
+            {
+                callback.call(holder.listener, new AsyncEvent(this, holder.request, holder.response, throwable));
+            } catch (IOException | RuntimeException e)
+            {
+                log.error("AsyncListener failure", e);
+            }
+        }
+    }
+
+    private static Timer timer()
+    {
+        Timer timer = timeoutTimer;
+        if (timer == null)
+        {
+            synchronized (AsyncContextImpl.class)
+            {
+                timer = timeoutTimer;
+                if (timer == null)
+                {
+                    timer = new HashedWheelTimer(new DefaultThreadFactory("Async-Timeout", true),
+                            NettyWebServerConfig.getInstance().getAsyncTimeoutTickMs(), TimeUnit.MILLISECONDS);
+                    timeoutTimer = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    private interface ListenerCallback
+    {
+        void call(AsyncListener listener, AsyncEvent event) throws IOException;
+    }
+
+    private static final class ListenerHolder
+    {
+        private final AsyncListener listener;
+        private final ServletRequest request;
+        private final ServletResponse response;
+
+        private ListenerHolder(AsyncListener listener, ServletRequest request, ServletResponse response)
+        {
+            this.listener = listener;
+            this.request = request;
+            this.response = response;
+        }
+    }
 }
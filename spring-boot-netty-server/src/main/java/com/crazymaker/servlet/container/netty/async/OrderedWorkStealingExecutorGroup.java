@@ -0,0 +1,747 @@
+package com.crazymaker.servlet.container.netty.async;
+
+import io.netty.util.concurrent.AbstractEventExecutor;
+import io.netty.util.concurrent.AbstractEventExecutorGroup;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.OrderedEventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 业务线程池：基于工作窃取的 ForkJoinPool
+ * <p>
+ * DefaultEventExecutorGroup 会把每个连接固定绑定到一个单线程的执行器上，一个慢请求会阻塞同一执行器上的所有连接。
+ * 这里每次 next() 都返回一个新的 {@link ChannelOrderedExecutor}，同一个连接的任务依次串行执行，保证响应顺序；
+ * 但任务不再绑定具体线程，空闲线程可以窃取其他连接的任务。
+ * <p>
+ * 可以按优先级分成多个就绪队列：有任务的连接按提交任务时的优先级（{@link #setSubmitPriority(int)}）进入对应的队列，
+ * 线程每次按严格优先级或者按权重轮转从这些队列中取出一个连接执行。没有指定优先级的任务（连接事件、异步分发等）
+ * 不改变连接已有的优先级，连接空闲时按默认优先级排队。
+ * <p>
+ * 延时任务（schedule）由整个线程池共享的一个调度线程计时，到期后交给所属连接的执行器，和连接的其他任务一样按顺序执行。
+ */
+public class OrderedWorkStealingExecutorGroup extends AbstractEventExecutorGroup
+{
+    /**
+     * 单个连接每次占用线程时最多执行的任务数，避免一个繁忙连接长期霸占线程
+     */
+    private static final int MAX_TASKS_PER_RUN = 16;
+
+    /**
+     * 没有指定优先级
+     */
+    private static final int NO_PRIORITY = Integer.MAX_VALUE;
+
+    /**
+     * 当前线程提交任务时使用的优先级，由 IO 线程在把请求交给业务线程池之前设置
+     */
+    private static final FastThreadLocal<Integer> SUBMIT_PRIORITY = new FastThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            return NO_PRIORITY;
+        }
+    };
+
+    private final ForkJoinPool pool;
+
+    private final Promise<?> terminationFuture = new DefaultPromise<Void>(GlobalEventExecutor.INSTANCE);
+
+    /**
+     * 所有连接共享的调度线程，只负责计时，到期的任务交给连接的执行器执行
+     */
+    private final EventExecutor scheduler;
+
+    /**
+     * next() 创建的、还被 Pipeline 引用的连接执行器，供 iterator() 遍历
+     */
+    private final Set<ChannelOrderedExecutor> children =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ChannelOrderedExecutor, Boolean>()));
+
+    /**
+     * 已提交但还没执行完的任务数
+     */
+    private final AtomicLong pendingTasks = new AtomicLong();
+
+    /**
+     * 执行完毕的任务数
+     */
+    private final AtomicLong completedTasks = new AtomicLong();
+
+    /**
+     * 每个优先级一个就绪队列，下标越小优先级越高
+     */
+    private final Queue<ChannelOrderedExecutor>[] readyQueues;
+    private final boolean strict;
+
+    /**
+     * 按权重预先排好的一轮取队列的顺序（平滑加权轮转），各线程通过 weightedCursor 依次取用，不需要加锁
+     */
+    private final int[] weightedOrder;
+    private final AtomicLong weightedCursor = new AtomicLong();
+    private final int defaultPriority;
+
+    /**
+     * 线程池中的每个任务都从就绪队列中取出一个连接执行，任务数与就绪队列中的连接数一一对应
+     */
+    private final Runnable runNext = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            ChannelOrderedExecutor executor = pollReady();
+            if (executor != null)
+            {
+                executor.run();
+            }
+        }
+    };
+
+    public OrderedWorkStealingExecutorGroup(int nThreads)
+    {
+        this(nThreads, "servlet-executor");
+    }
+
+    public OrderedWorkStealingExecutorGroup(int nThreads, final String threadNamePrefix)
+    {
+        this(nThreads, threadNamePrefix, new int[]{1}, true, 0);
+    }
+
+    /**
+     * @param weights         每个优先级的权重，下标越小优先级越高，数组长度就是优先级的个数
+     * @param strict          true 为严格优先级，false 按权重轮转
+     * @param defaultPriority 空闲的连接收到没有指定优先级的任务（如连接关闭事件、异步分发）时排队使用的优先级
+     */
+    @SuppressWarnings("unchecked")
+    public OrderedWorkStealingExecutorGroup(int nThreads, final String threadNamePrefix,
+                                            int[] weights, boolean strict, int defaultPriority)
+    {
+        checkArgument(nThreads > 0, "nThreads: %s (expected: > 0)", nThreads);
+        checkArgument(weights.length > 0, "weights must not be empty");
+        checkArgument(defaultPriority >= 0 && defaultPriority < weights.length,
+                "defaultPriority: %s (expected: 0-%s)", defaultPriority, weights.length - 1);
+        this.strict = strict;
+        this.defaultPriority = defaultPriority;
+        this.readyQueues = new Queue[weights.length];
+        for (int i = 0; i < weights.length; i++)
+        {
+            checkArgument(weights[i] > 0, "weights[%s]: %s (expected: > 0)", i, weights[i]);
+            readyQueues[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.weightedOrder = weightedOrder(weights);
+        final AtomicInteger threadIndex = new AtomicInteger();
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = new ForkJoinPool.ForkJoinWorkerThreadFactory()
+        {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+            {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(threadNamePrefix + "-" + threadIndex.incrementAndGet());
+                return thread;
+            }
+        };
+        //asyncMode=true：本地队列按 FIFO 处理，适合事件型任务
+        this.pool = new ForkJoinPool(nThreads, threadFactory, null, true);
+        this.scheduler = new DefaultEventExecutor(new DefaultThreadFactory(threadNamePrefix + "-scheduler", true));
+    }
+
+    @Override
+    public EventExecutor next()
+    {
+        ChannelOrderedExecutor executor = new ChannelOrderedExecutor(this);
+        children.add(executor);
+        return executor;
+    }
+
+    /**
+     * 设置当前线程之后提交的任务的优先级
+     *
+     * @param priority 优先级（就绪队列的下标），超出范围时按最低优先级处理；小于 0 表示不指定
+     * @return 之前的设置，用于恢复
+     */
+    public static int setSubmitPriority(int priority)
+    {
+        int previous = SUBMIT_PRIORITY.get();
+        SUBMIT_PRIORITY.set(priority < 0 ? NO_PRIORITY : priority);
+        return previous == NO_PRIORITY ? -1 : previous;
+    }
+
+    /**
+     * @return 当前线程设置的优先级，没有设置时返回 NO_PRIORITY
+     */
+    private int submitPriority()
+    {
+        int priority = SUBMIT_PRIORITY.get();
+        if (priority == NO_PRIORITY)
+        {
+            return NO_PRIORITY;
+        }
+        return Math.min(priority, readyQueues.length - 1);
+    }
+
+    private void schedule(ChannelOrderedExecutor executor, int priority)
+    {
+        executor.scheduledPriority = priority;
+        readyQueues[priority].offer(executor);
+        pool.execute(runNext);
+    }
+
+    private ChannelOrderedExecutor pollReady()
+    {
+        if (!strict && hasMultipleReadyQueues())
+        {
+            //跳过空队列时同样消耗顺序中的位置，相当于只在非空的队列之间按权重轮转
+            for (int i = 0; i < weightedOrder.length; i++)
+            {
+                long cursor = weightedCursor.getAndIncrement() & Long.MAX_VALUE;
+                ChannelOrderedExecutor executor = readyQueues[weightedOrder[(int) (cursor % weightedOrder.length)]].poll();
+                if (executor != null)
+                {
+                    return executor;
+                }
+            }
+        }
+        //严格优先级，只有一个队列有连接，或者队列已经被其他线程取空
+        for (Queue<ChannelOrderedExecutor> queue : readyQueues)
+        {
+            ChannelOrderedExecutor executor = queue.poll();
+            if (executor != null)
+            {
+                return executor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 是否有两个以上的就绪队列有连接，只有一个时不需要轮转
+     */
+    private boolean hasMultipleReadyQueues()
+    {
+        int nonEmpty = 0;
+        for (Queue<ChannelOrderedExecutor> queue : readyQueues)
+        {
+            if (!queue.isEmpty() && ++nonEmpty > 1)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 平滑加权轮转（与 Nginx upstream 相同）的一轮顺序，长度为权重之和，例如权重 {4, 2, 1} 为 0 1 0 2 0 1 0
+     */
+    static int[] weightedOrder(int[] weights)
+    {
+        int total = 0;
+        for (int weight : weights)
+        {
+            total += weight;
+        }
+        int[] order = new int[total];
+        int[] current = new int[weights.length];
+        for (int n = 0; n < total; n++)
+        {
+            int selected = 0;
+            for (int i = 0; i < weights.length; i++)
+            {
+                current[i] += weights[i];
+                if (current[i] > current[selected])
+                {
+                    selected = i;
+                }
+            }
+            current[selected] -= total;
+            order[n] = selected;
+        }
+        return order;
+    }
+
+    /**
+     * @return 当前还在使用的连接执行器（快照）
+     */
+    @Override
+    public Iterator<EventExecutor> iterator()
+    {
+        List<EventExecutor> snapshot;
+        synchronized (children)
+        {
+            snapshot = new ArrayList<EventExecutor>(children);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    @Override
+    public boolean isShuttingDown()
+    {
+        return pool.isShutdown();
+    }
+
+    @Override
+    public Future<?> shutdownGracefully(long quietPeriod, final long timeout, final TimeUnit unit)
+    {
+        pool.shutdown();
+        scheduler.shutdownGracefully(0, timeout, unit);
+        GlobalEventExecutor.INSTANCE.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    pool.awaitTermination(timeout, unit);
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                } finally
+                {
+                    pool.shutdownNow();
+                    terminationFuture.trySuccess(null);
+                }
+            }
+        });
+        return terminationFuture;
+    }
+
+    @Override
+    public Future<?> terminationFuture()
+    {
+        return terminationFuture;
+    }
+
+    @Override
+    @Deprecated
+    public void shutdown()
+    {
+        shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return pool.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return pool.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    /*====== 队列指标 ======*/
+
+    /**
+     * @return 线程数
+     */
+    public int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return 正在执行任务的线程数
+     */
+    public int getActiveThreadCount()
+    {
+        return pool.getActiveThreadCount();
+    }
+
+    /**
+     * @return 线程池中排队等待的连接数（每个有待处理任务的连接只排队一次）
+     */
+    public long getQueuedChannelCount()
+    {
+        return pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount();
+    }
+
+    /**
+     * @return 优先级的个数
+     */
+    public int getPriorityCount()
+    {
+        return readyQueues.length;
+    }
+
+    /**
+     * @return 某个优先级的就绪队列中等待线程的连接数（需要遍历队列，只用于监控）
+     */
+    public int getReadyChannelCount(int priority)
+    {
+        return readyQueues[priority].size();
+    }
+
+    /**
+     * @return 已提交但还没执行完的任务数
+     */
+    public long getPendingTasks()
+    {
+        return pendingTasks.get();
+    }
+
+    /**
+     * @return 执行完毕的任务数
+     */
+    public long getCompletedTasks()
+    {
+        return completedTasks.get();
+    }
+
+    /**
+     * @return 线程之间窃取任务的次数
+     */
+    public long getStealCount()
+    {
+        return pool.getStealCount();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "OrderedWorkStealingExecutorGroup[parallelism=" + getParallelism()
+                + ", active=" + getActiveThreadCount()
+                + ", queuedChannels=" + getQueuedChannelCount()
+                + ", pendingTasks=" + getPendingTasks()
+                + ", steals=" + getStealCount() + "]";
+    }
+
+    /**
+     * 单个连接的执行器
+     * 同一时刻最多只有一个线程在执行该连接的任务，任务按提交顺序执行
+     */
+    private static final class ChannelOrderedExecutor extends AbstractEventExecutor
+            implements OrderedEventExecutor, Runnable
+    {
+        private static final int NONE = 0;
+        private static final int SUBMITTED = 1;
+        private static final int RUNNING = 2;
+
+        private final OrderedWorkStealingExecutorGroup group;
+        private final Queue<Runnable> tasks = PlatformDependent.newMpscQueue();
+        private final AtomicInteger state = new AtomicInteger(NONE);
+        private volatile Thread executingThread;
+        /**
+         * 上次排队以来提交的任务中最高的优先级，没有指定优先级的任务不参与
+         */
+        private final AtomicInteger pendingPriority = new AtomicInteger(NO_PRIORITY);
+        /**
+         * 本次排队使用的优先级，一次没执行完的任务重新排队时沿用
+         */
+        private volatile int scheduledPriority;
+
+        ChannelOrderedExecutor(OrderedWorkStealingExecutorGroup group)
+        {
+            super(group);
+            this.group = group;
+        }
+
+        @Override
+        public void run()
+        {
+            if (!state.compareAndSet(SUBMITTED, RUNNING))
+            {
+                return;
+            }
+            executingThread = Thread.currentThread();
+            try
+            {
+                for (int i = 0; i < MAX_TASKS_PER_RUN; i++)
+                {
+                    Runnable task = tasks.poll();
+                    if (task == null)
+                    {
+                        //队列已经排空，执行期间提交的任务记下的优先级都已经用过，不能留给下一次排队
+                        pendingPriority.set(NO_PRIORITY);
+                        break;
+                    }
+                    try
+                    {
+                        safeExecute(task);
+                    } finally
+                    {
+                        group.pendingTasks.decrementAndGet();
+                        group.completedTasks.incrementAndGet();
+                    }
+                }
+            } finally
+            {
+                executingThread = null;
+                state.set(NONE);
+                //释放之后如果还有任务（包括并发提交进来的），重新排队，让其他空闲线程有机会窃取
+                if (!tasks.isEmpty() && state.compareAndSet(NONE, SUBMITTED))
+                {
+                    try
+                    {
+                        group.schedule(this, Math.min(scheduledPriority, pendingPriority.getAndSet(NO_PRIORITY)));
+                    } catch (RejectedExecutionException e)
+                    {
+                        //线程池已经关闭，剩余任务丢弃
+                        state.set(NONE);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void execute(Runnable task)
+        {
+            if (group.isShutdown())
+            {
+                throw new RejectedExecutionException("servlet executor has been shut down");
+            }
+            int priority = group.submitPriority();
+            if (priority != NO_PRIORITY)
+            {
+                pendingPriority.accumulateAndGet(priority, Math::min);
+            }
+            tasks.offer(task);
+            group.pendingTasks.incrementAndGet();
+            if (state.compareAndSet(NONE, SUBMITTED))
+            {
+                group.schedule(this, takePendingPriority());
+            }
+        }
+
+        private int takePendingPriority()
+        {
+            int priority = pendingPriority.getAndSet(NO_PRIORITY);
+            return priority == NO_PRIORITY ? group.defaultPriority : priority;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+        {
+            checkNotNull(command, "command");
+            return schedule(Executors.callable(command, (Void) null), delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit)
+        {
+            ScheduledTask<V> task = new ScheduledTask<V>(this, checkNotNull(callable, "callable"), false);
+            task.setTimer(group.scheduler.schedule(task.fire, delay, unit));
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit)
+        {
+            ScheduledTask<Void> task = new ScheduledTask<Void>(this,
+                    Executors.callable(checkNotNull(command, "command"), (Void) null), true);
+            task.setTimer(group.scheduler.scheduleAtFixedRate(task.fire, initialDelay, period, unit));
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit)
+        {
+            ScheduledTask<Void> task = new ScheduledTask<Void>(this,
+                    Executors.callable(checkNotNull(command, "command"), (Void) null), true);
+            task.setTimer(group.scheduler.scheduleWithFixedDelay(task.fire, initialDelay, delay, unit));
+            return task;
+        }
+
+        @Override
+        public boolean inEventLoop(Thread thread)
+        {
+            return thread == executingThread;
+        }
+
+        @Override
+        public boolean isShuttingDown()
+        {
+            return group.isShuttingDown();
+        }
+
+        @Override
+        public Future<?> shutdownGracefully(long quietPeriod, long timeout, TimeUnit unit)
+        {
+            return group.shutdownGracefully(quietPeriod, timeout, unit);
+        }
+
+        @Override
+        public Future<?> terminationFuture()
+        {
+            return group.terminationFuture();
+        }
+
+        @Override
+        @Deprecated
+        public void shutdown()
+        {
+            group.shutdown();
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return group.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return group.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return group.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * 连接执行器上的延时任务
+     * <p>
+     * 共享的调度线程到期时调用 fire，把任务交给连接的执行器；任务在连接的执行器上执行，结果和异常通过本 Future 通知。
+     * 周期任务只在出现异常或者被取消时结束。
+     */
+    static final class ScheduledTask<V> extends DefaultPromise<V> implements ScheduledFuture<V>, Runnable
+    {
+        private final ChannelOrderedExecutor executor;
+        private final Callable<V> callable;
+        private final boolean periodic;
+        private volatile java.util.concurrent.ScheduledFuture<?> timer;
+
+        /**
+         * 在调度线程上执行
+         */
+        private final Runnable fire = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (isDone())
+                {
+                    return;
+                }
+                try
+                {
+                    executor.execute(ScheduledTask.this);
+                } catch (RejectedExecutionException e)
+                {
+                    tryFailure(e);
+                    cancelTimer();
+                }
+            }
+        };
+
+        ScheduledTask(ChannelOrderedExecutor executor, Callable<V> callable, boolean periodic)
+        {
+            super(executor);
+            this.executor = executor;
+            this.callable = callable;
+            this.periodic = periodic;
+        }
+
+        @Override
+        public void run()
+        {
+            if (isDone())
+            {
+                return;
+            }
+            try
+            {
+                if (periodic)
+                {
+                    callable.call();
+                } else if (setUncancellable())
+                {
+                    trySuccess(callable.call());
+                }
+            } catch (Throwable cause)
+            {
+                tryFailure(cause);
+                cancelTimer();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled)
+            {
+                cancelTimer();
+            }
+            return cancelled;
+        }
+
+        /**
+         * 登记到调度线程之后调用。初始延迟为 0 时任务可能在登记返回之前就已经结束（出错或被取消），
+         * 那时的 cancelTimer() 看不到计时器，这里补上取消，否则周期任务的计时器会一直触发
+         */
+        void setTimer(java.util.concurrent.ScheduledFuture<?> timer)
+        {
+            this.timer = timer;
+            if (isDone())
+            {
+                timer.cancel(false);
+            }
+        }
+
+        java.util.concurrent.ScheduledFuture<?> getTimer()
+        {
+            return timer;
+        }
+
+        private void cancelTimer()
+        {
+            java.util.concurrent.ScheduledFuture<?> current = timer;
+            if (current != null)
+            {
+                current.cancel(false);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            java.util.concurrent.ScheduledFuture<?> current = timer;
+            return current == null ? 0 : current.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed o)
+        {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package com.crazymaker.servlet.container.netty.bootstrap;
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
 import io.netty.bootstrap.Bootstrap;
 import org.springframework.boot.autoconfigure.AutoConfigureOrder;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.boot.autoconfigure.condition.SearchStrategy;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.server.ServletWebServerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -21,6 +24,7 @@ import org.springframework.core.Ordered;
 @AutoConfigureOrder(Ordered.HIGHEST_PRECEDENCE)
 @Configuration
 @ConditionalOnWebApplication // 在Web环境下才会起作用
+@EnableConfigurationProperties
 public class NettyWebServerAutoConfiguration
 {
     // Netty的Bootstrap类必须在classloader中存在，才能启动Netty容器
@@ -30,12 +34,33 @@ public class NettyWebServerAutoConfiguration
             search = SearchStrategy.CURRENT)
     public static class NettyWebServerFactoryConfig
     {
+        /**
+         * 把 server.netty 前缀的配置项绑定到全局唯一的 NettyWebServerConfig 上
+         */
+        @Bean
+        @ConfigurationProperties(prefix = "server.netty")
+        public NettyWebServerConfig nettyWebServerConfig()
+        {
+            return NettyWebServerConfig.getInstance();
+        }
+
         //上述条件注解成立的场景
         // 使用此NettyWebServer容器工厂
+        // 依赖 NettyWebServerConfig，保证容器启动前配置已经绑定完毕
         @Bean
-        public NettyWebServerFactory nettyWebServerFactory()
+        public NettyWebServerFactory nettyWebServerFactory(NettyWebServerConfig nettyWebServerConfig)
         {
             return new NettyWebServerFactory();
         }
+
+        /**
+         * 扫描 @NonBlocking 标注的接口
+         */
+        @Bean
+        @ConditionalOnClass(name = "org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping")
+        public NonBlockingRouteScanner nonBlockingRouteScanner()
+        {
+            return new NonBlockingRouteScanner();
+        }
     }
 }
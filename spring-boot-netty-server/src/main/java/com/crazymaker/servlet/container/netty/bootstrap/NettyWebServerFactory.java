@@ -1,5 +1,6 @@
 package com.crazymaker.servlet.container.netty.bootstrap;
 
+import com.crazymaker.servlet.container.netty.core.NettyDefaultServlet;
 import com.crazymaker.servlet.container.netty.core.NettyServletContext;
 import com.crazymaker.servlet.container.netty.core.NettyWebServer;
 import com.crazymaker.servlet.container.netty.lifecycle.LifecycleException;
@@ -53,11 +54,6 @@ public class NettyWebServerFactory extends AbstractServletWebServerFactory imple
         String title = nettyPackage.getImplementationTitle();
         String version = nettyPackage.getImplementationVersion();
         log.info("Running with " + title + " " + version);
-        //是否支持默认Servlet
-        if (isRegisterDefaultServlet())
-        {
-            log.warn("This container does not support a default servlet");
-        }
         URLClassLoader urlClassLoader =
                 new URLClassLoader(new URL[]{}, parentClassLoader);
         String contextPath = getContextPath();
@@ -73,6 +69,15 @@ public class NettyWebServerFactory extends AbstractServletWebServerFactory imple
                 throw new RuntimeException(e);
             }
         }
+        //默认Servlet，输出WebResourceRoot中的静态资源；"/"已经被DispatcherServlet占用时只能按名字转发
+        if (isRegisterDefaultServlet())
+        {
+            context.addServlet(NettyDefaultServlet.NAME, new NettyDefaultServlet());
+            if (null == context.getServletMapping("/"))
+            {
+                context.addServletMapping("/", NettyDefaultServlet.NAME);
+            }
+        }
         //从SpringBoot配置中获取端口，如果没有则随机生成
         int port = getPort();
         assert (port > 0);
@@ -129,6 +134,9 @@ public class NettyWebServerFactory extends AbstractServletWebServerFactory imple
                     new Exception("standardContext.servletStart Fail"));
         }
 
+        //Servlet 和 Filter 都已就绪，编译分发表
+        context.compileDispatchTable();
+
         //初始化容器,并返回
         return new NettyWebServer(address, context);
     }
@@ -0,0 +1,47 @@
+package com.crazymaker.servlet.container.netty.bootstrap;
+
+import com.crazymaker.servlet.container.netty.annotation.NonBlocking;
+import com.crazymaker.servlet.container.netty.core.NettyServletContext;
+import com.crazymaker.servlet.container.netty.core.NonBlockingRouteRegistry;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.mvc.method.RequestMappingInfo;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.util.Map;
+
+/**
+ * Spring 上下文刷新完毕后，扫描标注了 {@link NonBlocking} 的 Controller，把它们的 URL Pattern 登记为非阻塞路由
+ */
+public class NonBlockingRouteScanner implements ApplicationListener<ContextRefreshedEvent>
+{
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event)
+    {
+        NettyServletContext servletContext = NettyServletContext.get();
+        if (null == servletContext)
+        {
+            return;
+        }
+        NonBlockingRouteRegistry registry = servletContext.getNonBlockingRoutes();
+        Map<String, RequestMappingHandlerMapping> mappings =
+                event.getApplicationContext().getBeansOfType(RequestMappingHandlerMapping.class);
+        for (RequestMappingHandlerMapping mapping : mappings.values())
+        {
+            for (Map.Entry<RequestMappingInfo, HandlerMethod> entry : mapping.getHandlerMethods().entrySet())
+            {
+                HandlerMethod handlerMethod = entry.getValue();
+                if (AnnotatedElementUtils.hasAnnotation(handlerMethod.getMethod(), NonBlocking.class)
+                        || AnnotatedElementUtils.hasAnnotation(handlerMethod.getBeanType(), NonBlocking.class))
+                {
+                    for (String pattern : entry.getKey().getPatternsCondition().getPatterns())
+                    {
+                        registry.addPattern(pattern);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 挂在 ServerChannel 上，统计每个 acceptor 接收的连接数
+ */
+@ChannelHandler.Sharable
+public class AcceptorStatsHandler extends ChannelInboundHandlerAdapter
+{
+    private final Map<Channel, AtomicLong> acceptCounts = new ConcurrentHashMap<>();
+
+    @Override
+    public void channelRegistered(ChannelHandlerContext ctx) throws Exception
+    {
+        acceptCounts.put(ctx.channel(), new AtomicLong());
+        ctx.fireChannelRegistered();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        //ServerChannel 读到的消息就是新接入的子连接
+        AtomicLong counter = acceptCounts.get(ctx.channel());
+        if (counter != null)
+        {
+            counter.incrementAndGet();
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * @return acceptor（ServerChannel 的 id） → 接收的连接数
+     */
+    public Map<String, Long> getAcceptCounts()
+    {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<Channel, AtomicLong> entry : acceptCounts.entrySet())
+        {
+            result.put(entry.getKey().id().asShortText(), entry.getValue().get());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,235 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 业务线程池前面的自适应并发限流器（梯度算法）
+ * <p>
+ * 请求在 IO 线程上交给业务线程池之前 {@link #tryAcquire(RequestPriority)}，业务线程执行完之后 {@link #release(long)}，
+ * 延迟包含在业务线程池中排队的时间。每个采样窗口结束时，用窗口的平均延迟和历史最小 RTT 计算梯度：
+ * <pre>
+ *     gradient = max(0.5, min(1.0, rttTolerance * minRtt / avgRtt))
+ *     newLimit = limit * gradient + sqrt(limit)
+ * </pre>
+ * 延迟没有变长时上限按 sqrt(limit) 增长；开始排队、延迟变长时按比例收缩，最多减半。
+ * 并发数没有达到上限的一半时说明压力不是来自并发，只允许收缩不允许增长。
+ * <p>
+ * 不同优先级的请求只能占用上限的一部分（priority-normal-quota-percent / priority-bulk-quota-percent），
+ * 上限收缩时 BULK 最先被拒绝，CRITICAL 可以用满整个上限。
+ * <p>
+ * 一直满载时测到的最小 RTT 已经包含排队时间，所以每隔 probeWindows 个窗口把上限降到 sqrt(limit) 探测一次：
+ * 第一个窗口等之前放进来的请求执行完，第二个窗口在低并发下重新测量最小 RTT。
+ * <p>
+ * 名额只覆盖容器分发的这一段：调用了 startAsync() 的请求在分发返回时就释放名额，停放期间不占用业务线程，也不计入上限；
+ * 被拒绝的请求没有占用名额，不需要释放。
+ */
+public class AdaptiveConcurrencyLimiter
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * 每个窗口至少需要的样本数
+     */
+    private static final int MIN_WINDOW_SAMPLES = 10;
+
+    /**
+     * 新上限的平滑系数
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final NettyWebServerConfig config;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder[] rejectedByPriority = new LongAdder[RequestPriority.values().length];
+
+    private volatile int limit;
+
+    /*====== 以下字段只在 sample() 的锁内访问 ======*/
+    private double estimatedLimit;
+    private long minRttNanos;
+    private long windowStart = System.nanoTime();
+    private long windowRttSum;
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private long windows;
+    /**
+     * 探测还剩的窗口数
+     */
+    private int probingWindows;
+
+    public AdaptiveConcurrencyLimiter(NettyWebServerConfig config)
+    {
+        this.config = config;
+        this.estimatedLimit = config.getConcurrencyLimitInitial();
+        this.limit = config.getConcurrencyLimitInitial();
+        for (int i = 0; i < rejectedByPriority.length; i++)
+        {
+            rejectedByPriority[i] = new LongAdder();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return config.isConcurrencyLimitEnabled();
+    }
+
+    /**
+     * @return 并发数没有超过该优先级的配额时占用一个名额并返回 true，否则返回 false
+     */
+    public boolean tryAcquire(RequestPriority priority)
+    {
+        int quota = quota(priority);
+        int current = inFlight.get();
+        while (current < quota)
+        {
+            if (inFlight.compareAndSet(current, current + 1))
+            {
+                return true;
+            }
+            current = inFlight.get();
+        }
+        rejectedCount.increment();
+        rejectedByPriority[priority.ordinal()].increment();
+        return false;
+    }
+
+    private int quota(RequestPriority priority)
+    {
+        int current = limit;
+        switch (priority)
+        {
+            case NORMAL:
+                return Math.max(1, current * config.getPriorityNormalQuotaPercent() / 100);
+            case BULK:
+                return Math.max(1, current * config.getPriorityBulkQuotaPercent() / 100);
+            default:
+                return current;
+        }
+    }
+
+    /**
+     * 释放 tryAcquire(RequestPriority) 占用的名额，并记录一个延迟样本
+     *
+     * @param startNanos tryAcquire(RequestPriority) 时的 System.nanoTime()
+     */
+    public void release(long startNanos)
+    {
+        release(startNanos, System.nanoTime());
+    }
+
+    /**
+     * @param now 当前的 System.nanoTime()，测试用
+     */
+    void release(long startNanos, long now)
+    {
+        int current = inFlight.getAndDecrement();
+        sample(now - startNanos, current, now);
+    }
+
+    private synchronized void sample(long rttNanos, int currentInFlight, long now)
+    {
+        windowRttSum += rttNanos;
+        windowSamples++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, currentInFlight);
+        if (windowSamples < MIN_WINDOW_SAMPLES
+                || now - windowStart < TimeUnit.MILLISECONDS.toNanos(config.getConcurrencyLimitWindowMs()))
+        {
+            return;
+        }
+        long avgRtt = Math.max(1, windowRttSum / windowSamples);
+        boolean appLimited = windowMaxInFlight * 2 < estimatedLimit;
+        windowStart = now;
+        windowRttSum = 0;
+        windowSamples = 0;
+        windowMaxInFlight = 0;
+        windows++;
+
+        if (probingWindows > 0)
+        {
+            if (--probingWindows > 0)
+            {
+                return;
+            }
+            //探测窗口：低并发下的平均延迟作为新的最小 RTT
+            minRttNanos = avgRtt;
+        } else if (minRttNanos == 0 || avgRtt < minRttNanos)
+        {
+            minRttNanos = avgRtt;
+        }
+        int probeWindows = config.getConcurrencyLimitProbeWindows();
+        if (probeWindows > 0 && windows % probeWindows == 0)
+        {
+            probingWindows = 2;
+            updateLimit(Math.max(config.getConcurrencyLimitMin(), Math.sqrt(estimatedLimit)), avgRtt);
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, config.getConcurrencyLimitRttTolerance() * minRttNanos / avgRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        if (appLimited && newLimit > estimatedLimit)
+        {
+            return;
+        }
+        updateLimit(estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING, avgRtt);
+    }
+
+    private void updateLimit(double newLimit, long avgRtt)
+    {
+        newLimit = Math.max(config.getConcurrencyLimitMin(), Math.min(config.getConcurrencyLimitMax(), newLimit));
+        estimatedLimit = newLimit;
+        int oldLimit = limit;
+        limit = (int) newLimit;
+        if (oldLimit != limit && log.isDebugEnabled())
+        {
+            log.debug("Concurrency limit {} -> {}, minRtt={}us, avgRtt={}us",
+                    oldLimit, limit, minRttNanos / 1000, avgRtt / 1000);
+        }
+    }
+
+    /**
+     * @return 当前的并发上限
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * @return 当前占用名额的请求数
+     */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * @return 超过上限被拒绝的请求数
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return 某个优先级超过配额被拒绝的请求数
+     */
+    public long getRejectedCount(RequestPriority priority)
+    {
+        return rejectedByPriority[priority.ordinal()].sum();
+    }
+
+    /**
+     * @return 当前使用的最小 RTT（微秒）
+     */
+    public synchronized long getMinRttMicros()
+    {
+        return minRttNanos / 1000;
+    }
+}
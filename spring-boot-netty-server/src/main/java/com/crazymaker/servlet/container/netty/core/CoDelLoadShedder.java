@@ -0,0 +1,116 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按排队时间削峰（CoDel）
+ * <p>
+ * 请求在 NettyServletHandler 中打上到达时间，业务线程取到请求时计算它在业务线程池中排队的时间。
+ * 每个 interval 统计一次排队时间的最小值：最小值超过 target 说明队列一直没有排空，进入过载状态，
+ * 过载期间排队超过 2 * target 的请求直接丢弃，返回 503；最小值回到 target 以下就退出过载状态，不再丢弃。
+ * BULK 请求排队超过 target 即丢弃，CRITICAL 请求从不丢弃。
+ * 短暂的突发不会触发丢弃，持续排队时则优先丢掉等得最久、客户端很可能已经超时的请求。
+ */
+public class CoDelLoadShedder
+{
+    private final NettyWebServerConfig config;
+
+    /**
+     * 当前统计周期的结束时间（System.nanoTime()）
+     */
+    private final AtomicLong intervalEnd;
+
+    /**
+     * 当前统计周期内排队时间的最小值
+     */
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+
+    private volatile boolean overloaded;
+
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder[] droppedByPriority = new LongAdder[RequestPriority.values().length];
+
+    public CoDelLoadShedder(NettyWebServerConfig config)
+    {
+        this.config = config;
+        //第一个周期同样要完整统计，否则第一个请求结算的是一个没有样本的周期
+        this.intervalEnd = new AtomicLong(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getCodelIntervalMs()));
+        for (int i = 0; i < droppedByPriority.length; i++)
+        {
+            droppedByPriority[i] = new LongAdder();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return config.isCodelEnabled();
+    }
+
+    /**
+     * 业务线程取到请求时调用
+     *
+     * @param delayNanos 请求在业务线程池中的排队时间
+     * @param priority   请求的优先级
+     * @return 是否丢弃请求
+     */
+    public boolean shouldDrop(long delayNanos, RequestPriority priority)
+    {
+        return shouldDrop(delayNanos, priority, System.nanoTime());
+    }
+
+    /**
+     * @param now 当前的 System.nanoTime()，测试用
+     */
+    boolean shouldDrop(long delayNanos, RequestPriority priority, long now)
+    {
+        long targetNanos = TimeUnit.MILLISECONDS.toNanos(config.getCodelTargetMs());
+        long end = intervalEnd.get();
+        if (now - end > 0 && intervalEnd.compareAndSet(end, now + TimeUnit.MILLISECONDS.toNanos(config.getCodelIntervalMs())))
+        {
+            //赢得竞争的线程结算上一个周期，并开始新的周期
+            overloaded = minDelay.getAndSet(delayNanos) > targetNanos;
+        } else
+        {
+            minDelay.accumulateAndGet(delayNanos, Math::min);
+        }
+        if (!overloaded || priority == RequestPriority.CRITICAL)
+        {
+            return false;
+        }
+        if (delayNanos > (priority == RequestPriority.BULK ? targetNanos : 2 * targetNanos))
+        {
+            droppedCount.increment();
+            droppedByPriority[priority.ordinal()].increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 是否处于过载状态
+     */
+    public boolean isOverloaded()
+    {
+        return overloaded;
+    }
+
+    /**
+     * @return 因排队太久被丢弃的请求数
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return 某个优先级被丢弃的请求数
+     */
+    public long getDroppedCount(RequestPriority priority)
+    {
+        return droppedByPriority[priority.ordinal()].sum();
+    }
+}
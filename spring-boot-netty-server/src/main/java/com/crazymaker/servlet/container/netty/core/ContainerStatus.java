@@ -30,6 +30,11 @@ public class ContainerStatus
      */
     private AtomicLong handledRequests = new AtomicLong(0);
 
+    /**
+     * 健康状态，由 ServerHealthMonitor 定期计算
+     */
+    private volatile HealthState healthState = HealthState.GREEN;
+
 
     private ContainerStatus()
     {
@@ -92,4 +97,14 @@ public class ContainerStatus
         return handledRequests.get();
     }
 
+    public HealthState getHealthState()
+    {
+        return healthState;
+    }
+
+    void setHealthState(HealthState healthState)
+    {
+        this.healthState = healthState;
+    }
+
 }
@@ -0,0 +1,208 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.netty.filter.FilterChainFactory;
+import com.crazymaker.servlet.container.netty.filter.FilterDef;
+import com.crazymaker.servlet.container.netty.filter.FilterMap;
+import com.crazymaker.servlet.container.netty.registration.NettyServletRegistration;
+import com.crazymaker.servlet.container.netty.utils.MappingData;
+import com.crazymaker.servlet.container.netty.utils.RequestUrlPatternMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 预先编译的分发表，对应 Tomcat Mapper 与 ApplicationFilterFactory 的组合
+ * <p>
+ * 在 filterStart()/servletStart() 之后根据 Servlet 映射和 FilterMap 一次性编译：每个 URL Pattern 对应一个不可变的
+ * NettyRequestDispatcher，其中包含 Servlet、multipart 配置，以及每种 DispatcherType 下按顺序排好的 Filter[]。
+ * 请求时只做一次路由查找，不再遍历 servletMappings、不再逐个匹配 FilterMap。
+ * <p>
+ * 路由查找由 RequestUrlPatternMapper 的段前缀树完成，匹配顺序遵循 Servlet 规范：精确匹配、最长路径前缀匹配（/xxx/*）、
+ * 扩展名匹配（*.xxx）、默认 Servlet（/），同时得到 servletPath/pathInfo。
+ */
+@Slf4j
+final class DispatchTable
+{
+    /**
+     * URL Pattern -> 分发器，段前缀树
+     */
+    private final RequestUrlPatternMapper<NettyRequestDispatcher> routes;
+
+    /**
+     * 按 Servlet 名分发（getNamedDispatcher）的路由，包括没有 URL 映射的 Servlet
+     */
+    private final Map<String, NettyRequestDispatcher> namedRoutes;
+
+    private DispatchTable(RequestUrlPatternMapper<NettyRequestDispatcher> routes,
+                          Map<String, NettyRequestDispatcher> namedRoutes)
+    {
+        this.routes = routes;
+        this.namedRoutes = namedRoutes;
+    }
+
+    static DispatchTable compile(NettyServletContext context)
+    {
+        Compiler compiler = new Compiler(context);
+
+        RequestUrlPatternMapper<NettyRequestDispatcher> routes = new RequestUrlPatternMapper<>(context.getContextPath());
+        for (Map.Entry<String, String> mapping : context.getServletMappings().entrySet())
+        {
+            String urlPattern = mapping.getKey();
+            NettyRequestDispatcher dispatcher = compiler.compile(mapping.getValue(), urlPattern);
+            if (null == dispatcher)
+            {
+                continue;
+            }
+            try
+            {
+                routes.addMapping(urlPattern, mapping.getValue(), dispatcher);
+            } catch (ServletException e)
+            {
+                log.error("Ignore servlet mapping " + urlPattern + " -> " + mapping.getValue(), e);
+            }
+        }
+
+        Map<String, NettyRequestDispatcher> namedRoutes = new HashMap<>();
+        for (String servletName : context.getServletNamesInternal())
+        {
+            NettyRequestDispatcher dispatcher = compiler.compile(servletName, null);
+            if (null != dispatcher)
+            {
+                namedRoutes.put(servletName, dispatcher);
+            }
+        }
+
+        return new DispatchTable(routes, Collections.unmodifiableMap(namedRoutes));
+    }
+
+    /**
+     * @param path 不带 contextPath 和查询字符串的请求路径
+     * @return 匹配结果，没有匹配的 Servlet 时返回 null
+     */
+    MappingData<NettyRequestDispatcher> map(String path)
+    {
+        MappingData<NettyRequestDispatcher> mappingData = new MappingData<>();
+        return routes.map(path, mappingData) ? mappingData : null;
+    }
+
+    /**
+     * @param path 不带 contextPath 和查询字符串的请求路径
+     * @return 匹配的分发器，没有时返回 null
+     */
+    NettyRequestDispatcher match(String path)
+    {
+        MappingData<NettyRequestDispatcher> mappingData = map(path);
+        return null == mappingData ? null : mappingData.getTarget();
+    }
+
+    NettyRequestDispatcher getNamed(String servletName)
+    {
+        return namedRoutes.get(servletName);
+    }
+
+    /**
+     * 编译单个路由，同一个 Servlet 的过滤器只计算一次
+     */
+    private static final class Compiler
+    {
+        private final NettyServletContext context;
+        private final Map<String, RouteFilters[]> filtersByServlet = new HashMap<>();
+        private final Map<String, RouteFilters[]> namedFiltersByServlet = new HashMap<>();
+
+        private Compiler(NettyServletContext context)
+        {
+            this.context = context;
+        }
+
+        /**
+         * @param urlPattern 按名字分发时为 null
+         */
+        NettyRequestDispatcher compile(String servletName, String urlPattern)
+        {
+            Servlet servlet = context.getServletInternal(servletName);
+            if (null == servlet)
+            {
+                log.error("No servlet registered with name " + servletName);
+                return null;
+            }
+            MultipartConfigElement multipartConfig = null;
+            NettyServletRegistration registration = (NettyServletRegistration) context.getServletRegistration(servletName);
+            if (null != registration)
+            {
+                multipartConfig = registration.getMultipartConfig();
+            }
+            boolean named = null == urlPattern;
+            Map<String, RouteFilters[]> cache = named ? namedFiltersByServlet : filtersByServlet;
+            RouteFilters[] filters = cache.get(servletName);
+            if (null == filters)
+            {
+                filters = compileFilters(servletName, named);
+                cache.put(servletName, filters);
+            }
+            return new NettyRequestDispatcher(context, servletName, urlPattern, servlet, filters, multipartConfig);
+        }
+
+        private RouteFilters[] compileFilters(String servletName, boolean named)
+        {
+            DispatcherType[] types = DispatcherType.values();
+            RouteFilters[] result = new RouteFilters[types.length];
+            for (DispatcherType type : types)
+            {
+                List<FilterMap> urlMaps = new ArrayList<>();
+                List<Filter> urlFilters = new ArrayList<>();
+                List<Filter> nameFilters = new ArrayList<>();
+                for (FilterMap filterMap : context.getFilterMapList())
+                {
+                    if (!FilterChainFactory.matchDispatcher(filterMap, type))
+                    {
+                        continue;
+                    }
+                    Filter filter = findFilter(filterMap);
+                    if (null == filter)
+                    {
+                        continue;
+                    }
+                    if (filterMap.getMatchAllUrlPatterns() || filterMap.getURLPatterns().length > 0)
+                    {
+                        urlMaps.add(filterMap);
+                        urlFilters.add(filter);
+                    }
+                }
+                for (FilterMap filterMap : context.getFilterMapList())
+                {
+                    if (FilterChainFactory.matchDispatcher(filterMap, type)
+                            && FilterChainFactory.matchFiltersServlet(filterMap, servletName))
+                    {
+                        Filter filter = findFilter(filterMap);
+                        if (null != filter)
+                        {
+                            nameFilters.add(filter);
+                        }
+                    }
+                }
+                result[type.ordinal()] = RouteFilters.compile(urlMaps, urlFilters, named, nameFilters);
+            }
+            return result;
+        }
+
+        private Filter findFilter(FilterMap filterMap)
+        {
+            FilterDef filterDef = context.findFilterDef(filterMap.getFilterName());
+            if (null == filterDef || null == filterDef.getFilter())
+            {
+                log.warn("No filter defined with name {}", filterMap.getFilterName());
+                return null;
+            }
+            return filterDef.getFilter();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.crazymaker.servlet.container.netty.core;
+
+/**
+ * 服务器的健康状态，由 {@link ServerHealthMonitor} 根据错误率、业务线程池队列、IO 线程延迟和未完成请求数计算
+ */
+public enum HealthState
+{
+    /**
+     * 正常：接收所有请求
+     */
+    GREEN,
+    /**
+     * 压力偏大：拒绝 BULK 请求
+     */
+    YELLOW,
+    /**
+     * 接近崩溃：只接收 CRITICAL 请求
+     */
+    RED;
+
+    /**
+     * @return 该状态下是否接收该优先级的请求
+     */
+    public boolean admits(RequestPriority priority)
+    {
+        switch (this)
+        {
+            case YELLOW:
+                return priority != RequestPriority.BULK;
+            case RED:
+                return priority == RequestPriority.CRITICAL;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.crazymaker.servlet.container.netty.core;
+
+/**
+ * 健康状态变化事件，带上触发变化时的各项指标
+ */
+public class HealthStateEvent
+{
+    private final HealthState from;
+    private final HealthState to;
+    private final ServerHealthMonitor.Signals signals;
+    private final long timestamp;
+
+    HealthStateEvent(HealthState from, HealthState to, ServerHealthMonitor.Signals signals)
+    {
+        this.from = from;
+        this.to = to;
+        this.signals = signals;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public HealthState getFrom()
+    {
+        return from;
+    }
+
+    public HealthState getTo()
+    {
+        return to;
+    }
+
+    /**
+     * @return 是否变差（GREEN → YELLOW / RED，YELLOW → RED）
+     */
+    public boolean isEscalation()
+    {
+        return to.ordinal() > from.ordinal();
+    }
+
+    public ServerHealthMonitor.Signals getSignals()
+    {
+        return signals;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HealthStateEvent[" + from + " -> " + to + ", " + signals + "]";
+    }
+}
@@ -0,0 +1,12 @@
+package com.crazymaker.servlet.container.netty.core;
+
+/**
+ * 健康状态变化的监听器，通过 NettyServletContext.get().getHealthMonitor().addListener(...) 登记
+ * <p>
+ * 在健康检查线程上回调，不要阻塞；抛出的异常只记录日志
+ */
+@FunctionalInterface
+public interface HealthStateListener
+{
+    void stateChanged(HealthStateEvent event);
+}
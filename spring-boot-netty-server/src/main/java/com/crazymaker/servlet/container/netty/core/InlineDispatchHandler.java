@@ -0,0 +1,214 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.CircuitBreaker;
+import com.crazymaker.servlet.container.netty.async.OrderedWorkStealingExecutorGroup;
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import com.crazymaker.servlet.container.netty.request.StreamingServletInputStream;
+import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 运行在 IO 线程（EventLoop）上的分发器
+ * 非阻塞路由的请求直接在当前线程执行，省去 业务线程池 → IO 线程 的两次切换；
+ * 熔断器打开的路由直接在当前线程返回降级响应，不占用业务线程池；
+ * 服务器健康状态为 YELLOW / RED 时，不再接收的优先级直接返回 503；
+ * 其他请求经过自适应并发限流后原样传给下一个 Handler，由业务线程池按优先级执行，超过并发上限的请求直接返回 503。
+ */
+@ChannelHandler.Sharable
+public class InlineDispatchHandler extends ChannelInboundHandlerAdapter
+{
+    /**
+     * 当前连接在业务线程池中尚未完成的请求数
+     */
+    private static final AttributeKey<AtomicInteger> EXECUTOR_IN_FLIGHT =
+            AttributeKey.valueOf(InlineDispatchHandler.class, "EXECUTOR_IN_FLIGHT");
+
+    private final NettyServletContext context;
+
+    InlineDispatchHandler(NettyServletContext context)
+    {
+        this.context = checkNotNull(context);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (!(msg instanceof NettyServletRequest))
+        {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        NettyServletRequest request = (NettyServletRequest) msg;
+        AtomicInteger inFlight = inFlight(ctx.channel());
+        //与实际分发使用同一个路径：不在 contextPath 下（例如 /app 下的 /apple）时为 null
+        String path = context.getRequestPath(request.getRequestURI());
+        request.setPriority(context.getPriorityClassifier().classify(request, path));
+        RouteCircuitBreakerRegistry circuitBreakers = context.getCircuitBreakers();
+        if (circuitBreakers.isEnabled())
+        {
+            String routeKey = circuitBreakers.routeKey(path);
+            request.setRouteKey(routeKey);
+            CircuitBreaker circuitBreaker = circuitBreakers.getCircuitBreaker(routeKey);
+            if (circuitBreaker.isOpen())
+            {
+                if (!circuitBreaker.allowRequest())
+                {
+                    request.setShortCircuited(true);
+                    respondEarly(ctx, request, inFlight);
+                    return;
+                }
+                request.setCircuitTest(true);
+            }
+        }
+        ServerHealthMonitor healthMonitor = context.getHealthMonitor();
+        if (healthMonitor.isEnabled() && !healthMonitor.admit(request.getPriority()))
+        {
+            request.setRejected(true);
+            respondEarly(ctx, request, inFlight);
+            return;
+        }
+        NonBlockingRouteRegistry.Route route = null;
+        //同一连接上还有请求在业务线程池中执行时不能插队，否则响应顺序会乱；
+        //请求体还没到齐时也不能在 IO 线程上执行，否则读请求体会卡住 IO 线程
+        if (inFlight.get() == 0 && isBodyComplete(request))
+        {
+            route = context.getNonBlockingRoutes().match(path);
+        }
+        if (route == null)
+        {
+            AdaptiveConcurrencyLimiter limiter = context.getConcurrencyLimiter();
+            if (limiter.isEnabled())
+            {
+                if (limiter.tryAcquire(request.getPriority()))
+                {
+                    request.setDispatchStartNanos(System.nanoTime());
+                } else
+                {
+                    request.setRejected(true);
+                    respondEarly(ctx, request, inFlight);
+                    return;
+                }
+            }
+            dispatchToExecutor(ctx, request, inFlight);
+            return;
+        }
+        long start = System.nanoTime();
+        try
+        {
+            NettyRequestDispatcherHandler.handleRequest(request);
+        } finally
+        {
+            context.getNonBlockingRoutes().recordExecution(route, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 熔断或拒绝的请求不执行 Servlet，直接返回降级响应或 503
+     * <p>
+     * 同一连接上还有请求在业务线程池中执行时，响应也要排在它们后面，交给业务线程池写出
+     */
+    private static void respondEarly(ChannelHandlerContext ctx, NettyServletRequest request, AtomicInteger inFlight)
+    {
+        if (inFlight.get() == 0)
+        {
+            NettyRequestDispatcherHandler.handleRequest(request);
+            return;
+        }
+        dispatchToExecutor(ctx, request, inFlight);
+    }
+
+    /**
+     * 交给下一个 Handler，由业务线程池按请求的优先级排队执行
+     * <p>
+     * 业务线程池已经关闭（服务器停止）时请求到不了下一个 Handler，在当前线程返回 503，
+     * 否则请求不会被回收，未完成请求数和限流名额也不会归还
+     */
+    private static void dispatchToExecutor(ChannelHandlerContext ctx, NettyServletRequest request, AtomicInteger inFlight)
+    {
+        inFlight.incrementAndGet();
+        request.setExecutorDispatched(true);
+        int previous = OrderedWorkStealingExecutorGroup.setSubmitPriority(request.getPriority().ordinal());
+        try
+        {
+            ctx.fireChannelRead(request);
+        } catch (RejectedExecutionException e)
+        {
+            inFlight.decrementAndGet();
+            request.setExecutorDispatched(false);
+            request.setRejected(true);
+            long dispatchStartNanos = request.getDispatchStartNanos();
+            try
+            {
+                NettyRequestDispatcherHandler.handleRequest(request);
+            } finally
+            {
+                if (dispatchStartNanos != 0)
+                {
+                    NettyServletContext.get().getConcurrencyLimiter().release(dispatchStartNanos);
+                }
+            }
+        } finally
+        {
+            OrderedWorkStealingExecutorGroup.setSubmitPriority(previous);
+        }
+    }
+
+    /**
+     * 交给业务线程池的请求完成响应时调用：同步请求在 handleRequest 结束时，异步请求在 AsyncContext 完成时。
+     * 要在写出响应之后、回收请求之前调用
+     * <p>
+     * 业务线程上写出的响应排在 EventLoop 的任务队列里，计数也放到 EventLoop 上减少，
+     * 保证之后在 IO 线程上执行的请求不会抢在这个响应前面写出
+     */
+    public static void requestCompleted(NettyServletRequest request)
+    {
+        if (!request.isExecutorDispatched())
+        {
+            return;
+        }
+        request.setExecutorDispatched(false);
+        Channel channel = ((NettyServletResponse) request.getServletResponse()).getCtx().channel();
+        AtomicInteger inFlight = inFlight(channel);
+        EventLoop eventLoop = channel.eventLoop();
+        if (eventLoop.inEventLoop())
+        {
+            inFlight.decrementAndGet();
+        } else
+        {
+            eventLoop.execute(inFlight::decrementAndGet);
+        }
+    }
+
+    private static AtomicInteger inFlight(Channel channel)
+    {
+        AtomicInteger inFlight = channel.attr(EXECUTOR_IN_FLIGHT).get();
+        if (inFlight == null)
+        {
+            inFlight = new AtomicInteger();
+            AtomicInteger old = channel.attr(EXECUTOR_IN_FLIGHT).setIfAbsent(inFlight);
+            if (old != null)
+            {
+                inFlight = old;
+            }
+        }
+        return inFlight;
+    }
+
+    private static boolean isBodyComplete(NettyServletRequest request) throws IOException
+    {
+        ServletInputStream in = request.getInputStream();
+        return !(in instanceof StreamingServletInputStream) || ((StreamingServletInputStream) in).isComplete();
+    }
+}
@@ -0,0 +1,204 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.resource.CachedResource;
+import com.crazymaker.servlet.container.netty.resource.FileResource;
+import com.crazymaker.servlet.container.netty.resource.WebResource;
+import com.crazymaker.servlet.container.netty.resource.WebResourceRoot;
+import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+
+/**
+ * 默认 Servlet，对应 Tomcat 的 DefaultServlet，输出 WebResourceRoot 中的静态资源
+ * <p>
+ * 文件系统中的资源（FileResource）不小于 sendfile-min-size 时，由容器直接把文件写到 Socket（sendfile），不经过输出流的缓冲区；
+ * 其他资源（Jar 中的资源、小文件）按普通方式写出，内容已在 ResourceCache 中时直接从堆外缓存读取。
+ * 注册名为 default，SpringMVC 的 DefaultServletHttpRequestHandler 可以按名字转发过来。
+ */
+public class NettyDefaultServlet extends HttpServlet
+{
+    public static final String NAME = "default";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+    {
+        serveResource(req, resp, true);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+    {
+        serveResource(req, resp, false);
+    }
+
+    private void serveResource(HttpServletRequest req, HttpServletResponse resp, boolean content) throws IOException
+    {
+        WebResource resource = getResource(req);
+        if (null == resource || !resource.exists() || !resource.isFile())
+        {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        String eTag = resource.getETag();
+        long lastModified = resource.getLastModified();
+        if (notModified(req, eTag, lastModified))
+        {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            resp.setHeader("ETag", eTag);
+            return;
+        }
+
+        String mimeType = resource.getMimeType();
+        if (null == mimeType)
+        {
+            mimeType = getServletContext().getMimeType(resource.getName());
+        }
+        if (null != mimeType)
+        {
+            resp.setContentType(mimeType);
+        }
+        resp.setHeader("ETag", eTag);
+        resp.setHeader("Last-Modified", resource.getLastModifiedHttp());
+        long length = resource.getContentLength();
+        resp.setContentLengthLong(length);
+        if (!content || length == 0)
+        {
+            return;
+        }
+
+        NettyWebServerConfig config = NettyWebServerConfig.getInstance();
+        NettyServletResponse nettyResponse = unwrap(resp);
+        if (isFileResource(resource) && config.isSendfile()
+                && length >= config.getSendfileMinSize() && null != nettyResponse)
+        {
+            String path = resource.getCanonicalPath();
+            if (null != path)
+            {
+                nettyResponse.sendFile(new File(path), 0, length);
+                return;
+            }
+        }
+        try (InputStream in = resource.getInputStream())
+        {
+            StreamUtils.copy(in, resp.getOutputStream());
+        }
+    }
+
+    private static boolean isFileResource(WebResource resource)
+    {
+        if (resource instanceof CachedResource)
+        {
+            resource = ((CachedResource) resource).getWebResource();
+        }
+        return resource instanceof FileResource;
+    }
+
+    private static NettyServletResponse unwrap(ServletResponse response)
+    {
+        while (response instanceof ServletResponseWrapper)
+        {
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+        return response instanceof NettyServletResponse ? (NettyServletResponse) response : null;
+    }
+
+    private WebResource getResource(HttpServletRequest req)
+    {
+        WebResourceRoot resources = NettyServletContext.get().getResources();
+        if (null == resources)
+        {
+            return null;
+        }
+        String uri = req.getRequestURI();
+        String contextPath = req.getContextPath();
+        if (null == uri || !uri.startsWith(contextPath))
+        {
+            return null;
+        }
+        String path = uri.substring(contextPath.length());
+        return resources.getResource(path.isEmpty() ? "/" : path);
+    }
+
+    private boolean notModified(HttpServletRequest req, String eTag, long lastModified)
+    {
+        Enumeration<String> ifNoneMatch = req.getHeaders("If-None-Match");
+        if (null != ifNoneMatch && ifNoneMatch.hasMoreElements())
+        {
+            while (ifNoneMatch.hasMoreElements())
+            {
+                if (matchesETag(ifNoneMatch.nextElement(), eTag))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try
+        {
+            ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+        //HTTP 日期只精确到秒
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * 逐个解析逗号分隔的实体标签列表，If-None-Match 使用弱比较（RFC 7232 2.3.2）：忽略 W/ 前缀，
+     * 引号内的内容完全相同才算匹配。引号内允许出现逗号，所以不能直接按逗号拆分
+     */
+    static boolean matchesETag(String ifNoneMatch, String eTag)
+    {
+        String opaqueTag = opaqueTag(eTag.trim());
+        int length = ifNoneMatch.length();
+        int i = 0;
+        while (i < length)
+        {
+            char c = ifNoneMatch.charAt(i);
+            if (c == ',' || c == ' ' || c == '\t')
+            {
+                i++;
+                continue;
+            }
+            int start = i;
+            if (ifNoneMatch.startsWith("W/", i))
+            {
+                i += 2;
+            }
+            if (i < length && ifNoneMatch.charAt(i) == '"')
+            {
+                int end = ifNoneMatch.indexOf('"', i + 1);
+                i = end < 0 ? length : end + 1;
+            } else
+            {
+                int end = ifNoneMatch.indexOf(',', i);
+                i = end < 0 ? length : end;
+            }
+            String candidate = ifNoneMatch.substring(start, i).trim();
+            if ("*".equals(candidate) || opaqueTag.equals(opaqueTag(candidate)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String tag)
+    {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
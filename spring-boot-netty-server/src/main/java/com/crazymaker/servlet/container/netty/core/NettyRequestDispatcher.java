@@ -1,11 +1,13 @@
 package com.crazymaker.servlet.container.netty.core;
 
-import com.crazymaker.servlet.container.netty.filter.FilterChainFactory;
 import com.crazymaker.servlet.container.netty.filter.FilterChainImpl;
 import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
 import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import com.crazymaker.servlet.container.netty.utils.MappingData;
 
-import javax.servlet.FilterChain;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
 import javax.servlet.ServletContext;
@@ -17,36 +19,60 @@ import java.io.IOException;
 
 /**
  * 分发器，除了传统的forward和include，把正常的Servlet调用也放在这里 dispatch()方法
+ * <p>
+ * 每个 URL Pattern（以及每个 Servlet 名）对应一个实例，由 DispatchTable 启动时编译，之后不再变化，所有请求共用
  */
 public class NettyRequestDispatcher implements RequestDispatcher
 {
-
     /**
      * The servlet name for a named dispatcher.
      */
-    private String servletName = null;
+    private final String servletName;
 
     /**
-     * The servlet path for this RequestDispatcher.
+     * 匹配的 URL Pattern，按名字分发时为 null
      */
-    private String servletPath = null;
+    private final String urlPattern;
 
     private final ServletContext context;
 
-    private Servlet httpServlet;
+    private final Servlet httpServlet;
 
-    private FilterChain filterChain;
+    /**
+     * 每种 DispatcherType 下的过滤器，下标为 DispatcherType.ordinal()
+     */
+    private final RouteFilters[] filters;
 
-    NettyRequestDispatcher(ServletContext context,
-                           String servletName, String servletPath,
-                           Servlet servlet, FilterChain filterChain)
+    private final MultipartConfigElement multipartConfig;
+
+    NettyRequestDispatcher(ServletContext context, String servletName, String urlPattern,
+                           Servlet servlet, RouteFilters[] filters, MultipartConfigElement multipartConfig)
     {
         this.context = context;
         this.servletName = servletName;
-        this.servletPath = servletPath;
+        this.urlPattern = urlPattern;
         this.httpServlet = servlet;
-        this.filterChain = filterChain;
+        this.filters = filters;
+        this.multipartConfig = multipartConfig;
+    }
 
+    public String getServletName()
+    {
+        return servletName;
+    }
+
+    public String getUrlPattern()
+    {
+        return urlPattern;
+    }
+
+    /**
+     * @param path 不带 contextPath 的请求路径，按名字分发时为 null
+     * @return 该请求按顺序要执行的过滤器
+     */
+    public Filter[] getFilters(DispatcherType dispatcherType, String path)
+    {
+        return filters[dispatcherType.ordinal()].resolve(path);
     }
 
     @Override
@@ -75,13 +101,23 @@ public class NettyRequestDispatcher implements RequestDispatcher
         }
     }
 
-    public void dispatch(NettyServletRequest request, NettyServletResponse response) throws ServletException, IOException
+    /**
+     * @param mappingData 路由查找的结果，包含请求路径和 servletPath/pathInfo 的拆分
+     */
+    public void dispatch(NettyServletRequest request, NettyServletResponse response,
+                         MappingData<NettyRequestDispatcher> mappingData) throws ServletException, IOException
     {
-        FilterChainImpl chain = FilterChainFactory.createFilterChain(request, httpServlet);
-        chain.doFilter(request, response);
-        if (response.getStatus() == HttpServletResponse.SC_OK)
+        request.setMultipartConfig(multipartConfig);
+        request.setServletMapping(mappingData.getServletPath(), mappingData.getPathInfo());
+        //Servlet 是过滤器链的最后一环，过滤器可以包装或计时 Servlet 的调用，不调用 chain.doFilter() 即可终止请求
+        FilterChainImpl chain = FilterChainImpl.obtain(httpServlet,
+                getFilters(request.getDispatcherType(), mappingData.getRequestPath()));
+        try
+        {
+            chain.doFilter(request, response);
+        } finally
         {
-            httpServlet.service(request, response);
+            chain.release();
         }
     }
 }
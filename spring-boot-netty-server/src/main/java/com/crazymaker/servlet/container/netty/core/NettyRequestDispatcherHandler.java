@@ -1,10 +1,20 @@
 package com.crazymaker.servlet.container.netty.core;
 
+import com.crazymaker.servlet.container.netty.async.AsyncContextImpl;
 import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import com.crazymaker.servlet.container.netty.request.parser.MultipartParser;
 import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import com.crazymaker.servlet.container.netty.utils.MappingData;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -16,11 +26,25 @@ import static com.google.common.base.Preconditions.checkNotNull;
 /**
  * 读入请求数据时，对请求URI获取分发器，找不到返回404错误.
  * 找到则调用FilterChain进行业务逻辑，最后关闭输出流
+ * 业务线程池持续排队时，排队太久的请求不再执行，直接写出预先构造好的 503
  */
 @ChannelHandler.Sharable
 public class NettyRequestDispatcherHandler extends SimpleChannelInboundHandler<NettyServletRequest>
 {
     private static final Log log = LogFactory.getLog(NettyRequestDispatcherHandler.class);
+
+    private static final FullHttpResponse OVERLOADED_RESPONSE = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, Unpooled.EMPTY_BUFFER);
+    private static final FullHttpResponse OVERLOADED_CLOSE_RESPONSE = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, Unpooled.EMPTY_BUFFER);
+
+    static
+    {
+        HttpUtil.setContentLength(OVERLOADED_RESPONSE, 0);
+        HttpUtil.setContentLength(OVERLOADED_CLOSE_RESPONSE, 0);
+        HttpUtil.setKeepAlive(OVERLOADED_CLOSE_RESPONSE, false);
+    }
+
     private final NettyServletContext context;
 
     NettyRequestDispatcherHandler(NettyServletContext context)
@@ -32,26 +56,109 @@ public class NettyRequestDispatcherHandler extends SimpleChannelInboundHandler<N
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, NettyServletRequest nettyServletRequest) throws Exception
     {
-        NettyServletResponse nettyServletResponse = (NettyServletResponse) nettyServletRequest.getServletResponse();
+        //请求在 handleRequest 中可能已经回收，先取出占用限流器的时间
+        long dispatchStartNanos = nettyServletRequest.getDispatchStartNanos();
         try
         {
+            CoDelLoadShedder loadShedder = context.getLoadShedder();
+            long arrivalNanos = nettyServletRequest.getArrivalNanos();
+            if (loadShedder.isEnabled() && arrivalNanos != 0
+                    && loadShedder.shouldDrop(System.nanoTime() - arrivalNanos, nettyServletRequest.getPriority()))
+            {
+                dropRequest(ctx, nettyServletRequest);
+            } else
+            {
+                handleRequest(nettyServletRequest);
+            }
+        } finally
+        {
+            if (dispatchStartNanos != 0)
+            {
+                context.getConcurrencyLimiter().release(dispatchStartNanos);
+            }
+        }
+    }
 
-            handleRequest0(nettyServletRequest, nettyServletResponse);
-
+    /**
+     * 丢弃排队太久的请求：不经过 Servlet 响应，直接写出共享的 503，未读的请求体随输入流关闭丢弃。
+     * 和其他被拒绝的请求一样记入熔断器：不计入统计，被丢弃的试探请求让熔断器重新放行一个
+     */
+    private static void dropRequest(ChannelHandlerContext ctx, NettyServletRequest nettyServletRequest)
+    {
+        nettyServletRequest.setRejected(true);
+        NettyServletContext.get().getCircuitBreakers()
+                .requestDone(nettyServletRequest, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        try
+        {
+            nettyServletRequest.getInputStream().close();
+        } catch (IOException e)
+        {
+            log.error("dropRequest error", e);
+        }
+        try
+        {
+            if (HttpUtil.isKeepAlive(nettyServletRequest.getOriginalRequest()))
+            {
+                ctx.writeAndFlush(OVERLOADED_RESPONSE.retainedDuplicate(), ctx.voidPromise());
+            } else
+            {
+                ctx.writeAndFlush(OVERLOADED_CLOSE_RESPONSE.retainedDuplicate()).addListener(ChannelFutureListener.CLOSE);
+            }
         } finally
+        {
+            InlineDispatchHandler.requestCompleted(nettyServletRequest);
+            nettyServletRequest.recycle();
+        }
+    }
+
+    /**
+     * 执行请求，最后关闭输入流和响应并回收请求；
+     * 调用了 startAsync() 的请求交给 AsyncContext，由它在 complete() 或异步分发结束后完成响应；
+     * 熔断的请求不执行 Servlet，只写出降级响应；被限流拒绝的请求直接返回 503
+     */
+    static void handleRequest(NettyServletRequest nettyServletRequest)
+    {
+        NettyServletResponse nettyServletResponse = (NettyServletResponse) nettyServletRequest.getServletResponse();
+        RouteCircuitBreakerRegistry circuitBreakers = NettyServletContext.get().getCircuitBreakers();
+        try
         {
 
-            try
+            if (nettyServletRequest.isShortCircuited())
             {
-                nettyServletRequest.getInputStream().close();
-            } catch (IOException e)
+                circuitBreakers.writeFallback(nettyServletRequest, nettyServletResponse);
+            } else if (nettyServletRequest.isRejected())
             {
-                log.error("handleRequest error", e);
+                nettyServletResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } else
+            {
+                handleRequest0(nettyServletRequest, nettyServletResponse);
             }
 
-            if (!nettyServletRequest.isAsyncStarted())
+        } finally
+        {
+            nettyServletRequest.dispatchReturned();
+            if (nettyServletRequest.isAsyncStarted())
             {
-                nettyServletResponse.close();
+                //异步处理可能还要读取请求体，输入流随请求回收时关闭
+                ((AsyncContextImpl) nettyServletRequest.getAsyncContext()).dispatchReturned();
+            } else
+            {
+                circuitBreakers.requestDone(nettyServletRequest, nettyServletResponse.getStatus());
+                try
+                {
+                    nettyServletRequest.getInputStream().close();
+                } catch (IOException e)
+                {
+                    log.error("handleRequest error", e);
+                }
+                try
+                {
+                    nettyServletResponse.close();
+                } finally
+                {
+                    InlineDispatchHandler.requestCompleted(nettyServletRequest);
+                    nettyServletRequest.recycle();
+                }
             }
 
 
@@ -59,17 +166,27 @@ public class NettyRequestDispatcherHandler extends SimpleChannelInboundHandler<N
     }
 
     public static void handleRequest0(NettyServletRequest nettyServletRequest, NettyServletResponse nettyServletResponse)
+    {
+        String path = NettyServletContext.get().getRequestPath(nettyServletRequest.getRequestURI());
+        handleRequest0(nettyServletRequest, nettyServletResponse, path);
+    }
+
+    /**
+     * @param path 相对于 ServletContext 的请求路径，异步分发时是 dispatch 的目标；为 null 时返回 404
+     */
+    public static void handleRequest0(NettyServletRequest nettyServletRequest, NettyServletResponse nettyServletResponse,
+                                      String path)
     {
         try
         {
-            NettyRequestDispatcher dispatcher =
-                    (NettyRequestDispatcher) NettyServletContext.get().getRequestDispatcher(nettyServletRequest.getRequestURI());
-            if (dispatcher == null)
+            NettyServletContext context = NettyServletContext.get();
+            MappingData<NettyRequestDispatcher> mappingData = null == path ? null : context.getDispatchTable().map(path);
+            if (mappingData == null)
             {
                 nettyServletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 return;
             }
-            dispatcher.dispatch(nettyServletRequest, nettyServletResponse);
+            mappingData.getTarget().dispatch(nettyServletRequest, nettyServletResponse, mappingData);
 //            Servlet servlet = ServletContextImpl.get().getServlet(DispatcherServletAutoConfiguration.DEFAULT_DISPATCHER_SERVLET_BEAN_NAME);
 //            FilterChainImpl chain = FilterChainFactory.createFilterChain(nettyServletRequest, servlet);
 //            chain.doFilter(servletRequest, servletResponse);
@@ -78,6 +195,14 @@ public class NettyRequestDispatcherHandler extends SimpleChannelInboundHandler<N
 //            }
         } catch (Exception e)
         {
+            if (MultipartParser.isSizeLimitExceeded(e) && !nettyServletResponse.isCommitted())
+            {
+                //上传超过大小限制是客户端的问题，不计入熔断的失败
+                log.warn("Multi-part request too large, uri:" + nettyServletRequest.getRequestURI() + ", " + e.getMessage());
+                nettyServletResponse.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+            nettyServletRequest.setDispatchFailed(true);
             log.error("controller invoke uri:" + nettyServletRequest.getRequestURI(), e);
         }
     }
@@ -1,6 +1,6 @@
 package com.crazymaker.servlet.container.netty.core;
 
-import com.crazymaker.servlet.container.netty.async.TracingThreadPoolExecutor;
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
 import com.crazymaker.servlet.container.netty.filter.FilterDef;
 import com.crazymaker.servlet.container.netty.filter.FilterMap;
 import com.crazymaker.servlet.container.netty.filter.FilterRegistrationImpl;
@@ -21,7 +21,6 @@ import org.springframework.lang.Nullable;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
-import javax.servlet.FilterChain;
 import javax.servlet.FilterRegistration;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
@@ -37,7 +36,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Enumeration;
@@ -49,7 +47,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -65,8 +62,14 @@ public class NettyServletContext implements ServletContext
     private final ClassLoader classLoader;
     private final String serverInfo;
     private volatile boolean initialized; //记录是否初始化完毕
-    private RequestUrlPatternMapper servletUrlPatternMapper;
+    private RequestUrlPatternMapper<Servlet> servletUrlPatternMapper;
     private NettySessionManager sessionManager;
+    private final NonBlockingRouteRegistry nonBlockingRoutes;
+    private final RouteCircuitBreakerRegistry circuitBreakers;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final CoDelLoadShedder loadShedder;
+    private final RequestPriorityClassifier priorityClassifier;
+    private final ServerHealthMonitor healthMonitor;
 
     private final Map<String, NettyServletRegistration> servlets = new HashMap<>(); //getServletRegistration()等方法要用，key是ServletName
     private final Map<String, NettyFilterRegistration> filters = new HashMap<>(); //getFilterRegistration()等方法要用，Key是FilterName
@@ -79,13 +82,16 @@ public class NettyServletContext implements ServletContext
 
 
     private final Map<String, FilterDef> filterDefMap = Maps.newHashMap();
+
+    /**
+     * 预先编译的分发表，映射或过滤器变化时置空
+     */
+    private volatile DispatchTable dispatchTable;
     /**
      * The Context instance with which we are associated.
      */
     WebResourceRoot resources;
 
-
-    private TracingThreadPoolExecutor executor;
     /**
      * The document root for this web application.
      */
@@ -113,26 +119,54 @@ public class NettyServletContext implements ServletContext
         this.contextPath = contextPath;
         this.classLoader = classLoader;
         this.serverInfo = serverInfo;
-        this.servletUrlPatternMapper = new RequestUrlPatternMapper(contextPath);
+        this.servletUrlPatternMapper = new RequestUrlPatternMapper<>(contextPath);
         this.sessionManager = new NettySessionManager(this);
+        this.nonBlockingRoutes = new NonBlockingRouteRegistry(NettyWebServerConfig.getInstance());
+        this.circuitBreakers = new RouteCircuitBreakerRegistry(NettyWebServerConfig.getInstance());
+        this.concurrencyLimiter = new AdaptiveConcurrencyLimiter(NettyWebServerConfig.getInstance());
+        this.loadShedder = new CoDelLoadShedder(NettyWebServerConfig.getInstance());
+        this.priorityClassifier = new RequestPriorityClassifier(NettyWebServerConfig.getInstance());
+        this.healthMonitor = new ServerHealthMonitor(NettyWebServerConfig.getInstance());
+    }
 
-        executor = new TracingThreadPoolExecutor(1, 1, new LinkedBlockingQueue<>(1));
+    public static NettyServletContext get()
+    {
+        return instance;
+    }
 
+    public NettySessionManager getSessionManager()
+    {
+        return sessionManager;
     }
 
-    public TracingThreadPoolExecutor getExecutor()
+    public NonBlockingRouteRegistry getNonBlockingRoutes()
     {
-        return executor;
+        return nonBlockingRoutes;
     }
 
-    public static NettyServletContext get()
+    public RouteCircuitBreakerRegistry getCircuitBreakers()
     {
-        return instance;
+        return circuitBreakers;
     }
 
-    public NettySessionManager getSessionManager()
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter()
     {
-        return sessionManager;
+        return concurrencyLimiter;
+    }
+
+    public CoDelLoadShedder getLoadShedder()
+    {
+        return loadShedder;
+    }
+
+    public RequestPriorityClassifier getPriorityClassifier()
+    {
+        return priorityClassifier;
+    }
+
+    public ServerHealthMonitor getHealthMonitor()
+    {
+        return healthMonitor;
     }
 
     void setInitialised(boolean initialized)
@@ -154,12 +188,22 @@ public class NettyServletContext implements ServletContext
     {
         checkNotInitialised();
         servletMappings.put(urlPattern, checkNotNull(name));
-        servletUrlPatternMapper.addServlet(urlPattern, servlet, name);
+        servletUrlPatternMapper.addMapping(urlPattern, name, servlet);
+        dispatchTable = null;
     }
 
     public void addServletMapping(String urlPattern, String name)
     {
         servletMappings.put(urlPattern, checkNotNull(name));
+        dispatchTable = null;
+    }
+
+    /**
+     * @return 映射到该 URL Pattern 的 Servlet 名，没有时返回 null
+     */
+    public String getServletMapping(String urlPattern)
+    {
+        return servletMappings.get(urlPattern);
     }
 
     public void addFilterMapping(EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String urlPattern)
@@ -318,58 +362,99 @@ public class NettyServletContext implements ServletContext
     @Override
     public RequestDispatcher getRequestDispatcher(String path)
     {
-        String servletName = servletMappings.get(path);
-        if (servletName == null)
+        if (null == path || !path.startsWith("/"))
         {
-            servletName = servletMappings.get("/");
+            return null;
         }
-        if (null == servletName)
+        int queryInx = path.indexOf('?');
+        if (queryInx > -1)
         {
-            return null;
+            path = path.substring(0, queryInx);
         }
-        return getNamedDispatcher(servletName);
+        return getDispatchTable().match(path);
     }
 
     @Override
     public RequestDispatcher getNamedDispatcher(String name)
     {
-        try
+        //没有映射路径的 Servlet（例如默认 Servlet）仍然可以按名字分发
+        NettyRequestDispatcher dispatcher = getDispatchTable().getNamed(name);
+        if (null == dispatcher)
         {
-            Servlet servlet = servletMap.get(name);
-            String servletPath = null;
-            for (Map.Entry<String, String> servletEntry : servletMappings.entrySet())
+            log.error("No servlet registered with name " + name);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * 根据当前的 Servlet 映射和 FilterMap 编译分发表，在 filterStart()/servletStart() 之后调用
+     */
+    public void compileDispatchTable()
+    {
+        synchronized (servletMappings)
+        {
+            dispatchTable = DispatchTable.compile(this);
+        }
+    }
+
+    /**
+     * 映射或过滤器在启动之后发生变化时，分发表被置空，在下一次使用时重新编译
+     */
+    DispatchTable getDispatchTable()
+    {
+        DispatchTable table = dispatchTable;
+        if (null == table)
+        {
+            synchronized (servletMappings)
             {
-                if (servletEntry.getValue().equals(name))
+                table = dispatchTable;
+                if (null == table)
                 {
-                    servletPath = servletEntry.getKey();
+                    table = DispatchTable.compile(this);
+                    dispatchTable = table;
                 }
             }
+        }
+        return table;
+    }
 
-            if (null == servletPath)
-            {
-                log.error("Throwing exception when getting Filter from NettyFilterRegistration of name " + name);
-                return null;
-            }
-            //TODO 过滤器的urlPatter解析
-            List<Filter> allNeedFilters = new ArrayList<>();
-            for (NettyFilterRegistration registration : this.filters.values())
-            {
-                allNeedFilters.add(registration.getFilter());
-            }
-
-            FilterChain filterChain = new NettyFilterChain(servlet, allNeedFilters);
-            return new NettyRequestDispatcher(this, name, servletPath, servlet, filterChain);
-        } catch (ServletException e)
+    /**
+     * @param requestUri 请求 URI（不带查询字符串）
+     * @return 去掉 contextPath 的请求路径，不在当前上下文中时返回 null
+     */
+    public String getRequestPath(String requestUri)
+    {
+        if (null == requestUri || !requestUri.startsWith(contextPath))
         {
-            log.error("Throwing exception when getting Filter from NettyFilterRegistration of name " + name, e);
             return null;
         }
+        String path = requestUri.substring(contextPath.length());
+        if (path.isEmpty())
+        {
+            return "/";
+        }
+        return path.charAt(0) == '/' ? path : null;
+    }
+
+    Map<String, String> getServletMappings()
+    {
+        return servletMappings;
+    }
+
+    Set<String> getServletNamesInternal()
+    {
+        return servletMap.keySet();
+    }
+
+    Servlet getServletInternal(String name)
+    {
+        return servletMap.get(name);
     }
 
     @Override
     public Servlet getServlet(String name) throws ServletException
     {
-        return servlets.get(name).getServlet();
+        return servletMap.get(name);
     }
 
     @Override
@@ -523,6 +608,8 @@ public class NettyServletContext implements ServletContext
     {
         NettyServletRegistration servletRegistration = new NettyServletRegistration(this, servletName, className, servlet);
         servletMap.put(servletName, servlet);
+        servlets.put(servletName, servletRegistration);
+        dispatchTable = null;
         return servletRegistration;
     }
 
@@ -542,13 +629,13 @@ public class NettyServletContext implements ServletContext
     @Override
     public ServletRegistration getServletRegistration(String servletName)
     {
-        return null;
+        return servlets.get(servletName);
     }
 
     @Override
     public Map<String, ? extends ServletRegistration> getServletRegistrations()
     {
-        return null;
+        return Collections.unmodifiableMap(servlets);
     }
 
     @Override
@@ -723,6 +810,7 @@ public class NettyServletContext implements ServletContext
     public void addFilterMap(FilterMap filterMap)
     {
         filterMapList.add(filterMap);
+        dispatchTable = null;
     }
 
     public List<FilterMap> getFilterMapList()
@@ -740,6 +828,7 @@ public class NettyServletContext implements ServletContext
     public void addFilterDef(FilterDef filterDef)
     {
         filterDefMap.put(filterDef.getFilterName(), filterDef);
+        dispatchTable = null;
     }
 
     public Map<String, FilterDef> getFilterDefMap()
@@ -1,15 +1,23 @@
 package com.crazymaker.servlet.container.netty.core;
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
 import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
-import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import com.crazymaker.servlet.container.netty.request.StreamingServletInputStream;
+import com.crazymaker.servlet.container.netty.response.NettyServletOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,10 +33,23 @@ public class NettyServletHandler extends ChannelInboundHandlerAdapter
     private static final HttpResponse DEFAULT_FULLHTTP_RESPONSE =
             new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE);
 
+    private static final FullHttpResponse TOO_LARGE_RESPONSE = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, Unpooled.EMPTY_BUFFER);
+
+    static
+    {
+        HttpUtil.setContentLength(TOO_LARGE_RESPONSE, 0);
+    }
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private NettyServletContext nettyServletContext;
 
+    /**
+     * 流式模式下当前正在接收的请求体
+     */
+    private StreamingServletInputStream currentBody;
+
 
     NettyServletHandler(NettyServletContext nettyServletContext)
     {
@@ -58,6 +79,25 @@ public class NettyServletHandler extends ChannelInboundHandlerAdapter
          * 减少连接数
          */
         ContainerStatus.INSTANCE.connectionDecrement();
+        if (null != currentBody)
+        {
+            currentBody.abort();
+            currentBody = null;
+        }
+        NettyServletOutputStream.channelClosed(ctx.channel());
+    }
+
+    /**
+     * 写缓冲区降到低水位以下，通知等待中的 WriteListener
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+    {
+        if (ctx.channel().isWritable())
+        {
+            NettyServletOutputStream.channelWritable(ctx.channel());
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
@@ -69,43 +109,83 @@ public class NettyServletHandler extends ChannelInboundHandlerAdapter
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
     {
-        try
+        if (msg instanceof FullHttpRequest)
         {
+            FullHttpRequest fullHttpRequest = (FullHttpRequest) msg;
+            NettyServletRequest nettyServletRequest = NettyServletRequest.newInstance(ctx, this, fullHttpRequest);
+            dispatch(ctx, fullHttpRequest, nettyServletRequest);
+        } else if (msg instanceof HttpRequest)
+        {
+            streamingRequest(ctx, (HttpRequest) msg);
+        } else if (msg instanceof HttpContent)
+        {
+            streamingContent((HttpContent) msg);
+        } else
+        {
+            ReferenceCountUtil.release(msg);
+        }
+    }
 
-
-            if (msg instanceof FullHttpRequest)
-            {
-                FullHttpRequest fullHttpRequest = (FullHttpRequest) msg;
-
-
-                NettyServletResponse servletResponse = new NettyServletResponse(ctx, nettyServletContext);
-
-                NettyServletRequest nettyServletRequest =
-                        new NettyServletRequest(ctx, this, fullHttpRequest, servletResponse);
-
-                servletResponse.setRequestFacade(nettyServletRequest);
-                /**
-                 * 请求头包含Expect: 100-continue
-                 */
-                if (HttpUtil.is100ContinueExpected(fullHttpRequest))
-                {
-                    ctx.write(DEFAULT_FULLHTTP_RESPONSE, ctx.voidPromise());
-                }
-//                ReferenceCountUtil.retain(msg);
-                ctx.fireChannelRead(nettyServletRequest);
-//                log.info("msg {} is instanceof FullHttpRequest", msg);
-//                log.info("channel is {}", ctx.channel());
-            } else
+    private void dispatch(ChannelHandlerContext ctx, HttpRequest request, NettyServletRequest nettyServletRequest)
+    {
+        try
+        {
+            /**
+             * 请求头包含Expect: 100-continue
+             */
+            if (HttpUtil.is100ContinueExpected(request))
             {
-                ReferenceCountUtil.release(msg);
+                ctx.write(DEFAULT_FULLHTTP_RESPONSE, ctx.voidPromise());
             }
+            nettyServletRequest.setArrivalNanos(System.nanoTime());
+            ContainerStatus.INSTANCE.pendingRequestsIncrement();
+            ctx.fireChannelRead(nettyServletRequest);
         } finally
         {
-//            ReferenceCountUtil.release(msg);
             ContainerStatus.INSTANCE.handledRequestsIncrement();
             ContainerStatus.INSTANCE.totalRequestsIncrement();
         }
+    }
+
+    /**
+     * 流式模式：请求头到达就分发，请求体由后续的 HttpContent 陆续放入输入流
+     */
+    private void streamingRequest(ChannelHandlerContext ctx, HttpRequest request)
+    {
+        NettyWebServerConfig config = NettyWebServerConfig.getInstance();
+        long maxBodySize = config.getMaxRequestBodySize();
+        if (maxBodySize >= 0 && HttpUtil.getContentLength(request, -1L) > maxBodySize)
+        {
+            //与 HttpObjectAggregator 一样直接返回 413 并关闭连接，请求体不再接收
+            currentBody = null;
+            ctx.writeAndFlush(TOO_LARGE_RESPONSE.retainedDuplicate()).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        StreamingServletInputStream body = new StreamingServletInputStream(ctx.channel(), maxBodySize,
+                config.getRequestBodySpillThreshold(), config.getRequestBodyMaxBufferedBytes());
+        if (!HttpUtil.isTransferEncodingChunked(request) && HttpUtil.getContentLength(request, 0L) == 0)
+        {
+            //没有请求体，随后到达的 LastHttpContent 会被忽略
+            body.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        currentBody = body;
+        NettyServletRequest nettyServletRequest = NettyServletRequest.newInstance(ctx, this, request, body);
+        dispatch(ctx, request, nettyServletRequest);
+    }
 
+    private void streamingContent(HttpContent content)
+    {
+        StreamingServletInputStream body = currentBody;
+        if (content instanceof LastHttpContent)
+        {
+            currentBody = null;
+        }
+        if (null == body)
+        {
+            content.release();
+            return;
+        }
+        body.offer(content);
     }
 
-}
\ No newline at end of file
+}
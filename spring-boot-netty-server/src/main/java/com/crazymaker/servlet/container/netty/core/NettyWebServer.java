@@ -1,5 +1,7 @@
 package com.crazymaker.servlet.container.netty.core;
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.async.OrderedWorkStealingExecutorGroup;
 import com.google.common.base.StandardSystemProperty;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
@@ -11,14 +13,19 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.boot.web.server.WebServer;
 import org.springframework.boot.web.server.WebServerException;
 
 import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -27,6 +34,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class NettyWebServer implements WebServer
 {
+    /**
+     * 合并 flush：连续这么多次显式 flush 之后至少真正 flush 一次（Netty 4.1.31 没有公开默认值）
+     */
+    private static final int EXPLICIT_FLUSH_AFTER_FLUSHES = 256;
+
     private final Log log = LogFactory.getLog(getClass());
     //监听端口地址
     private final InetSocketAddress address;
@@ -36,7 +48,10 @@ public class NettyWebServer implements WebServer
     //Netty 所需的线程池
     private EventLoopGroup bossGroup;  //接收/监听请求
     private EventLoopGroup workerGroup; //IO处理线程池
-    private DefaultEventExecutorGroup servletExecutor;  //业务处理线程池
+    private EventExecutorGroup servletExecutor;  //业务处理线程池
+    private final AcceptorStatsHandler acceptorStats = new AcceptorStatsHandler(); //各 acceptor 的连接接收统计
+    private final List<Channel> serverChannels = new CopyOnWriteArrayList<>(); //已经绑定的 ServerChannel
+    private volatile int boundPort; //实际监听的端口
 
     public NettyWebServer(InetSocketAddress address, NettyServletContext nettyServletContext)
     {
@@ -51,19 +66,32 @@ public class NettyWebServer implements WebServer
     public void start() throws WebServerException
     {
         nettyServletContext.setInitialised(false);
+        NettyWebServerConfig config = NettyWebServerConfig.getInstance();
 
         ServerBootstrap serverBootstrap = new ServerBootstrap();
+        //accept 线程数，只有 Epoll 支持 SO_REUSEPORT 多个 ServerChannel 绑定同一端口
+        int acceptors = 1;
         //根据不同系统初始化对应的EventLoopGroup
         if ("Linux".equals(StandardSystemProperty.OS_NAME.value()))
         {
-            bossGroup = new EpollEventLoopGroup(1);
+            acceptors = Math.max(1, config.getAcceptors());
+            bossGroup = new EpollEventLoopGroup(acceptors);
             //不带参数，线程数传入0,实际解析为CPU核数*2
             workerGroup = new EpollEventLoopGroup();
             serverBootstrap.channel(EpollServerSocketChannel.class)
                     .group(bossGroup, workerGroup)
                     .option(EpollChannelOption.TCP_CORK, true);
+            if (acceptors > 1)
+            {
+                //内核把新连接分散到多个 accept 队列上
+                serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
         } else
         {
+            if (config.getAcceptors() > 1)
+            {
+                log.warn("SO_REUSEPORT is only supported by the Epoll transport, falling back to a single acceptor");
+            }
             bossGroup = new NioEventLoopGroup(1);
             workerGroup = new NioEventLoopGroup();
             serverBootstrap.channel(NioServerSocketChannel.class)
@@ -71,22 +99,38 @@ public class NettyWebServer implements WebServer
         }
 //        serverBootstrap.option(ChannelOption.TCP_NODELAY, true)
         serverBootstrap.option(ChannelOption.SO_REUSEADDR, true)
-                .option(ChannelOption.SO_BACKLOG, 100);
+                .option(ChannelOption.SO_BACKLOG, 100)
+                .handler(acceptorStats)
+                //写缓冲区超过高水位时连接不可写，ServletOutputStream.isReady() 返回 false，降到低水位时通知 WriteListener
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()));
         log.info("Bootstrap configuration: " + serverBootstrap.toString());
 
-        servletExecutor = new DefaultEventExecutorGroup(50);
+        servletExecutor = newServletExecutor(config);
+        log.info("Servlet executor: " + servletExecutor);
+        //根据错误率、业务线程池队列、IO 线程延迟和未完成请求数计算健康状态
+        nettyServletContext.getHealthMonitor().start(workerGroup, servletExecutor);
+        final InlineDispatchHandler inlineDispatchHandler = new InlineDispatchHandler(nettyServletContext);
         serverBootstrap.childHandler(new ChannelInitializer<SocketChannel>()
         {
             @Override
             protected void initChannel(SocketChannel ch) throws Exception
             {
                 ChannelPipeline pipeline = ch.pipeline();
+                //合并flush：读循环中的flush推迟到读完成，业务线程的flush合并成一次，减少 writev 系统调用
+                pipeline.addLast("flushConsolidation", new FlushConsolidationHandler(
+                        EXPLICIT_FLUSH_AFTER_FLUSHES, true));
                 //HTTP编码解码Handler
                 pipeline.addLast("codec", new HttpServerCodec(4096, 8192, 8192, false));
                 //处理请求，读入数据，生成Request和Response对象
-                pipeline.addLast(new HttpObjectAggregator(100 * 1024));
+                if (!config.isRequestBodyStreaming())
+                {
+                    pipeline.addLast(new HttpObjectAggregator(maxAggregatedBodySize(config)));
+                }
                 pipeline.addLast(new ChunkedWriteHandler());
                 pipeline.addLast("servletInput", new NettyServletHandler(nettyServletContext));
+                //非阻塞路由直接在IO线程上执行，其余请求交给业务线程池
+                pipeline.addLast("inlineDispatch", inlineDispatchHandler);
                 //获取请求分发器，让对应的Servlet处理请求，同时处理404情况
                 pipeline.addLast(checkNotNull(servletExecutor), "filterChain", new NettyRequestDispatcherHandler(nettyServletContext));
             }
@@ -95,13 +139,70 @@ public class NettyWebServer implements WebServer
 
         nettyServletContext.setInitialised(true);
 
-        ChannelFuture future = serverBootstrap.bind(address).awaitUninterruptibly();
-        Throwable cause = future.cause();
-        if (null != cause)
+        //每次 bind 都会新建一个 ServerChannel，注册到 bossGroup 的下一个 EventLoop 上；
+        //端口为 0 时由第一次 bind 分配端口，其余的 ServerChannel 绑定到同一个端口
+        InetSocketAddress bindAddress = address;
+        for (int i = 0; i < acceptors; i++)
+        {
+            ChannelFuture future = serverBootstrap.bind(bindAddress).awaitUninterruptibly();
+            Throwable cause = future.cause();
+            if (null != cause)
+            {
+                //已经绑定的 ServerChannel 不关闭会一直占着端口
+                closeServerChannels();
+                throw new WebServerException("Could not start Netty server", cause);
+            }
+            serverChannels.add(future.channel());
+            bindAddress = (InetSocketAddress) future.channel().localAddress();
+        }
+        boundPort = bindAddress.getPort();
+        log.info(nettyServletContext.getServerInfo() + " started on port: " + getPort() + " with " + acceptors + " acceptor(s)");
+    }
+
+    /**
+     * 聚合模式下 HttpObjectAggregator 的上限，不限制时取 int 的最大值
+     */
+    private static int maxAggregatedBodySize(NettyWebServerConfig config)
+    {
+        long max = config.getMaxRequestBodySize();
+        return max < 0 || max > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) max;
+    }
+
+    /**
+     * 根据配置创建业务处理线程池
+     */
+    private EventExecutorGroup newServletExecutor(NettyWebServerConfig config)
+    {
+        int threads = config.getServletExecutorThreads();
+        if (config.getServletExecutorMode() == NettyWebServerConfig.ServletExecutorMode.PINNED)
         {
-            throw new WebServerException("Could not start Netty server", cause);
+            //每个连接固定绑定一个单线程执行器
+            return new DefaultEventExecutorGroup(threads);
         }
-        log.info(nettyServletContext.getServerInfo() + " started on port: " + getPort());
+        //连接内保持顺序，空闲线程可以窃取其他连接的任务；有任务的连接按请求的优先级排队
+        int[] weights = new int[RequestPriority.values().length];
+        weights[RequestPriority.CRITICAL.ordinal()] = config.getPriorityCriticalWeight();
+        weights[RequestPriority.NORMAL.ordinal()] = config.getPriorityNormalWeight();
+        weights[RequestPriority.BULK.ordinal()] = config.getPriorityBulkWeight();
+        return new OrderedWorkStealingExecutorGroup(threads, "servlet-executor", weights,
+                config.getPriorityScheduling() == NettyWebServerConfig.PriorityScheduling.STRICT,
+                RequestPriority.NORMAL.ordinal());
+    }
+
+    /**
+     * @return 业务处理线程池，用于获取队列等运行指标
+     */
+    public EventExecutorGroup getServletExecutor()
+    {
+        return servletExecutor;
+    }
+
+    /**
+     * @return 每个 acceptor 接收的连接数
+     */
+    public Map<String, Long> getAcceptCounts()
+    {
+        return acceptorStats.getAcceptCounts();
     }
 
     /**
@@ -111,6 +212,8 @@ public class NettyWebServer implements WebServer
     public void stop() throws WebServerException
     {
         log.info("Spring Boot Netty Server is now shuting down.");
+        nettyServletContext.getHealthMonitor().stop();
+        closeServerChannels();
         try
         {
             if (null != bossGroup)
@@ -125,6 +228,7 @@ public class NettyWebServer implements WebServer
             {
                 servletExecutor.shutdownGracefully().await();
             }
+            nettyServletContext.getSessionManager().stop();
         } catch (InterruptedException e)
         {
             throw new WebServerException("Container stop interrupted", e);
@@ -132,9 +236,22 @@ public class NettyWebServer implements WebServer
     }
 
 
+    private void closeServerChannels()
+    {
+        for (Channel channel : serverChannels)
+        {
+            channel.close().awaitUninterruptibly();
+        }
+        serverChannels.clear();
+    }
+
+    /**
+     * @return 实际监听的端口，配置的端口为 0 时返回绑定后分配的端口
+     */
     @Override
     public int getPort()
     {
-        return address.getPort();
+        int port = boundPort;
+        return port > 0 ? port : address.getPort();
     }
 }
@@ -0,0 +1,162 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 非阻塞路由登记表
+ * <p>
+ * 路由来源有两个：配置项 server.netty.non-blocking-url-patterns，以及标注了 @NonBlocking 的 Controller。
+ * 命中的请求直接在 IO 线程上执行；同时充当看门狗，路由在一个统计窗口内的慢调用次数达到阈值后，将其退回到业务线程池。
+ */
+public class NonBlockingRouteRegistry
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * 路径缓存的最大条数，超过后清空，防止带参数的路径撑爆缓存
+     */
+    private static final int MAX_CACHED_PATHS = 4096;
+
+    /**
+     * 窗口计数的高 32 位是调用次数，低 32 位是慢调用次数
+     */
+    private static final long ONE_CALL = 1L << 32;
+
+    private final PathMatcher pathMatcher = new AntPathMatcher();
+    private final CopyOnWriteArrayList<Route> routes = new CopyOnWriteArrayList<>();
+
+    /**
+     * 请求路径 → 匹配到的路由，未匹配的路径映射到 NO_ROUTE
+     */
+    private final Map<String, Route> pathCache = new ConcurrentHashMap<>();
+    private static final Route NO_ROUTE = new Route("");
+
+    private final NettyWebServerConfig config;
+
+    public NonBlockingRouteRegistry(NettyWebServerConfig config)
+    {
+        this.config = config;
+        for (String pattern : config.getNonBlockingUrlPatterns())
+        {
+            addPattern(pattern);
+        }
+    }
+
+    /**
+     * 登记一个非阻塞路由
+     *
+     * @param pattern Ant 风格的 URL Pattern，不含 contextPath
+     */
+    public void addPattern(String pattern)
+    {
+        for (Route route : routes)
+        {
+            if (route.pattern.equals(pattern))
+            {
+                return;
+            }
+        }
+        routes.add(new Route(pattern));
+        pathCache.clear();
+        log.info("Non-blocking route registered: {}", pattern);
+    }
+
+    /**
+     * @param path 不含 contextPath 的请求路径
+     * @return 命中且没有被退回的路由，否则返回 null
+     */
+    public Route match(String path)
+    {
+        if (routes.isEmpty() || path == null)
+        {
+            return null;
+        }
+        Route route = pathCache.get(path);
+        if (route == null)
+        {
+            route = NO_ROUTE;
+            for (Route candidate : routes)
+            {
+                if (pathMatcher.match(candidate.pattern, path))
+                {
+                    route = candidate;
+                    break;
+                }
+            }
+            if (pathCache.size() >= MAX_CACHED_PATHS)
+            {
+                pathCache.clear();
+            }
+            pathCache.put(path, route);
+        }
+        if (route == NO_ROUTE || route.demoted)
+        {
+            return null;
+        }
+        return route;
+    }
+
+    /**
+     * 看门狗：记录一次在 IO 线程上执行的耗时
+     * <p>
+     * 按调用次数分窗口统计，每满 non-blocking-slow-call-window 次调用开始新的窗口；
+     * 一个窗口内的慢调用达到阈值才退回，偶发的慢调用随窗口清零
+     */
+    public void recordExecution(Route route, long elapsedNanos)
+    {
+        boolean slow = TimeUnit.NANOSECONDS.toMillis(elapsedNanos) > config.getNonBlockingMaxMillis();
+        long window = route.window.addAndGet(slow ? ONE_CALL + 1 : ONE_CALL);
+        int slowCalls = (int) window;
+        if (slow && slowCalls >= config.getNonBlockingSlowCallThreshold() && !route.demoted)
+        {
+            route.demoted = true;
+            log.warn("Non-blocking route {} exceeded {} ms {} times in {} calls, falling back to the servlet executor",
+                    route.pattern, config.getNonBlockingMaxMillis(), slowCalls, (int) (window >>> 32));
+        }
+        if ((int) (window >>> 32) >= config.getNonBlockingSlowCallWindow())
+        {
+            //CAS 失败说明其他 IO 线程又记录了一次，由它开始新的窗口
+            route.window.compareAndSet(window, 0);
+        }
+    }
+
+    public static class Route
+    {
+        private final String pattern;
+        private final AtomicLong window = new AtomicLong();
+        private volatile boolean demoted = false;
+
+        Route(String pattern)
+        {
+            this.pattern = pattern;
+        }
+
+        public String getPattern()
+        {
+            return pattern;
+        }
+
+        /**
+         * @return 当前窗口内的慢调用次数
+         */
+        public int getSlowCalls()
+        {
+            return (int) window.get();
+        }
+
+        public boolean isDemoted()
+        {
+            return demoted;
+        }
+    }
+}
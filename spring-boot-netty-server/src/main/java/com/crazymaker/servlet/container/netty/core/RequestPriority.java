@@ -0,0 +1,43 @@
+package com.crazymaker.servlet.container.netty.core;
+
+/**
+ * 请求的优先级，过载时按 BULK → NORMAL → CRITICAL 的顺序被拒绝或丢弃
+ * <p>
+ * 序号越小优先级越高，同时也是业务线程池中优先级队列的下标
+ */
+public enum RequestPriority
+{
+    /**
+     * 健康检查、登录、支付等关键请求：占满整个并发上限，不被 CoDel 丢弃
+     */
+    CRITICAL,
+    /**
+     * 普通请求
+     */
+    NORMAL,
+    /**
+     * 批处理、导出等可以延后的请求：并发配额最小，CoDel 过载时排队超过 target 即丢弃
+     */
+    BULK;
+
+    private static final RequestPriority[] VALUES = values();
+
+    /**
+     * @return 请求头中的取值对应的优先级（不区分大小写），不认识的取值返回 null
+     */
+    public static RequestPriority parse(String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        for (RequestPriority priority : VALUES)
+        {
+            if (priority.name().equalsIgnoreCase(value.trim()))
+            {
+                return priority;
+            }
+        }
+        return null;
+    }
+}
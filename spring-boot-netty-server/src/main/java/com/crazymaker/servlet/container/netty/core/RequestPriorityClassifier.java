@@ -0,0 +1,94 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按请求头或 URL Pattern 给请求分配优先级
+ * <p>
+ * 配置了 server.netty.priority-header 且请求带有合法取值时以请求头为准；
+ * 否则依次匹配 priority-critical-url-patterns、priority-bulk-url-patterns，都不命中为 NORMAL。
+ */
+public class RequestPriorityClassifier
+{
+    /**
+     * 路径缓存的最大条数，超过后清空，防止带参数的路径撑爆缓存
+     */
+    private static final int MAX_CACHED_PATHS = 4096;
+
+    private final PathMatcher pathMatcher = new AntPathMatcher();
+
+    /**
+     * 请求路径 → 优先级
+     */
+    private final Map<String, RequestPriority> pathCache = new ConcurrentHashMap<>();
+
+    private final NettyWebServerConfig config;
+
+    public RequestPriorityClassifier(NettyWebServerConfig config)
+    {
+        this.config = config;
+    }
+
+    /**
+     * @param path 不含 contextPath 的请求路径
+     */
+    public RequestPriority classify(NettyServletRequest request, String path)
+    {
+        String header = config.getPriorityHeader();
+        if (header != null && !header.isEmpty())
+        {
+            RequestPriority priority = RequestPriority.parse(request.getHeader(header));
+            if (priority != null)
+            {
+                return priority;
+            }
+        }
+        if (path == null)
+        {
+            return RequestPriority.NORMAL;
+        }
+        RequestPriority priority = pathCache.get(path);
+        if (priority == null)
+        {
+            priority = resolve(path);
+            if (pathCache.size() >= MAX_CACHED_PATHS)
+            {
+                pathCache.clear();
+            }
+            pathCache.put(path, priority);
+        }
+        return priority;
+    }
+
+    private RequestPriority resolve(String path)
+    {
+        if (matches(config.getPriorityCriticalUrlPatterns(), path))
+        {
+            return RequestPriority.CRITICAL;
+        }
+        if (matches(config.getPriorityBulkUrlPatterns(), path))
+        {
+            return RequestPriority.BULK;
+        }
+        return RequestPriority.NORMAL;
+    }
+
+    private boolean matches(List<String> patterns, String path)
+    {
+        for (String pattern : patterns)
+        {
+            if (pathMatcher.match(pattern, path))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,248 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.CircuitBreaker;
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.circuitbreaker.RequestCommand;
+import com.crazymaker.servlet.container.circuitbreaker.RequestMetrics;
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按路由熔断的登记表
+ * <p>
+ * 每个请求按路由分组（配置项 server.netty.circuit-breaker-route-groups）或第一级路径得到一个路由 Key，
+ * 每个 Key 一个 {@link CircuitBreaker}，各自统计滚动窗口内的请求数和错误数。
+ * 熔断器打开时，请求在 IO 线程上直接返回登记的降级响应或者 503，不进入业务线程池，一个下游出问题不会拖垮其他路由。
+ */
+public class RouteCircuitBreakerRegistry
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * 没有命中分组、且第一级路径的熔断器个数已达上限时使用的路由 Key
+     */
+    public static final String DEFAULT_ROUTE = RequestCommand.DEFAULT_ROUTE_KEY;
+
+    /**
+     * 路径缓存的最大条数，超过后清空，防止带参数的路径撑爆缓存
+     */
+    private static final int MAX_CACHED_PATHS = 4096;
+
+    private final PathMatcher pathMatcher = new AntPathMatcher();
+    private final List<Group> groups = new ArrayList<>();
+
+    /**
+     * 请求路径 → 路由 Key
+     */
+    private final Map<String, String> pathCache = new ConcurrentHashMap<>();
+
+    /**
+     * 按第一级路径自动创建的路由 Key
+     */
+    private final Set<String> prefixRoutes = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, Fallback> fallbacks = new ConcurrentHashMap<>();
+
+    private final LongAdder shortCircuitedCount = new LongAdder();
+
+    private final NettyWebServerConfig config;
+
+    public RouteCircuitBreakerRegistry(NettyWebServerConfig config)
+    {
+        this.config = config;
+        for (Map.Entry<String, List<String>> entry : config.getCircuitBreakerRouteGroups().entrySet())
+        {
+            for (String pattern : entry.getValue())
+            {
+                groups.add(new Group(entry.getKey(), pattern));
+            }
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return config.isCircuitBreakerEnabled();
+    }
+
+    /**
+     * @param path 不含 contextPath 的请求路径
+     * @return 命中的分组名；没有命中时返回第一级路径（如 /orders），个数超过上限后返回 {@link #DEFAULT_ROUTE}
+     */
+    public String routeKey(String path)
+    {
+        if (path == null)
+        {
+            return DEFAULT_ROUTE;
+        }
+        String routeKey = pathCache.get(path);
+        if (routeKey == null)
+        {
+            routeKey = resolve(path);
+            if (pathCache.size() >= MAX_CACHED_PATHS)
+            {
+                pathCache.clear();
+            }
+            pathCache.put(path, routeKey);
+        }
+        return routeKey;
+    }
+
+    private String resolve(String path)
+    {
+        for (Group group : groups)
+        {
+            if (pathMatcher.match(group.pattern, path))
+            {
+                return group.name;
+            }
+        }
+        int end = path.indexOf('/', 1);
+        String prefix = end < 0 ? path : path.substring(0, end);
+        if (prefixRoutes.contains(prefix))
+        {
+            return prefix;
+        }
+        if (prefixRoutes.size() >= config.getCircuitBreakerMaxRoutes())
+        {
+            return DEFAULT_ROUTE;
+        }
+        prefixRoutes.add(prefix);
+        return prefix;
+    }
+
+    public CircuitBreaker getCircuitBreaker(String routeKey)
+    {
+        return CircuitBreaker.getInstance(routeKey);
+    }
+
+    /**
+     * 登记路由熔断期间的降级响应，没有登记时返回 503
+     *
+     * @param routeKey 分组名或第一级路径
+     */
+    public void setFallback(String routeKey, Fallback fallback)
+    {
+        if (fallback == null)
+        {
+            fallbacks.remove(routeKey);
+        } else
+        {
+            fallbacks.put(routeKey, fallback);
+        }
+    }
+
+    /**
+     * 熔断器打开时代替 Servlet 写出响应
+     */
+    void writeFallback(NettyServletRequest request, NettyServletResponse response)
+    {
+        shortCircuitedCount.increment();
+        Fallback fallback = fallbacks.get(request.getRouteKey());
+        if (fallback != null)
+        {
+            try
+            {
+                fallback.fallback(request, response);
+                return;
+            } catch (Exception e)
+            {
+                log.error("Fallback of route {} failed", request.getRouteKey(), e);
+                if (response.isCommitted())
+                {
+                    return;
+                }
+                response.reset();
+            }
+        }
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * 请求结束（同步请求在 Servlet 返回后，异步请求在 AsyncContext 完成时，削峰丢弃的请求在写出 503 时）调用，
+     * Servlet 抛出异常或者状态码大于等于 500 记为一次错误
+     */
+    public void requestDone(NettyServletRequest request, int status)
+    {
+        String routeKey = request.getRouteKey();
+        //熔断、限流和削峰拒绝的请求没有执行，不计入统计
+        if (routeKey == null || request.isShortCircuited())
+        {
+            return;
+        }
+        if (request.isRejected())
+        {
+            //试探请求没有执行，不能让熔断器再等一个 sleepWindow
+            if (request.isCircuitTest())
+            {
+                CircuitBreaker.getInstance(routeKey).markTestAborted();
+            }
+            return;
+        }
+        boolean failed = request.isDispatchFailed() || status >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        RequestMetrics.getInstance(routeKey).markExecutionDone(failed);
+        if (!failed)
+        {
+            CircuitBreaker.getInstance(routeKey).markSuccess();
+        }
+    }
+
+    /**
+     * @return 已经出现过的路由 Key（分组名和第一级路径）
+     */
+    public Set<String> getRouteKeys()
+    {
+        Set<String> routeKeys = new TreeSet<>(prefixRoutes);
+        for (Group group : groups)
+        {
+            routeKeys.add(group.name);
+        }
+        return Collections.unmodifiableSet(routeKeys);
+    }
+
+    /**
+     * @return 因熔断直接返回降级响应的请求数
+     */
+    public long getShortCircuitedCount()
+    {
+        return shortCircuitedCount.sum();
+    }
+
+    /**
+     * 熔断期间的降级响应
+     * <p>
+     * 通常在 IO 线程上执行，不能阻塞；请求体不一定已经到齐，不要读取请求体。
+     */
+    @FunctionalInterface
+    public interface Fallback
+    {
+        void fallback(HttpServletRequest request, HttpServletResponse response) throws IOException;
+    }
+
+    private static class Group
+    {
+        private final String name;
+        private final String pattern;
+
+        Group(String name, String pattern)
+        {
+            this.name = name;
+            this.pattern = pattern;
+        }
+    }
+}
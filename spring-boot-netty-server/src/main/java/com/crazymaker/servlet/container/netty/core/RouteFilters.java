@@ -0,0 +1,253 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.netty.filter.FilterChainFactory;
+import com.crazymaker.servlet.container.netty.filter.FilterMap;
+
+import javax.servlet.Filter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 一个路由在一种 DispatcherType 下的过滤器，启动时编译
+ * <p>
+ * 按 Servlet 规范的顺序：先是 URL 匹配的过滤器，再是按 Servlet 名匹配的过滤器。
+ * 与 Tomcat 的 ApplicationFilterChain.addFilter 一样，同一个过滤器只执行一次：
+ * 例如 FilterRegistrationBean 同时配置了 URL Pattern 和 Servlet 名，URL 已经匹配时按名字的匹配不再加入。
+ * 所有 URL 映射都与路径无关（"*"、"/*"）时，过滤器数组在编译时就确定，请求时直接返回；
+ * 否则只对与路径有关的映射逐个匹配，Servlet 名的匹配和 FilterDef 的查找都已在编译时完成；
+ * 匹配结果按位组成掩码，每种掩码对应的过滤器数组只生成一次，之后的请求直接复用。
+ */
+final class RouteFilters
+{
+    static final Filter[] NO_FILTERS = new Filter[0];
+
+    static final RouteFilters EMPTY = new RouteFilters(NO_FILTERS, null, null, NO_FILTERS);
+
+    /**
+     * 与路径有关的映射不超过这个数时缓存每种匹配结果的过滤器数组，最多 2^10 项
+     */
+    private static final int MAX_CACHED_MAPS = 10;
+
+    /**
+     * 与路径有关的映射超过这个数时每次匹配都重新生成数组，掩码放不下
+     */
+    private static final int MAX_MASK_MAPS = Long.SIZE - 1;
+
+    /**
+     * 与路径无关时的完整过滤器数组，否则为 null
+     */
+    private final Filter[] fixed;
+
+    /**
+     * URL 匹配的映射及对应的过滤器，下标一一对应；与路径无关的映射其 FilterMap 为 null
+     */
+    private final FilterMap[] urlMaps;
+    private final Filter[] urlFilters;
+
+    /**
+     * 按 Servlet 名匹配的过滤器
+     */
+    private final Filter[] nameFilters;
+
+    /**
+     * 与路径有关的映射的个数
+     */
+    private final int pathMaps;
+
+    /**
+     * 匹配掩码 → 过滤器数组，映射太多时为 null
+     */
+    private final AtomicReferenceArray<Filter[]> resolved;
+
+    private RouteFilters(Filter[] fixed, FilterMap[] urlMaps, Filter[] urlFilters, Filter[] nameFilters)
+    {
+        this.fixed = fixed;
+        this.urlMaps = urlMaps;
+        this.urlFilters = urlFilters;
+        this.nameFilters = nameFilters;
+        int count = 0;
+        if (null != urlMaps)
+        {
+            for (FilterMap filterMap : urlMaps)
+            {
+                if (null != filterMap)
+                {
+                    count++;
+                }
+            }
+        }
+        this.pathMaps = count;
+        this.resolved = null == fixed && count <= MAX_CACHED_MAPS ? new AtomicReferenceArray<>(1 << count) : null;
+    }
+
+    /**
+     * @param urlMaps     dispatcher 类型已经匹配的 URL 映射，按注册顺序
+     * @param urlFilters  urlMaps 对应的过滤器
+     * @param named       按名字分发时为 true，此时只有 "*" 映射参与 URL 匹配
+     * @param nameFilters 按 Servlet 名匹配的过滤器
+     */
+    static RouteFilters compile(List<FilterMap> urlMaps, List<Filter> urlFilters, boolean named, List<Filter> nameFilters)
+    {
+        List<FilterMap> maps = new ArrayList<>(urlMaps.size());
+        List<Filter> filters = new ArrayList<>(urlFilters.size());
+        boolean pathDependent = false;
+        for (int i = 0; i < urlMaps.size(); i++)
+        {
+            FilterMap filterMap = urlMaps.get(i);
+            if (filterMap.getMatchAllUrlPatterns() || !named && matchesAnyPath(filterMap))
+            {
+                maps.add(null);
+                filters.add(urlFilters.get(i));
+            } else if (!named)
+            {
+                maps.add(filterMap);
+                filters.add(urlFilters.get(i));
+                pathDependent = true;
+            }
+        }
+        Filter[] names = nameFilters.toArray(new Filter[nameFilters.size()]);
+        if (!pathDependent)
+        {
+            List<Filter> all = new ArrayList<>(filters.size() + nameFilters.size());
+            for (Filter filter : filters)
+            {
+                addDistinct(all, filter);
+            }
+            for (Filter filter : nameFilters)
+            {
+                addDistinct(all, filter);
+            }
+            if (all.isEmpty())
+            {
+                return EMPTY;
+            }
+            return new RouteFilters(all.toArray(new Filter[all.size()]), null, null, names);
+        }
+        return new RouteFilters(null, maps.toArray(new FilterMap[maps.size()]),
+                filters.toArray(new Filter[filters.size()]), names);
+    }
+
+    private static boolean matchesAnyPath(FilterMap filterMap)
+    {
+        for (String pattern : filterMap.getURLPatterns())
+        {
+            if ("/*".equals(pattern))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param path 不带 contextPath 的请求路径
+     * @return 按顺序执行的过滤器，不能修改
+     */
+    Filter[] resolve(String path)
+    {
+        if (null != fixed)
+        {
+            return fixed;
+        }
+        if (pathMaps > MAX_MASK_MAPS)
+        {
+            return build(path);
+        }
+        long mask = 0;
+        int bit = 0;
+        for (FilterMap filterMap : urlMaps)
+        {
+            if (null != filterMap)
+            {
+                if (FilterChainFactory.matchFiltersURL(filterMap, path))
+                {
+                    mask |= 1L << bit;
+                }
+                bit++;
+            }
+        }
+        if (null == resolved)
+        {
+            return build(mask);
+        }
+        Filter[] filters = resolved.get((int) mask);
+        if (null == filters)
+        {
+            //并发时可能重复生成，内容相同，谁覆盖都可以
+            filters = build(mask);
+            resolved.set((int) mask, filters);
+        }
+        return filters;
+    }
+
+    /**
+     * 按匹配掩码生成过滤器数组：与路径无关的映射总是包含，与路径有关的映射看掩码中对应的位
+     */
+    private Filter[] build(long mask)
+    {
+        List<Filter> result = new ArrayList<>(urlFilters.length + nameFilters.length);
+        int bit = 0;
+        for (int i = 0; i < urlMaps.length; i++)
+        {
+            boolean included;
+            if (null == urlMaps[i])
+            {
+                included = true;
+            } else
+            {
+                included = (mask & 1L << bit) != 0;
+                bit++;
+            }
+            if (included)
+            {
+                addDistinct(result, urlFilters[i]);
+            }
+        }
+        for (Filter filter : nameFilters)
+        {
+            addDistinct(result, filter);
+        }
+        return result.toArray(new Filter[result.size()]);
+    }
+
+    /**
+     * 映射太多、掩码放不下时逐个匹配
+     */
+    private Filter[] build(String path)
+    {
+        List<Filter> result = new ArrayList<>(urlFilters.length + nameFilters.length);
+        for (int i = 0; i < urlMaps.length; i++)
+        {
+            if (null == urlMaps[i] || FilterChainFactory.matchFiltersURL(urlMaps[i], path))
+            {
+                addDistinct(result, urlFilters[i]);
+            }
+        }
+        for (Filter filter : nameFilters)
+        {
+            addDistinct(result, filter);
+        }
+        return result.toArray(new Filter[result.size()]);
+    }
+
+    /**
+     * 已经在链中的过滤器不再加入，按实例比较（同一个 FilterDef 只有一个实例）
+     */
+    private static void addDistinct(List<Filter> filters, Filter filter)
+    {
+        for (Filter added : filters)
+        {
+            if (added == filter)
+            {
+                return;
+            }
+        }
+        filters.add(filter);
+    }
+
+    boolean isPathDependent()
+    {
+        return null == fixed;
+    }
+}
@@ -0,0 +1,410 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.circuitbreaker.RequestMetrics;
+import com.crazymaker.servlet.container.netty.async.OrderedWorkStealingExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器健康状态机（GREEN / YELLOW / RED）
+ * <p>
+ * 健康检查线程每隔 health-check-interval-ms 采集一次：
+ * <ul>
+ * <li>各路由熔断统计窗口内的总错误率（请求数达到 circuit-breaker-request-volume-threshold 才计算）</li>
+ * <li>业务线程池中等待执行的任务数</li>
+ * <li>IO 线程的延迟：向每个 EventLoop 投递一个探测任务，从投递到执行的时间；上次的探测还没执行时按已等待的时间算</li>
+ * <li>分发尚未返回的请求数（ContainerStatus），进入异步处理的请求在分发返回时就不再计入</li>
+ * </ul>
+ * 任一指标达到 YELLOW / RED 阈值立即切换到对应状态；所有指标连续 health-recover-checks 次低于阈值的 health-recover-ratio 倍，
+ * 才降低一级，避免在阈值附近来回抖动。
+ * <p>
+ * YELLOW 拒绝 BULK 请求，RED 只接收 CRITICAL 请求，被拒绝的请求在 IO 线程上直接返回 503。
+ * 没有配置 CRITICAL 请求（priority-critical-url-patterns、priority-header 都为空）时，RED 和 YELLOW 一样只拒绝 BULK，
+ * 否则 RED 期间所有请求都会被拒绝。
+ * 状态变化时记录日志并通知登记的 {@link HealthStateListener}。
+ */
+public class ServerHealthMonitor
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final HealthState[] STATES = HealthState.values();
+
+    private final NettyWebServerConfig config;
+
+    private final List<HealthStateListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private volatile HealthState state = HealthState.GREEN;
+    private volatile Signals signals = new Signals(0, 0, 0, 0);
+
+    private ScheduledExecutorService scheduler;
+    private EventExecutorGroup servletExecutor;
+    private List<LagProbe> lagProbes;
+
+    /**
+     * 连续满足恢复条件的次数，只在健康检查线程上访问
+     */
+    private int recoverCount;
+
+    public ServerHealthMonitor(NettyWebServerConfig config)
+    {
+        this.config = config;
+    }
+
+    public boolean isEnabled()
+    {
+        return config.isHealthEnabled();
+    }
+
+    /**
+     * 服务器启动时调用，开始定期计算健康状态
+     *
+     * @param eventLoops      IO 线程池
+     * @param servletExecutor 业务线程池
+     */
+    public synchronized void start(EventExecutorGroup eventLoops, EventExecutorGroup servletExecutor)
+    {
+        if (!isEnabled() || scheduler != null)
+        {
+            return;
+        }
+        this.servletExecutor = servletExecutor;
+        List<LagProbe> probes = new ArrayList<>();
+        for (EventExecutor eventLoop : eventLoops)
+        {
+            probes.add(new LagProbe(eventLoop));
+        }
+        this.lagProbes = probes;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("Health-Monitor", true));
+        long interval = config.getHealthCheckIntervalMs();
+        scheduler.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * IO 线程分发请求时调用
+     *
+     * @return 当前状态是否接收该优先级的请求
+     */
+    public boolean admit(RequestPriority priority)
+    {
+        HealthState current = state;
+        if (current == HealthState.RED && !isCriticalConfigured())
+        {
+            current = HealthState.YELLOW;
+        }
+        if (current.admits(priority))
+        {
+            return true;
+        }
+        rejectedCount.increment();
+        return false;
+    }
+
+    /**
+     * @return 是否有请求可能被分为 CRITICAL
+     */
+    private boolean isCriticalConfigured()
+    {
+        List<String> patterns = config.getPriorityCriticalUrlPatterns();
+        String header = config.getPriorityHeader();
+        return (patterns != null && !patterns.isEmpty()) || (header != null && !header.isEmpty());
+    }
+
+    public void addListener(HealthStateListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(HealthStateListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    private void check()
+    {
+        try
+        {
+            check(sample());
+        } catch (Throwable e)
+        {
+            log.error("Health check failed", e);
+        }
+    }
+
+    /**
+     * 根据一次采集的指标切换状态，只在健康检查线程上调用
+     */
+    void check(Signals current)
+    {
+        signals = current;
+        HealthState from = state;
+        int target = level(current, 1.0);
+        if (target > from.ordinal())
+        {
+            //变差立即切换
+            recoverCount = 0;
+            transition(from, STATES[target], current);
+        } else if (from != HealthState.GREEN && level(current, config.getHealthRecoverRatio()) < from.ordinal())
+        {
+            //好转需要连续多次满足恢复条件，每次只降一级
+            if (++recoverCount >= config.getHealthRecoverChecks())
+            {
+                recoverCount = 0;
+                transition(from, STATES[from.ordinal() - 1], current);
+            }
+        } else
+        {
+            recoverCount = 0;
+        }
+    }
+
+    private Signals sample()
+    {
+        long now = System.nanoTime();
+        long lagNanos = 0;
+        for (LagProbe probe : lagProbes)
+        {
+            lagNanos = Math.max(lagNanos, probe.lagAndResubmit(now));
+        }
+        return new Signals(errorPercentage(), executorQueueDepth(), TimeUnit.NANOSECONDS.toMillis(lagNanos),
+                ContainerStatus.INSTANCE.getPendingRequests());
+    }
+
+    /**
+     * @return 所有路由滚动窗口内的总错误率，请求数不足时返回 0
+     */
+    private int errorPercentage()
+    {
+        if (!config.isCircuitBreakerEnabled())
+        {
+            return 0;
+        }
+        long total = 0;
+        long errors = 0;
+        for (RequestMetrics metrics : RequestMetrics.getInstances())
+        {
+            RequestMetrics.HealthCounts counts = metrics.getHealthCounts();
+            total += counts.getTotalRequests();
+            errors += counts.getErrorCount();
+        }
+        if (total == 0 || total < config.getCircuitBreakerRequestVolumeThreshold())
+        {
+            return 0;
+        }
+        return (int) (errors * 100 / total);
+    }
+
+    private long executorQueueDepth()
+    {
+        if (servletExecutor instanceof OrderedWorkStealingExecutorGroup)
+        {
+            return ((OrderedWorkStealingExecutorGroup) servletExecutor).getPendingTasks();
+        }
+        long pending = 0;
+        for (EventExecutor executor : servletExecutor)
+        {
+            if (executor instanceof SingleThreadEventExecutor)
+            {
+                pending += ((SingleThreadEventExecutor) executor).pendingTasks();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @param ratio 阈值的倍数，判断是否恢复时小于 1
+     * @return 各指标达到的最高级别：0 = GREEN，1 = YELLOW，2 = RED
+     */
+    private int level(Signals current, double ratio)
+    {
+        int level = level(current.errorPercentage, config.getHealthErrorPercentYellow(), config.getHealthErrorPercentRed(), ratio);
+        level = Math.max(level, level(current.executorQueueDepth,
+                config.getHealthExecutorQueueYellow(), config.getHealthExecutorQueueRed(), ratio));
+        level = Math.max(level, level(current.eventLoopLagMillis,
+                config.getHealthEventLoopLagYellowMs(), config.getHealthEventLoopLagRedMs(), ratio));
+        level = Math.max(level, level(current.pendingRequests,
+                config.getHealthPendingRequestsYellow(), config.getHealthPendingRequestsRed(), ratio));
+        return level;
+    }
+
+    /**
+     * 阈值小于等于 0 表示不使用该级别
+     */
+    private static int level(long value, long yellow, long red, double ratio)
+    {
+        if (red > 0 && value >= red * ratio)
+        {
+            return HealthState.RED.ordinal();
+        }
+        if (yellow > 0 && value >= yellow * ratio)
+        {
+            return HealthState.YELLOW.ordinal();
+        }
+        return HealthState.GREEN.ordinal();
+    }
+
+    private void transition(HealthState from, HealthState to, Signals current)
+    {
+        state = to;
+        ContainerStatus.INSTANCE.setHealthState(to);
+        if (to.ordinal() > from.ordinal())
+        {
+            log.warn("Server health {} -> {}: {}", from, to, current);
+        } else
+        {
+            log.info("Server health {} -> {}: {}", from, to, current);
+        }
+        HealthStateEvent event = new HealthStateEvent(from, to, current);
+        for (HealthStateListener listener : listeners)
+        {
+            try
+            {
+                listener.stateChanged(event);
+            } catch (Exception e)
+            {
+                log.error("Health state listener {} failed", listener, e);
+            }
+        }
+    }
+
+    /**
+     * @return 当前的健康状态
+     */
+    public HealthState getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return 最近一次采集的指标
+     */
+    public Signals getSignals()
+    {
+        return signals;
+    }
+
+    /**
+     * @return 因健康状态被拒绝的请求数
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * 一次采集的各项指标
+     */
+    public static class Signals
+    {
+        private final int errorPercentage;
+        private final long executorQueueDepth;
+        private final long eventLoopLagMillis;
+        private final int pendingRequests;
+
+        Signals(int errorPercentage, long executorQueueDepth, long eventLoopLagMillis, int pendingRequests)
+        {
+            this.errorPercentage = errorPercentage;
+            this.executorQueueDepth = executorQueueDepth;
+            this.eventLoopLagMillis = eventLoopLagMillis;
+            this.pendingRequests = pendingRequests;
+        }
+
+        public int getErrorPercentage()
+        {
+            return errorPercentage;
+        }
+
+        public long getExecutorQueueDepth()
+        {
+            return executorQueueDepth;
+        }
+
+        public long getEventLoopLagMillis()
+        {
+            return eventLoopLagMillis;
+        }
+
+        public int getPendingRequests()
+        {
+            return pendingRequests;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "errorPercentage=" + errorPercentage + "%, executorQueueDepth=" + executorQueueDepth
+                    + ", eventLoopLag=" + eventLoopLagMillis + "ms, pendingRequests=" + pendingRequests;
+        }
+    }
+
+    /**
+     * 每个 EventLoop 一个探测任务，同一时刻最多投递一个，不产生额外的对象
+     */
+    private static class LagProbe implements Runnable
+    {
+        private final EventExecutor eventLoop;
+        /**
+         * 投递时间，0 表示已经执行
+         */
+        private volatile long submittedAt;
+        private volatile long lastLag;
+
+        LagProbe(EventExecutor eventLoop)
+        {
+            this.eventLoop = eventLoop;
+        }
+
+        @Override
+        public void run()
+        {
+            lastLag = System.nanoTime() - submittedAt;
+            submittedAt = 0;
+        }
+
+        /**
+         * @return 上次探测测到的延迟；上次投递的探测还没执行时返回已经等待的时间
+         */
+        long lagAndResubmit(long now)
+        {
+            long submitted = submittedAt;
+            if (submitted != 0)
+            {
+                return now - submitted;
+            }
+            submittedAt = now;
+            try
+            {
+                eventLoop.execute(this);
+            } catch (RejectedExecutionException e)
+            {
+                //EventLoop 正在关闭
+                submittedAt = 0;
+            }
+            return lastLag;
+        }
+    }
+}
@@ -1,100 +1,20 @@
 package com.crazymaker.servlet.container.netty.filter;
 
-import com.crazymaker.servlet.container.netty.core.NettyServletContext;
-import org.apache.commons.collections.CollectionUtils;
-
 import javax.servlet.DispatcherType;
-import javax.servlet.Servlet;
-import javax.servlet.http.HttpServletRequest;
-import java.util.List;
 
 /**
  * @author: create by daichangya
  * @version: v1.0
  * @description: com.daicy.panda.netty.servlet.impl.filter
  * @date:19-11-12
+ * <p>
+ * FilterMap 的匹配规则。过滤器链在 NettyServletContext 的分发表中按路由预先编译，这里只提供匹配方法
  */
 public class FilterChainFactory
 {
 
 
-    /**
-     * Construct a FilterChain implementation that will wrap the execution of
-     * the specified servlet instance.
-     *
-     * @param request The servlet request we are processing
-     * @param servlet The servlet instance to be wrapped
-     * @return The configured FilterChain instance or null if none is to be
-     * executed.
-     */
-    public static FilterChainImpl createFilterChain(HttpServletRequest request, Servlet servlet)
-    {
-
-        // If there is no servlet to execute, return null
-        if (servlet == null)
-            return null;
-
-        // Create and initialize a filter chain object
-        FilterChainImpl filterChain = new FilterChainImpl();
-
-//        filterChain.setServlet(servlet);
-
-        // Acquire the filter mappings for this Context
-        List<FilterMap> filterMapList = NettyServletContext.get().getFilterMapList();
-
-        // If there are no filter mappings, we are done
-        if (CollectionUtils.isEmpty(filterMapList))
-            return filterChain;
-
-        // Acquire the information we will need to match filter mappings
-        DispatcherType dispatcherType = request.getDispatcherType();
-
-        String requestPath = request.getRequestURI();
-
-
-        // Add the relevant path-mapped filters to this filter chain
-        for (int i = 0; i < filterMapList.size(); i++)
-        {
-            FilterMap filterMap = filterMapList.get(i);
-            if (!matchDispatcher(filterMap, dispatcherType))
-            {
-                continue;
-            }
-
-            if (!matchFiltersURL(filterMap, requestPath))
-            {
-                continue;
-            }
-            FilterDef filterDef = NettyServletContext.get().findFilterDef(filterMap.getFilterName());
-            if (filterDef == null)
-            {
-                // FIXME - log configuration problem
-                continue;
-            }
-            filterChain.addFilter(filterDef.getFilter());
-        }
-     /*   String servletName = servlet.getServletConfig().getServletName();
-
-        // Add filters that match on servlet name second
-        for (int i = 0; i < filterMapList.size(); i++) {
-            FilterMap filterMap = filterMapList.get(i);
-            if (!matchFiltersServlet(filterMap,servletName)) {
-                continue;
-            }
-            FilterDef filterDef=  NettyServletContext.get().findFilterDef(filterMap.getFilterName());
-            if (filterDef == null) {
-                // FIXME - log configuration problem
-                continue;
-            }
-            filterChain.addFilter(filterDef.getFilter());
-        }*/
-
-        // Return the completed filter chain
-        return filterChain;
-    }
-
-
-    // -------------------------------------------------------- Private Methods
+    // -------------------------------------------------------- Matching Methods
 
 
     /**
@@ -105,7 +25,7 @@ public class FilterChainFactory
      * @param filterMap   Filter mapping being checked
      * @param requestPath Context-relative request path of this request
      */
-    private static boolean matchFiltersURL(FilterMap filterMap, String requestPath)
+    public static boolean matchFiltersURL(FilterMap filterMap, String requestPath)
     {
 
         // Check the specific "*" special URL pattern, which also matches
@@ -141,7 +61,7 @@ public class FilterChainFactory
      * @param testPath    URL mapping being checked
      * @param requestPath Context-relative request path of this request
      */
-    private static boolean matchFiltersURL(String testPath, String requestPath)
+    public static boolean matchFiltersURL(String testPath, String requestPath)
     {
 
         if (testPath == null)
@@ -199,7 +119,7 @@ public class FilterChainFactory
      * @param filterMap   Filter mapping being checked
      * @param servletName Servlet name being checked
      */
-    private static boolean matchFiltersServlet(FilterMap filterMap,
+    public static boolean matchFiltersServlet(FilterMap filterMap,
                                                String servletName)
     {
 
@@ -230,7 +150,7 @@ public class FilterChainFactory
      * Convenience method which returns true if  the dispatcher type
      * matches the dispatcher types specified in the FilterMap
      */
-    private static boolean matchDispatcher(FilterMap filterMap, DispatcherType type)
+    public static boolean matchDispatcher(FilterMap filterMap, DispatcherType type)
     {
         switch (type)
         {
@@ -1,39 +1,97 @@
 package com.crazymaker.servlet.container.netty.filter;
 
-import com.google.common.collect.Lists;
+import io.netty.util.concurrent.FastThreadLocal;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
+import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import java.io.IOException;
-import java.util.LinkedList;
-
 
+/**
+ * 基于数组的过滤器链，Servlet 是链的最后一环
+ * <p>
+ * 过滤器数组直接使用分发表中预先编译好的 Filter[]，链本身按执行线程复用：{@link #obtain(Servlet, Filter[])} 取出当前线程的实例并重置，
+ * 分发结束后 {@link #release()} 归还，一次请求不产生任何对象。同一线程上嵌套分发时（链正在使用中）退化为新建实例。
+ * <p>
+ * 过滤器不能在 doFilter() 返回之后继续持有这个链（例如在其他线程上调用），异步处理应当使用 AsyncContext.dispatch()。
+ */
 public class FilterChainImpl implements FilterChain
 {
+    private static final Filter[] NO_FILTERS = new Filter[0];
 
-//    private Servlet servlet;
+    private static final FastThreadLocal<FilterChainImpl> CHAINS = new FastThreadLocal<FilterChainImpl>()
+    {
+        @Override
+        protected FilterChainImpl initialValue()
+        {
+            return new FilterChainImpl();
+        }
+    };
 
-    private LinkedList<Filter> filters = Lists.newLinkedList();
+    private Filter[] filters = NO_FILTERS;
 
-    @Override
-    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException
+    /**
+     * 下一个要执行的过滤器的下标
+     */
+    private int pos;
+
+    private Servlet servlet;
+
+    private boolean inUse;
+
+    public FilterChainImpl()
+    {
+    }
+
+    /**
+     * 取出当前线程的过滤器链并重置，用完必须调用 {@link #release()}
+     *
+     * @param servlet 链的最后一环，为 null 时最后一个过滤器之后直接返回
+     * @param filters 分发表中预先编译好的过滤器，按执行顺序，不会被修改
+     */
+    public static FilterChainImpl obtain(Servlet servlet, Filter[] filters)
     {
-        Filter filter = filters.poll();
-        if (null != filter)
+        FilterChainImpl chain = CHAINS.get();
+        if (chain.inUse)
         {
-            filter.doFilter(request, response, this);
+            chain = new FilterChainImpl();
         }
+        chain.reset(servlet, filters);
+        chain.inUse = true;
+        return chain;
+    }
+
+    public void reset(Servlet servlet, Filter[] filters)
+    {
+        this.servlet = servlet;
+        this.filters = null == filters ? NO_FILTERS : filters;
+        this.pos = 0;
     }
 
-    public void addFilter(Filter filter)
+    /**
+     * 清空引用并归还给当前线程
+     */
+    public void release()
     {
-        filters.add(filter);
+        servlet = null;
+        filters = NO_FILTERS;
+        pos = 0;
+        inUse = false;
     }
 
-//    public void setServlet(Servlet servlet) {
-//        this.servlet = servlet;
-//    }
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException
+    {
+        if (pos < filters.length)
+        {
+            Filter filter = filters[pos++];
+            filter.doFilter(request, response, this);
+        } else if (null != servlet)
+        {
+            servlet.service(request, response);
+        }
+    }
 }
@@ -24,6 +24,7 @@ public class NettyServletRegistration extends AbstractNettyRegistration implemen
     private volatile boolean initialised;
     private Servlet servlet;
     private Collection<String> urlPatternMappings = new LinkedList<>();
+    private MultipartConfigElement multipartConfig;
 
     public NettyServletRegistration(NettyServletContext context, String servletName, String className, Servlet servlet)
     {
@@ -72,7 +73,12 @@ public class NettyServletRegistration extends AbstractNettyRegistration implemen
     @Override
     public void setMultipartConfig(MultipartConfigElement multipartConfig)
     {
+        this.multipartConfig = multipartConfig;
+    }
 
+    public MultipartConfigElement getMultipartConfig()
+    {
+        return multipartConfig;
     }
 
     @Override
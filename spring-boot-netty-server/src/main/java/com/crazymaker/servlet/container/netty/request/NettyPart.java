@@ -0,0 +1,172 @@
+package com.crazymaker.servlet.container.netty.request;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpData;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.servlet.http.Part;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 对 Netty 解码出来的 HttpData（表单字段或上传文件）的封装
+ * <p>
+ * Netty 不保留 Part 的原始头部，Content-Disposition 和 Content-Type 根据解码结果重新生成
+ */
+public class NettyPart implements Part
+{
+    private final HttpData data;
+
+    /**
+     * MultipartConfigElement 中的 location，write() 传入相对路径时以它为基准
+     */
+    private final String location;
+
+    public NettyPart(HttpData data, String location)
+    {
+        this.data = data;
+        this.location = location;
+    }
+
+    public HttpData getHttpData()
+    {
+        return data;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        if (data.isInMemory())
+        {
+            return new ByteBufInputStream(data.getByteBuf().duplicate());
+        }
+        return new FileInputStream(data.getFile());
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return data instanceof FileUpload ? ((FileUpload) data).getContentType() : null;
+    }
+
+    @Override
+    public String getName()
+    {
+        return data.getName();
+    }
+
+    @Override
+    public String getSubmittedFileName()
+    {
+        return data instanceof FileUpload ? ((FileUpload) data).getFilename() : null;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return data.length();
+    }
+
+    /**
+     * 内存中的 Part 直接把缓冲区写入 FileChannel；已经落盘的 Part 使用 FileChannel.transferTo，由内核完成拷贝
+     */
+    @Override
+    public void write(String fileName) throws IOException
+    {
+        File target = new File(fileName);
+        if (!target.isAbsolute())
+        {
+            String base = StringUtils.isEmpty(location) ? System.getProperty("java.io.tmpdir") : location;
+            target = new File(base, fileName);
+        }
+        try (FileChannel out = FileChannel.open(target.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            if (data.isInMemory())
+            {
+                ByteBuf buf = data.getByteBuf();
+                int index = buf.readerIndex();
+                int end = buf.writerIndex();
+                long position = 0;
+                while (index < end)
+                {
+                    int n = buf.getBytes(index, out, position, end - index);
+                    index += n;
+                    position += n;
+                }
+            } else
+            {
+                try (FileChannel in = FileChannel.open(data.getFile().toPath(), StandardOpenOption.READ))
+                {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size)
+                    {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void delete() throws IOException
+    {
+        data.delete();
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+        if (HttpHeaderNames.CONTENT_DISPOSITION.contentEqualsIgnoreCase(name))
+        {
+            StringBuilder disposition = new StringBuilder("form-data; name=\"").append(quote(getName())).append('"');
+            String fileName = getSubmittedFileName();
+            if (null != fileName)
+            {
+                disposition.append("; filename=\"").append(quote(fileName)).append('"');
+            }
+            return disposition.toString();
+        }
+        if (HttpHeaderNames.CONTENT_TYPE.contentEqualsIgnoreCase(name))
+        {
+            return getContentType();
+        }
+        return null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name)
+    {
+        String value = getHeader(name);
+        return null == value ? Collections.<String>emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames()
+    {
+        List<String> names = new ArrayList<>(2);
+        names.add(HttpHeaderNames.CONTENT_DISPOSITION.toString());
+        if (null != getContentType())
+        {
+            names.add(HttpHeaderNames.CONTENT_TYPE.toString());
+        }
+        return names;
+    }
+
+    private static String quote(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -16,10 +16,11 @@
 
 package com.crazymaker.servlet.container.netty.request;
 
-import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.util.ReferenceCountUtil;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import java.io.IOException;
@@ -29,39 +30,100 @@ public class NettyServletInputStream extends ServletInputStream
 
     private FullHttpRequest fullHttpRequest;
 
-    private ByteBufInputStream in;
+    /**
+     * 直接从请求体的 ByteBuf 读取，不再包装 ByteBufInputStream，复用时不产生新对象
+     */
+    private ByteBuf in;
+
+    /**
+     * 所属的请求，非阻塞读取时通过它取得 AsyncContext
+     */
+    private NettyServletRequest request;
+
+    private ReadListener readListener;
+
+    public NettyServletInputStream()
+    {
+    }
 
     public NettyServletInputStream(FullHttpRequest fullHttpRequest)
+    {
+        init(fullHttpRequest);
+    }
+
+    /**
+     * 复用时绑定新的请求
+     */
+    public void init(FullHttpRequest fullHttpRequest)
     {
         this.fullHttpRequest = fullHttpRequest;
+        this.in = fullHttpRequest.content();
+        this.close = false;
+    }
 
-        this.in = new ByteBufInputStream(fullHttpRequest.content());
+    /**
+     * 请求结束时释放请求体并清空引用，以便复用
+     */
+    public void recycle()
+    {
+        close();
+        fullHttpRequest = null;
+        in = null;
+        readListener = null;
+    }
 
+    void setRequest(NettyServletRequest request)
+    {
+        this.request = request;
     }
 
 
     @Override
     public int read() throws IOException
     {
-        return this.in.read();
+        checkNotClosed();
+        return in.isReadable() ? in.readByte() & 0xff : -1;
     }
 
     @Override
     public int read(byte[] buf) throws IOException
     {
-        return this.in.read(buf);
+        return read(buf, 0, buf.length);
     }
 
     @Override
     public int read(byte[] buf, int offset, int len) throws IOException
     {
-        return this.in.read(buf, offset, len);
+        checkNotClosed();
+        int available = in.readableBytes();
+        if (available == 0)
+        {
+            return -1;
+        }
+        len = Math.min(available, len);
+        in.readBytes(buf, offset, len);
+        return len;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        checkNotClosed();
+        return in.readableBytes();
+    }
+
+    private void checkNotClosed() throws IOException
+    {
+        if (close)
+        {
+            throw new IOException("Stream closed");
+        }
     }
 
     @Override
     public boolean isFinished()
     {
-        return false;
+        return close || !in.isReadable();
     }
 
     @Override
@@ -70,10 +132,43 @@ public class NettyServletInputStream extends ServletInputStream
         return true;
     }
 
+    /**
+     * 请求体已经全部在内存中，设置后在业务线程上调用 onDataAvailable()，读完时调用 onAllDataRead()
+     */
     @Override
     public void setReadListener(ReadListener readListener)
     {
-
+        if (null == readListener)
+        {
+            throw new NullPointerException("readListener");
+        }
+        if (null != this.readListener)
+        {
+            throw new IllegalStateException("ReadListener has already been set");
+        }
+        if (null == request || !request.isAsyncStarted())
+        {
+            throw new IllegalStateException("Non-blocking IO requires async mode");
+        }
+        this.readListener = readListener;
+        AsyncContext asyncContext = request.getAsyncContext();
+        asyncContext.start(() ->
+        {
+            try
+            {
+                if (!isFinished())
+                {
+                    readListener.onDataAvailable();
+                }
+                if (isFinished())
+                {
+                    readListener.onAllDataRead();
+                }
+            } catch (Throwable t)
+            {
+                readListener.onError(t);
+            }
+        });
     }
 
     private boolean close = false;
@@ -81,7 +176,7 @@ public class NettyServletInputStream extends ServletInputStream
     @Override
     public void close()
     {
-        if (close)
+        if (close || null == fullHttpRequest)
         {
             return;
         }
@@ -1,31 +1,43 @@
 package com.crazymaker.servlet.container.netty.request;
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
 import com.crazymaker.servlet.container.netty.async.AsyncContextImpl;
+import com.crazymaker.servlet.container.netty.core.ContainerStatus;
 import com.crazymaker.servlet.container.netty.core.NettyRequestDispatcher;
 import com.crazymaker.servlet.container.netty.core.NettyServletContext;
 import com.crazymaker.servlet.container.netty.core.NettyServletHandler;
+import com.crazymaker.servlet.container.netty.core.RequestPriority;
 import com.crazymaker.servlet.container.netty.request.parser.CookieParser;
+import com.crazymaker.servlet.container.netty.request.parser.MultipartParser;
 import com.crazymaker.servlet.container.netty.request.parser.ProtocolParser;
 import com.crazymaker.servlet.container.netty.request.parser.SessionParser;
 import com.crazymaker.servlet.container.netty.request.parser.UriParser;
 import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
 import com.crazymaker.servlet.container.netty.utils.DateUtils;
 import com.google.common.collect.Maps;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.multipart.Attribute;
+import io.netty.handler.codec.http.multipart.HttpData;
 import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
 import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+import io.netty.util.Recycler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -56,45 +68,251 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 请求对象
+ * <p>
+ * 打开 server.netty.recycle-requests 时，请求由 {@link #newInstance} 从 Recycler 对象池中取出，
+ * 连同它持有的响应、解析器、输入输出流、属性和参数表一起复用；响应结束后由容器调用 {@link #recycle()} 清空并归还。
+ * 异步请求在 AsyncContext 的分发结束、响应关闭之后才归还。
+ * 业务代码不能在响应结束之后继续持有请求或响应，server.netty.recycle-check 可以帮助发现这类问题。
+ *
  * @author Leibniz
  */
 public class NettyServletRequest implements HttpServletRequest
 {
+    private static final Recycler<NettyServletRequest> RECYCLER = new Recycler<NettyServletRequest>()
+    {
+        @Override
+        protected NettyServletRequest newObject(Handle<NettyServletRequest> handle)
+        {
+            return new NettyServletRequest(handle);
+        }
+    };
+
     public static final String DISPATCHER_TYPE = NettyRequestDispatcher.class.getName() + ".DISPATCHER_TYPE";
+
+    /**
+     * 与 Tomcat 相同的 sendfile 请求属性：容器支持时 SENDFILE_SUPPORT_ATTR 为 Boolean.TRUE，
+     * 业务代码设置文件名（绝对路径）和可选的起止位置后，响应体改为由容器直接发送该文件
+     */
+    public static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    public static final String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    public static final String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
     private final Logger log = LoggerFactory.getLogger(getClass());
-    private final ChannelHandlerContext ctx;
-    private final NettyServletContext servletContext;
-    private final HttpRequest originalRequest;
-    private final NettyServletInputStream inputStream;
+
+    /**
+     * 对象池的句柄，直接 new 出来的请求为 null，不归还
+     */
+    private final Recycler.Handle<NettyServletRequest> handle;
+
+    private ChannelHandlerContext ctx;
+    private NettyServletContext servletContext;
+    private HttpRequest originalRequest;
+    private ServletInputStream inputStream;
     private final NettyServletResponse servletResponse;
 
     private boolean asyncSupported = true;
 
-    private UriParser uriParser;
-    private ProtocolParser protocolParser;
+    private final UriParser uriParser;
+    private final ProtocolParser protocolParser;
     private final CookieParser cookieParser;
     private final SessionParser sessionParser;
 
+    /**
+     * 聚合模式下复用的请求体输入流
+     */
+    private final NettyServletInputStream fullBody;
+
+    /**
+     * recycle-check 打开时，回收后置为 true，并记下回收时的调用栈
+     */
+    private boolean recycled;
+    private Throwable recycledAt;
+
+    private NettyServletRequest(Recycler.Handle<NettyServletRequest> handle)
+    {
+        this.handle = handle;
+        this.attributes = new ConcurrentHashMap<>();
+        this.uriParser = new UriParser();
+        this.protocolParser = new ProtocolParser();
+        this.cookieParser = new CookieParser();
+        this.sessionParser = new SessionParser();
+        this.multipartParser = new MultipartParser();
+        this.fullBody = new NettyServletInputStream();
+        this.servletResponse = new NettyServletResponse();
+    }
 
     public NettyServletRequest(ChannelHandlerContext ctx,
                                NettyServletHandler handler,
                                FullHttpRequest originalRequest,
                                NettyServletResponse servletResponse)
     {
-        this.ctx = ctx;
-        this.servletContext = handler.getNettyServletContext();
+        this(ctx, handler, originalRequest, new NettyServletInputStream(originalRequest), servletResponse);
+    }
 
+    /**
+     * 流式接收请求体时使用，请求体由 inputStream 陆续提供
+     */
+    public NettyServletRequest(ChannelHandlerContext ctx,
+                               NettyServletHandler handler,
+                               HttpRequest originalRequest,
+                               ServletInputStream inputStream,
+                               NettyServletResponse servletResponse)
+    {
+        this.handle = null;
+        this.attributes = new ConcurrentHashMap<>();
+        this.uriParser = new UriParser();
+        this.protocolParser = new ProtocolParser();
+        this.cookieParser = new CookieParser();
+        this.sessionParser = new SessionParser();
+        this.multipartParser = new MultipartParser();
+        this.fullBody = null;
+        this.servletResponse = servletResponse;
+        init(ctx, handler.getNettyServletContext(), originalRequest, inputStream);
+    }
+
+    /**
+     * 聚合模式：从对象池取出请求（及其响应），请求体在 FullHttpRequest 中
+     */
+    public static NettyServletRequest newInstance(ChannelHandlerContext ctx,
+                                                  NettyServletHandler handler,
+                                                  FullHttpRequest originalRequest)
+    {
+        if (!NettyWebServerConfig.getInstance().isRecycleRequests())
+        {
+            return new NettyServletRequest(ctx, handler, originalRequest,
+                    new NettyServletResponse(ctx, handler.getNettyServletContext()));
+        }
+        NettyServletRequest request = RECYCLER.get();
+        request.fullBody.init(originalRequest);
+        request.init(ctx, handler.getNettyServletContext(), originalRequest, request.fullBody);
+        return request;
+    }
+
+    /**
+     * 流式模式：从对象池取出请求（及其响应），请求体由 inputStream 陆续提供
+     */
+    public static NettyServletRequest newInstance(ChannelHandlerContext ctx,
+                                                  NettyServletHandler handler,
+                                                  HttpRequest originalRequest,
+                                                  ServletInputStream inputStream)
+    {
+        if (!NettyWebServerConfig.getInstance().isRecycleRequests())
+        {
+            return new NettyServletRequest(ctx, handler, originalRequest, inputStream,
+                    new NettyServletResponse(ctx, handler.getNettyServletContext()));
+        }
+        NettyServletRequest request = RECYCLER.get();
+        request.init(ctx, handler.getNettyServletContext(), originalRequest, inputStream);
+        return request;
+    }
 
+    private void init(ChannelHandlerContext ctx, NettyServletContext servletContext,
+                      HttpRequest originalRequest, ServletInputStream inputStream)
+    {
+        this.ctx = ctx;
+        this.servletContext = servletContext;
         this.originalRequest = originalRequest;
-        this.inputStream = new NettyServletInputStream(originalRequest);
+        this.inputStream = inputStream;
+        if (inputStream instanceof NettyServletInputStream)
+        {
+            ((NettyServletInputStream) inputStream).setRequest(this);
+        } else if (inputStream instanceof StreamingServletInputStream)
+        {
+            ((StreamingServletInputStream) inputStream).setRequest(this);
+        }
 
-        this.attributes = new ConcurrentHashMap<>();
-        this.headers = this.originalRequest.headers();
-        this.uriParser = new UriParser(this.originalRequest, this.servletContext.getContextPath());
-        this.protocolParser = new ProtocolParser(this.originalRequest);
-        this.cookieParser = new CookieParser(this.originalRequest);
-        this.sessionParser = new SessionParser(this.originalRequest, cookieParser, servletContext);
-        this.servletResponse = servletResponse;
+        if (NettyWebServerConfig.getInstance().isSendfile())
+        {
+            this.attributes.put(SENDFILE_SUPPORT_ATTR, Boolean.TRUE);
+        }
+        this.headers = originalRequest.headers();
+        this.uriParser.init(originalRequest, servletContext.getContextPath());
+        this.protocolParser.init(originalRequest);
+        this.cookieParser.init(originalRequest);
+        this.sessionParser.init(originalRequest, cookieParser, servletContext);
+        this.multipartParser.init(originalRequest, inputStream, ctx.alloc());
+        if (null != handle)
+        {
+            this.servletResponse.init(ctx, servletContext);
+        }
+        this.servletResponse.setRequestFacade(this);
+    }
+
+    /**
+     * 响应结束后由容器调用：释放请求体和 Part，清空请求、响应的全部状态，归还对象池。
+     * 直接 new 出来的请求只释放资源，不归还。
+     * <p>
+     * recycle-check 打开时对象不再放回对象池，而是标记为已回收，之后再使用会抛出 IllegalStateException
+     */
+    public void recycle()
+    {
+        checkActive();
+        //分发正常返回时已经减掉，这里兜底没有经过分发就回收的请求
+        dispatchReturned();
+        try
+        {
+            inputStream.close();
+        } catch (IOException e)
+        {
+            log.error("Close input stream error", e);
+        }
+        multipartParser.recycle();
+        if (null == handle)
+        {
+            //响应没有关闭（例如连接先断开）时，缓冲区不会随 close() 写出或释放
+            servletResponse.releaseBuffer();
+            return;
+        }
+        fullBody.recycle();
+        uriParser.recycle();
+        protocolParser.recycle();
+        cookieParser.recycle();
+        sessionParser.recycle();
+        attributes.clear();
+        parameters.clear();
+        isParameterParsed = false;
+        multipartConfig = null;
+        characterEncoding = null;
+        asyncSupported = true;
+        asyncStarted = false;
+        asyncContext = null;
+        dispatcherType = DispatcherType.REQUEST;
+        routeKey = null;
+        shortCircuited = false;
+        circuitTest = false;
+        dispatchFailed = false;
+        rejected = false;
+        dispatchStartNanos = 0;
+        arrivalNanos = 0;
+        priority = RequestPriority.NORMAL;
+        executorDispatched = false;
+        ctx = null;
+        servletContext = null;
+        originalRequest = null;
+        inputStream = null;
+        headers = null;
+        servletResponse.recycle();
+
+        if (NettyWebServerConfig.getInstance().isRecycleCheck())
+        {
+            recycled = true;
+            recycledAt = new Throwable("Request recycled here");
+            servletResponse.markRecycled(recycledAt);
+            return;
+        }
+        handle.recycle(this);
+    }
+
+    /**
+     * recycle-check 模式下检查请求是否已经回收
+     */
+    private void checkActive()
+    {
+        if (recycled)
+        {
+            throw new IllegalStateException("Request has been recycled", recycledAt);
+        }
     }
 
     @SuppressWarnings("unused")
@@ -108,6 +326,7 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public Cookie[] getCookies()
     {
+        checkActive();
         return cookieParser.getCookies();
     }
     /*====== Cookie 相关方法 结束 ======*/
@@ -119,6 +338,7 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public long getDateHeader(String name)
     {
+        checkActive();
         String header = this.headers.get(name);
 
         if (header == null)
@@ -141,24 +361,28 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public String getHeader(String name)
     {
+        checkActive();
         return this.headers.get(name);
     }
 
     @Override
     public Enumeration<String> getHeaders(String name)
     {
+        checkActive();
         return Collections.enumeration(this.headers.getAll(name));
     }
 
     @Override
     public Enumeration<String> getHeaderNames()
     {
+        checkActive();
         return Collections.enumeration(this.headers.names());
     }
 
     @Override
     public int getIntHeader(String name)
     {
+        checkActive();
         String headerStringValue = this.headers.get(name);
         if (headerStringValue == null)
         {
@@ -170,6 +394,7 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public String getMethod()
     {
+        checkActive();
         return originalRequest.method().name();
     }
 
@@ -181,20 +406,21 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public String getPathInfo()
     {
+        checkActive();
         return uriParser.getPathInfo();
     }
 
     @Override
     public String getQueryString()
     {
-
+        checkActive();
         return uriParser.getQueryString();
     }
 
     @Override
     public String getRequestURI()
     {
-
+        checkActive();
         return uriParser.getRequestURI();
     }
 
@@ -219,10 +445,18 @@ public class NettyServletRequest implements HttpServletRequest
         return url;
     }
 
+    /**
+     * 分发时根据匹配的 URL Pattern 设置 servletPath 与 pathInfo
+     */
+    public void setServletMapping(String servletPath, String pathInfo)
+    {
+        uriParser.setServletMapping(servletPath, pathInfo);
+    }
+
     @Override
     public String getServletPath()
     {
-
+        checkActive();
         return uriParser.getServletPath();
     }
 
@@ -246,6 +480,7 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public HttpSession getSession(boolean create)
     {
+        checkActive();
         return sessionParser.getSession(create);
 
     }
@@ -253,6 +488,7 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public HttpSession getSession()
     {
+        checkActive();
         return sessionParser.getSession();
     }
 
@@ -294,6 +530,14 @@ public class NettyServletRequest implements HttpServletRequest
     {
         return sessionParser.getRequestedSessionId();
     }
+
+    /**
+     * @return 需要通过 Set-Cookie 写给客户端的 SessionID，本次请求没有新建 Session 或更换 SessionID 时为 null
+     */
+    public String getSessionIdToSet()
+    {
+        return sessionParser.getSessionIdToSet();
+    }
     /*====== Session 相关方法 结束 ======*/
 
 
@@ -321,12 +565,26 @@ public class NettyServletRequest implements HttpServletRequest
         {
             // 是GET请求
             parameters.putAll(decoder.parameters());
+        } else if (HttpMethod.POST == method && multipartParser.isMultipart())
+        {
+            // multipart 请求，表单字段也作为参数
+            parseMultipartParameter();
         } else if (HttpMethod.POST == method)
         {
             // 是POST请求
+            if (!(originalRequest instanceof FullHttpRequest) && !isFormUrlEncoded())
+            {
+                //流式接收的请求体只有表单才解析成参数，其他内容留给业务自己读
+                this.isParameterParsed = true;
+                return;
+            }
             HttpPostRequestDecoder httpPostRequestDecoder = new HttpPostRequestDecoder(originalRequest);
             try
             {
+                if (!(originalRequest instanceof FullHttpRequest))
+                {
+                    offerBody(httpPostRequestDecoder);
+                }
                 List<InterfaceHttpData> parmList = httpPostRequestDecoder.getBodyHttpDatas();
                 for (InterfaceHttpData parm : parmList)
                 {
@@ -352,6 +610,56 @@ public class NettyServletRequest implements HttpServletRequest
         this.isParameterParsed = true;
     }
 
+    private void parseMultipartParameter()
+    {
+        try
+        {
+            for (Part part : getParts())
+            {
+                HttpData data = ((NettyPart) part).getHttpData();
+                if (data instanceof Attribute)
+                {
+                    parseRequestBody((Attribute) data);
+                }
+            }
+        } catch (IllegalStateException e)
+        {
+            //与 Tomcat 一样，getParameter() 不抛出异常；解析失败的原因保留下来，由 getParts() 抛出
+            log.debug("Parse multipart parameters error", e);
+        } catch (Exception e)
+        {
+            log.error("Parse multipart parameters error", e);
+        }
+    }
+
+    private boolean isFormUrlEncoded()
+    {
+        String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        return null != contentType && contentType.toLowerCase().startsWith(
+                HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED.toString());
+    }
+
+    /**
+     * 把流式请求体读出来交给解码器
+     */
+    private void offerBody(HttpPostRequestDecoder decoder)
+    {
+        byte[] buf = new byte[8192];
+        try
+        {
+            int n;
+            while ((n = inputStream.read(buf)) > 0)
+            {
+                //解码器会拷贝数据，buf 可以复用
+                decoder.offer(new DefaultHttpContent(Unpooled.wrappedBuffer(buf, 0, n)));
+            }
+        } catch (IOException e)
+        {
+            log.error("Read request body error", e);
+        }
+        decoder.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
     private void parseRequestBody(Attribute attribute) throws Exception
     {
         if (this.parameters.containsKey(attribute.getName()))
@@ -373,6 +681,7 @@ public class NettyServletRequest implements HttpServletRequest
      */
     private void checkParameterParsed()
     {
+        checkActive();
         if (!isParameterParsed)
         {
             parseParameter();
@@ -501,24 +810,28 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public Object getAttribute(String name)
     {
+        checkActive();
         return attributes.get(name);
     }
 
     @Override
     public Enumeration<String> getAttributeNames()
     {
+        checkActive();
         return Collections.enumeration(attributes.keySet());
     }
 
     @Override
     public void setAttribute(String name, Object o)
     {
+        checkActive();
         attributes.put(name, o);
     }
 
     @Override
     public void removeAttribute(String name)
     {
+        checkActive();
         attributes.remove(name);
     }
 
@@ -528,20 +841,53 @@ public class NettyServletRequest implements HttpServletRequest
 
 
     /*====== multipart/form-data 相关方法 开始 ======*/
+
+    /**
+     * Servlet 没有配置 MultipartConfigElement 时使用的默认配置：不限大小，临时文件放在系统临时目录
+     */
+    private static final MultipartConfigElement DEFAULT_MULTIPART_CONFIG = new MultipartConfigElement("");
+
+    private final MultipartParser multipartParser;
+
+    /**
+     * 目标 Servlet 的 multipart 配置，分发时设置
+     */
+    private MultipartConfigElement multipartConfig;
+
+    public void setMultipartConfig(MultipartConfigElement multipartConfig)
+    {
+        this.multipartConfig = multipartConfig;
+    }
+
     @Override
     public Collection<Part> getParts() throws IOException, IllegalStateException, ServletException
     {
-        //TODO
-        throw new IllegalStateException(
-                "Method 'getParts' not yet implemented!");
+        if (!multipartParser.isMultipart())
+        {
+            throw new ServletException("Content-Type is not multipart/form-data");
+        }
+        return multipartParser.getParts(null == multipartConfig ? DEFAULT_MULTIPART_CONFIG : multipartConfig);
     }
 
     @Override
     public Part getPart(String name) throws IOException, IllegalStateException, ServletException
     {
-        //TODO
-        throw new IllegalStateException(
-                "Method 'getParts' not yet implemented!");
+        for (Part part : getParts())
+        {
+            if (part.getName().equals(name))
+            {
+                return part;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 请求结束时调用，释放内存中的 Part，删除临时文件
+     */
+    public void destroyParts()
+    {
+        multipartParser.destroy();
     }
 
     /*====== multipart/form-data 相关方法 结束 ======*/
@@ -560,18 +906,21 @@ public class NettyServletRequest implements HttpServletRequest
 
     public ServletResponse getServletResponse()
     {
+        checkActive();
         return servletResponse;
     }
 
     @Override
     public ServletInputStream getInputStream() throws IOException
     {
+        checkActive();
         return inputStream;
     }
 
     @Override
     public BufferedReader getReader() throws IOException
     {
+        checkActive();
         return new BufferedReader(new InputStreamReader(inputStream, getCharacterEncoding()));
     }
 
@@ -608,6 +957,7 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public String getContentType()
     {
+        checkActive();
         return headers.get("content-type");
     }
 
@@ -725,12 +1075,155 @@ public class NettyServletRequest implements HttpServletRequest
 
     public HttpRequest getOriginalRequest()
     {
+        checkActive();
         return originalRequest;
     }
 
+    /*====== 熔断、限流、削峰、优先级 相关方法 开始 ======*/
+    /**
+     * 请求所属的熔断器路由，没有开启熔断时为 null
+     */
+    private String routeKey;
+    /**
+     * 熔断器处于打开状态，请求不分发给 Servlet，直接返回降级响应
+     */
+    private boolean shortCircuited;
+    /**
+     * 熔断器打开期间放行的试探请求，它的结果决定熔断器是否关闭
+     */
+    private boolean circuitTest;
+    /**
+     * Servlet 执行时抛出了异常
+     */
+    private boolean dispatchFailed;
+    /**
+     * 被限流拒绝，请求不分发给 Servlet，直接返回 503
+     */
+    private boolean rejected;
+    /**
+     * 占用限流器名额的时间（System.nanoTime()），0 表示没有占用
+     */
+    private long dispatchStartNanos;
+    /**
+     * 请求到达的时间（System.nanoTime()），用来计算在业务线程池中的排队时间；分发返回后清零
+     */
+    private long arrivalNanos;
+    /**
+     * 请求的优先级，由 InlineDispatchHandler 在 IO 线程上分配
+     */
+    private RequestPriority priority = RequestPriority.NORMAL;
+    /**
+     * 请求交给了业务线程池，响应完成时要减少连接上未完成的请求数
+     */
+    private boolean executorDispatched;
+
+    public String getRouteKey()
+    {
+        return routeKey;
+    }
+
+    public void setRouteKey(String routeKey)
+    {
+        this.routeKey = routeKey;
+    }
+
+    public boolean isShortCircuited()
+    {
+        return shortCircuited;
+    }
+
+    public void setShortCircuited(boolean shortCircuited)
+    {
+        this.shortCircuited = shortCircuited;
+    }
+
+    public boolean isCircuitTest()
+    {
+        return circuitTest;
+    }
+
+    public void setCircuitTest(boolean circuitTest)
+    {
+        this.circuitTest = circuitTest;
+    }
+
+    public boolean isDispatchFailed()
+    {
+        return dispatchFailed;
+    }
+
+    public void setDispatchFailed(boolean dispatchFailed)
+    {
+        this.dispatchFailed = dispatchFailed;
+    }
+
+    public boolean isRejected()
+    {
+        return rejected;
+    }
+
+    public void setRejected(boolean rejected)
+    {
+        this.rejected = rejected;
+    }
+
+    public RequestPriority getPriority()
+    {
+        return priority;
+    }
+
+    public void setPriority(RequestPriority priority)
+    {
+        this.priority = priority;
+    }
+
+    public long getArrivalNanos()
+    {
+        return arrivalNanos;
+    }
+
+    public void setArrivalNanos(long arrivalNanos)
+    {
+        this.arrivalNanos = arrivalNanos;
+    }
+
+    /**
+     * 请求的分发已经返回（执行完、被拒绝、被丢弃或者进入了异步处理）时调用：
+     * 到达时计入的未完成请求数在这里减掉，异步处理期间不再计入；清零后重复调用不会多减
+     */
+    public void dispatchReturned()
+    {
+        if (arrivalNanos != 0)
+        {
+            arrivalNanos = 0;
+            ContainerStatus.INSTANCE.pendingRequestsDecrement();
+        }
+    }
+
+    public long getDispatchStartNanos()
+    {
+        return dispatchStartNanos;
+    }
+
+    public void setDispatchStartNanos(long dispatchStartNanos)
+    {
+        this.dispatchStartNanos = dispatchStartNanos;
+    }
+
+    public boolean isExecutorDispatched()
+    {
+        return executorDispatched;
+    }
+
+    public void setExecutorDispatched(boolean executorDispatched)
+    {
+        this.executorDispatched = executorDispatched;
+    }
+    /*====== 熔断、限流、削峰、优先级 相关方法 结束 ======*/
+
 
     /*====== 异步 相关方法 开始 ======*/
-    private boolean asyncStarted = false;
+    private volatile boolean asyncStarted = false;
     private AsyncContextImpl asyncContext;
 
     private DispatcherType dispatcherType = DispatcherType.REQUEST;
@@ -750,18 +1243,29 @@ public class NettyServletRequest implements HttpServletRequest
     @Override
     public AsyncContext startAsync() throws IllegalStateException
     {
-        this.asyncStarted = true;
-        this.setDispatcherType(DispatcherType.ASYNC);
-        this.asyncContext = new AsyncContextImpl(this, null);
-        return this.asyncContext;
+        return startAsync(this, servletResponse);
     }
 
+    /**
+     * 第一次调用时创建 AsyncContext；在异步分发中再次调用时复用同一个 AsyncContext，开始新一轮异步处理。
+     * DispatcherType 在异步分发时才变为 ASYNC
+     */
     @Override
     public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IllegalStateException
     {
+        checkActive();
+        if (!asyncSupported)
+        {
+            throw new IllegalStateException("Async is not supported for this request");
+        }
+        if (asyncContext == null)
+        {
+            asyncContext = new AsyncContextImpl(this, servletRequest, servletResponse);
+        } else
+        {
+            asyncContext.restart(servletRequest, servletResponse);
+        }
         this.asyncStarted = true;
-        this.setDispatcherType(DispatcherType.ASYNC);
-        this.asyncContext = new AsyncContextImpl(servletRequest, servletResponse);
         return this.asyncContext;
     }
 
@@ -0,0 +1,644 @@
+package com.crazymaker.servlet.container.netty.request;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 流式请求体输入流
+ * <p>
+ * 请求头到达时就分发给 Servlet，请求体的 HttpContent 由 IO 线程调用 {@link #offer(HttpContent)} 陆续放入，业务线程边到边读。
+ * 未读取的数据不超过 spillThreshold 时放在内存中，超过后的数据交给专门的落盘线程写入临时文件，
+ * IO 线程不做文件操作，文件的读写也都在锁外进行；
+ * 未读取的数据超过 maxBufferedBytes 时关闭 Channel 的 autoRead，等业务线程读走一半之后再打开。
+ * <p>
+ * 非阻塞读取（Servlet 3.1）：设置 ReadListener 之后，isReady() 返回 false 的读取者不再等待，
+ * 下一块数据（或请求体结束、出错）到达时由 IO 线程把 onDataAvailable() / onAllDataRead() / onError() 交给业务线程执行。
+ */
+public class StreamingServletInputStream extends ServletInputStream
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Channel channel;
+
+    /**
+     * 请求体的最大字节数，小于 0 表示不限制
+     */
+    private final long maxContentLength;
+
+    private final int spillThreshold;
+
+    private final long maxBufferedBytes;
+
+    /**
+     * 内存中尚未读取的数据块，总是排在临时文件中的数据之前
+     */
+    private final ArrayDeque<ByteBuf> memoryChunks = new ArrayDeque<>();
+    private long memoryBytes;
+
+    /**
+     * 临时文件由落盘线程创建，业务线程在锁外读取
+     */
+    private File spillFile;
+    private FileChannel spillChannel;
+    private long spillWritten;
+    private long spillRead;
+
+    /**
+     * 等待落盘的数据块，总是排在临时文件中的数据之后
+     */
+    private final ArrayDeque<ByteBuf> spillQueue = new ArrayDeque<>();
+    /**
+     * 已经交给落盘线程、还没有写入临时文件的字节数
+     */
+    private long spillPendingBytes;
+    /**
+     * 落盘任务是否已经提交，同一时刻最多一个，保证写入顺序
+     */
+    private boolean spilling;
+
+    /**
+     * read() 读取单个字节时复用
+     */
+    private final byte[] singleByte = new byte[1];
+
+    private long receivedBytes;
+
+    /**
+     * LastHttpContent 是否已经到达
+     */
+    private boolean complete;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    /**
+     * 是否因为背压关闭了 autoRead
+     */
+    private boolean suspended;
+
+    /**
+     * 所属的请求，非阻塞读取时通过它取得 AsyncContext
+     */
+    private NettyServletRequest request;
+
+    private ReadListener readListener;
+
+    /**
+     * isReady() 返回过 false，等待数据到达时通知 ReadListener
+     */
+    private boolean waitingForData;
+
+    private boolean allDataReadNotified;
+
+    private boolean errorNotified;
+
+    public StreamingServletInputStream(Channel channel, long maxContentLength, int spillThreshold, long maxBufferedBytes)
+    {
+        this.channel = channel;
+        this.maxContentLength = maxContentLength;
+        this.spillThreshold = spillThreshold;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * IO 线程放入一块请求体，调用之后 content 即被释放
+     */
+    public synchronized void offer(HttpContent content)
+    {
+        try
+        {
+            if (closed || complete || failure != null)
+            {
+                return;
+            }
+            ByteBuf buf = content.content();
+            int length = buf.readableBytes();
+            if (length > 0)
+            {
+                receivedBytes += length;
+                if (maxContentLength >= 0 && receivedBytes > maxContentLength)
+                {
+                    fail(new IOException("Request body exceeds the limit of " + maxContentLength + " bytes"));
+                    return;
+                }
+                //临时文件中还有没读完的数据时，新数据只能追加到文件后面，否则顺序会乱
+                if (spillPendingBytes == 0 && spillRead == spillWritten && memoryBytes + length <= spillThreshold)
+                {
+                    memoryChunks.add(buf.retain());
+                    memoryBytes += length;
+                } else
+                {
+                    spill(buf);
+                }
+            }
+            if (content instanceof LastHttpContent)
+            {
+                complete = true;
+            } else if (!suspended && unreadBytes() > maxBufferedBytes)
+            {
+                suspended = true;
+                channel.config().setAutoRead(false);
+            }
+            notifyAll();
+            notifyIfReady();
+        } finally
+        {
+            content.release();
+        }
+    }
+
+    /**
+     * 连接在请求体接收完之前断开
+     */
+    public synchronized void abort()
+    {
+        if (!complete && failure == null)
+        {
+            fail(new IOException("Connection closed before the request body was complete"));
+        }
+    }
+
+    /**
+     * @return 请求体是否已经全部到达（不一定已经读完）
+     */
+    public synchronized boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * IO 线程：数据块排进落盘队列，由落盘线程写入临时文件
+     */
+    private void spill(ByteBuf buf)
+    {
+        spillQueue.add(buf.retain());
+        spillPendingBytes += buf.readableBytes();
+        if (!spilling)
+        {
+            spilling = true;
+            SpillExecutorHolder.EXECUTOR.execute(this::drainSpillQueue);
+        }
+    }
+
+    /**
+     * 落盘线程：按顺序把队列中的数据块追加到临时文件，文件操作都在锁外进行
+     */
+    private void drainSpillQueue()
+    {
+        while (true)
+        {
+            ByteBuf chunk;
+            FileChannel out;
+            long position;
+            synchronized (this)
+            {
+                chunk = spillQueue.poll();
+                if (null == chunk)
+                {
+                    spilling = false;
+                    return;
+                }
+                out = spillChannel;
+                position = spillWritten;
+            }
+            int length = chunk.readableBytes();
+            IOException error = null;
+            try
+            {
+                if (null == out)
+                {
+                    out = openSpillFile();
+                }
+                if (null != out)
+                {
+                    int index = chunk.readerIndex();
+                    int end = chunk.writerIndex();
+                    while (index < end)
+                    {
+                        int n = chunk.getBytes(index, out, position, end - index);
+                        index += n;
+                        position += n;
+                    }
+                }
+            } catch (IOException e)
+            {
+                error = e;
+            } finally
+            {
+                chunk.release();
+            }
+            synchronized (this)
+            {
+                spillPendingBytes -= length;
+                if (closed)
+                {
+                    //close() 已经释放了队列，关闭了文件
+                    spilling = false;
+                    return;
+                }
+                if (null != error)
+                {
+                    fail(error);
+                } else
+                {
+                    spillWritten += length;
+                }
+                notifyAll();
+                notifyIfReady();
+            }
+        }
+    }
+
+    /**
+     * 落盘线程：创建临时文件。创建期间输入流被关闭时删除文件，返回 null
+     */
+    private FileChannel openSpillFile() throws IOException
+    {
+        File file = File.createTempFile("netty-request-body-", ".tmp");
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synchronized (this)
+        {
+            if (!closed)
+            {
+                spillFile = file;
+                spillChannel = channel;
+                return channel;
+            }
+        }
+        deleteSpillFile(file, channel);
+        return null;
+    }
+
+    private void fail(IOException cause)
+    {
+        failure = cause;
+        releaseMemory();
+        //出错之后剩余的请求体只需要丢弃，恢复读取
+        resume();
+        notifyAll();
+        if (null != readListener)
+        {
+            executeListener();
+        }
+    }
+
+    void setRequest(NettyServletRequest request)
+    {
+        this.request = request;
+    }
+
+    /**
+     * @return 还没有读取的字节数，包括等待落盘的数据，用于背压
+     */
+    private long unreadBytes()
+    {
+        return readableBytes() + spillPendingBytes;
+    }
+
+    /**
+     * @return 不需要等待就能读取的字节数
+     */
+    private long readableBytes()
+    {
+        return memoryBytes + spillWritten - spillRead;
+    }
+
+    /**
+     * @return read() 是否不需要等待：有可读的数据、请求体已经读完或者出错
+     */
+    private boolean ready()
+    {
+        return readableBytes() > 0 || null != failure || (complete && spillPendingBytes == 0);
+    }
+
+    /**
+     * 调用方持有 this 锁
+     */
+    private void notifyIfReady()
+    {
+        if (waitingForData && ready())
+        {
+            waitingForData = false;
+            executeListener();
+        }
+    }
+
+    private void resume()
+    {
+        if (suspended)
+        {
+            suspended = false;
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    private void resumeIfDrained()
+    {
+        if (suspended && unreadBytes() <= maxBufferedBytes / 2)
+        {
+            resume();
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int n = read(singleByte, 0, 1);
+        return n < 0 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException
+    {
+        return read(buf, 0, buf.length);
+    }
+
+    /**
+     * 与其他 ServletInputStream 一样只支持一个线程读取；读临时文件时不持有锁，IO 线程放入数据不会被磁盘读取卡住
+     */
+    @Override
+    public int read(byte[] buf, int offset, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        FileChannel in;
+        long position;
+        int n;
+        synchronized (this)
+        {
+            while (true)
+            {
+                if (closed)
+                {
+                    throw new IOException("Stream closed");
+                }
+                if (null != failure)
+                {
+                    throw failure;
+                }
+                ByteBuf chunk = memoryChunks.peek();
+                if (null != chunk)
+                {
+                    n = Math.min(len, chunk.readableBytes());
+                    chunk.readBytes(buf, offset, n);
+                    memoryBytes -= n;
+                    if (!chunk.isReadable())
+                    {
+                        memoryChunks.poll();
+                        chunk.release();
+                    }
+                    resumeIfDrained();
+                    return n;
+                }
+                if (spillRead < spillWritten)
+                {
+                    n = (int) Math.min(len, spillWritten - spillRead);
+                    in = spillChannel;
+                    position = spillRead;
+                    break;
+                }
+                if (complete && spillPendingBytes == 0)
+                {
+                    return -1;
+                }
+                if (null != readListener)
+                {
+                    //非阻塞模式下不能等待
+                    throw new IllegalStateException("No data available, isReady() should be called before read()");
+                }
+                try
+                {
+                    wait();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the request body");
+                }
+            }
+        }
+        n = in.read(ByteBuffer.wrap(buf, offset, n), position);
+        synchronized (this)
+        {
+            spillRead += n;
+            resumeIfDrained();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, readableBytes());
+    }
+
+    @Override
+    public synchronized boolean isFinished()
+    {
+        return complete && unreadBytes() == 0;
+    }
+
+    /**
+     * 设置了 ReadListener 并返回 false 时，数据到达后会调用 onDataAvailable()
+     */
+    @Override
+    public synchronized boolean isReady()
+    {
+        boolean ready = ready();
+        if (!ready && null != readListener)
+        {
+            waitingForData = true;
+        }
+        return ready;
+    }
+
+    /**
+     * 只能在异步模式下设置，设置后在业务线程上通知一次监听器
+     */
+    @Override
+    public void setReadListener(ReadListener readListener)
+    {
+        if (null == readListener)
+        {
+            throw new NullPointerException("readListener");
+        }
+        if (null == request || !request.isAsyncStarted())
+        {
+            throw new IllegalStateException("Non-blocking IO requires async mode");
+        }
+        synchronized (this)
+        {
+            if (null != this.readListener)
+            {
+                throw new IllegalStateException("ReadListener has already been set");
+            }
+            this.readListener = readListener;
+            executeListener();
+        }
+    }
+
+    /**
+     * 把监听器回调交给这个请求的业务线程，调用方持有 this 锁
+     */
+    private void executeListener()
+    {
+        AsyncContext asyncContext = null == request ? null : request.getAsyncContext();
+        if (null != asyncContext)
+        {
+            asyncContext.start(this::notifyListener);
+        }
+    }
+
+    /**
+     * 业务线程：有数据时调用 onDataAvailable()，请求体读完时调用一次 onAllDataRead()，出错时调用一次 onError()
+     */
+    private void notifyListener()
+    {
+        ReadListener listener;
+        IOException error;
+        boolean available;
+        synchronized (this)
+        {
+            listener = readListener;
+            if (null == listener || closed || errorNotified)
+            {
+                return;
+            }
+            error = failure;
+            errorNotified = null != error;
+            available = readableBytes() > 0;
+            if (null == error && !available && !ready())
+            {
+                //数据还没有到达，到达时再通知
+                waitingForData = true;
+                return;
+            }
+        }
+        try
+        {
+            if (null != error)
+            {
+                listener.onError(error);
+                return;
+            }
+            if (available)
+            {
+                listener.onDataAvailable();
+            }
+            boolean allDataRead;
+            synchronized (this)
+            {
+                allDataRead = complete && unreadBytes() == 0 && null == failure && !closed && !allDataReadNotified;
+                allDataReadNotified |= allDataRead;
+            }
+            if (allDataRead)
+            {
+                listener.onAllDataRead();
+            }
+        } catch (Throwable t)
+        {
+            listener.onError(t);
+        }
+    }
+
+    /**
+     * 释放内存中的数据，删除临时文件。没有读完的请求体由 IO 线程继续接收并丢弃
+     */
+    @Override
+    public void close()
+    {
+        File file;
+        FileChannel channel;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            releaseMemory();
+            file = spillFile;
+            channel = spillChannel;
+            spillFile = null;
+            spillChannel = null;
+            resume();
+            notifyAll();
+        }
+        if (null != channel)
+        {
+            deleteSpillFile(file, channel);
+        }
+    }
+
+    private void deleteSpillFile(File file, FileChannel channel)
+    {
+        try
+        {
+            channel.close();
+        } catch (IOException e)
+        {
+            log.warn("Failed to close request body temp file", e);
+        }
+        if (!file.delete())
+        {
+            log.warn("Failed to delete request body temp file {}", file);
+        }
+    }
+
+    /**
+     * 释放内存中和等待落盘的数据；正在落盘的数据块由落盘线程释放
+     */
+    private void releaseMemory()
+    {
+        ByteBuf chunk;
+        while ((chunk = memoryChunks.poll()) != null)
+        {
+            chunk.release();
+        }
+        memoryBytes = 0;
+        while ((chunk = spillQueue.poll()) != null)
+        {
+            spillPendingBytes -= chunk.readableBytes();
+            chunk.release();
+        }
+    }
+
+    /**
+     * 所有请求共用的落盘线程池，第一次落盘时创建，空闲的线程自动退出
+     */
+    private static final class SpillExecutorHolder
+    {
+        static final ExecutorService EXECUTOR;
+
+        static
+        {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new DefaultThreadFactory("Request-Body-Spill", true));
+            executor.allowCoreThreadTimeOut(true);
+            EXECUTOR = executor;
+        }
+    }
+}
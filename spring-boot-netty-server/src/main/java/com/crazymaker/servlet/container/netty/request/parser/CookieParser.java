@@ -23,23 +23,46 @@ public class CookieParser
     /**
      * 请求实例
      */
-    private final HttpRequest request;
+    private HttpRequest request;
     /**
      * 请求头
      */
-    private final HttpHeaders headers;
+    private HttpHeaders headers;
 
     /**
      * cookies数组
      */
     private javax.servlet.http.Cookie[] cookies;
 
+    public CookieParser()
+    {
+    }
+
     public CookieParser(HttpRequest request)
+    {
+        init(request);
+    }
+
+    /**
+     * 复用时绑定新的请求
+     */
+    public void init(HttpRequest request)
     {
         this.request = request;
         this.headers = request.headers();
     }
 
+    /**
+     * 请求结束时清空状态，以便复用
+     */
+    public void recycle()
+    {
+        request = null;
+        headers = null;
+        cookies = null;
+        isParsed = false;
+    }
+
 
     /**
      * 解析request中的Cookie到本类的cookies数组中
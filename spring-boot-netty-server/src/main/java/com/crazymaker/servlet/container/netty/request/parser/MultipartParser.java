@@ -0,0 +1,271 @@
+package com.crazymaker.servlet.container.netty.request.parser;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.request.NettyPart;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.HttpData;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.Part;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * multipart/form-data 请求体的解析
+ * <p>
+ * 请求体一边读一边交给 HttpPostRequestDecoder 增量解码：单个 Part 不超过 fileSizeThreshold 时留在内存中，
+ * 超过后由解码器写入临时文件。maxFileSize、maxRequestSize 在数据到达时检查，超过立即失败，不会先缓存整个请求体。
+ * 超过限制时 getParts() 抛出 {@link SizeLimitExceededException}（IllegalStateException），之后每次调用都抛出同一个异常。
+ */
+public class MultipartParser
+{
+    /**
+     * Netty 的 HttpData 超过 maxLimit 时抛出的 IOException 的消息
+     */
+    private static final String NETTY_SIZE_EXCEEDED = "Size exceed allowed maximum capacity";
+
+    /**
+     * 每次从输入流读取的字节数
+     */
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    /**
+     * 懒加载：是否已经解析过
+     */
+    private boolean isParsed = false;
+
+    private HttpRequest request;
+
+    /**
+     * 流式模式下的请求体，聚合模式下请求体就在 FullHttpRequest 中
+     */
+    private InputStream body;
+
+    private ByteBufAllocator alloc;
+
+    private HttpPostRequestDecoder decoder;
+
+    private List<Part> parts;
+
+    /**
+     * 解析失败的原因，再次调用时直接抛出
+     */
+    private IllegalStateException failure;
+
+    public MultipartParser()
+    {
+    }
+
+    public MultipartParser(HttpRequest request, InputStream body, ByteBufAllocator alloc)
+    {
+        init(request, body, alloc);
+    }
+
+    /**
+     * 复用时绑定新的请求
+     */
+    public void init(HttpRequest request, InputStream body, ByteBufAllocator alloc)
+    {
+        this.request = request;
+        this.body = body;
+        this.alloc = alloc;
+    }
+
+    /**
+     * 请求结束时释放 Part 并清空状态，以便复用
+     */
+    public void recycle()
+    {
+        destroy();
+        request = null;
+        body = null;
+        alloc = null;
+        parts = null;
+        failure = null;
+        isParsed = false;
+    }
+
+    public boolean isMultipart()
+    {
+        return HttpPostRequestDecoder.isMultipart(request);
+    }
+
+    /**
+     * @param config 目标 Servlet 的 multipart 配置
+     */
+    public List<Part> getParts(MultipartConfigElement config) throws IOException
+    {
+        checkAndParse(config);
+        if (null != failure)
+        {
+            throw failure;
+        }
+        return parts;
+    }
+
+    private void checkAndParse(MultipartConfigElement config) throws IOException
+    {
+        if (isParsed)
+        {
+            return;
+        }
+        isParsed = true;
+
+        long threshold = config.getFileSizeThreshold() > 0
+                ? config.getFileSizeThreshold()
+                : NettyWebServerConfig.getInstance().getMultipartFileSizeThreshold();
+        DefaultHttpDataFactory factory = new DefaultHttpDataFactory(threshold);
+        //单个 Part 的上限，解码器每追加一块数据都会检查
+        factory.setMaxLimit(config.getMaxFileSize());
+        try
+        {
+            if (request instanceof FullHttpRequest)
+            {
+                checkRequestSize(((FullHttpRequest) request).content().readableBytes(), config);
+                decoder = new HttpPostRequestDecoder(factory, request);
+            } else
+            {
+                decoder = new HttpPostRequestDecoder(factory, request);
+                offerBody(config);
+            }
+            List<Part> result = new ArrayList<>();
+            for (InterfaceHttpData data : decoder.getBodyHttpDatas())
+            {
+                if (data instanceof HttpData)
+                {
+                    result.add(new NettyPart((HttpData) data, config.getLocation()));
+                }
+            }
+            parts = Collections.unmodifiableList(result);
+        } catch (HttpPostRequestDecoder.ErrorDataDecoderException e)
+        {
+            destroy();
+            failure = isSizeExceeded(e)
+                    ? new SizeLimitExceededException("A part of the multi-part request exceeds the configured maximum of "
+                    + config.getMaxFileSize() + " bytes", e)
+                    : new IllegalStateException("Failed to parse multi-part request: " + e.getMessage(), e);
+            throw failure;
+        } catch (IllegalStateException e)
+        {
+            destroy();
+            failure = e;
+            throw e;
+        } catch (IOException e)
+        {
+            destroy();
+            failure = new IllegalStateException(e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * 从流式请求体中分块读取，交给解码器，块使用池化的缓冲区
+     */
+    private void offerBody(MultipartConfigElement config) throws IOException
+    {
+        long total = 0;
+        while (true)
+        {
+            ByteBuf chunk = alloc.buffer(READ_CHUNK_SIZE);
+            try
+            {
+                int n = chunk.writeBytes(body, READ_CHUNK_SIZE);
+                if (n < 0)
+                {
+                    break;
+                }
+                total += n;
+                checkRequestSize(total, config);
+                //解码器会拷贝数据，块用完即可释放
+                decoder.offer(new DefaultHttpContent(chunk));
+            } finally
+            {
+                chunk.release();
+            }
+        }
+        decoder.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    private static void checkRequestSize(long size, MultipartConfigElement config)
+    {
+        long max = config.getMaxRequestSize();
+        if (max >= 0 && size > max)
+        {
+            throw new SizeLimitExceededException("The multi-part request exceeds the configured maximum of " + max + " bytes",
+                    null);
+        }
+    }
+
+    private static boolean isSizeExceeded(Throwable e)
+    {
+        for (Throwable cause = e; null != cause; cause = cause.getCause())
+        {
+            if (cause instanceof IOException && NETTY_SIZE_EXCEEDED.equals(cause.getMessage()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 异常或者它的原因链中是否有超过大小限制的异常
+     */
+    public static boolean isSizeLimitExceeded(Throwable e)
+    {
+        for (Throwable cause = e; null != cause; cause = cause.getCause())
+        {
+            if (cause instanceof SizeLimitExceededException)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 释放内存中的 Part，删除临时文件
+     */
+    public void destroy()
+    {
+        if (null != decoder)
+        {
+            //Netty 4.1.31 的 destroy() 先通过工厂释放全部 HttpData，再释放 next() 还没有取走的部分，
+            //getBodyHttpDatas() 取出的数据会被释放两次；先用 next() 取走，只由工厂释放一次
+            try
+            {
+                while (decoder.hasNext())
+                {
+                    decoder.next();
+                }
+            } catch (HttpPostRequestDecoder.EndOfDataDecoderException e)
+            {
+                //已经全部取走
+            }
+            decoder.destroy();
+            decoder = null;
+        }
+    }
+
+    /**
+     * 请求体或单个 Part 超过 multipart 配置的大小限制，没有被业务处理时容器返回 413
+     */
+    public static class SizeLimitExceededException extends IllegalStateException
+    {
+        public SizeLimitExceededException(String message, Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+}
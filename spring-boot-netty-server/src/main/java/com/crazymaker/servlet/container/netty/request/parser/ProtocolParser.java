@@ -21,11 +21,11 @@ public class ProtocolParser
     /**
      * 请求实例
      */
-    private final HttpRequest request;
+    private HttpRequest request;
     /**
      * 请求头
      */
-    private final HttpHeaders headers;
+    private HttpHeaders headers;
     /**
      * 请求的服务地址
      */
@@ -34,12 +34,36 @@ public class ProtocolParser
 
     private String hostName;
 
+    public ProtocolParser()
+    {
+    }
+
     public ProtocolParser(HttpRequest request)
+    {
+        init(request);
+    }
+
+    /**
+     * 复用时绑定新的请求
+     */
+    public void init(HttpRequest request)
     {
         this.request = request;
         headers = request.headers();
     }
 
+    /**
+     * 请求结束时清空状态，以便复用
+     */
+    public void recycle()
+    {
+        request = null;
+        headers = null;
+        socketAddress = null;
+        hostName = null;
+        isParsed = false;
+    }
+
 
     /**
      * 解析主机和端口
@@ -17,6 +17,7 @@
 package com.crazymaker.servlet.container.netty.request.parser;
 
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
 import com.crazymaker.servlet.container.netty.core.NettyServletContext;
 import com.crazymaker.servlet.container.netty.session.NettyHttpSession;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -32,10 +33,18 @@ import javax.servlet.http.HttpSession;
 public class SessionParser
 {
 
-    private final CookieParser cookieParser;
+    private CookieParser cookieParser;
     private NettyHttpSession session;
     private boolean isCookieSession;
     private boolean isURLSession;
+    /**
+     * 客户端带来的 SessionID，不一定有效
+     */
+    private String requestedSessionId;
+    /**
+     * 本次请求新建了 Session 或者更换了 SessionID，响应需要写出 Set-Cookie
+     */
+    private boolean sessionCookieRequired;
     /**
      * 懒加载：是否已经解析过
      */
@@ -44,22 +53,34 @@ public class SessionParser
     /**
      * 请求实例
      */
-    private final HttpRequest request;
+    private HttpRequest request;
 
     /**
      * 请求头
      */
-    private final HttpHeaders headers;
+    private HttpHeaders headers;
     /**
      * 请求上下文
      */
-    private final NettyServletContext servletContext;
+    private NettyServletContext servletContext;
     /**
      * cookies数组
      */
     private javax.servlet.http.Cookie[] cookies;
 
+    public SessionParser()
+    {
+    }
+
     public SessionParser(HttpRequest request, CookieParser cookieParser, NettyServletContext servletContext)
+    {
+        init(request, cookieParser, servletContext);
+    }
+
+    /**
+     * 复用时绑定新的请求
+     */
+    public void init(HttpRequest request, CookieParser cookieParser, NettyServletContext servletContext)
     {
         this.request = request;
         headers = request.headers();
@@ -68,10 +89,27 @@ public class SessionParser
     }
 
     /**
-     * 先后看请求路径和Cookie中是否有sessionid
+     * 请求结束时清空状态，以便复用。Session 本身由 SessionManager 管理，这里只去掉引用
+     */
+    public void recycle()
+    {
+        request = null;
+        headers = null;
+        cookieParser = null;
+        servletContext = null;
+        session = null;
+        cookies = null;
+        requestedSessionId = null;
+        sessionCookieRequired = false;
+        isCookieSession = false;
+        isURLSession = false;
+        isParsed = false;
+    }
+
+    /**
+     * 先后看Cookie和请求路径中是否有sessionid
      * 有，则从SessionManager获取session对象放入session属性
-     * 如果session对象过期，则创建一个新的并放入
-     * 无，则创建一个新Session并放入
+     * 没有或者已经过期，session属性为null，直到业务调用 getSession(true) 时才新建
      */
     private void checkAndParse()
     {
@@ -79,6 +117,11 @@ public class SessionParser
         {
             return;
         }
+        isParsed = true;
+        if (NettyWebServerConfig.getInstance().isSessionStateless())
+        {
+            return;
+        }
 
         String sessionId;
         NettyHttpSession curSession;
@@ -87,33 +130,34 @@ public class SessionParser
         sessionId = getSessionIdFromCookie();
         if (sessionId != null)
         {
+            this.requestedSessionId = sessionId;
+            this.isCookieSession = true;
             curSession = servletContext.getSessionManager().getSession(sessionId);
             if (null != curSession)
             {
-                this.isCookieSession = true;
                 recoverySession(curSession);
                 return;
             }
         }
 
-        if (!this.isCookieSession)
+        // 从请求路径解析SessionID
+        sessionId = getSessionIdFromUrl();
+        if (sessionId != null)
         {
-            // 从请求路径解析SessionID
-            sessionId = getSessionIdFromUrl();
+            if (this.requestedSessionId == null)
+            {
+                this.requestedSessionId = sessionId;
+                this.isURLSession = true;
+            }
             curSession = servletContext.getSessionManager().getSession(sessionId);
             if (null != curSession)
             {
+                this.requestedSessionId = sessionId;
+                this.isCookieSession = false;
                 this.isURLSession = true;
                 recoverySession(curSession);
-                return;
             }
         }
-        //Cookie和请求参数中都没拿到Session，则创建一个
-        if (this.session == null)
-        {
-            this.session = createSession();
-        }
-        isParsed = true;
     }
 
 
@@ -122,15 +166,15 @@ public class SessionParser
      */
     private String getSessionIdFromUrl()
     {
-        StringBuilder u = new StringBuilder(request.uri());
-        int sessionStart = u.toString().indexOf(";" + NettyHttpSession.SESSION_REQUEST_PARAMETER_NAME + "=");
+        String u = request.uri();
+        int sessionStart = u.indexOf(";" + NettyHttpSession.SESSION_REQUEST_PARAMETER_NAME + "=");
         if (sessionStart == -1)
         {
             return null;
         }
-        int sessionEnd = u.toString().indexOf(';', sessionStart + 1);
+        int sessionEnd = u.indexOf(';', sessionStart + 1);
         if (sessionEnd == -1)
-            sessionEnd = u.toString().indexOf('?', sessionStart + 1);
+            sessionEnd = u.indexOf('?', sessionStart + 1);
         if (sessionEnd == -1) // still
             sessionEnd = u.length();
         return u.substring(sessionStart + NettyHttpSession.SESSION_REQUEST_PARAMETER_NAME.length() + 2, sessionEnd);
@@ -173,20 +217,24 @@ public class SessionParser
     public HttpSession getSession(boolean create)
     {
         checkAndParse();
-        boolean valid = isRequestedSessionIdValid(); //在管理器存在，且没到期
-        //可用则直接返回
-        if (valid)
+        //在管理器存在，且没到期，则直接返回
+        if (servletContext.getSessionManager().checkValid(session))
         {
             return session.getSession();
         }
+        session = null; //如果过期了设为null
         //不可用则判断是否新建
         if (!create)
         {
-            session = null; //如果过期了设为null
             return null;
         }
+        if (NettyWebServerConfig.getInstance().isSessionStateless())
+        {
+            throw new IllegalStateException("Cannot create a session: server.netty.session-stateless is enabled");
+        }
         //不可用且允许新建则新建之
         this.session = createSession();
+        this.sessionCookieRequired = true;
         return this.session.getSession();
     }
 
@@ -200,8 +248,12 @@ public class SessionParser
     public String changeSessionId()
     {
         checkAndParse();
-
-        this.session = createSession();
+        if (!servletContext.getSessionManager().checkValid(session))
+        {
+            throw new IllegalStateException("No session associated with the request");
+        }
+        servletContext.getSessionManager().changeSessionId(session);
+        this.sessionCookieRequired = true;
         return this.session.getId();
     }
 
@@ -216,7 +268,8 @@ public class SessionParser
     {
         checkAndParse();
 
-        return servletContext.getSessionManager().checkValid(session);
+        return requestedSessionId != null && session != null && requestedSessionId.equals(session.getId())
+                && servletContext.getSessionManager().checkValid(session);
     }
 
 
@@ -248,6 +301,21 @@ public class SessionParser
     {
         checkAndParse();
 
+        return requestedSessionId;
+    }
+
+    /**
+     * 响应需要通过 Set-Cookie 写出的 SessionID：只有本次请求新建了 Session 或者更换了 SessionID 时才有。
+     * 没有访问过 Session 的请求不会触发解析
+     *
+     * @return SessionID，不需要写出时返回 null
+     */
+    public String getSessionIdToSet()
+    {
+        if (!isParsed || !sessionCookieRequired || !servletContext.getSessionManager().checkValid(session))
+        {
+            return null;
+        }
         return session.getId();
     }
 
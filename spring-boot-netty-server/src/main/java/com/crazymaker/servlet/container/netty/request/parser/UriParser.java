@@ -33,11 +33,11 @@ public class UriParser
     /**
      * 请求实例
      */
-    private final HttpRequest request;
+    private HttpRequest request;
     /**
      * 容器上下文路径
      */
-    private final String contextPath;
+    private String contextPath;
     /**
      * servlet 路径
      */
@@ -55,11 +55,36 @@ public class UriParser
      */
     private String queryString;
 
+    public UriParser()
+    {
+    }
+
     public UriParser(HttpRequest request, String contextPath)
+    {
+        init(request, contextPath);
+    }
+
+    /**
+     * 复用时绑定新的请求
+     */
+    public void init(HttpRequest request, String contextPath)
     {
         this.request = request;
         this.contextPath = contextPath;
+    }
 
+    /**
+     * 请求结束时清空状态，以便复用
+     */
+    public void recycle()
+    {
+        request = null;
+        contextPath = null;
+        servletPath = null;
+        requestUri = null;
+        pathInfo = null;
+        queryString = null;
+        isPathsParsed = false;
     }
 
     public String getServletPath()
@@ -91,12 +116,20 @@ public class UriParser
         return this.requestUri;
     }
     //Context Path + servlet path + path info = request uri
-    //TODO ServletPath和PathInfo应该是互补的，根据URL-Pattern匹配的路径不同而不同
-    // 现在把PathInfo恒为null，ServletPath恒为uri-contextPath
-    // 可以满足SpringBoot的需求，但不满足ServletPath和PathInfo的语义
-    // 需要在RequestUrlPatternMapper匹配的时候设置,new NettyRequestDispatcher的时候传入MapperData
+    // 解析时 PathInfo 为 null，ServletPath 为 uri-contextPath
+    // 分发时由 NettyRequestDispatcher 按匹配的 URL Pattern 调用 setServletMapping() 拆分
 
 
+    /**
+     * 分发时根据匹配的 URL Pattern 设置 servletPath 与 pathInfo
+     */
+    public void setServletMapping(String servletPath, String pathInfo)
+    {
+        checkAndParsePaths();
+        this.servletPath = servletPath;
+        this.pathInfo = pathInfo;
+    }
+
     private void checkAndParsePaths()
     {
         if (isPathsParsed)
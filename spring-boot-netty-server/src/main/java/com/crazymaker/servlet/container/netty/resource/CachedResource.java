@@ -0,0 +1,286 @@
+package com.crazymaker.servlet.container.netty.resource;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.util.jar.Manifest;
+
+/**
+ * ResourceCache 中的条目，对应 Tomcat 的 org.apache.catalina.webresources.CachedResource
+ * <p>
+ * 元数据委托给查找到的 WebResource；内容不超过 objectMaxSize 时在创建时读入一块直接内存（堆外），
+ * 之后的 getContent()/getInputStream() 都从这块内存读取，不再读磁盘或解压 Jar。
+ * 直接内存由 GC 回收，淘汰时不主动释放，避免正在读取的线程访问到已释放的内存。
+ */
+public class CachedResource implements WebResource
+{
+    /**
+     * 每个条目元数据的估算大小
+     */
+    private static final long METADATA_SIZE = 512;
+
+    private final StandardRoot root;
+    private final String webAppPath;
+    private final boolean useClassLoaderResources;
+    private final long ttl;
+
+    private final WebResource webResource;
+
+    /**
+     * 创建时的 lastModified 和长度，重新校验时比较
+     */
+    private final long cachedLastModified;
+    private final long cachedContentLength;
+    private final boolean cachedExists;
+
+    /**
+     * 堆外的资源内容，资源不存在、是目录或者太大时为 null
+     */
+    private final ByteBuffer content;
+
+    private volatile long nextCheck;
+    private volatile long lastAccess;
+
+    CachedResource(StandardRoot root, String path, boolean useClassLoaderResources,
+                   long objectMaxSize, long ttl, long now)
+    {
+        this.root = root;
+        this.webAppPath = path;
+        this.useClassLoaderResources = useClassLoaderResources;
+        this.ttl = ttl;
+        this.webResource = root.getResourceInternal(path, useClassLoaderResources);
+        this.cachedExists = webResource.exists();
+        this.cachedLastModified = webResource.getLastModified();
+        this.cachedContentLength = webResource.getContentLength();
+        this.content = loadContent(objectMaxSize);
+        this.nextCheck = now + ttl;
+        this.lastAccess = now;
+    }
+
+    private ByteBuffer loadContent(long objectMaxSize)
+    {
+        if (!cachedExists || !webResource.isFile() || cachedContentLength > objectMaxSize)
+        {
+            return null;
+        }
+        byte[] bytes = webResource.getContent();
+        if (null == bytes)
+        {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 过了 ttl 时重新查找资源，比较是否存在、lastModified 和长度
+     *
+     * @return 缓存的条目是否仍然有效
+     */
+    boolean validate(long now)
+    {
+        if (now < nextCheck)
+        {
+            return true;
+        }
+        WebResource current = root.getResourceInternal(webAppPath, useClassLoaderResources);
+        if (current.exists() != cachedExists
+                || current.getLastModified() != cachedLastModified
+                || current.getContentLength() != cachedContentLength)
+        {
+            return false;
+        }
+        nextCheck = now + ttl;
+        return true;
+    }
+
+    void touch(long now)
+    {
+        lastAccess = now;
+    }
+
+    long getLastAccess()
+    {
+        return lastAccess;
+    }
+
+    /**
+     * @return 条目占用的字节数（元数据估算 + 缓存的内容）
+     */
+    long getSize()
+    {
+        return METADATA_SIZE + (null == content ? 0 : content.capacity());
+    }
+
+    public WebResource getWebResource()
+    {
+        return webResource;
+    }
+
+    /**
+     * @return 内容是否在缓存中
+     */
+    public boolean isContentCached()
+    {
+        return null != content;
+    }
+
+    @Override
+    public long getLastModified()
+    {
+        return cachedLastModified;
+    }
+
+    @Override
+    public String getLastModifiedHttp()
+    {
+        return webResource.getLastModifiedHttp();
+    }
+
+    @Override
+    public boolean exists()
+    {
+        return cachedExists;
+    }
+
+    @Override
+    public boolean isVirtual()
+    {
+        return webResource.isVirtual();
+    }
+
+    @Override
+    public boolean isDirectory()
+    {
+        return webResource.isDirectory();
+    }
+
+    @Override
+    public boolean isFile()
+    {
+        return webResource.isFile();
+    }
+
+    @Override
+    public boolean delete()
+    {
+        boolean deleted = webResource.delete();
+        if (deleted)
+        {
+            root.removeCacheEntry(webAppPath);
+        }
+        return deleted;
+    }
+
+    @Override
+    public String getName()
+    {
+        return webResource.getName();
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return cachedContentLength;
+    }
+
+    @Override
+    public String getCanonicalPath()
+    {
+        return webResource.getCanonicalPath();
+    }
+
+    @Override
+    public boolean canRead()
+    {
+        return webResource.canRead();
+    }
+
+    @Override
+    public String getWebappPath()
+    {
+        return webAppPath;
+    }
+
+    @Override
+    public String getETag()
+    {
+        return webResource.getETag();
+    }
+
+    @Override
+    public void setMimeType(String mimeType)
+    {
+        webResource.setMimeType(mimeType);
+    }
+
+    @Override
+    public String getMimeType()
+    {
+        return webResource.getMimeType();
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        if (null == content)
+        {
+            return webResource.getInputStream();
+        }
+        return new ByteBufInputStream(Unpooled.wrappedBuffer(content.duplicate()));
+    }
+
+    @Override
+    public byte[] getContent()
+    {
+        if (null == content)
+        {
+            return webResource.getContent();
+        }
+        byte[] bytes = new byte[content.capacity()];
+        content.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public long getCreation()
+    {
+        return webResource.getCreation();
+    }
+
+    @Override
+    public URL getURL()
+    {
+        return webResource.getURL();
+    }
+
+    @Override
+    public URL getCodeBase()
+    {
+        return webResource.getCodeBase();
+    }
+
+    @Override
+    public WebResourceRoot getWebResourceRoot()
+    {
+        return root;
+    }
+
+    @Override
+    public Certificate[] getCertificates()
+    {
+        return webResource.getCertificates();
+    }
+
+    @Override
+    public Manifest getManifest()
+    {
+        return webResource.getManifest();
+    }
+}
@@ -0,0 +1,204 @@
+package com.crazymaker.servlet.container.netty.resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StandardRoot 前面的静态资源缓存，对应 Tomcat 的 org.apache.catalina.webresources.Cache
+ * <p>
+ * 缓存资源的元数据，以及不超过 objectMaxSize 的资源内容（放在堆外）；总大小不超过 maxSize，超过后按最近访问时间淘汰到 95%。
+ * 条目在 ttl 之后的第一次访问时重新查找资源，lastModified 或长度变化时重新加载。
+ */
+public class ResourceCache
+{
+    private static final Logger log = LoggerFactory.getLogger(ResourceCache.class);
+
+    /**
+     * 淘汰后的目标大小占 maxSize 的百分比
+     */
+    private static final long TARGET_FREE_PERCENT = 5;
+
+    private final StandardRoot root;
+
+    private final ConcurrentMap<String, CachedResource> resourceCache = new ConcurrentHashMap<>();
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final LongAdder lookupCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final long maxSize;
+    private final long objectMaxSize;
+    private final long ttl;
+
+    /**
+     * @param maxSize       缓存的最大字节数
+     * @param objectMaxSize 单个资源内容能进入缓存的最大字节数
+     * @param ttl           条目重新校验的间隔（毫秒）
+     */
+    public ResourceCache(StandardRoot root, long maxSize, long objectMaxSize, long ttl)
+    {
+        this.root = root;
+        this.maxSize = maxSize;
+        this.objectMaxSize = Math.min(objectMaxSize, maxSize / 20);
+        this.ttl = ttl;
+    }
+
+    protected WebResource getResource(String path, boolean useClassLoaderResources)
+    {
+        lookupCount.increment();
+        String key = useClassLoaderResources ? "CL:" + path : path;
+        long now = System.currentTimeMillis();
+
+        CachedResource cached = resourceCache.get(key);
+        if (null != cached && !cached.validate(now))
+        {
+            //资源已经变化，移除后重新加载
+            removeCacheEntry(key, cached);
+            cached = null;
+        }
+        if (null != cached)
+        {
+            hitCount.increment();
+            cached.touch(now);
+            return cached;
+        }
+
+        CachedResource loaded = new CachedResource(root, path, useClassLoaderResources, objectMaxSize, ttl, now);
+        if (!loaded.exists() && null != root.getIndex())
+        {
+            //不存在的路径由 ResourceIndex 的未命中缓存负责，不占用这里的容量，避免 404 探测把真正的资源挤出去
+            return loaded.getWebResource();
+        }
+        cached = resourceCache.putIfAbsent(key, loaded);
+        if (null != cached)
+        {
+            //其他线程已经放入
+            cached.touch(now);
+            return cached;
+        }
+        if (size.addAndGet(loaded.getSize()) > maxSize)
+        {
+            evict();
+        }
+        return loaded;
+    }
+
+    /**
+     * 资源被写入或删除时调用
+     */
+    protected void removeCacheEntry(String path)
+    {
+        removeCacheEntry(path, resourceCache.get(path));
+        removeCacheEntry("CL:" + path, resourceCache.get("CL:" + path));
+    }
+
+    private void removeCacheEntry(String key, CachedResource cached)
+    {
+        if (null != cached && resourceCache.remove(key, cached))
+        {
+            size.addAndGet(-cached.getSize());
+        }
+    }
+
+    /**
+     * 按最近访问时间从旧到新淘汰，直到大小不超过 maxSize 的 95%
+     */
+    private synchronized void evict()
+    {
+        long target = maxSize * (100 - TARGET_FREE_PERCENT) / 100;
+        if (size.get() <= target)
+        {
+            return;
+        }
+        //先对访问时间做快照，排序过程中访问时间还会变化
+        List<Map.Entry<Long, Map.Entry<String, CachedResource>>> candidates = new ArrayList<>(resourceCache.size());
+        for (Map.Entry<String, CachedResource> entry : resourceCache.entrySet())
+        {
+            candidates.add(new AbstractMap.SimpleImmutableEntry<>(entry.getValue().getLastAccess(), entry));
+        }
+        candidates.sort(Map.Entry.comparingByKey());
+        for (Map.Entry<Long, Map.Entry<String, CachedResource>> candidate : candidates)
+        {
+            if (size.get() <= target)
+            {
+                break;
+            }
+            Map.Entry<String, CachedResource> entry = candidate.getValue();
+            if (resourceCache.remove(entry.getKey(), entry.getValue()))
+            {
+                size.addAndGet(-entry.getValue().getSize());
+                evictionCount.increment();
+            }
+        }
+        if (size.get() > target)
+        {
+            log.warn("Unable to evict enough resources from the cache, current size {} bytes, max size {} bytes",
+                    size.get(), maxSize);
+        }
+    }
+
+    public void clear()
+    {
+        resourceCache.clear();
+        size.set(0);
+    }
+
+    public long getLookupCount()
+    {
+        return lookupCount.sum();
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.sum();
+    }
+
+    public long getMissCount()
+    {
+        return getLookupCount() - getHitCount();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return 当前缓存占用的字节数
+     */
+    public long getSize()
+    {
+        return size.get();
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public long getObjectMaxSize()
+    {
+        return objectMaxSize;
+    }
+
+    public long getTtl()
+    {
+        return ttl;
+    }
+
+    public int getEntryCount()
+    {
+        return resourceCache.size();
+    }
+}
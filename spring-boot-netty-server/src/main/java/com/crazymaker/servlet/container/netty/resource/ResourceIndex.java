@@ -0,0 +1,302 @@
+package com.crazymaker.servlet.container.netty.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StandardRoot 中所有 WebResourceSet 的合并路径索引
+ * <p>
+ * 构建时按 pre/main/class/jar/post 的顺序把 WebResourceSet 展开成数组，并把各个归档（Jar/War）的条目合并成一张不可变的表：
+ * 路径 -> 包含该路径的归档在数组中的序号。查找时只探测表中列出的归档，不再逐个在 archiveLock 下查询 archiveEntries。
+ * 目录、单文件等内容在运行时可能变化的 WebResourceSet 不建索引，照常探测（一次 stat）；多版本 Jar 同样不建索引。
+ * WebResourceSet 增减时由 StandardRoot 重新构建。
+ * <p>
+ * 另外带一个有界的未命中缓存：不存在的路径在 ttl 内直接返回上次的结果，重复的 404 探测（爬虫、favicon、source map）不再遍历 WebResourceSet。
+ */
+public class ResourceIndex
+{
+    private static final int[] NO_OWNERS = new int[0];
+
+    /**
+     * 未命中缓存满时清理到的比例
+     */
+    private static final int MISS_TARGET_PERCENT = 90;
+
+    private final WebResourceSet[] sets;
+
+    /**
+     * 每个 WebResourceSet 是否建了索引
+     */
+    private final boolean[] indexed;
+
+    /**
+     * 建了索引的 WebResourceSet 的挂载点，"/" 挂载时为空串
+     */
+    private final String[] mounts;
+
+    /**
+     * 路径（目录去掉结尾的 /）-> 包含它的归档的序号，升序
+     */
+    private final Map<String, int[]> owners;
+
+    private final ConcurrentMap<String, Miss> misses = new ConcurrentHashMap<>();
+
+    private final int maxMisses;
+    private final long missTtl;
+
+    private final LongAdder missHitCount = new LongAdder();
+
+    private ResourceIndex(WebResourceSet[] sets, boolean[] indexed, String[] mounts,
+                          Map<String, int[]> owners, int maxMisses, long missTtl)
+    {
+        this.sets = sets;
+        this.indexed = indexed;
+        this.mounts = mounts;
+        this.owners = owners;
+        this.maxMisses = maxMisses;
+        this.missTtl = missTtl;
+    }
+
+    /**
+     * @param allResources 按查找顺序排列的 WebResourceSet
+     * @param maxMisses    未命中缓存的最大条目数，0 表示不缓存未命中
+     * @param missTtl      未命中结果的有效期（毫秒）
+     */
+    static ResourceIndex build(List<List<WebResourceSet>> allResources, int maxMisses, long missTtl)
+    {
+        List<WebResourceSet> flat = new ArrayList<>();
+        for (List<WebResourceSet> list : allResources)
+        {
+            flat.addAll(list);
+        }
+        WebResourceSet[] sets = flat.toArray(new WebResourceSet[flat.size()]);
+        boolean[] indexed = new boolean[sets.length];
+        String[] mounts = new String[sets.length];
+
+        Map<String, List<Integer>> merged = new HashMap<>();
+        for (int i = 0; i < sets.length; i++)
+        {
+            if (!(sets[i] instanceof AbstractArchiveResourceSet))
+            {
+                continue;
+            }
+            AbstractArchiveResourceSet archive = (AbstractArchiveResourceSet) sets[i];
+            if (archive.isMultiRelease())
+            {
+                //多版本 Jar 按运行时版本选择条目，不能用条目名直接判断
+                continue;
+            }
+            indexed[i] = true;
+            mounts[i] = archive.getWebAppMount();
+            addArchive(merged, i, archive);
+        }
+
+        Map<String, int[]> owners = new HashMap<>(merged.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Integer>> entry : merged.entrySet())
+        {
+            List<Integer> positions = entry.getValue();
+            int[] array = new int[positions.size()];
+            for (int j = 0; j < array.length; j++)
+            {
+                array[j] = positions.get(j);
+            }
+            owners.put(entry.getKey(), array);
+        }
+        return new ResourceIndex(sets, indexed, mounts, Collections.unmodifiableMap(owners), maxMisses, missTtl);
+    }
+
+    /**
+     * 把归档条目名换算成 Web 应用中的路径，与 AbstractArchiveResourceSet.getResource() 的换算方向相反
+     */
+    private static void addArchive(Map<String, List<Integer>> merged, int position, AbstractArchiveResourceSet archive)
+    {
+        String mount = archive.getWebAppMount();
+        String internalPath = archive.getInternalPath();
+        String prefix = internalPath.startsWith("/") ? internalPath.substring(1) : internalPath;
+
+        //挂载点本身总是存在（JarResourceRoot 或内部路径对应的目录）
+        addOwner(merged, keyOf(mount.isEmpty() ? "/" : mount), position);
+        for (String name : archive.getArchiveEntries(false).keySet())
+        {
+            if (!name.startsWith(prefix))
+            {
+                continue;
+            }
+            String rest = name.substring(prefix.length());
+            if (internalPath.isEmpty())
+            {
+                rest = "/" + rest;
+            } else if (!rest.isEmpty() && rest.charAt(0) != '/')
+            {
+                continue;
+            }
+            String path = mount + rest;
+            if (path.isEmpty())
+            {
+                path = "/";
+            }
+            addOwner(merged, keyOf(path), position);
+        }
+    }
+
+    private static void addOwner(Map<String, List<Integer>> merged, String key, int position)
+    {
+        List<Integer> positions = merged.get(key);
+        if (null == positions)
+        {
+            positions = new ArrayList<>(1);
+            merged.put(key, positions);
+        }
+        if (positions.isEmpty() || positions.get(positions.size() - 1) != position)
+        {
+            positions.add(position);
+        }
+    }
+
+    /**
+     * 目录条目带有结尾的 /，请求的路径可能不带，统一去掉
+     */
+    private static String keyOf(String path)
+    {
+        if (path.length() > 1 && path.charAt(path.length() - 1) == '/')
+        {
+            return path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    WebResourceSet[] getSets()
+    {
+        return sets;
+    }
+
+    /**
+     * @return 包含该路径的归档的序号
+     */
+    int[] getOwners(String path)
+    {
+        int[] result = owners.get(keyOf(path));
+        return null == result ? NO_OWNERS : result;
+    }
+
+    /**
+     * @param position WebResourceSet 在 {@link #getSets()} 中的序号
+     * @param owners   {@link #getOwners(String)} 的结果
+     * @return 是否需要探测这个 WebResourceSet
+     */
+    boolean mayContain(int position, String path, int[] owners)
+    {
+        if (!indexed[position])
+        {
+            return true;
+        }
+        String mount = mounts[position];
+        if (!path.startsWith(mount))
+        {
+            return false;
+        }
+        if (path.length() > mount.length() && !mount.isEmpty() && path.charAt(mount.length()) != '/')
+        {
+            //挂载点只是路径的前缀（如 /foo 与 /foobar），索引没有覆盖这种情况，交给 WebResourceSet 判断
+            return true;
+        }
+        return Arrays.binarySearch(owners, position) >= 0;
+    }
+
+    /**
+     * @return ttl 内缓存的未命中结果，没有时返回 null
+     */
+    WebResource getMiss(String path, boolean useClassLoaderResources)
+    {
+        if (maxMisses <= 0)
+        {
+            return null;
+        }
+        String key = useClassLoaderResources ? "CL:" + path : path;
+        Miss miss = misses.get(key);
+        if (null == miss)
+        {
+            return null;
+        }
+        if (System.currentTimeMillis() > miss.expires)
+        {
+            misses.remove(key, miss);
+            return null;
+        }
+        missHitCount.increment();
+        return miss.resource;
+    }
+
+    void putMiss(String path, boolean useClassLoaderResources, WebResource resource)
+    {
+        if (maxMisses <= 0 || null == resource)
+        {
+            return;
+        }
+        if (misses.size() >= maxMisses)
+        {
+            trimMisses();
+        }
+        String key = useClassLoaderResources ? "CL:" + path : path;
+        misses.put(key, new Miss(resource, System.currentTimeMillis() + missTtl));
+    }
+
+    /**
+     * 先删除过期的条目，仍然超过上限时任意删除，直到 90%
+     */
+    private void trimMisses()
+    {
+        long now = System.currentTimeMillis();
+        int target = maxMisses * MISS_TARGET_PERCENT / 100;
+        misses.values().removeIf(miss -> now > miss.expires);
+        Iterator<String> iterator = misses.keySet().iterator();
+        while (misses.size() > target && iterator.hasNext())
+        {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 有资源被写入或创建时调用，之前的未命中结果可能已经失效
+     */
+    void clearMisses()
+    {
+        misses.clear();
+    }
+
+    public int getIndexedPathCount()
+    {
+        return owners.size();
+    }
+
+    public int getMissCount()
+    {
+        return misses.size();
+    }
+
+    public long getMissHitCount()
+    {
+        return missHitCount.sum();
+    }
+
+    private static final class Miss
+    {
+        private final WebResource resource;
+        private final long expires;
+
+        private Miss(WebResource resource, long expires)
+        {
+            this.resource = resource;
+            this.expires = expires;
+        }
+    }
+}
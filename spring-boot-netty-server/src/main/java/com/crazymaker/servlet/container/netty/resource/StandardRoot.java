@@ -16,6 +16,7 @@
  */
 package com.crazymaker.servlet.container.netty.resource;
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
 import com.crazymaker.servlet.container.netty.core.NettyServletContext;
 import com.crazymaker.servlet.container.netty.lifecycle.LifecycleException;
 import com.crazymaker.servlet.container.netty.lifecycle.LifecycleListener;
@@ -88,6 +89,16 @@ public class StandardRoot implements WebResourceRoot
      */
     private volatile LifecycleState state = LifecycleState.NEW;
 
+    /**
+     * 静态资源缓存，启动时根据配置创建
+     */
+    private volatile ResourceCache cache;
+
+    /**
+     * 合并的路径索引和未命中缓存，启动后根据配置创建，WebResourceSet 变化时重建
+     */
+    private volatile ResourceIndex index;
+
     /**
      * Creates a new standard implementation of {@link WebResourceRoot}. A no
      * argument constructor is required for this to work with the digester.
@@ -176,7 +187,10 @@ public class StandardRoot implements WebResourceRoot
 
         boolean mkdirResult = main.mkdir(path);
 
-
+        if (mkdirResult)
+        {
+            removeCacheEntry(path);
+        }
         return mkdirResult;
     }
 
@@ -192,7 +206,10 @@ public class StandardRoot implements WebResourceRoot
 
         boolean writeResult = main.write(path, is, overwrite);
 
-
+        if (writeResult)
+        {
+            removeCacheEntry(path);
+        }
         return writeResult;
     }
 
@@ -223,10 +240,64 @@ public class StandardRoot implements WebResourceRoot
             path = validate(path);
         }
 
+        if (null != cache)
+        {
+            return cache.getResource(path, useClassLoaderResources);
+        }
         return getResourceInternal(path, useClassLoaderResources);
 
     }
 
+    /**
+     * @return 静态资源缓存，未启用时为 null
+     */
+    public ResourceCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @return 路径索引，未启用或未启动时为 null
+     */
+    public ResourceIndex getIndex()
+    {
+        return index;
+    }
+
+    protected void removeCacheEntry(String path)
+    {
+        if (null != cache)
+        {
+            cache.removeCacheEntry(path);
+        }
+        ResourceIndex current = index;
+        if (null != current)
+        {
+            current.clearMisses();
+        }
+    }
+
+    /**
+     * WebResourceSet 增减后重建路径索引，未启动时在 startInternal() 中构建
+     */
+    private void rebuildIndex()
+    {
+        if (!getState().isAvailable())
+        {
+            return;
+        }
+        NettyWebServerConfig config = NettyWebServerConfig.getInstance();
+        if (config.isResourceIndex())
+        {
+            index = ResourceIndex.build(allResources, config.getResourceNegativeCacheSize(),
+                    config.getResourceCacheTtl());
+        }
+        if (null != cache)
+        {
+            cache.clear();
+        }
+    }
+
 
     @Override
     public WebResource getClassLoaderResource(String path)
@@ -285,6 +356,12 @@ public class StandardRoot implements WebResourceRoot
     protected final WebResource getResourceInternal(String path,
                                                     boolean useClassLoaderResources)
     {
+        ResourceIndex index = this.index;
+        if (null != index)
+        {
+            return getIndexedResource(index, path, useClassLoaderResources);
+        }
+
         WebResource result = null;
         WebResource virtual = null;
         WebResource mainEmpty = null;
@@ -324,6 +401,62 @@ public class StandardRoot implements WebResourceRoot
         return mainEmpty;
     }
 
+    /**
+     * 与上面的遍历顺序和结果相同，但跳过索引中不包含该路径的归档；不存在的路径记入未命中缓存
+     */
+    private WebResource getIndexedResource(ResourceIndex index, String path,
+                                           boolean useClassLoaderResources)
+    {
+        WebResource miss = index.getMiss(path, useClassLoaderResources);
+        if (miss != null)
+        {
+            return miss;
+        }
+
+        WebResource virtual = null;
+        WebResource mainEmpty = null;
+        int[] owners = index.getOwners(path);
+        WebResourceSet[] sets = index.getSets();
+        for (int i = 0; i < sets.length; i++)
+        {
+            WebResourceSet webResourceSet = sets[i];
+            if (!useClassLoaderResources && !webResourceSet.getClassLoaderOnly() ||
+                    useClassLoaderResources && !webResourceSet.getStaticOnly())
+            {
+                if (!index.mayContain(i, path, owners))
+                {
+                    if (virtual == null && mainEmpty == null && main.equals(webResourceSet))
+                    {
+                        mainEmpty = new EmptyResource(this, path);
+                    }
+                    continue;
+                }
+                WebResource result = webResourceSet.getResource(path);
+                if (result.exists())
+                {
+                    return result;
+                }
+                if (virtual == null)
+                {
+                    if (result.isVirtual())
+                    {
+                        virtual = result;
+                    } else if (main.equals(webResourceSet))
+                    {
+                        mainEmpty = result;
+                    }
+                }
+            }
+        }
+
+        if (virtual != null)
+        {
+            return virtual;
+        }
+        index.putMiss(path, useClassLoaderResources, mainEmpty);
+        return mainEmpty;
+    }
+
     @Override
     public WebResource[] getResources(String path)
     {
@@ -471,6 +604,7 @@ public class StandardRoot implements WebResourceRoot
         }
 
         resourceList.add(resourceSet);
+        rebuildIndex();
     }
 
     @Override
@@ -478,6 +612,7 @@ public class StandardRoot implements WebResourceRoot
     {
         webResourceSet.setRoot(this);
         preResources.add(webResourceSet);
+        rebuildIndex();
     }
 
     @Override
@@ -491,6 +626,7 @@ public class StandardRoot implements WebResourceRoot
     {
         webResourceSet.setRoot(this);
         jarResources.add(webResourceSet);
+        rebuildIndex();
     }
 
     @Override
@@ -504,6 +640,7 @@ public class StandardRoot implements WebResourceRoot
     {
         webResourceSet.setRoot(this);
         postResources.add(webResourceSet);
+        rebuildIndex();
     }
 
     @Override
@@ -521,6 +658,7 @@ public class StandardRoot implements WebResourceRoot
     {
         webResourceSet.setRoot(this);
         classResources.add(webResourceSet);
+        rebuildIndex();
     }
 
     @Override
@@ -613,6 +751,7 @@ public class StandardRoot implements WebResourceRoot
         this.main = main;
         mainResources.clear();
         mainResources.add(main);
+        rebuildIndex();
     }
 
 
@@ -724,7 +863,15 @@ public class StandardRoot implements WebResourceRoot
         {
             classResource.start();
         }
+
+        NettyWebServerConfig config = NettyWebServerConfig.getInstance();
+        if (config.isResourceCache())
+        {
+            cache = new ResourceCache(this, config.getResourceCacheMaxSize(),
+                    config.getResourceCacheObjectMaxSize(), config.getResourceCacheTtl());
+        }
         state = LifecycleState.STARTED;
+        rebuildIndex();
     }
 
     protected WebResourceSet createMainResourceSet()
@@ -762,6 +909,13 @@ public class StandardRoot implements WebResourceRoot
 
     protected void stopInternal() throws LifecycleException
     {
+        index = null;
+        if (null != cache)
+        {
+            cache.clear();
+            cache = null;
+        }
+
         for (List<WebResourceSet> list : allResources)
         {
             for (WebResourceSet webResourceSet : list)
@@ -1,133 +1,518 @@
 package com.crazymaker.servlet.container.netty.response;
 
-import io.netty.buffer.ByteBufOutputStream;
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * 响应输出流
+ * <p>
+ * 内容先写入从 Channel 的分配器（默认是池化的直接内存）申请的缓冲区，缓冲区大小由 setBufferSize() 决定，
+ * 设置为 0 时不缓冲，每次写入都直接写出。
+ * 响应结束时响应头和内容合并成一个 FullHttpResponse，设置 Content-Length 后一次写出；
+ * 缓冲区写满时自动提交响应头，切换为 chunked 流式输出，写满的缓冲区直接交给 Netty 发送，不做拷贝。
+ * <p>
+ * 非阻塞输出（Servlet 3.1）：isReady() 反映 Channel 的可写状态，由 WriteBufferWaterMark 决定。
+ * isReady() 返回 false 时把自己登记在 Channel 上，连接重新变为可写时由 IO 线程通知，
+ * WriteListener.onWritePossible() 在业务线程上执行，慢客户端不会占用线程，也不会把整个响应堆积在内存中。
  */
 public class NettyServletOutputStream extends ServletOutputStream
 {
+    /**
+     * 默认的缓冲区大小，与 Tomcat 一致
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
 
-    private NettyServletResponse servletResponse;
+    private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private ByteBufOutputStream out;
+    private final NettyServletResponse servletResponse;
 
-    private boolean flushed = false;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * 当前缓冲区，第一次写入时才申请
+     */
+    private ByteBuf buffer;
+
+    /**
+     * 响应头是否已经写出
+     */
+    private boolean committed = false;
+
+    /**
+     * 是否写出过内容
+     */
+    private boolean written = false;
+
+    private boolean close = false;
+
+    /**
+     * 等待连接重新变为可写的输出流，每个连接同时最多一个
+     */
+    private static final AttributeKey<NettyServletOutputStream> WRITE_WAITER =
+            AttributeKey.valueOf(NettyServletOutputStream.class, "WRITE_WAITER");
+
+    private volatile WriteListener writeListener;
 
     public NettyServletOutputStream(NettyServletResponse response)
     {
         this.servletResponse = response;
-        this.out = new ByteBufOutputStream(Unpooled.buffer(0));
+    }
+
+    /**
+     * 随响应一起回收：释放没有写出的缓冲区，恢复初始状态
+     */
+    void recycle()
+    {
+        releaseBuffer();
+        bufferSize = DEFAULT_BUFFER_SIZE;
+        committed = false;
+        written = false;
+        close = false;
+        if (null != writeListener)
+        {
+            writeListener = null;
+            servletResponse.getCtx().channel().attr(WRITE_WAITER).compareAndSet(this, null);
+        }
+    }
+
+    /**
+     * recycle-check 模式下回收之后保持关闭状态，继续写入会抛出 IOException
+     */
+    void markRecycled()
+    {
+        close = true;
     }
 
     @Override
     public void write(int b) throws IOException
     {
-        this.out.write(b);
+        checkNotClosed();
+        ByteBuf buf = buffer();
+        if (buf.maxWritableBytes() == 0)
+        {
+            writeBuffer();
+            buf = buffer();
+        }
+        buf.writeByte(b);
+        written = true;
+        if (bufferSize == 0)
+        {
+            writeBuffer();
+        }
     }
 
     @Override
     public void write(byte[] b) throws IOException
     {
-        this.out.write(b);
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int offset, int len) throws IOException
     {
-        this.out.write(b, offset, len);
+        checkNotClosed();
+        while (len > 0)
+        {
+            ByteBuf buf = buffer();
+            int writable = buf.maxWritableBytes();
+            if (writable == 0)
+            {
+                //缓冲区满了，提交响应并把缓冲区整个交给 Netty
+                writeBuffer();
+                continue;
+            }
+            int n = Math.min(len, writable);
+            buf.writeBytes(b, offset, n);
+            offset += n;
+            len -= n;
+            written = true;
+        }
+        if (bufferSize == 0)
+        {
+            writeBuffer();
+        }
     }
 
+    /**
+     * 只有在响应已经提交（流式输出中），或者业务显式设置了 chunked 时才真正写出；
+     * 否则内容留在缓冲区，等缓冲区写满或者响应结束时再写，从而尽量带上 Content-Length 一次写出
+     */
     @Override
     public void flush()
     {
-//        this.response.setContent(out.buffer());
-//        servletResponse.getCtx().writeAndFlush(out.buffer().copy());
-//        resetBuffer();
+        if (close)
+        {
+            return;
+        }
+        if (committed || HttpUtil.isTransferEncodingChunked(servletResponse.getOriginalResponse()))
+        {
+            writeBuffer();
+        }
+    }
 
-        if (!flushed)
+    /**
+     * 结束响应
+     * <p>
+     * 还没有提交时，响应头和缓冲区合并成一个 FullHttpResponse，一次 write + flush 写出；
+     * 已经在流式输出时，写出剩余的缓冲区和 LastHttpContent。
+     * 长连接不需要关注写出结果，使用 voidPromise 省掉 Promise 的分配。
+     */
+    @Override
+    public void close()
+    {
+        if (close)
         {
-            servletResponse.setResponseBasicHeader();
+            return;
         }
-        boolean chunked = HttpUtil.isTransferEncodingChunked(servletResponse.getOriginalResponse());
+        close = true;
         ChannelHandlerContext ctx = servletResponse.getCtx();
-        if (chunked && ctx.channel().isActive())
+        if (!ctx.channel().isActive())
         {
-            if (!flushed)
+            releaseBuffer();
+            return;
+        }
+        Object last;
+        if (null != servletResponse.getSendFile() && !committed)
+        {
+            committed = true;
+            if (!writeFile(ctx))
             {
-                ctx.writeAndFlush(servletResponse.getOriginalResponse());
+                //连接已经关闭，不再写出 LastHttpContent
+                return;
             }
-            if (out.buffer().writerIndex() > out.buffer().readerIndex())
+            last = LastHttpContent.EMPTY_LAST_CONTENT;
+        } else if (!committed)
+        {
+            committed = true;
+            last = fullResponse();
+        } else
+        {
+            writeContent(ctx);
+            last = LastHttpContent.EMPTY_LAST_CONTENT;
+        }
+        if (HttpUtil.isKeepAlive(servletResponse.getOriginalResponse()))
+        {
+            ctx.writeAndFlush(last, ctx.voidPromise());
+        } else
+        {
+            ctx.writeAndFlush(last).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * sendfile：丢弃缓冲区中的内容，写出响应头和文件区间。
+     * 明文连接使用 DefaultFileRegion，数据从页缓存直接到 Socket；TLS 连接需要加密，使用 ChunkedNioFile 分块读出
+     *
+     * @return 文件打不开时响应头已经写出，只能关闭连接，返回 false
+     */
+    private boolean writeFile(ChannelHandlerContext ctx)
+    {
+        releaseBuffer();
+        File file = servletResponse.getSendFile();
+        long start = servletResponse.getSendFileStart();
+        long count = servletResponse.getSendFileEnd() - start;
+
+        servletResponse.setResponseBasicHeader();
+        HttpResponse response = servletResponse.getOriginalResponse();
+        HttpUtil.setTransferEncodingChunked(response, false);
+        HttpUtil.setContentLength(response, count);
+        ctx.write(response);
+        if (count == 0)
+        {
+            return true;
+        }
+        if (null == ctx.pipeline().get(SslHandler.class))
+        {
+            ctx.write(new DefaultFileRegion(file, start, count));
+        } else
+        {
+            try
+            {
+                ctx.write(new ChunkedNioFile(FileChannel.open(file.toPath(), StandardOpenOption.READ),
+                        start, count, DEFAULT_BUFFER_SIZE));
+            } catch (IOException e)
             {
-                ctx.writeAndFlush((new DefaultHttpContent(out.buffer().copy())));
-                resetBuffer();
+                //响应头已经写出，只能关闭连接
+                log.error("Failed to open file for sendfile: " + file, e);
+                ctx.channel().close();
+                return false;
             }
-            this.flushed = true;
         }
+        return true;
     }
 
-    private boolean close = false;
+    /**
+     * 整个响应都在缓冲区中，设置 Content-Length 头，与缓冲区合并成一个完整的响应
+     */
+    private FullHttpResponse fullResponse()
+    {
+        servletResponse.setResponseBasicHeader();
+        HttpResponse response = servletResponse.getOriginalResponse();
+        ByteBuf content = null == buffer ? Unpooled.EMPTY_BUFFER : buffer;
+        buffer = null;
+        if (!HttpUtil.isContentLengthSet(response) && !HttpUtil.isTransferEncodingChunked(response))
+        {
+            HttpUtil.setContentLength(response, content.readableBytes());
+        }
+        return new DefaultFullHttpResponse(response.protocolVersion(), response.status(), content,
+                response.headers(), EmptyHttpHeaders.INSTANCE);
+    }
 
-    @Override
-    public void close()
+    /**
+     * 提交响应头，把缓冲区的内容写出
+     */
+    private void writeBuffer()
     {
-        if (close)
+        ChannelHandlerContext ctx = servletResponse.getCtx();
+        commit(ctx);
+        writeContent(ctx);
+        ctx.flush();
+    }
+
+    /**
+     * 缓冲区不拷贝，直接作为 HttpContent 交给 Netty，由 Netty 负责释放
+     */
+    private void writeContent(ChannelHandlerContext ctx)
+    {
+        ByteBuf content = this.buffer;
+        if (null == content)
         {
             return;
         }
-        close = true;
-        boolean chunked = HttpUtil.isTransferEncodingChunked(servletResponse.getOriginalResponse());
-        ChannelHandlerContext ctx = servletResponse.getCtx();
-        if (!chunked)
+        this.buffer = null;
+        if (content.isReadable())
+        {
+            ctx.write(new DefaultHttpContent(content));
+        } else
         {
-            // 设置content-length头
-            if (!HttpUtil.isContentLengthSet(servletResponse.getOriginalResponse()))
+            content.release();
+        }
+    }
+
+    /**
+     * 写出响应头。没有设置 Content-Length 时，HTTP/1.1 使用 chunked 编码，HTTP/1.0 写完后关闭连接
+     */
+    private void commit(ChannelHandlerContext ctx)
+    {
+        if (committed)
+        {
+            return;
+        }
+        committed = true;
+        servletResponse.setResponseBasicHeader();
+        HttpResponse response = servletResponse.getOriginalResponse();
+        if (!HttpUtil.isContentLengthSet(response))
+        {
+            if (HttpVersion.HTTP_1_1.equals(servletResponse.getRequestFacade().getOriginalRequest().protocolVersion()))
             {
-                HttpUtil.setContentLength(servletResponse.getOriginalResponse(), this.out.buffer().readableBytes());
+                HttpUtil.setTransferEncodingChunked(response, true);
+            } else
+            {
+                HttpUtil.setKeepAlive(response, false);
             }
-            if (ctx.channel().isActive())
+        }
+        ctx.write(response);
+    }
+
+    /**
+     * 连接已经关闭时不再申请缓冲区，写入直接失败；已经申请的缓冲区在 close() 或回收时释放
+     */
+    private ByteBuf buffer() throws IOException
+    {
+        if (null == buffer)
+        {
+            ChannelHandlerContext ctx = servletResponse.getCtx();
+            if (!ctx.channel().isActive())
             {
-                ctx.writeAndFlush(servletResponse.getOriginalResponse());
+                throw new IOException("Connection closed");
             }
+            //不缓冲时每次写入之后立即写出，缓冲区只用来承载这一次写入
+            int capacity = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+            buffer = ctx.alloc().ioBuffer(Math.min(capacity, DEFAULT_BUFFER_SIZE), capacity);
         }
-        if (out.buffer().writerIndex() > out.buffer().readerIndex() && ctx.channel().isActive())
+        return buffer;
+    }
+
+    private void checkNotClosed() throws IOException
+    {
+        if (close)
+        {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    void releaseBuffer()
+    {
+        if (null != buffer)
         {
-            ctx.writeAndFlush((new DefaultHttpContent(out.buffer())));
+            buffer.release();
+            buffer = null;
         }
     }
 
     public void resetBuffer()
     {
-        this.out.buffer().clear();
+        if (null != buffer)
+        {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * 设置缓冲区大小，必须在写入内容之前调用；按传入的大小使用，0 表示不缓冲
+     *
+     * @throws IllegalArgumentException size 小于 0
+     */
+    public void setBufferSize(int size)
+    {
+        if (size < 0)
+        {
+            throw new IllegalArgumentException("Buffer size must not be negative: " + size);
+        }
+        if (written || committed)
+        {
+            throw new IllegalStateException("Cannot change buffer size after content has been written");
+        }
+        this.bufferSize = size;
+        releaseBuffer();
+    }
+
+    /**
+     * @return 响应头是否已经写出
+     */
+    public boolean isCommitted()
+    {
+        return committed;
     }
 
     public boolean isFlushed()
     {
-        return flushed;
+        return committed;
     }
 
     public int getBufferSize()
     {
-        return this.out.buffer().capacity();
+        return bufferSize;
     }
 
+    /**
+     * @return 连接是否可写；设置了 WriteListener 并返回 false 时，连接重新变为可写后会调用 onWritePossible()
+     */
     @Override
     public boolean isReady()
     {
-        return false;
+        Channel channel = servletResponse.getCtx().channel();
+        if (channel.isWritable() || close)
+        {
+            return true;
+        }
+        if (null == writeListener)
+        {
+            return false;
+        }
+        Attribute<NettyServletOutputStream> waiter = channel.attr(WRITE_WAITER);
+        waiter.set(this);
+        //登记之前连接可能已经变为可写，这时自己取消登记，避免错过通知
+        return channel.isWritable() && waiter.compareAndSet(this, null);
     }
 
+    /**
+     * 只能在异步模式下设置，设置后在业务线程上调用一次 onWritePossible()
+     */
     @Override
     public void setWriteListener(WriteListener writeListener)
     {
+        if (null == writeListener)
+        {
+            throw new NullPointerException("writeListener");
+        }
+        if (null != this.writeListener)
+        {
+            throw new IllegalStateException("WriteListener has already been set");
+        }
+        NettyServletRequest request = servletResponse.getRequestFacade();
+        if (!request.isAsyncStarted())
+        {
+            throw new IllegalStateException("Non-blocking IO requires async mode");
+        }
+        this.writeListener = writeListener;
+        request.getAsyncContext().start(() -> onWritePossible(writeListener));
+    }
+
+    /**
+     * 在这个请求的业务线程上执行监听器回调，请求已经结束时忽略
+     */
+    private void execute(Runnable task)
+    {
+        NettyServletRequest request = servletResponse.getRequestFacade();
+        AsyncContext asyncContext = null == request ? null : request.getAsyncContext();
+        if (null != asyncContext)
+        {
+            asyncContext.start(task);
+        }
+    }
+
+    private void onWritePossible(WriteListener listener)
+    {
+        try
+        {
+            listener.onWritePossible();
+        } catch (Throwable t)
+        {
+            listener.onError(t);
+        }
+    }
 
+    /**
+     * IO 线程：连接重新变为可写，通知等待中的输出流
+     */
+    public static void channelWritable(Channel channel)
+    {
+        NettyServletOutputStream waiter = channel.attr(WRITE_WAITER).getAndSet(null);
+        WriteListener listener = null == waiter ? null : waiter.writeListener;
+        if (null != listener)
+        {
+            waiter.execute(() -> waiter.onWritePossible(listener));
+        }
+    }
+
+    /**
+     * IO 线程：连接已关闭，通知等待中的输出流
+     */
+    public static void channelClosed(Channel channel)
+    {
+        NettyServletOutputStream waiter = channel.attr(WRITE_WAITER).getAndSet(null);
+        WriteListener listener = null == waiter ? null : waiter.writeListener;
+        if (null != listener)
+        {
+            waiter.execute(() -> listener.onError(new IOException("Connection closed")));
+        }
     }
 }
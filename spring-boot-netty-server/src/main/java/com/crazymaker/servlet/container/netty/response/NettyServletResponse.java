@@ -6,11 +6,8 @@ import com.crazymaker.servlet.container.netty.session.NettyHttpSession;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultHttpResponse;
-import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
@@ -23,6 +20,7 @@ import org.apache.commons.lang3.StringUtils;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
@@ -38,6 +36,9 @@ import java.util.TimeZone;
 
 /**
  * Http响应对象
+ * <p>
+ * 池化的请求持有一个响应，随请求一起复用：输出流和 PrintWriter 跟着响应复用，
+ * 响应头对象（DefaultHttpResponse）在写出时交给了 Netty，每次请求新建一个
  */
 public class NettyServletResponse implements HttpServletResponse
 {
@@ -47,24 +48,36 @@ public class NettyServletResponse implements HttpServletResponse
     /**
      * 封装的 servlet 响应
      */
-    private final DefaultHttpResponse originalResponse;
+    private DefaultHttpResponse originalResponse;
 
     /**
      * 上下文环境
      */
-    private final NettyServletContext nettyServletContext;
+    private NettyServletContext nettyServletContext;
 
-    private NettyServletOutputStream servletOutputStream;
+    private final NettyServletOutputStream servletOutputStream;
 
     private ChannelHandlerContext ctx;
 
-    private PrintWriter printWriter;
+    private final ResponseWriter printWriter;
+
+    /**
+     * recycle-check 模式下，回收时的调用栈，不为 null 表示已经回收
+     */
+    private Throwable recycledAt;
 
     /**
      * 提交状态
      */
     private boolean responseCommitted = false;
 
+    /**
+     * sendfile 的文件及区间，为 null 时正常写出输出流的内容
+     */
+    private File sendFile;
+    private long sendFileStart;
+    private long sendFileEnd;
+
     /**
      * 字符编码
      */
@@ -80,22 +93,82 @@ public class NettyServletResponse implements HttpServletResponse
      */
     NettyServletRequest requestFacade;
 
+    /**
+     * 池化的请求使用，使用前必须调用 {@link #init(ChannelHandlerContext, NettyServletContext)}
+     */
+    public NettyServletResponse()
+    {
+        this.servletOutputStream = new NettyServletOutputStream(this);
+        this.printWriter = new ResponseWriter(servletOutputStream);
+    }
+
     public NettyServletResponse(ChannelHandlerContext ctx, NettyServletContext nettyServletContext)
     {
-        this.ctx = ctx;
+        this();
+        init(ctx, nettyServletContext);
+    }
 
+    /**
+     * 复用时绑定新的连接
+     */
+    public void init(ChannelHandlerContext ctx, NettyServletContext nettyServletContext)
+    {
+        this.ctx = ctx;
         this.nettyServletContext = nettyServletContext;
-        this.servletOutputStream = new NettyServletOutputStream(this);
-        this.printWriter = new PrintWriter(servletOutputStream);
         this.originalResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false);
+    }
+
+    /**
+     * 释放输出流中没有写出的缓冲区。直接 new 出来、不归还对象池的请求回收时调用
+     */
+    public void releaseBuffer()
+    {
+        servletOutputStream.releaseBuffer();
+    }
 
+    /**
+     * 随请求一起回收：清空状态，输出流中没有写出的缓冲区被释放
+     */
+    public void recycle()
+    {
+        servletOutputStream.recycle();
+        printWriter.recycle();
+        cookies.clear();
+        responseCommitted = false;
+        sendFile = null;
+        sendFileStart = 0;
+        sendFileEnd = 0;
+        characterEncoding = null;
+        contentType = null;
+        requestFacade = null;
+        originalResponse = null;
+        nettyServletContext = null;
+        ctx = null;
     }
 
-    private List<Cookie> cookies = new ArrayList<>();
+    /**
+     * recycle-check 模式下标记为已回收，之后再使用会抛出 IllegalStateException
+     */
+    public void markRecycled(Throwable recycledAt)
+    {
+        this.recycledAt = recycledAt;
+        servletOutputStream.markRecycled();
+    }
+
+    private void checkActive()
+    {
+        if (null != recycledAt)
+        {
+            throw new IllegalStateException("Response has been recycled", recycledAt);
+        }
+    }
+
+    private final List<Cookie> cookies = new ArrayList<>();
 
     @Override
     public void addCookie(Cookie cookie)
     {
+        checkActive();
         cookies.add(cookie);
 /*
 
@@ -107,6 +180,7 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public boolean containsHeader(String name)
     {
+        checkActive();
         return this.originalResponse.headers().contains(name);
     }
 
@@ -149,12 +223,14 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public void sendError(int sc, String msg) throws IOException
     {
+        checkActive();
         this.originalResponse.setStatus(new HttpResponseStatus(sc, msg));
     }
 
     @Override
     public void sendError(int sc) throws IOException
     {
+        checkActive();
         this.originalResponse.setStatus(HttpResponseStatus.valueOf(sc));
     }
 
@@ -168,42 +244,49 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public void setDateHeader(String name, long date)
     {
+        checkActive();
         this.originalResponse.headers().set(name, date);
     }
 
     @Override
     public void addDateHeader(String name, long date)
     {
+        checkActive();
         this.originalResponse.headers().add(name, date);
     }
 
     @Override
     public void setHeader(String name, String value)
     {
+        checkActive();
         this.originalResponse.headers().set(name, value);
     }
 
     @Override
     public void addHeader(String name, String value)
     {
+        checkActive();
         this.originalResponse.headers().add(name, value);
     }
 
     @Override
     public void setIntHeader(String name, int value)
     {
+        checkActive();
         this.originalResponse.headers().setInt(name, value);
     }
 
     @Override
     public void addIntHeader(String name, int value)
     {
+        checkActive();
         this.originalResponse.headers().addInt(name, value);
     }
 
     @Override
     public int getStatus()
     {
+        checkActive();
         return this.originalResponse.getStatus().code();
     }
 
@@ -211,12 +294,14 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public void setStatus(int sc)
     {
+        checkActive();
         this.originalResponse.setStatus(HttpResponseStatus.valueOf(sc));
     }
 
     @Override
     public void setStatus(int sc, String sm)
     {
+        checkActive();
         this.originalResponse.setStatus(new HttpResponseStatus(sc, sm));
     }
 
@@ -224,6 +309,7 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public String getHeader(String name)
     {
+        checkActive();
         return this.originalResponse.headers().get(name);
     }
 
@@ -263,6 +349,7 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public void setContentType(String contentType)
     {
+        checkActive();
         this.originalResponse.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
         this.contentType = contentType;
     }
@@ -276,12 +363,14 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public NettyServletOutputStream getOutputStream() throws IOException
     {
+        checkActive();
         return servletOutputStream;
     }
 
     @Override
     public PrintWriter getWriter() throws IOException
     {
+        checkActive();
         return printWriter;
     }
 
@@ -294,6 +383,7 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public void setBufferSize(int size)
     {
+        this.servletOutputStream.setBufferSize(size);
     }
 
     private boolean flush = false;
@@ -327,7 +417,8 @@ public class NettyServletResponse implements HttpServletResponse
     @Override
     public boolean isCommitted()
     {
-        return this.responseCommitted;
+        checkActive();
+        return this.responseCommitted || this.servletOutputStream.isCommitted();
     }
 
     @Override
@@ -353,19 +444,74 @@ public class NettyServletResponse implements HttpServletResponse
     }
 
 
+    /**
+     * 响应体改为文件的 [start, end) 区间，由容器在响应结束时直接写到 Socket（sendfile），不经过输出流
+     *
+     * @param file  要发送的文件
+     * @param start 起始位置（包含）
+     * @param end   结束位置（不包含）
+     */
+    public void sendFile(File file, long start, long end)
+    {
+        if (isCommitted())
+        {
+            throw new IllegalStateException("Response already commited!");
+        }
+        if (start < 0 || end < start)
+        {
+            throw new IllegalArgumentException("Invalid sendfile range [" + start + ", " + end + ")");
+        }
+        this.sendFile = file;
+        this.sendFileStart = start;
+        this.sendFileEnd = end;
+    }
+
+    public File getSendFile()
+    {
+        return sendFile;
+    }
+
+    public long getSendFileStart()
+    {
+        return sendFileStart;
+    }
+
+    public long getSendFileEnd()
+    {
+        return sendFileEnd;
+    }
+
+    /**
+     * 业务代码通过 Tomcat 风格的 org.apache.tomcat.sendfile.* 请求属性要求 sendfile
+     */
+    private void applySendfileAttributes()
+    {
+        if (null != sendFile || isCommitted() || null == requestFacade)
+        {
+            return;
+        }
+        Object fileName = requestFacade.getAttribute(NettyServletRequest.SENDFILE_FILENAME_ATTR);
+        if (!(fileName instanceof String))
+        {
+            return;
+        }
+        File file = new File((String) fileName);
+        Object start = requestFacade.getAttribute(NettyServletRequest.SENDFILE_FILE_START_ATTR);
+        Object end = requestFacade.getAttribute(NettyServletRequest.SENDFILE_FILE_END_ATTR);
+        sendFile(file,
+                start instanceof Long ? (Long) start : 0L,
+                end instanceof Long ? (Long) end : file.length());
+    }
+
     public void close()
     {
+        checkActive();
+        //PrintWriter 自带字符缓冲，先把它刷进输出流的缓冲区
+        printWriter.flush();
+        applySendfileAttributes();
         this.responseCommitted = true;
         servletOutputStream.close();
-        boolean isKeepAlive = HttpUtil.isKeepAlive(originalResponse);
-        if (ctx.channel().isActive())
-        {
-            ChannelFuture channelFuture = ctx.write(DefaultLastHttpContent.EMPTY_LAST_CONTENT);
-            if (!isKeepAlive && channelFuture != null)
-            {
-                channelFuture.addListener(ChannelFutureListener.CLOSE);
-            }
-        }
+        requestFacade.destroyParts();
     }
 
     public DefaultHttpResponse getOriginalResponse()
@@ -434,9 +580,13 @@ public class NettyServletResponse implements HttpServletResponse
             headers.add(HttpHeaderNames.SET_COOKIE, sb.toString());
         }
 
-        if (!isSessionIdSet)
+        //只有新建的 Session（或更换了 SessionID）才需要写 Cookie，没有用到 Session 的请求不产生 Set-Cookie
+        String sessionId = isSessionIdSet ? null : requestFacade.getSessionIdToSet();
+        if (null != sessionId)
         {
-            String sessionCookieStr = NettyHttpSession.SESSION_COOKIE_NAME + "=" + requestFacade.getRequestedSessionId() + "; path=/; domain=" + requestFacade.getServerName();
+            String contextPath = nettyServletContext.getContextPath();
+            String sessionCookieStr = NettyHttpSession.SESSION_COOKIE_NAME + "=" + sessionId
+                    + "; path=" + (StringUtils.isEmpty(contextPath) ? "/" : contextPath) + "; HttpOnly";
             headers.add(HttpHeaderNames.SET_COOKIE, sessionCookieStr);
         }
 
@@ -468,9 +618,30 @@ public class NettyServletResponse implements HttpServletResponse
     }
 
 
+    public NettyServletRequest getRequestFacade()
+    {
+        return requestFacade;
+    }
+
     public void setRequestFacade(NettyServletRequest requestFacade)
     {
         this.requestFacade = requestFacade;
 
     }
+
+    /**
+     * 可以复用的 PrintWriter：回收时清除出错标记，字符缓冲在响应结束时已经刷出
+     */
+    private static final class ResponseWriter extends PrintWriter
+    {
+        private ResponseWriter(NettyServletOutputStream out)
+        {
+            super(out);
+        }
+
+        private void recycle()
+        {
+            clearError();
+        }
+    }
 }
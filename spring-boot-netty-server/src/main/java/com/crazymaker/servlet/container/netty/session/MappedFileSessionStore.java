@@ -0,0 +1,678 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的 Session 存储
+ * <p>
+ * 文件是一个只追加的日志，每次 save / remove 都在末尾追加一条记录：
+ * <pre>
+ * type(1) | idLength(4) | dataLength(4) | expireTime(8) | crc32(4) | id | data
+ * </pre>
+ * type 为 1 表示保存，2 表示删除，3 表示访问，0 表示日志结束。访问记录的 data 只有 8 字节的最后访问时间，
+ * 只访问、没有修改属性的 Session 不需要重写整条记录。写入时先写记录体，最后写 type，
+ * 进程在写入中途退出时 type 仍是 0，重启后从这里继续追加，不会读到半条记录。
+ * <p>
+ * 启动时只扫描记录头，在内存中建立 ID 到最新保存记录和之后最新访问记录的索引，不反序列化任何 Session；
+ * 记录体在 load 时才读取。到期的记录在扫描结束时清除（保存记录可能被之后的访问记录延期），运行中由 flush 定期从索引中清除；
+ * 失效的记录（被覆盖、删除或到期）超过一半时，在后台线程的 flush 中把有效记录复制到新文件，再原子地替换旧文件：
+ * 复制在锁外进行，读的是整理开始时日志的只读映射，期间 load / save / remove 照常执行；
+ * 最后加锁补上复制期间追加的记录，再替换文件。
+ * <p>
+ * 写入的是映射内存，进程退出后由操作系统写回文件；只有 close 时才强制刷盘，机器掉电时可能丢失最近的写入。
+ */
+public class MappedFileSessionStore implements SessionStore
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_SAVE = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_TOUCH = 3;
+
+    private static final int TOUCH_DATA_LENGTH = 8;
+
+    private static final int HEADER_LENGTH = 1 + 4 + 4 + 8 + 4;
+
+    private static final int ID_LENGTH_OFFSET = 1;
+
+    private static final int DATA_LENGTH_OFFSET = 5;
+
+    private static final int EXPIRE_TIME_OFFSET = 9;
+
+    private static final int CRC_OFFSET = 17;
+
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    /**
+     * 单个映射区域最大 2G
+     */
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * 日志小于这个大小时不整理
+     */
+    private static final int MIN_COMPACT_SIZE = 4 << 20;
+
+    /**
+     * 清除到期记录的间隔
+     */
+    private static final long PURGE_INTERVAL_MS = 60 * 1000L;
+
+    private final Path path;
+
+    private final Path compactPath;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * 下一条记录的写入位置
+     */
+    private int writePosition;
+
+    /**
+     * SessionID 到最新记录的位置
+     */
+    private final Map<String, Entry> index = new HashMap<>();
+
+    /**
+     * 有效记录的总字节数
+     */
+    private long liveBytes;
+
+    private long lastPurgeTime = System.currentTimeMillis();
+
+    /**
+     * 正在整理日志，同一时刻只有一次整理
+     */
+    private boolean compacting;
+
+    public MappedFileSessionStore(File file) throws IOException
+    {
+        this.path = file.getAbsoluteFile().toPath();
+        this.compactPath = path.resolveSibling(path.getFileName() + ".compact");
+        Path parent = path.getParent();
+        if (parent != null)
+        {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), INITIAL_SIZE);
+        if (size > MAX_SIZE)
+        {
+            channel.close();
+            throw new IOException("Session store file is too large: " + path);
+        }
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        recover();
+        log.info("Session store {} has been opened, {} sessions, {} bytes", path, index.size(), writePosition);
+    }
+
+    /**
+     * 扫描记录头重建索引，遇到结束标记、越界或校验失败的记录时停止，从那里继续追加
+     */
+    private void recover()
+    {
+        long now = System.currentTimeMillis();
+        int position = 0;
+        int limit = buffer.capacity();
+        while (position + HEADER_LENGTH <= limit)
+        {
+            byte type = buffer.get(position);
+            if (type != TYPE_SAVE && type != TYPE_REMOVE && type != TYPE_TOUCH)
+            {
+                break;
+            }
+            int idLength = buffer.getInt(position + ID_LENGTH_OFFSET);
+            int dataLength = buffer.getInt(position + DATA_LENGTH_OFFSET);
+            if (idLength <= 0 || dataLength < 0
+                    || (long) position + HEADER_LENGTH + idLength + dataLength > limit)
+            {
+                break;
+            }
+            int crc = buffer.getInt(position + CRC_OFFSET);
+            if (crc != checksum(position + HEADER_LENGTH, idLength + dataLength))
+            {
+                log.warn("Session store {} has a corrupted record at {}, truncated", path, position);
+                break;
+            }
+            String id = readId(position);
+            if (type == TYPE_SAVE)
+            {
+                indexRecord(id, position);
+            } else if (type == TYPE_TOUCH)
+            {
+                touchRecord(id, position);
+            } else
+            {
+                unindexRecord(id);
+            }
+            position += HEADER_LENGTH + idLength + dataLength;
+        }
+        writePosition = position;
+        purgeExpired(now);
+    }
+
+    @Override
+    public synchronized Record load(String id) throws IOException
+    {
+        checkOpen();
+        Entry entry = index.get(id);
+        if (entry == null || entry.expireTime <= System.currentTimeMillis())
+        {
+            return null;
+        }
+        int position = entry.position;
+        int idLength = buffer.getInt(position + ID_LENGTH_OFFSET);
+        int dataLength = buffer.getInt(position + DATA_LENGTH_OFFSET);
+        byte[] data = new byte[dataLength];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_LENGTH + idLength);
+        slice.get(data);
+        long lastAccessedTime = 0;
+        if (entry.touchPosition >= 0)
+        {
+            lastAccessedTime = buffer.getLong(entry.touchPosition + HEADER_LENGTH
+                    + buffer.getInt(entry.touchPosition + ID_LENGTH_OFFSET));
+        }
+        return new Record(data, lastAccessedTime);
+    }
+
+    @Override
+    public synchronized void save(String id, byte[] record, long expireTime) throws IOException
+    {
+        checkOpen();
+        int position = append(TYPE_SAVE, id.getBytes(StandardCharsets.UTF_8), record, expireTime);
+        indexRecord(id, position);
+    }
+
+    /**
+     * 没有保存记录的 Session 不追加访问记录：重启后只有访问时间也无法恢复
+     */
+    @Override
+    public synchronized void touch(String id, long lastAccessedTime, long expireTime) throws IOException
+    {
+        checkOpen();
+        if (!index.containsKey(id))
+        {
+            return;
+        }
+        byte[] data = new byte[TOUCH_DATA_LENGTH];
+        ByteBuffer.wrap(data).putLong(lastAccessedTime);
+        int position = append(TYPE_TOUCH, id.getBytes(StandardCharsets.UTF_8), data, expireTime);
+        touchRecord(id, position);
+    }
+
+    @Override
+    public synchronized void remove(String id) throws IOException
+    {
+        checkOpen();
+        if (!index.containsKey(id))
+        {
+            return;
+        }
+        append(TYPE_REMOVE, id.getBytes(StandardCharsets.UTF_8), new byte[0], 0);
+        unindexRecord(id);
+    }
+
+    /**
+     * 定期清除到期的记录，失效记录超过一半时整理日志
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        Snapshot snapshot;
+        synchronized (this)
+        {
+            checkOpen();
+            long now = System.currentTimeMillis();
+            if (now - lastPurgeTime >= PURGE_INTERVAL_MS)
+            {
+                lastPurgeTime = now;
+                purgeExpired(now);
+            }
+            if (compacting || writePosition < MIN_COMPACT_SIZE || liveBytes * 2 >= writePosition)
+            {
+                return;
+            }
+            snapshot = snapshot();
+            compacting = true;
+        }
+        try
+        {
+            compact(snapshot);
+        } finally
+        {
+            PlatformDependent.freeDirectBuffer(snapshot.buffer);
+            synchronized (this)
+            {
+                compacting = false;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (channel == null)
+        {
+            return;
+        }
+        buffer.force();
+        channel.close();
+        PlatformDependent.freeDirectBuffer(buffer);
+        channel = null;
+        buffer = null;
+        index.clear();
+    }
+
+    /**
+     * @return 当前保存的 Session 数
+     */
+    public synchronized int getSessionCount()
+    {
+        return index.size();
+    }
+
+    /**
+     * @return 日志的长度（字节）
+     */
+    public synchronized int getLogBytes()
+    {
+        return writePosition;
+    }
+
+    /**
+     * @return 有效记录的总字节数
+     */
+    public synchronized long getLiveBytes()
+    {
+        return liveBytes;
+    }
+
+    /**
+     * 追加一条记录，先写记录体和下一条记录的结束标记，最后写 type
+     *
+     * @return 记录的位置
+     */
+    private int append(byte type, byte[] id, byte[] data, long expireTime) throws IOException
+    {
+        int position = writePosition;
+        long end = (long) position + HEADER_LENGTH + id.length + data.length;
+        ensureCapacity(end + 1);
+        CRC32 crc = new CRC32();
+        crc.update(id);
+        crc.update(data);
+        buffer.putInt(position + ID_LENGTH_OFFSET, id.length);
+        buffer.putInt(position + DATA_LENGTH_OFFSET, data.length);
+        buffer.putLong(position + EXPIRE_TIME_OFFSET, expireTime);
+        buffer.putInt(position + CRC_OFFSET, (int) crc.getValue());
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_LENGTH);
+        slice.put(id);
+        slice.put(data);
+        buffer.put((int) end, TYPE_END);
+        buffer.put(position, type);
+        writePosition = (int) end;
+        return position;
+    }
+
+    /**
+     * 映射区域不够时按两倍扩大，重新映射会同时扩大文件
+     */
+    private void ensureCapacity(long required) throws IOException
+    {
+        buffer = ensureCapacity(channel, buffer, required);
+    }
+
+    /**
+     * @return 足够大的映射区域，扩大时释放原来的映射
+     */
+    private MappedByteBuffer ensureCapacity(FileChannel channel, MappedByteBuffer buffer, long required)
+            throws IOException
+    {
+        if (required <= buffer.capacity())
+        {
+            return buffer;
+        }
+        if (required > MAX_SIZE)
+        {
+            throw new IOException("Session store " + path + " is full");
+        }
+        long size = Math.min(Math.max((long) buffer.capacity() * 2, required), MAX_SIZE);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        PlatformDependent.freeDirectBuffer(buffer);
+        return mapped;
+    }
+
+    private void closeQuietly(FileChannel channel)
+    {
+        try
+        {
+            channel.close();
+        } catch (IOException e)
+        {
+            log.warn("Failed to close the old session store file {}", path, e);
+        }
+    }
+
+    /**
+     * 记下当前的有效记录，并把日志中已经写完的部分映射为只读，之后的复制不需要持有锁：
+     * 追加只会写在 writePosition 之后，已经写完的记录不会再变
+     */
+    private Snapshot snapshot() throws IOException
+    {
+        int size = index.size();
+        String[] ids = new String[size];
+        Entry[] entries = new Entry[size];
+        int i = 0;
+        for (Map.Entry<String, Entry> mapping : index.entrySet())
+        {
+            Entry entry = mapping.getValue();
+            Entry copy = new Entry(entry.position, entry.expireTime);
+            copy.touchPosition = entry.touchPosition;
+            ids[i] = mapping.getKey();
+            entries[i] = copy;
+            i++;
+        }
+        MappedByteBuffer source = channel.map(FileChannel.MapMode.READ_ONLY, 0, writePosition);
+        return new Snapshot(ids, entries, source, writePosition, liveBytes);
+    }
+
+    /**
+     * 在锁外把快照中的有效记录复制到新文件并刷盘；再加锁补上复制期间追加的记录，原子地替换旧文件。
+     * 已经打开的 FileChannel 在改名后仍指向新文件；复制失败时旧文件和索引保持不变
+     */
+    private void compact(Snapshot snapshot) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long size = Math.min(Math.max(snapshot.liveBytes * 2, INITIAL_SIZE), MAX_SIZE);
+        FileChannel newChannel = FileChannel.open(compactPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        MappedByteBuffer newBuffer = null;
+        try
+        {
+            newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            //访问记录紧跟在保存记录之后，重启扫描时按同样的顺序生效
+            Map<String, Entry> newIndex = new HashMap<>(snapshot.ids.length * 2);
+            int position = 0;
+            for (int i = 0; i < snapshot.ids.length; i++)
+            {
+                Entry entry = snapshot.entries[i];
+                Entry copy = new Entry(position, entry.expireTime);
+                newBuffer = ensureCapacity(newChannel, newBuffer,
+                        (long) position + entryLength(snapshot.buffer, entry) + 1);
+                position += copyRecord(snapshot.buffer, entry.position, newBuffer, position);
+                if (entry.touchPosition >= 0)
+                {
+                    copy.touchPosition = position;
+                    position += copyRecord(snapshot.buffer, entry.touchPosition, newBuffer, position);
+                }
+                newIndex.put(snapshot.ids[i], copy);
+            }
+            newBuffer.put(position, TYPE_END);
+            newBuffer.force();
+
+            synchronized (this)
+            {
+                if (channel == null)
+                {
+                    //整理期间被关闭
+                    newChannel.close();
+                    PlatformDependent.freeDirectBuffer(newBuffer);
+                    Files.deleteIfExists(compactPath);
+                    return;
+                }
+                int oldSize = writePosition;
+                //补上复制期间追加的记录，按日志的顺序生效
+                for (int from = snapshot.end; from < writePosition; )
+                {
+                    int length = recordLength(buffer, from);
+                    newBuffer = ensureCapacity(newChannel, newBuffer, (long) position + length + 1);
+                    copyRecord(buffer, from, newBuffer, position);
+                    byte type = buffer.get(from);
+                    String id = readId(from);
+                    if (type == TYPE_SAVE)
+                    {
+                        newIndex.put(id, new Entry(position, buffer.getLong(from + EXPIRE_TIME_OFFSET)));
+                    } else if (type == TYPE_TOUCH)
+                    {
+                        Entry entry = newIndex.get(id);
+                        if (entry != null)
+                        {
+                            entry.touchPosition = position;
+                            entry.expireTime = buffer.getLong(from + EXPIRE_TIME_OFFSET);
+                        }
+                    } else
+                    {
+                        newIndex.remove(id);
+                    }
+                    position += length;
+                    from += length;
+                }
+                //复制期间到期清除的 Session 不写删除记录，这里同样去掉
+                newIndex.keySet().retainAll(index.keySet());
+                newBuffer.put(position, TYPE_END);
+                newBuffer.force();
+                Files.move(compactPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                FileChannel oldChannel = channel;
+                PlatformDependent.freeDirectBuffer(buffer);
+                channel = newChannel;
+                buffer = newBuffer;
+                index.clear();
+                index.putAll(newIndex);
+                writePosition = position;
+                liveBytes = 0;
+                for (Entry entry : index.values())
+                {
+                    liveBytes += entryLength(buffer, entry);
+                }
+                log.info("Session store {} has been compacted from {} to {} bytes in {}ms", path, oldSize, position,
+                        System.currentTimeMillis() - start);
+                closeQuietly(oldChannel);
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            newChannel.close();
+            if (newBuffer != null)
+            {
+                PlatformDependent.freeDirectBuffer(newBuffer);
+            }
+            throw e;
+        }
+    }
+    /**
+     * @return 复制的字节数
+     */
+    private static int copyRecord(ByteBuffer source, int from, MappedByteBuffer target, int to)
+    {
+        int length = recordLength(source, from);
+        ByteBuffer record = source.duplicate();
+        record.position(from);
+        record.limit(from + length);
+        ByteBuffer slice = target.duplicate();
+        slice.position(to);
+        slice.put(record);
+        return length;
+    }
+
+    /**
+     * 到期的记录只从索引中去掉，不需要追加删除记录：重启扫描时同样会跳过它们
+     */
+    private void purgeExpired(long now)
+    {
+        Iterator<Entry> entries = index.values().iterator();
+        while (entries.hasNext())
+        {
+            Entry entry = entries.next();
+            if (entry.expireTime <= now)
+            {
+                liveBytes -= entryLength(entry);
+                entries.remove();
+            }
+        }
+    }
+
+    private void indexRecord(String id, int position)
+    {
+        Entry entry = new Entry(position, buffer.getLong(position + EXPIRE_TIME_OFFSET));
+        Entry old = index.put(id, entry);
+        if (old != null)
+        {
+            liveBytes -= entryLength(old);
+        }
+        liveBytes += entryLength(entry);
+    }
+
+    /**
+     * 访问记录只替换同一个 Session 之前的访问记录，保存记录不变
+     */
+    private void touchRecord(String id, int position)
+    {
+        Entry entry = index.get(id);
+        if (entry == null)
+        {
+            return;
+        }
+        if (entry.touchPosition >= 0)
+        {
+            liveBytes -= recordLength(entry.touchPosition);
+        }
+        entry.touchPosition = position;
+        entry.expireTime = buffer.getLong(position + EXPIRE_TIME_OFFSET);
+        liveBytes += recordLength(position);
+    }
+
+    private void unindexRecord(String id)
+    {
+        Entry old = index.remove(id);
+        if (old != null)
+        {
+            liveBytes -= entryLength(old);
+        }
+    }
+
+    private int entryLength(Entry entry)
+    {
+        return entryLength(buffer, entry);
+    }
+
+    private static int entryLength(ByteBuffer buffer, Entry entry)
+    {
+        int length = recordLength(buffer, entry.position);
+        if (entry.touchPosition >= 0)
+        {
+            length += recordLength(buffer, entry.touchPosition);
+        }
+        return length;
+    }
+
+    private int recordLength(int position)
+    {
+        return recordLength(buffer, position);
+    }
+
+    private static int recordLength(ByteBuffer buffer, int position)
+    {
+        return HEADER_LENGTH + buffer.getInt(position + ID_LENGTH_OFFSET) + buffer.getInt(position + DATA_LENGTH_OFFSET);
+    }
+
+    private String readId(int position)
+    {
+        byte[] id = new byte[buffer.getInt(position + ID_LENGTH_OFFSET)];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_LENGTH);
+        slice.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private int checksum(int position, int length)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.limit(position + length);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (channel == null)
+        {
+            throw new IOException("Session store " + path + " has been closed");
+        }
+    }
+
+    /**
+     * 一个 Session 在日志中的有效记录
+     */
+    private static final class Entry
+    {
+        /**
+         * 最新的保存记录
+         */
+        final int position;
+
+        /**
+         * 保存之后最新的访问记录，没有时为 -1
+         */
+        int touchPosition = -1;
+
+        /**
+         * 以最新的记录为准的到期时间
+         */
+        long expireTime;
+
+        Entry(int position, long expireTime)
+        {
+            this.position = position;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * 整理开始时的有效记录和日志的只读映射
+     */
+    private static final class Snapshot
+    {
+        final String[] ids;
+        final Entry[] entries;
+        final MappedByteBuffer buffer;
+        /**
+         * 快照覆盖的日志长度，之后追加的记录在替换文件前补上
+         */
+        final int end;
+        final long liveBytes;
+
+        Snapshot(String[] ids, Entry[] entries, MappedByteBuffer buffer, int end, long liveBytes)
+        {
+            this.ids = ids;
+            this.entries = entries;
+            this.buffer = buffer;
+            this.end = end;
+            this.liveBytes = liveBytes;
+        }
+    }
+}
@@ -1,14 +1,23 @@
 package com.crazymaker.servlet.container.netty.session;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.Timeout;
+
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Leibniz.Hu
@@ -18,11 +27,41 @@ public class NettyHttpSession implements HttpSession, Serializable
 {
     public static final String SESSION_COOKIE_NAME = "JSESSIONID";
     public static final String SESSION_REQUEST_PARAMETER_NAME = "jsessionid";
+
+    /**
+     * 持久化记录的格式版本
+     */
+    private static final int RECORD_VERSION = 1;
     private NettySessionManager manager;
     private long creationTime;
-    private long lastAccessedTime;
-    private int interval = NettySessionManager.SESSION_LIFE_SECONDS;
-    private String id;
+    private volatile long lastAccessedTime;
+    private volatile int interval = NettySessionManager.SESSION_LIFE_SECONDS;
+    private volatile String id;
+
+    /**
+     * 失效（invalidate、过期、被淘汰）后为 false
+     */
+    private volatile boolean valid = true;
+
+    /**
+     * 时间轮上的到期任务
+     */
+    private volatile Timeout expireTimeout;
+
+    /**
+     * 属性或超时时间有变化，需要重写整条持久化记录
+     */
+    static final int DIRTY_RECORD = 1;
+
+    /**
+     * 只是被访问过，只需要写入最后访问时间
+     */
+    static final int DIRTY_ACCESS = 2;
+
+    /**
+     * 还没有写入持久化存储的变化，DIRTY_RECORD / DIRTY_ACCESS 的组合
+     */
+    private final AtomicInteger dirty = new AtomicInteger();
 
     NettyHttpSession(String id, NettySessionManager manager)
     {
@@ -53,6 +92,11 @@ public class NettyHttpSession implements HttpSession, Serializable
         return id;
     }
 
+    void setId(String id)
+    {
+        this.id = id;
+    }
+
     void updateAccessTime()
     {
         lastAccessedTime = System.currentTimeMillis();
@@ -74,6 +118,9 @@ public class NettyHttpSession implements HttpSession, Serializable
     public void setMaxInactiveInterval(int interval)
     {
         this.interval = interval;
+        //到期时间可能提前，按新的超时时间重新登记到期任务
+        manager.scheduleExpiry(this);
+        manager.sessionChanged(this);
     }
 
     @Override
@@ -89,69 +136,274 @@ public class NettyHttpSession implements HttpSession, Serializable
         return null;
     }
 
-    private Map<String, Object> attributes = new ConcurrentHashMap<>();
+    /**
+     * 活跃 Session 的属性；属性被转存到堆外时为 null，下次访问时恢复
+     */
+    private volatile Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    /**
+     * 转存到堆外的属性，由 this 锁保护
+     */
+    private transient ByteBuf storedAttributes;
+
+    /**
+     * 时间轮上的转存任务
+     */
+    private volatile Timeout passivateTimeout;
+
+    /**
+     * 读操作直接使用当前的属性表；属性在堆外时加锁恢复
+     */
+    private Map<String, Object> attributes()
+    {
+        Map<String, Object> map = attributes;
+        if (map != null)
+        {
+            return map;
+        }
+        synchronized (this)
+        {
+            if (attributes == null)
+            {
+                attributes = manager.activate(this, storedAttributes);
+                storedAttributes = null;
+            }
+            return attributes;
+        }
+    }
 
     @Override
     public Object getAttribute(String name)
     {
-        return attributes.get(name);
+        return attributes().get(name);
     }
 
     @Override
     @Deprecated
     public Object getValue(String name)
     {
-        return attributes.get(name);
+        return getAttribute(name);
     }
 
     @Override
     public Enumeration<String> getAttributeNames()
     {
-        return Collections.enumeration(attributes.keySet());
+        return Collections.enumeration(attributes().keySet());
     }
 
     @Override
     @Deprecated
     public String[] getValueNames()
     {
-        Set<String> nameSet = attributes.keySet();
+        Set<String> nameSet = attributes().keySet();
         String[] nameArray = new String[nameSet.size()];
         return nameSet.toArray(nameArray);
     }
 
+    /**
+     * 写操作与转存互斥，保证转存之后不会有写入丢失
+     */
     @Override
-    public void setAttribute(String name, Object value)
+    public synchronized void setAttribute(String name, Object value)
     {
-        attributes.put(name, value);
+        attributes().put(name, value);
+        manager.sessionChanged(this);
     }
 
     @Override
     @Deprecated
     public void putValue(String name, Object value)
     {
-        attributes.put(name, value);
+        setAttribute(name, value);
     }
 
     @Override
-    public void removeAttribute(String name)
+    public synchronized void removeAttribute(String name)
     {
-        attributes.remove(name);
+        attributes().remove(name);
+        manager.sessionChanged(this);
     }
 
     @Override
     @Deprecated
     public void removeValue(String name)
     {
-        attributes.remove(name);
+        removeAttribute(name);
     }
 
     @Override
     public void invalidate()
     {
-        attributes.clear();
-        attributes = null;
         manager.invalidate(this);
-        manager = null;
+    }
+
+    /**
+     * 由 SessionManager 在失效开始时、从存储中删除之前调用，与写入线程的保存互斥
+     */
+    synchronized void markInvalid()
+    {
+        valid = false;
+    }
+
+    /**
+     * 由 SessionManager 调用：标记为失效，取消到期和转存任务，清空属性
+     */
+    void destroy()
+    {
+        valid = false;
+        Timeout timeout = expireTimeout;
+        if (timeout != null)
+        {
+            timeout.cancel();
+            expireTimeout = null;
+        }
+        timeout = passivateTimeout;
+        if (timeout != null)
+        {
+            timeout.cancel();
+            passivateTimeout = null;
+        }
+        synchronized (this)
+        {
+            if (storedAttributes != null)
+            {
+                manager.releaseStored(storedAttributes);
+                storedAttributes = null;
+                attributes = new ConcurrentHashMap<>();
+            } else
+            {
+                attributes.clear();
+            }
+        }
+    }
+
+    /**
+     * 由转存任务调用：把属性序列化到堆外，堆上只保留 Session 本身。
+     * 正在使用中的 Session 读到的仍是转存前的属性表，属性对象内部的修改如果没有再次 setAttribute，转存后会丢失，
+     * 所以只转存空闲了足够长时间的 Session
+     *
+     * @return 是否转存成功
+     */
+    synchronized boolean passivate(OffHeapAttributeStore store)
+    {
+        Map<String, Object> map = attributes;
+        if (!valid || map == null || map.isEmpty())
+        {
+            return false;
+        }
+        ByteBuf buf = store.store(map);
+        if (buf == null)
+        {
+            return false;
+        }
+        storedAttributes = buf;
+        attributes = null;
+        return true;
+    }
+
+    /**
+     * @return 属性是否在堆外
+     */
+    public boolean isPassivated()
+    {
+        return attributes == null;
+    }
+
+    /**
+     * @return 属性在堆外占用的字节数，属性在堆上时为 0
+     */
+    public synchronized int getStoredBytes()
+    {
+        return storedAttributes == null ? 0 : storedAttributes.writerIndex();
+    }
+
+    void setPassivateTimeout(Timeout passivateTimeout)
+    {
+        this.passivateTimeout = passivateTimeout;
+    }
+
+    /**
+     * @param flag DIRTY_RECORD 或 DIRTY_ACCESS
+     * @return 之前是否没有任何变化，只有这时才需要把 Session 放进待写入队列
+     */
+    boolean markDirty(int flag)
+    {
+        while (true)
+        {
+            int current = dirty.get();
+            if ((current & flag) == flag || dirty.compareAndSet(current, current | flag))
+            {
+                return current == 0;
+            }
+        }
+    }
+
+    /**
+     * @return 清除前的变化
+     */
+    int clearDirty()
+    {
+        return dirty.getAndSet(0);
+    }
+
+    /**
+     * 持久化记录：版本、创建时间、最后访问时间、超时时间，然后是属性。
+     * 属性在堆外时直接复制堆外的序列化结果（两者格式相同），不需要恢复到堆上；不能序列化的属性不保存
+     */
+    synchronized byte[] toRecord() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(RECORD_VERSION);
+        out.writeLong(creationTime);
+        out.writeLong(lastAccessedTime);
+        out.writeInt(interval);
+        if (storedAttributes != null)
+        {
+            storedAttributes.getBytes(0, out, storedAttributes.writerIndex());
+        } else
+        {
+            SessionSerializer.writeAttributes(attributes, out, true);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 从持久化记录恢复 Session，恢复的 Session 不是新建的
+     */
+    static NettyHttpSession fromRecord(String id, NettySessionManager manager, SessionStore.Record record,
+            ClassLoader classLoader) throws IOException, ClassNotFoundException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.getData()));
+        int version = in.readInt();
+        if (version != RECORD_VERSION)
+        {
+            throw new IOException("Unsupported session record version: " + version);
+        }
+        NettyHttpSession session = new NettyHttpSession(id, manager);
+        session.creationTime = in.readLong();
+        //保存之后的访问只写入了访问时间
+        session.lastAccessedTime = Math.max(in.readLong(), record.getLastAccessedTime());
+        session.interval = in.readInt();
+        session.attributes = SessionSerializer.readAttributes(in, classLoader);
+        session.isNew = false;
+        return session;
+    }
+
+    boolean isValid()
+    {
+        return valid;
+    }
+
+    Timeout getExpireTimeout()
+    {
+        return expireTimeout;
+    }
+
+    void setExpireTimeout(Timeout expireTimeout)
+    {
+        this.expireTimeout = expireTimeout;
     }
 
     private boolean isNew = true;
@@ -174,6 +426,15 @@ public class NettyHttpSession implements HttpSession, Serializable
      */
     public boolean expire()
     {
-        return System.currentTimeMillis() - creationTime >= interval * 1000;
+        return interval > 0 && System.currentTimeMillis() >= getExpireTime();
+    }
+
+    /**
+     * @return 按最后访问时间计算的到期时间，超时时间不大于 0 时永不过期
+     */
+    long getExpireTime()
+    {
+        int interval = this.interval;
+        return interval > 0 ? lastAccessedTime + interval * 1000L : Long.MAX_VALUE;
     }
 }
@@ -1,32 +1,158 @@
 package com.crazymaker.servlet.container.netty.session;
 
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
 import com.crazymaker.servlet.container.netty.core.NettyServletContext;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Netty 会话管理器
+ * <p>
+ * Session 按 ID 的哈希分散到多个分片中，每个分片是一个按访问顺序排列的 LinkedHashMap，由各自的锁保护：
+ * 配置了最大 Session 数时，分片超过上限就淘汰最久没有访问的 Session（分片内的 LRU，整体上是近似 LRU）。
+ * <p>
+ * 过期不再定期扫描全部 Session：每个 Session 创建时在时间轮（HashedWheelTimer）上登记一个到期任务，
+ * 到期时如果期间有过访问，就按新的到期时间重新登记，否则使其失效。请求访问 Session 时不需要操作时间轮。
+ * <p>
+ * 打开 session-off-heap 时，空闲超过 session-off-heap-idle-ms 的 Session 由同一个时间轮上的转存任务检查，
+ * 序列化交给 "Session-Passivate" 线程执行，不占用时间轮线程，到期检查不会被大的 Session 拖慢；
+ * 再次访问时恢复为堆上的属性表，并重新登记转存任务。
+ * <p>
+ * 配置了持久化存储（session-store-type）时，Session 的创建、属性变化和访问只把 Session 放进待写入队列，
+ * 由 "Session-Store" 线程每隔 session-store-flush-ms 批量写入；失效的 Session 立即从存储中删除。
+ * 容器重启后不预先加载任何 Session，请求带来的 SessionID 在内存中找不到时才从存储中按 ID 加载。
  */
 public class NettySessionManager
 {
     private Logger log = LoggerFactory.getLogger(getClass());
 
     private NettyServletContext servletContext;
-    private Map<String, NettyHttpSession> sessions = new ConcurrentHashMap<>();
     static final int SESSION_LIFE_SECONDS = 60 * 30;
     static final int SESSION_LIFE_MILLISECONDS = SESSION_LIFE_SECONDS * 1000;
-    private static final int SESSION_LIFE_CHECK_INTER = 1000 * 60;
+
+    /**
+     * 时间轮每一格的槽数
+     */
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final Shard[] shards;
+    private final int shardMask;
+
+    private final SessionIdGenerator idGenerator = new SessionIdGenerator();
+
+    /**
+     * 过期时间轮，第一个 Session 创建时才启动
+     */
+    private volatile Timer expireTimer;
+
+    private final LongAdder evictedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+
+    /**
+     * 空闲 Session 属性的堆外存储，没有打开时为 null
+     */
+    private final OffHeapAttributeStore attributeStore;
+
+    private final long passivateIdleMs;
+
+    /**
+     * 执行序列化的转存线程，第一次转存时才启动
+     */
+    private volatile ExecutorService passivateExecutor;
+
+    /**
+     * 持久化存储，没有配置时为 null
+     */
+    private volatile SessionStore sessionStore;
+
+    /**
+     * 等待写入持久化存储的 Session，每个 Session 最多出现一次
+     */
+    private final Queue<NettyHttpSession> dirtySessions = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 批量写入持久化存储的后台线程，设置了存储时才启动
+     */
+    private ScheduledExecutorService storeExecutor;
+
+    private final LongAdder restoredCount = new LongAdder();
 
     public NettySessionManager(NettyServletContext servletContext)
     {
         this.servletContext = servletContext;
-        new Thread(new checkInvalidSessions(), "Session-Check").start();
+        NettyWebServerConfig config = NettyWebServerConfig.getInstance();
+        int shardCount = 1;
+        while (shardCount < config.getSessionShards())
+        {
+            shardCount <<= 1;
+        }
+        int maxCount = config.getSessionMaxCount();
+        int maxPerShard = maxCount > 0 ? Math.max(1, (maxCount + shardCount - 1) / shardCount) : 0;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+        {
+            shards[i] = new Shard(maxPerShard);
+        }
+        this.shardMask = shardCount - 1;
+        this.attributeStore = config.isSessionOffHeap()
+                ? new OffHeapAttributeStore(config.getSessionOffHeapMaxBytes(), servletContext.getClassLoader())
+                : null;
+        this.passivateIdleMs = config.getSessionOffHeapIdleMs();
+        if (config.getSessionStoreType() == NettyWebServerConfig.SessionStoreType.MAPPED_FILE)
+        {
+            try
+            {
+                setSessionStore(new MappedFileSessionStore(new File(config.getSessionStoreFile())));
+            } catch (IOException e)
+            {
+                //存储打不开时不影响容器启动，Session 只保存在内存中
+                log.error("Failed to open session store {}, sessions will not be persisted",
+                        config.getSessionStoreFile(), e);
+            }
+        }
+    }
+
+    /**
+     * 设置持久化存储并启动批量写入线程，只能在容器处理请求之前调用一次
+     */
+    public synchronized void setSessionStore(SessionStore sessionStore)
+    {
+        if (this.sessionStore != null)
+        {
+            throw new IllegalStateException("Session store has already been set");
+        }
+        this.sessionStore = sessionStore;
+        long flushMs = Math.max(NettyWebServerConfig.getInstance().getSessionStoreFlushMs(), 1);
+        storeExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("Session-Store", true));
+        storeExecutor.scheduleWithFixedDelay(this::flushDirtySessions, flushMs, flushMs, TimeUnit.MILLISECONDS);
+    }
+
+    public SessionStore getSessionStore()
+    {
+        return sessionStore;
     }
 
     ServletContext getServletContext()
@@ -36,7 +162,17 @@ public class NettySessionManager
 
     void invalidate(HttpSession session)
     {
-        sessions.remove(session.getId());
+        NettyHttpSession nettySession = (NettyHttpSession) session;
+        //先标记为失效：写入线程之后不会再保存它，已经保存的记录由下面删除
+        nettySession.markInvalid();
+        //再从存储中删除：内存中找不到时，存储中也一定没有，并发的请求不会再把它加载回来
+        removeStored(nettySession.getId());
+        Shard shard = shard(nettySession.getId());
+        synchronized (shard)
+        {
+            shard.remove(nettySession.getId(), nettySession);
+        }
+        nettySession.destroy();
     }
 
     public void updateAccessTime(NettyHttpSession session)
@@ -44,31 +180,105 @@ public class NettySessionManager
         if (session != null)
         {
             session.updateAccessTime();
+            //最后访问时间决定重启后的到期时间，同样批量写入，但只写访问时间，不重新序列化属性
+            markDirty(session, NettyHttpSession.DIRTY_ACCESS);
         }
     }
 
     public boolean checkValid(NettyHttpSession session)
     {
-        return session != null && sessions.get(session.getId()) != null && !session.expire();
+        return session != null && session.isValid() && !session.expire();
     }
 
+    /**
+     * 查找 Session，同时更新它在 LRU 中的位置；已经过期但到期任务还没执行的 Session 直接失效
+     */
     public NettyHttpSession getSession(String id)
     {
-        return id == null ? null : sessions.get(id);
+        if (id == null)
+        {
+            return null;
+        }
+        Shard shard = shard(id);
+        NettyHttpSession session;
+        synchronized (shard)
+        {
+            session = shard.get(id);
+        }
+        if (session == null && sessionStore != null)
+        {
+            session = loadSession(id);
+        }
+        if (session != null && session.expire())
+        {
+            session.invalidate();
+            return null;
+        }
+        return session;
     }
 
     public NettyHttpSession createSession()
     {
-        String id = createUniqueSessionId();
-        NettyHttpSession newSession = new NettyHttpSession(id, this);
-        sessions.put(id, newSession);
-        return newSession;
+        while (true)
+        {
+            String id = idGenerator.generateSessionId();
+            NettyHttpSession newSession = new NettyHttpSession(id, this);
+            Shard shard = shard(id);
+            boolean added;
+            List<String> evicted;
+            synchronized (shard)
+            {
+                added = shard.putIfAbsent(id, newSession) == null;
+                evicted = shard.takeEvicted();
+            }
+            removeStored(evicted);
+            if (!added)
+            {
+                //极小概率的 ID 冲突，重新生成
+                continue;
+            }
+            scheduleExpiry(newSession);
+            schedulePassivation(newSession, passivateIdleMs);
+            sessionChanged(newSession);
+            return newSession;
+        }
     }
 
-    private String createUniqueSessionId()
+    /**
+     * 更换 SessionID，Session 的内容不变
+     */
+    public void changeSessionId(NettyHttpSession session)
     {
-        String prefix = String.valueOf(100000 + new Random().nextInt(899999));
-        return new StringBuilder().append(System.currentTimeMillis()).reverse().append(prefix).toString();
+        String oldId = session.getId();
+        Shard oldShard = shard(oldId);
+        synchronized (oldShard)
+        {
+            oldShard.remove(session.getId(), session);
+        }
+        while (true)
+        {
+            String id = idGenerator.generateSessionId();
+            Shard shard = shard(id);
+            boolean added;
+            List<String> evicted;
+            synchronized (shard)
+            {
+                added = shard.putIfAbsent(id, session) == null;
+                if (added)
+                {
+                    session.setId(id);
+                }
+                evicted = shard.takeEvicted();
+            }
+            removeStored(evicted);
+            if (added)
+            {
+                break;
+            }
+        }
+        //旧 ID 不能再用来恢复 Session
+        removeStored(oldId);
+        sessionChanged(session);
     }
 
     public void setOldSession(NettyHttpSession session)
@@ -80,33 +290,520 @@ public class NettySessionManager
     }
 
     /**
-     * 超时的Session无效化，定期执行
+     * Session 的超时时间变化后按新的到期时间重新登记
      */
-    private class checkInvalidSessions implements Runnable
+    void scheduleExpiry(NettyHttpSession session)
     {
-        @Override
-        public void run()
+        if (!session.isValid())
         {
-            log.info("Session Manager expire-checking thread has been started...");
-            while (true)
+            return;
+        }
+        Timeout old = session.getExpireTimeout();
+        if (old != null)
+        {
+            old.cancel();
+        }
+        session.setExpireTimeout(expireTimer().newTimeout(new ExpireTask(session), nextCheckDelay(session),
+                TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @return 距离下次检查的毫秒数，永不过期的 Session 每隔默认超时时间检查一次（超时时间可能被改回正数）
+     */
+    private static long nextCheckDelay(NettyHttpSession session)
+    {
+        if (session.getMaxInactiveInterval() <= 0)
+        {
+            return SESSION_LIFE_MILLISECONDS;
+        }
+        return Math.max(session.getExpireTime() - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Session 被访问时调用：把堆外的属性恢复到堆上，并重新登记转存任务
+     */
+    Map<String, Object> activate(NettyHttpSession session, ByteBuf stored)
+    {
+        Map<String, Object> attributes = attributeStore.load(stored);
+        schedulePassivation(session, passivateIdleMs);
+        return attributes;
+    }
+
+    void releaseStored(ByteBuf stored)
+    {
+        attributeStore.release(stored);
+    }
+
+    private void schedulePassivation(NettyHttpSession session, long delay)
+    {
+        if (attributeStore == null || !session.isValid())
+        {
+            return;
+        }
+        session.setPassivateTimeout(expireTimer().newTimeout(new PassivateTask(session), delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Session 有变化时调用，放进待写入队列，由后台线程批量写入
+     */
+    void sessionChanged(NettyHttpSession session)
+    {
+        markDirty(session, NettyHttpSession.DIRTY_RECORD);
+    }
+
+    private void markDirty(NettyHttpSession session, int flag)
+    {
+        if (sessionStore != null && session.markDirty(flag))
+        {
+            dirtySessions.offer(session);
+        }
+    }
+
+    /**
+     * 从持久化存储中加载 Session，到期或无法恢复的记录直接删除
+     */
+    private NettyHttpSession loadSession(String id)
+    {
+        SessionStore store = sessionStore;
+        NettyHttpSession session;
+        try
+        {
+            SessionStore.Record record = store.load(id);
+            if (record == null)
             {
+                return null;
+            }
+            session = NettyHttpSession.fromRecord(id, this, record, servletContext.getClassLoader());
+        } catch (IOException | ClassNotFoundException e)
+        {
+            log.warn("Failed to load Session(ID={}) from session store", id, e);
+            removeStored(id);
+            return null;
+        }
+        if (session.expire())
+        {
+            removeStored(id);
+            return null;
+        }
+        Shard shard = shard(id);
+        NettyHttpSession existing;
+        List<String> evicted;
+        synchronized (shard)
+        {
+            existing = shard.putIfAbsent(id, session);
+            evicted = shard.takeEvicted();
+        }
+        removeStored(evicted);
+        if (existing != null)
+        {
+            //并发的请求已经加载过
+            return existing;
+        }
+        log.debug("Session(ID={}) is restored from session store", id);
+        restoredCount.increment();
+        scheduleExpiry(session);
+        schedulePassivation(session, passivateIdleMs);
+        return session;
+    }
+
+    /**
+     * 删除淘汰的 Session 的记录，在释放分片锁之后调用
+     */
+    private void removeStored(List<String> ids)
+    {
+        if (ids == null)
+        {
+            return;
+        }
+        for (String id : ids)
+        {
+            removeStored(id);
+        }
+    }
+
+    private void removeStored(String id)
+    {
+        SessionStore store = sessionStore;
+        if (store == null)
+        {
+            return;
+        }
+        try
+        {
+            store.remove(id);
+        } catch (IOException e)
+        {
+            log.warn("Failed to remove Session(ID={}) from session store", id, e);
+        }
+    }
+
+    /**
+     * 后台线程：把待写入队列中的 Session 批量写入存储。
+     * 检查是否有效和写入都在 Session 锁内，与 markInvalid 互斥：失效之后不会再写入，失效之前写入的记录由 invalidate 删除。
+     * 写入期间 Session 可能更换 ID，写入后再检查一次，删除已经不能使用的记录
+     */
+    private void flushDirtySessions()
+    {
+        SessionStore store = sessionStore;
+        try
+        {
+            NettyHttpSession session;
+            while ((session = dirtySessions.poll()) != null)
+            {
+                int dirty = session.clearDirty();
+                String id = session.getId();
                 try
                 {
-                    Thread.sleep(SESSION_LIFE_CHECK_INTER);
-                } catch (InterruptedException e)
+                    synchronized (session)
+                    {
+                        if (!session.isValid())
+                        {
+                            continue;
+                        }
+                        if ((dirty & NettyHttpSession.DIRTY_RECORD) != 0)
+                        {
+                            store.save(id, session.toRecord(), session.getExpireTime());
+                        } else
+                        {
+                            store.touch(id, session.getLastAccessedTime(), session.getExpireTime());
+                        }
+                    }
+                } catch (IOException e)
                 {
-                    e.printStackTrace();
+                    log.warn("Failed to save Session(ID={}) to session store", id, e);
+                    continue;
                 }
-                long curTime = System.currentTimeMillis();
-                for (NettyHttpSession session : sessions.values())
+                if (!session.isValid() || !id.equals(session.getId()))
                 {
-                    if (session.expire())
-                    {
-                        log.info("Session(ID={}) is invalidated by Session Manager", session.getId());
-                        session.invalidate();
-                    }
+                    store.remove(id);
                 }
             }
+            store.flush();
+        } catch (IOException | RuntimeException e)
+        {
+            log.error("Failed to flush session store", e);
+        }
+    }
+
+    private Timer expireTimer()
+    {
+        Timer timer = expireTimer;
+        if (timer == null)
+        {
+            synchronized (this)
+            {
+                timer = expireTimer;
+                if (timer == null)
+                {
+                    timer = new HashedWheelTimer(new DefaultThreadFactory("Session-Expire", true),
+                            NettyWebServerConfig.getInstance().getSessionExpireTickMs(), TimeUnit.MILLISECONDS,
+                            TICKS_PER_WHEEL);
+                    expireTimer = timer;
+                    log.info("Session Manager expire timer has been started...");
+                }
+            }
+        }
+        return timer;
+    }
+
+    private ExecutorService passivateExecutor()
+    {
+        ExecutorService executor = passivateExecutor;
+        if (executor == null)
+        {
+            synchronized (this)
+            {
+                executor = passivateExecutor;
+                if (executor == null)
+                {
+                    executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("Session-Passivate", true));
+                    passivateExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 容器停止时调用，停止时间轮和转存线程
+     */
+    public void stop()
+    {
+        Timer timer = expireTimer;
+        if (timer != null)
+        {
+            timer.stop();
+            expireTimer = null;
+        }
+        ExecutorService executor = passivateExecutor;
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            passivateExecutor = null;
+        }
+        stopSessionStore();
+    }
+
+    /**
+     * 停止后台线程，写入剩下的 Session 并关闭存储
+     */
+    private synchronized void stopSessionStore()
+    {
+        SessionStore store = sessionStore;
+        if (store == null)
+        {
+            return;
+        }
+        storeExecutor.shutdown();
+        try
+        {
+            storeExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        flushDirtySessions();
+        sessionStore = null;
+        try
+        {
+            store.close();
+        } catch (IOException e)
+        {
+            log.error("Failed to close session store", e);
+        }
+    }
+
+    /**
+     * @return 当前的 Session 数
+     */
+    public int getSessionCount()
+    {
+        int count = 0;
+        for (Shard shard : shards)
+        {
+            synchronized (shard)
+            {
+                count += shard.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 因为超过最大 Session 数而被淘汰的 Session 数
+     */
+    public long getEvictedCount()
+    {
+        return evictedCount.sum();
+    }
+
+    /**
+     * @return 到期失效的 Session 数
+     */
+    public long getExpiredCount()
+    {
+        return expiredCount.sum();
+    }
+
+    /**
+     * @return 从持久化存储中恢复的 Session 数
+     */
+    public long getRestoredCount()
+    {
+        return restoredCount.sum();
+    }
+
+    /**
+     * @return 等待写入持久化存储的 Session 数
+     */
+    public int getDirtySessionCount()
+    {
+        return dirtySessions.size();
+    }
+
+    /**
+     * @return 堆外保存的 Session 属性总字节数
+     */
+    public long getOffHeapBytes()
+    {
+        return attributeStore == null ? 0 : attributeStore.getUsedBytes();
+    }
+
+    /**
+     * @return 属性在堆外的 Session 数
+     */
+    public int getPassivatedSessionCount()
+    {
+        return attributeStore == null ? 0 : attributeStore.getStoredSessions();
+    }
+
+    /**
+     * @return 因为属性不能序列化或堆外空间不足而没有转存的次数
+     */
+    public long getOffHeapRejectedCount()
+    {
+        return attributeStore == null ? 0 : attributeStore.getRejectedCount();
+    }
+
+    /**
+     * 查找时会更新 Session 在 LRU 中的位置
+     *
+     * @return 单个 Session 的属性在堆外占用的字节数，Session 不存在或属性在堆上时为 0
+     */
+    public int getSessionStoredBytes(String id)
+    {
+        NettyHttpSession session = getSession(id);
+        return session == null ? 0 : session.getStoredBytes();
+    }
+
+    private Shard shard(String id)
+    {
+        int h = id.hashCode();
+        return shards[(h ^ (h >>> 16)) & shardMask];
+    }
+
+    /**
+     * 分片：按访问顺序排列，超过上限时淘汰最久没有访问的 Session，只能在持有分片锁时访问。
+     * 淘汰时只记下 ID，存储中的记录由调用方在释放分片锁之后删除，存储的 I/O 不会卡住同一分片上的其他 Session
+     */
+    private final class Shard extends LinkedHashMap<String, NettyHttpSession>
+    {
+        private final int maxSize;
+
+        /**
+         * 淘汰之后还没有从存储中删除的 SessionID，没有时为 null
+         */
+        private List<String> evicted;
+
+        private Shard(int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NettyHttpSession> eldest)
+        {
+            if (maxSize <= 0 || size() <= maxSize)
+            {
+                return false;
+            }
+            log.debug("Session(ID={}) is evicted by Session Manager", eldest.getKey());
+            evictedCount.increment();
+            eldest.getValue().destroy();
+            if (sessionStore != null)
+            {
+                if (evicted == null)
+                {
+                    evicted = new ArrayList<>(1);
+                }
+                evicted.add(eldest.getKey());
+            }
+            return true;
+        }
+
+        /**
+         * @return 淘汰之后还没有从存储中删除的 SessionID，没有时为 null
+         */
+        List<String> takeEvicted()
+        {
+            List<String> ids = evicted;
+            evicted = null;
+            return ids;
+        }
+    }
+
+    /**
+     * 到期任务：期间有过访问就按新的到期时间重新登记，否则使 Session 失效
+     */
+    private final class ExpireTask implements TimerTask
+    {
+        private final NettyHttpSession session;
+
+        private ExpireTask(NettyHttpSession session)
+        {
+            this.session = session;
+        }
+
+        @Override
+        public void run(Timeout timeout)
+        {
+            if (!session.isValid())
+            {
+                return;
+            }
+            if (!session.expire())
+            {
+                session.setExpireTimeout(timeout.timer().newTimeout(this, nextCheckDelay(session), TimeUnit.MILLISECONDS));
+                return;
+            }
+            log.debug("Session(ID={}) is invalidated by Session Manager", session.getId());
+            expiredCount.increment();
+            session.invalidate();
+        }
+    }
+
+    /**
+     * 转存任务：空闲时间不够就按剩余时间重新登记，否则交给转存线程把属性转存到堆外；转存不成功时过一个空闲周期再试
+     */
+    private final class PassivateTask implements TimerTask, Runnable
+    {
+        private final NettyHttpSession session;
+
+        private PassivateTask(NettyHttpSession session)
+        {
+            this.session = session;
+        }
+
+        @Override
+        public void run(Timeout timeout)
+        {
+            if (!session.isValid() || session.isPassivated())
+            {
+                return;
+            }
+            long idle = System.currentTimeMillis() - session.getLastAccessedTime();
+            if (idle < passivateIdleMs)
+            {
+                schedulePassivation(session, passivateIdleMs - idle);
+                return;
+            }
+            try
+            {
+                passivateExecutor().execute(this);
+            } catch (RejectedExecutionException e)
+            {
+                //容器正在停止
+            }
+        }
+
+        /**
+         * 转存线程：排队期间 Session 可能又被访问过，再检查一次空闲时间
+         */
+        @Override
+        public void run()
+        {
+            if (!session.isValid() || session.isPassivated())
+            {
+                return;
+            }
+            long idle = System.currentTimeMillis() - session.getLastAccessedTime();
+            if (idle < passivateIdleMs)
+            {
+                schedulePassivation(session, passivateIdleMs - idle);
+                return;
+            }
+            try
+            {
+                if (session.passivate(attributeStore))
+                {
+                    return;
+                }
+            } catch (RuntimeException e)
+            {
+                log.warn("Failed to passivate Session(ID={})", session.getId(), e);
+            }
+            schedulePassivation(session, passivateIdleMs);
         }
     }
 }
@@ -0,0 +1,150 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 空闲 Session 属性的堆外存储
+ * <p>
+ * 所有 Session 共用一个独立的池化直接内存分配器（arena），空闲 Session 的属性用 Java 序列化写入其中，
+ * 堆上只剩下 Session 本身；再次访问时反序列化回 ConcurrentHashMap 并释放堆外内存。
+ * 总量超过上限、或者属性不能序列化时，属性留在堆上。
+ */
+class OffHeapAttributeStore
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Session 属性专用的分配器，与 Channel 的分配器分开，便于统计和限制
+     */
+    private final PooledByteBufAllocator alloc = new PooledByteBufAllocator(true);
+
+    private final long maxBytes;
+
+    private final ClassLoader classLoader;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final AtomicInteger storedSessions = new AtomicInteger();
+
+    /**
+     * 因为不能序列化或超过上限而留在堆上的次数
+     */
+    private final LongAdder rejectedCount = new LongAdder();
+
+    OffHeapAttributeStore(long maxBytes, ClassLoader classLoader)
+    {
+        this.maxBytes = maxBytes;
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * 把属性序列化到堆外
+     *
+     * @return 保存属性的缓冲区，不能序列化或超过上限时返回 null，属性应留在堆上
+     */
+    ByteBuf store(Map<String, Object> attributes)
+    {
+        ByteBuf buf = alloc.directBuffer();
+        boolean written = false;
+        try
+        {
+            written = SessionSerializer.writeAttributes(attributes, new ByteBufOutputStream(buf), false);
+        } catch (IOException e)
+        {
+            log.debug("Failed to serialize session attributes, keep them on heap", e);
+        } finally
+        {
+            //属性的 writeObject 抛出 RuntimeException 时也要释放缓冲区
+            if (!written)
+            {
+                buf.release();
+                rejectedCount.increment();
+            }
+        }
+        if (!written)
+        {
+            return null;
+        }
+        int size = buf.readableBytes();
+        long used = usedBytes.addAndGet(size);
+        if (maxBytes > 0 && used > maxBytes)
+        {
+            usedBytes.addAndGet(-size);
+            buf.release();
+            rejectedCount.increment();
+            return null;
+        }
+        storedSessions.incrementAndGet();
+        //容量收缩到实际大小，空闲的尾部还给内存池
+        return buf.capacity() > size ? copyAndRelease(buf) : buf;
+    }
+
+    /**
+     * 反序列化属性，并释放缓冲区
+     */
+    Map<String, Object> load(ByteBuf buf)
+    {
+        try
+        {
+            return SessionSerializer.readAttributes(new ByteBufInputStream(buf), classLoader);
+        } catch (IOException | ClassNotFoundException e)
+        {
+            //与 Tomcat 从持久化存储加载失败时一样，丢弃无法恢复的属性
+            log.error("Failed to deserialize session attributes", e);
+            return new ConcurrentHashMap<>();
+        } finally
+        {
+            release(buf);
+        }
+    }
+
+    /**
+     * 释放缓冲区，缓冲区从 0 开始写入，writerIndex 就是序列化后的大小
+     */
+    void release(ByteBuf buf)
+    {
+        usedBytes.addAndGet(-buf.writerIndex());
+        storedSessions.decrementAndGet();
+        buf.release();
+    }
+
+    private ByteBuf copyAndRelease(ByteBuf buf)
+    {
+        try
+        {
+            ByteBuf copy = alloc.directBuffer(buf.readableBytes(), buf.readableBytes());
+            copy.writeBytes(buf);
+            return copy;
+        } finally
+        {
+            buf.release();
+        }
+    }
+
+    long getUsedBytes()
+    {
+        return usedBytes.get();
+    }
+
+    int getStoredSessions()
+    {
+        return storedSessions.get();
+    }
+
+    long getRejectedCount()
+    {
+        return rejectedCount.sum();
+    }
+}
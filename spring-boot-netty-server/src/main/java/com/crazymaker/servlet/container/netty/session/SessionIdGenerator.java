@@ -0,0 +1,44 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * SessionID 生成器，与 Tomcat 的 StandardSessionIdGenerator 类似
+ * <p>
+ * SecureRandom 的 nextBytes() 内部是同步的，多个线程共用一个实例会互相阻塞，这里放在一个无锁队列中：
+ * 取出一个实例生成随机数，用完归还；队列为空时新建一个。
+ * 默认的 SecureRandom 在 Linux 上读取 /dev/urandom，不会因为熵不足而阻塞。
+ */
+public class SessionIdGenerator
+{
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * 随机字节数，与 Tomcat 的 sessionIdLength 默认值一致，生成 32 个十六进制字符
+     */
+    private static final int ID_BYTES = 16;
+
+    private final Queue<SecureRandom> randoms = new ConcurrentLinkedQueue<>();
+
+    public String generateSessionId()
+    {
+        byte[] bytes = new byte[ID_BYTES];
+        SecureRandom random = randoms.poll();
+        if (random == null)
+        {
+            random = new SecureRandom();
+        }
+        random.nextBytes(bytes);
+        randoms.offer(random);
+
+        char[] id = new char[ID_BYTES * 2];
+        for (int i = 0; i < ID_BYTES; i++)
+        {
+            id[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            id[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(id);
+    }
+}
@@ -0,0 +1,103 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session 属性的序列化格式，堆外存储和持久化存储共用：
+ * 一个完整的 Java 序列化流，先写属性个数，再依次写属性名（writeUTF）和属性值（writeObject）
+ */
+final class SessionSerializer
+{
+    private SessionSerializer()
+    {
+    }
+
+    /**
+     * @param skipUnserializable 为 true 时跳过不能序列化的属性（与 Tomcat 持久化 Session 时一样），
+     *                           为 false 时遇到不能序列化的属性直接返回 false，不写入任何内容
+     * @return 是否写入
+     */
+    static boolean writeAttributes(Map<String, Object> attributes, OutputStream os, boolean skipUnserializable)
+            throws IOException
+    {
+        int count = 0;
+        for (Object value : attributes.values())
+        {
+            if (value instanceof Serializable)
+            {
+                count++;
+            } else if (!skipUnserializable)
+            {
+                return false;
+            }
+        }
+        try (ObjectOutputStream out = new ObjectOutputStream(os))
+        {
+            out.writeInt(count);
+            //调用方持有 Session 锁，属性表在计数之后不会变化
+            for (Map.Entry<String, Object> entry : attributes.entrySet())
+            {
+                if (entry.getValue() instanceof Serializable)
+                {
+                    out.writeUTF(entry.getKey());
+                    out.writeObject(entry.getValue());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取 writeAttributes 写入的属性，使用 Web 应用的类加载器解析属性的类
+     */
+    static Map<String, Object> readAttributes(InputStream is, ClassLoader classLoader)
+            throws IOException, ClassNotFoundException
+    {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        try (ObjectInputStream in = new ClassLoaderObjectInputStream(is, classLoader))
+        {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String name = in.readUTF();
+                attributes.put(name, in.readObject());
+            }
+        }
+        return attributes;
+    }
+
+    private static final class ClassLoaderObjectInputStream extends ObjectInputStream
+    {
+        private final ClassLoader classLoader;
+
+        private ClassLoaderObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException
+        {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            if (classLoader != null)
+            {
+                try
+                {
+                    return Class.forName(desc.getName(), false, classLoader);
+                } catch (ClassNotFoundException e)
+                {
+                    //基本类型等由默认实现处理
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import java.io.IOException;
+
+/**
+ * Session 的持久化存储，用于容器重启后恢复 Session
+ * <p>
+ * 存储只按 SessionID 保存不透明的字节记录，记录的格式由 NettySessionManager 决定。
+ * 属性或超时时间变化时调用 save 重写整条记录，只是被访问时调用 touch 记录最后访问时间。
+ * 写入由 NettySessionManager 的后台线程批量调用：先对一批变化过的 Session 调用 save / touch / remove，再调用一次 flush；
+ * load 在请求线程上调用（内存中找不到 Session 时按 ID 懒加载），实现必须是线程安全的。
+ * <p>
+ * 内置实现是 {@link MappedFileSessionStore}，也可以通过 {@link NettySessionManager#setSessionStore(SessionStore)} 换成其他实现。
+ */
+public interface SessionStore
+{
+    /**
+     * @return Session 的记录，不存在或已经到期时返回 null
+     */
+    Record load(String id) throws IOException;
+
+    /**
+     * 保存 Session 的最新记录，覆盖之前的记录
+     *
+     * @param expireTime 按最后访问时间计算的到期时间（毫秒时间戳），到期的记录不再返回，存储可以随时丢弃
+     */
+    void save(String id, byte[] record, long expireTime) throws IOException;
+
+    /**
+     * 记录 Session 被访问，之前保存的记录不变；Session 没有保存过时什么也不做
+     *
+     * @param lastAccessedTime 最后访问时间（毫秒时间戳），之后 load 返回的记录带上这个时间
+     * @param expireTime       按这次访问计算的到期时间
+     */
+    void touch(String id, long lastAccessedTime, long expireTime) throws IOException;
+
+    /**
+     * 删除 Session 的记录，Session 不存在时什么也不做
+     */
+    void remove(String id) throws IOException;
+
+    /**
+     * 一批 save / remove 之后调用，实现可以在这里刷盘或者整理存储
+     */
+    void flush() throws IOException;
+
+    /**
+     * 容器停止时调用，之后不会再有任何调用
+     */
+    void close() throws IOException;
+
+    /**
+     * load 的结果：最近一次 save 的记录，以及之后最近一次 touch 的访问时间
+     */
+    final class Record
+    {
+        private final byte[] data;
+        private final long lastAccessedTime;
+
+        public Record(byte[] data, long lastAccessedTime)
+        {
+            this.data = data;
+            this.lastAccessedTime = lastAccessedTime;
+        }
+
+        /**
+         * @return save 时传入的记录
+         */
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        /**
+         * @return save 之后最近一次 touch 的访问时间，没有 touch 过时为 0
+         */
+        public long getLastAccessedTime()
+        {
+            return lastAccessedTime;
+        }
+    }
+}
@@ -1,22 +1,82 @@
 package com.crazymaker.servlet.container.netty.utils;
 
-import javax.servlet.Servlet;
-
 /**
+ * 请求路径的匹配结果
+ * <p>
+ * target 是注册 URL Pattern 时附带的对象（分发表中是 NettyRequestDispatcher）
+ * <p>
  * Created on 2017-08-25 12:28.
  */
-public class MappingData
+public class MappingData<T>
 {
 
-    Servlet servlet = null;
+    T target = null;
     String servletName;
     String redirectPath;
 
+    /**
+     * 不带 contextPath 和查询字符串的请求路径
+     */
+    String requestPath;
+    String servletPath;
+    String pathInfo;
+
+    /**
+     * 匹配的 URL Pattern 及其类型
+     */
+    String matchValue;
+    MappingMatch mappingMatch;
+
+    public T getTarget()
+    {
+        return target;
+    }
+
+    public String getServletName()
+    {
+        return servletName;
+    }
+
+    public String getRedirectPath()
+    {
+        return redirectPath;
+    }
+
+    public String getRequestPath()
+    {
+        return requestPath;
+    }
+
+    public String getServletPath()
+    {
+        return servletPath;
+    }
+
+    public String getPathInfo()
+    {
+        return pathInfo;
+    }
+
+    public String getMatchValue()
+    {
+        return matchValue;
+    }
+
+    public MappingMatch getMappingMatch()
+    {
+        return mappingMatch;
+    }
+
     public void recycle()
     {
-        servlet = null;
+        target = null;
         servletName = null;
         redirectPath = null;
+        requestPath = null;
+        servletPath = null;
+        pathInfo = null;
+        matchValue = null;
+        mappingMatch = null;
     }
 
 }
@@ -0,0 +1,28 @@
+package com.crazymaker.servlet.container.netty.utils;
+
+/**
+ * URL Pattern 的匹配类型，与 Servlet 4.0 的 javax.servlet.http.MappingMatch 对应，决定 servletPath 与 pathInfo 的拆分
+ */
+public enum MappingMatch
+{
+    /**
+     * 空串，只匹配上下文根：servletPath 为 ""，pathInfo 为 "/"
+     */
+    CONTEXT_ROOT,
+    /**
+     * 默认 Servlet（/）：servletPath 为请求路径，pathInfo 为 null
+     */
+    DEFAULT,
+    /**
+     * 精确匹配：servletPath 为请求路径，pathInfo 为 null
+     */
+    EXACT,
+    /**
+     * 扩展名匹配（*.xxx）：servletPath 为请求路径，pathInfo 为 null
+     */
+    EXTENSION,
+    /**
+     * 路径前缀匹配（/xxx/*）：servletPath 为前缀，pathInfo 为剩余部分
+     */
+    PATH
+}
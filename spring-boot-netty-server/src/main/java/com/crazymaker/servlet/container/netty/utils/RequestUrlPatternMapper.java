@@ -3,31 +3,50 @@ package com.crazymaker.servlet.container.netty.utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.servlet.Servlet;
 import javax.servlet.ServletException;
-import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 /**
  * 保存，计算 URL-pattern 与请求路径的匹配关系
+ * <p>
+ * 精确匹配和路径前缀匹配的 URL Pattern 按 "/" 拆成段，放在一棵段前缀树（trie）中：
+ * 匹配时从左到右扫描一遍请求路径，每一段只做一次哈希查找，沿途记下最深的 /* 节点（最长前缀匹配），
+ * 走完整条路径时检查精确匹配；再用最后一段的扩展名查一次扩展名表，最后是默认 Servlet。
+ * 匹配耗时只和路径的段数有关，和注册的 URL Pattern 数量无关。
  *
+ * @param <T> 注册 URL Pattern 时附带的对象，匹配时放在 MappingData.target 中
  * @author Leibniz.Hu
  * Created on 2017-08-25 11:32.
  */
-public class RequestUrlPatternMapper
+public class RequestUrlPatternMapper<T>
 {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private UrlPatternContext urlPatternContext;
-    private String contextPath;
+    private final String contextPath;
+
+    /**
+     * 根节点，对应 "/" 之前的空路径
+     */
+    private final Node<T> root = new Node<>();
+
+    /**
+     * 扩展名匹配，key 是不带 "*." 的扩展名
+     */
+    private final Map<String, MappedServlet<T>> extensionServlets = new HashMap<>();
+
+    /**
+     * 空串 URL Pattern，只匹配上下文根
+     */
+    private MappedServlet<T> contextRootServlet;
+
+    /**
+     * 默认 Servlet（"/"）
+     */
+    private MappedServlet<T> defaultServlet;
 
     public RequestUrlPatternMapper(String contextPath)
     {
-        this.urlPatternContext = new UrlPatternContext();
         this.contextPath = contextPath;
     }
 
@@ -35,65 +54,61 @@ public class RequestUrlPatternMapper
      * 增加映射关系
      *
      * @param urlPattern  urlPattern
-     * @param servlet     servlet对象
      * @param servletName servletName
-     * @author Leibniz
+     * @param target      匹配时返回的对象
+     * @throws ServletException URL Pattern 已经存在
      */
-    public void addServlet(String urlPattern, Servlet servlet, String servletName) throws ServletException
+    public void addMapping(String urlPattern, String servletName, T target) throws ServletException
     {
-        if (urlPattern.endsWith("/*"))
+        MappedServlet<T> mapped = new MappedServlet<>(urlPattern, servletName, target);
+        if (urlPattern.isEmpty())
         {
-            // 路径匹配
-            String pattern = urlPattern.substring(0, urlPattern.length() - 1);
-            for (MappedServlet ms : urlPatternContext.wildcardServlets)
+            if (contextRootServlet != null)
             {
-                if (ms.pattern.equals(pattern))
-                {
-                    throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
-                }
+                throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.wildcardServlets.add(newServlet);
-            urlPatternContext.wildcardServlets.sort((o1, o2) -> o2.pattern.compareTo(o1.pattern));
-            log.debug("Curretn Wildcard URL Pattern List = " + Arrays.toString(urlPatternContext.wildcardServlets.toArray()));
-        } else if (urlPattern.startsWith("*."))
+            contextRootServlet = mapped;
+        } else if (urlPattern.equals("/"))
         {
-            // 扩展名匹配
-            String pattern = urlPattern.substring(2);
-            if (urlPatternContext.extensionServlets.get(pattern) != null)
+            // Default资源匹配
+            if (defaultServlet != null)
             {
                 throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.extensionServlets.put(pattern, newServlet);
-            log.debug("Curretn Extension URL Pattern List = " + Arrays.toString(urlPatternContext.extensionServlets.keySet().toArray()));
-        } else if (urlPattern.equals("/"))
+            defaultServlet = mapped;
+        } else if (urlPattern.endsWith("/*"))
         {
-            // Default资源匹配
-            if (urlPatternContext.defaultServlet != null)
+            // 路径匹配，"/*" 挂在根节点上
+            Node<T> node = getOrCreateNode(urlPattern.substring(0, urlPattern.length() - 2));
+            if (node.wildcard != null)
             {
                 throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            urlPatternContext.defaultServlet = new MappedServlet("", servlet, servletName);
+            node.wildcard = mapped;
+        } else if (urlPattern.startsWith("*."))
+        {
+            // 扩展名匹配
+            String extension = urlPattern.substring(2);
+            if (extensionServlets.containsKey(extension))
+            {
+                throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
+            }
+            extensionServlets.put(extension, mapped);
         } else
         {
             // 精确匹配
-            String pattern;
-            if (urlPattern.length() == 0)
-            {
-                pattern = "/";
-            } else
+            if (!urlPattern.startsWith("/"))
             {
-                pattern = urlPattern;
+                throw new ServletException("Invalid URL Pattern('" + urlPattern + "')");
             }
-            if (urlPatternContext.exactServlets.get(pattern) != null)
+            Node<T> node = getOrCreateNode(urlPattern);
+            if (node.exact != null)
             {
                 throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.exactServlets.put(pattern, newServlet);
-            log.debug("Curretn Exact URL Pattern List = " + Arrays.toString(urlPatternContext.exactServlets.keySet().toArray()));
+            node.exact = mapped;
         }
+        log.debug("Add URL Pattern '{}' for servlet {}", urlPattern, servletName);
     }
 
     /**
@@ -101,205 +116,255 @@ public class RequestUrlPatternMapper
      *
      * @param urlPattern
      */
-    public void removeServlet(String urlPattern)
+    public void removeMapping(String urlPattern)
     {
-        if (urlPattern.endsWith("/*"))
+        if (urlPattern.isEmpty())
         {
-            //路径匹配
-            String pattern = urlPattern.substring(0, urlPattern.length() - 2);
-            urlPatternContext.wildcardServlets.removeIf(mappedServlet -> mappedServlet.pattern.equals(pattern));
-        } else if (urlPattern.startsWith("*."))
-        {
-            // 扩展名匹配
-            String pattern = urlPattern.substring(2);
-            urlPatternContext.extensionServlets.remove(pattern);
+            contextRootServlet = null;
         } else if (urlPattern.equals("/"))
         {
-            // Default资源匹配
-            urlPatternContext.defaultServlet = null;
-        } else
+            defaultServlet = null;
+        } else if (urlPattern.endsWith("/*"))
         {
-            // 精确匹配
-            String pattern;
-            if (urlPattern.length() == 0)
+            Node<T> node = findNode(urlPattern.substring(0, urlPattern.length() - 2));
+            if (node != null)
             {
-                pattern = "/";
-            } else
+                node.wildcard = null;
+            }
+        } else if (urlPattern.startsWith("*."))
+        {
+            extensionServlets.remove(urlPattern.substring(2));
+        } else
+        {
+            Node<T> node = findNode(urlPattern);
+            if (node != null)
             {
-                pattern = urlPattern;
+                node.exact = null;
             }
-            urlPatternContext.exactServlets.remove(pattern);
         }
     }
 
+    /**
+     * @param absoluteUri 带 contextPath 的请求 URI
+     */
     public String getServletNameByRequestURI(String absoluteUri)
     {
-        MappingData mappingData = new MappingData();
-        try
+        if (!absoluteUri.startsWith(contextPath))
         {
-            matchRequestPath(absoluteUri, mappingData);
-        } catch (IOException e)
+            return null;
+        }
+        String path = absoluteUri.substring(contextPath.length());
+        int queryInx = path.indexOf('?');
+        if (queryInx > -1)
         {
-            log.error("Throwing exception when getting Servlet Name by request URI, maybe cause by lacking of buffer size.", e);
+            path = path.substring(0, queryInx);
         }
+        if (path.isEmpty())
+        {
+            path = "/";
+        }
+        MappingData<T> mappingData = new MappingData<>();
+        map(path, mappingData);
         return mappingData.servletName;
     }
 
     /**
-     * Wrapper mapping.
+     * 匹配请求路径
      *
-     * @throws IOException buffer大小不足
+     * @param path        不带 contextPath 和查询字符串、以 "/" 开头的请求路径
+     * @param mappingData 匹配结果
+     * @return 是否匹配到
      */
-    private void matchRequestPath(String absolutePath, MappingData mappingData) throws IOException
+    public boolean map(String path, MappingData<T> mappingData)
     {
-        // 处理ContextPath，获取访问的相对URI
-        boolean noServletPath = absolutePath.equals(contextPath) || absolutePath.equals(contextPath + "/");
-        if (!absolutePath.startsWith(contextPath))
-        {
-            return;
-        }
-        String path = noServletPath ? "/" : absolutePath.substring(contextPath.length());
-        //去掉查询字符串
-        int queryInx = path.indexOf('?');
-        if (queryInx > -1)
+        mappingData.requestPath = path;
+
+        // 上下文根
+        if (contextRootServlet != null && path.equals("/"))
         {
-            path = path.substring(0, queryInx);
+            setResult(mappingData, contextRootServlet, MappingMatch.CONTEXT_ROOT, "", "/");
+            return true;
         }
 
-        // 优先进行精确匹配
-        internalMapExactWrapper(urlPatternContext.exactServlets, path, mappingData);
-
-        // 然后进行路径匹配
-        if (mappingData.servlet == null)
+        // 一遍扫描：沿途记下最深的路径匹配，走完整条路径时检查精确匹配
+        Node<T> node = root;
+        MappedServlet<T> wildcard = root.wildcard;
+        int wildcardEnd = 0;
+        int length = path.length();
+        int start = 1;
+        while (true)
         {
-            internalMapWildcardWrapper(urlPatternContext.wildcardServlets, path, mappingData);
-            //TODO 暂不考虑JSP的处理
+            int slash = path.indexOf('/', start);
+            int end = slash < 0 ? length : slash;
+            node = node.child(path, start, end);
+            if (node == null)
+            {
+                break;
+            }
+            if (node.wildcard != null)
+            {
+                wildcard = node.wildcard;
+                wildcardEnd = end;
+            }
+            if (slash < 0)
+            {
+                if (node.exact != null)
+                {
+                    setResult(mappingData, node.exact, MappingMatch.EXACT, path, null);
+                    return true;
+                }
+                break;
+            }
+            start = slash + 1;
         }
 
-        if (mappingData.servlet == null && noServletPath)
+        if (wildcard != null)
         {
-            // 路径为空时，重定向到“/”
-            mappingData.servlet = urlPatternContext.defaultServlet.object;
-            mappingData.servletName = urlPatternContext.defaultServlet.servletName;
-            return;
+            setResult(mappingData, wildcard, MappingMatch.PATH, path.substring(0, wildcardEnd),
+                    wildcardEnd < length ? path.substring(wildcardEnd) : null);
+            return true;
         }
 
-        // 后缀名匹配
-        if (mappingData.servlet == null)
+        // 后缀名匹配，只看最后一段
+        if (!extensionServlets.isEmpty())
         {
-            internalMapExtensionWrapper(urlPatternContext.extensionServlets, path, mappingData);
+            int slash = path.lastIndexOf('/');
+            int period = path.lastIndexOf('.');
+            if (period > slash && period < length - 1)
+            {
+                MappedServlet<T> extension = extensionServlets.get(path.substring(period + 1));
+                if (extension != null)
+                {
+                    setResult(mappingData, extension, MappingMatch.EXTENSION, path, null);
+                    return true;
+                }
+            }
         }
 
-        //TODO 暂不考虑Welcome资源
-
         // Default Servlet
-        if (mappingData.servlet == null)
+        if (defaultServlet != null)
         {
-            if (urlPatternContext.defaultServlet != null)
-            {
-                mappingData.servlet = urlPatternContext.defaultServlet.object;
-                mappingData.servletName = urlPatternContext.defaultServlet.servletName;
-            }
-            //TODO 暂不考虑请求静态目录资源
-            if (path.charAt(path.length() - 1) != '/')
-            {
-            }
+            setResult(mappingData, defaultServlet, MappingMatch.DEFAULT, path, null);
+            return true;
         }
+        return false;
     }
 
-
-    /**
-     * 精确匹配
-     */
-    private void internalMapExactWrapper(Map<String, MappedServlet> servlets, String path, MappingData mappingData)
+    private static <T> void setResult(MappingData<T> mappingData, MappedServlet<T> mapped, MappingMatch match,
+                                      String servletPath, String pathInfo)
     {
-        MappedServlet servlet = servlets.get(path);
-        if (servlet != null)
-        {
-            mappingData.servlet = servlet.object;
-            mappingData.servletName = servlet.servletName;
-        }
+        mappingData.target = mapped.target;
+        mappingData.servletName = mapped.servletName;
+        mappingData.matchValue = mapped.pattern;
+        mappingData.mappingMatch = match;
+        mappingData.servletPath = servletPath;
+        mappingData.pathInfo = pathInfo;
     }
 
     /**
-     * 路径匹配
+     * @param path 以 "/" 开头的路径，空串表示根节点
      */
-    private void internalMapWildcardWrapper(List<MappedServlet> servlets, String path, MappingData mappingData)
+    private Node<T> getOrCreateNode(String path)
     {
-        if (!path.endsWith("/"))
+        Node<T> node = root;
+        if (path.isEmpty())
         {
-            path = path + "/";
+            return node;
         }
-        MappedServlet result = null;
-        for (MappedServlet ms : servlets)
+        int start = 1;
+        while (true)
         {
-            if (path.startsWith(ms.pattern))
+            int slash = path.indexOf('/', start);
+            int end = slash < 0 ? path.length() : slash;
+            node = node.getOrCreateChild(path.substring(start, end));
+            if (slash < 0)
             {
-                result = ms;
-                break;
+                return node;
             }
-        }
-        if (result != null)
-        {
-            mappingData.servlet = result.object;
-            mappingData.servletName = result.servletName;
+            start = slash + 1;
         }
     }
 
-    /**
-     * 后缀名匹配
-     */
-    private void internalMapExtensionWrapper(Map<String, MappedServlet> servlets, String path, MappingData mappingData)
+    private Node<T> findNode(String path)
     {
-        int dotInx = path.lastIndexOf('.');
-        path = path.substring(dotInx + 1);
-        MappedServlet servlet = servlets.get(path);
-        if (servlet != null)
+        Node<T> node = root;
+        if (path.isEmpty())
         {
-            mappingData.servlet = servlet.object;
-            mappingData.servletName = servlet.servletName;
+            return node;
         }
+        int start = 1;
+        while (node != null)
+        {
+            int slash = path.indexOf('/', start);
+            int end = slash < 0 ? path.length() : slash;
+            node = node.child(path, start, end);
+            if (slash < 0)
+            {
+                return node;
+            }
+            start = slash + 1;
+        }
+        return null;
     }
 
     /*
      * 以下是用到的内部类
      */
 
-    private class UrlPatternContext
+    /**
+     * 前缀树的节点，对应 URL 中的一段
+     */
+    private static final class Node<T>
     {
-        MappedServlet defaultServlet = null; //默认Servlet
-        Map<String, MappedServlet> exactServlets = new HashMap<>(); //精确匹配
-        List<MappedServlet> wildcardServlets = new LinkedList<>(); //路径匹配
-        Map<String, MappedServlet> extensionServlets = new HashMap<>(); //扩展名匹配
-    }
+        private Map<String, Node<T>> children;
 
-    private class MappedServlet extends MapElement<Servlet>
-    {
-        @Override
-        public String toString()
+        /**
+         * 在这个节点结束的精确匹配
+         */
+        private MappedServlet<T> exact;
+
+        /**
+         * 以这个节点为前缀的路径匹配（/xxx/*）
+         */
+        private MappedServlet<T> wildcard;
+
+        private Node<T> child(String path, int start, int end)
         {
-            return pattern;
+            if (children == null)
+            {
+                return null;
+            }
+            return children.get(path.substring(start, end));
         }
 
-        String servletName;
-
-        MappedServlet(String name, Servlet servlet, String servletName)
+        private Node<T> getOrCreateChild(String segment)
         {
-            super(name, servlet);
-            this.servletName = servletName;
+            if (children == null)
+            {
+                children = new HashMap<>();
+            }
+            return children.computeIfAbsent(segment, key -> new Node<>());
         }
     }
 
-    private class MapElement<T>
+    private static final class MappedServlet<T>
     {
         final String pattern;
-        final T object;
+        final String servletName;
+        final T target;
 
-        MapElement(String pattern, T object)
+        MappedServlet(String pattern, String servletName, T target)
         {
             this.pattern = pattern;
-            this.object = object;
+            this.servletName = servletName;
+            this.target = target;
+        }
+
+        @Override
+        public String toString()
+        {
+            return pattern;
         }
     }
 
-}
\ No newline at end of file
+}
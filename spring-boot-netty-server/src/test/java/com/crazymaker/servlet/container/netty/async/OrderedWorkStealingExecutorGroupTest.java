@@ -0,0 +1,364 @@
+package com.crazymaker.servlet.container.netty.async;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedWorkStealingExecutorGroupTest
+{
+    private OrderedWorkStealingExecutorGroup group;
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (group != null)
+        {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 同一个连接的任务按提交顺序串行执行，不同连接的任务并行执行
+     */
+    @Test
+    public void tasksOfOneChannelRunInOrderAndNeverConcurrently() throws Exception
+    {
+        group = new OrderedWorkStealingExecutorGroup(4, "test");
+        int channels = 8;
+        int tasksPerChannel = 2000;
+        final CountDownLatch done = new CountDownLatch(channels * tasksPerChannel);
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int c = 0; c < channels; c++)
+        {
+            final EventExecutor executor = group.next();
+            final AtomicInteger expected = new AtomicInteger();
+            final AtomicBoolean running = new AtomicBoolean();
+            for (int i = 0; i < tasksPerChannel; i++)
+            {
+                final int seq = i;
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (!running.compareAndSet(false, true) || !executor.inEventLoop()
+                                || expected.getAndIncrement() != seq)
+                        {
+                            failed.set(true);
+                        }
+                        running.set(false);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+        assertEquals(0, group.getPendingTasks());
+        assertEquals(channels * tasksPerChannel, group.getCompletedTasks());
+    }
+
+    /**
+     * 一个连接的慢任务占住一个线程时，其他连接的任务由其他线程执行
+     */
+    @Test
+    public void slowChannelDoesNotBlockOtherChannels() throws Exception
+    {
+        group = new OrderedWorkStealingExecutorGroup(2, "test");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        EventExecutor slow = group.next();
+        slow.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                blocked.countDown();
+                try
+                {
+                    release.await();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final AtomicInteger slowFollowers = new AtomicInteger();
+        slow.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                slowFollowers.incrementAndGet();
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        int others = 100;
+        final CountDownLatch otherDone = new CountDownLatch(others);
+        for (int i = 0; i < others; i++)
+        {
+            group.next().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    otherDone.countDown();
+                }
+            });
+        }
+        assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+        //慢任务之后提交的同连接任务仍然排在它后面
+        assertEquals(0, slowFollowers.get());
+        release.countDown();
+    }
+
+    @Test
+    public void scheduledTasksRunOnTheChannelExecutor() throws Exception
+    {
+        group = new OrderedWorkStealingExecutorGroup(2, "test");
+        final EventExecutor executor = group.next();
+        ScheduledFuture<Boolean> future = executor.schedule(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                return executor.inEventLoop();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertTrue(future.getNow());
+
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledFuture<?> cancelled = executor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runs.incrementAndGet();
+            }
+        }, 1, TimeUnit.HOURS);
+        assertTrue(cancelled.getDelay(TimeUnit.MINUTES) > 0);
+        assertTrue(cancelled.cancel(false));
+        assertTrue(cancelled.isCancelled());
+
+        final CountDownLatch ticks = new CountDownLatch(3);
+        ScheduledFuture<?> periodic = executor.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ticks.countDown();
+            }
+        }, 0, 5, TimeUnit.MILLISECONDS);
+        assertTrue(ticks.await(5, TimeUnit.SECONDS));
+        assertTrue(periodic.cancel(false));
+        assertEquals(0, runs.get());
+    }
+
+    /**
+     * 周期任务第一次执行就出错时计时器一定被取消，包括任务在登记计时器返回之前就已经结束的情况
+     */
+    @Test
+    public void failedPeriodicTaskCancelsItsTimer() throws Exception
+    {
+        group = new OrderedWorkStealingExecutorGroup(4, "test");
+        for (int i = 0; i < 100; i++)
+        {
+            ScheduledFuture<?> periodic = group.next().scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    throw new IllegalStateException("first run fails");
+                }
+            }, 0, 1, TimeUnit.MILLISECONDS);
+            assertTrue(periodic.await(5, TimeUnit.SECONDS));
+            assertTrue(periodic.cause() instanceof IllegalStateException);
+            //任务先结束再取消计时器，稍等一下
+            java.util.concurrent.ScheduledFuture<?> timer =
+                    ((OrderedWorkStealingExecutorGroup.ScheduledTask<?>) periodic).getTimer();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!timer.isCancelled() && System.nanoTime() < deadline)
+            {
+                Thread.yield();
+            }
+            assertTrue(timer.isCancelled());
+        }
+    }
+
+    @Test
+    public void weightedOrderInterleavesByWeight()
+    {
+        assertArrayEquals(new int[]{0, 1, 0, 2, 0, 1, 0},
+                OrderedWorkStealingExecutorGroup.weightedOrder(new int[]{4, 2, 1}));
+        assertArrayEquals(new int[]{0}, OrderedWorkStealingExecutorGroup.weightedOrder(new int[]{1}));
+    }
+
+    /**
+     * 按权重在有连接的队列之间轮转；只剩一个队列有连接时直接从它取
+     */
+    @Test
+    public void weightedSchedulingFollowsTheWeights() throws Exception
+    {
+        group = new OrderedWorkStealingExecutorGroup(1, "test", new int[]{4, 2, 1}, false, 1);
+        CountDownLatch release = block(group.next());
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        int[] channels = {8, 4, 2};
+        final CountDownLatch done = new CountDownLatch(14);
+        for (int priority = 0; priority < channels.length; priority++)
+        {
+            for (int i = 0; i < channels[priority]; i++)
+            {
+                record(group.next(), priority, order, done);
+            }
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 0, 2, 0, 1, 0, 0, 1, 0, 2, 0, 1, 0), order);
+    }
+
+    @Test
+    public void strictSchedulingRunsHigherPrioritiesFirst() throws Exception
+    {
+        group = new OrderedWorkStealingExecutorGroup(1, "test", new int[]{1, 1, 1}, true, 1);
+        CountDownLatch release = block(group.next());
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(6);
+        for (int priority = 2; priority >= 0; priority--)
+        {
+            record(group.next(), priority, order, done);
+            record(group.next(), priority, order, done);
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 0, 1, 1, 2, 2), order);
+    }
+
+    /**
+     * 没有指定优先级的任务不抬高连接的优先级；执行期间提交的任务记下的优先级在队列排空后清除，不影响下一次排队
+     */
+    @Test
+    public void priorityOfDrainedTasksDoesNotCarryOver() throws Exception
+    {
+        group = new OrderedWorkStealingExecutorGroup(1, "test", new int[]{1, 1, 1}, true, 1);
+        EventExecutor channel = group.next();
+        CountDownLatch release = block(channel, 0);
+        final CountDownLatch drained = new CountDownLatch(2);
+        channel.execute(countDown(drained));
+        submit(channel, 0, countDown(drained));
+        release.countDown();
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+
+        //连接空闲之后按这次提交的优先级排队
+        CountDownLatch releaseOther = block(group.next());
+        submit(channel, 2, countDown(new CountDownLatch(1)));
+        assertEquals(0, group.getReadyChannelCount(0));
+        assertEquals(1, group.getReadyChannelCount(2));
+
+        //空闲的连接收到没有指定优先级的任务，按默认优先级排队
+        group.next().execute(countDown(new CountDownLatch(1)));
+        assertEquals(1, group.getReadyChannelCount(1));
+        releaseOther.countDown();
+    }
+
+    /**
+     * 让线程池唯一的线程停在这个连接的任务上，返回放行的开关
+     */
+    private static CountDownLatch block(EventExecutor executor, int priority) throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        submit(executor, priority, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    release.await();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static CountDownLatch block(EventExecutor executor) throws InterruptedException
+    {
+        return block(executor, -1);
+    }
+
+    private static void record(EventExecutor executor, final int priority, final List<Integer> order,
+                               final CountDownLatch done)
+    {
+        submit(executor, priority, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                order.add(priority);
+                done.countDown();
+            }
+        });
+    }
+
+    private static Runnable countDown(final CountDownLatch latch)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static void submit(EventExecutor executor, int priority, Runnable task)
+    {
+        int previous = OrderedWorkStealingExecutorGroup.setSubmitPriority(priority);
+        try
+        {
+            executor.execute(task);
+        } finally
+        {
+            OrderedWorkStealingExecutorGroup.setSubmitPriority(previous);
+        }
+    }
+
+    @Test
+    public void iteratorReturnsExecutorsInUse()
+    {
+        group = new OrderedWorkStealingExecutorGroup(1, "test");
+        EventExecutor first = group.next();
+        EventExecutor second = group.next();
+        List<EventExecutor> executors = new ArrayList<>();
+        for (EventExecutor executor : group)
+        {
+            executors.add(executor);
+        }
+        assertEquals(2, executors.size());
+        assertTrue(executors.containsAll(Arrays.asList(first, second)));
+    }
+}
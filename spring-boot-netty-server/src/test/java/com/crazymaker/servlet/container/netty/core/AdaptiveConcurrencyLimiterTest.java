@@ -0,0 +1,288 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveConcurrencyLimiterTest
+{
+    private static final long WINDOW_MS = 100;
+
+    private final NettyWebServerConfig config = new NettyWebServerConfig();
+
+    private AdaptiveConcurrencyLimiter limiter;
+
+    /**
+     * 每个窗口结束时的 System.nanoTime()
+     */
+    private long now;
+
+    private EmbeddedChannel channel;
+
+    private boolean savedEnabled;
+    private int savedInitial;
+    private int savedMin;
+
+    @After
+    public void tearDown()
+    {
+        if (channel != null)
+        {
+            channel.finishAndReleaseAll();
+            NettyWebServerConfig global = NettyWebServerConfig.getInstance();
+            global.setConcurrencyLimitEnabled(savedEnabled);
+            global.setConcurrencyLimitInitial(savedInitial);
+            global.setConcurrencyLimitMin(savedMin);
+        }
+    }
+
+    @Test
+    public void disabledByDefault()
+    {
+        assertFalse(new NettyWebServerConfig().isConcurrencyLimitEnabled());
+    }
+
+    /**
+     * 延迟保持在最小 RTT 附近时，上限每个窗口都增长
+     */
+    @Test
+    public void limitGrowsWhileLatencyStaysAtMinRtt()
+    {
+        newLimiter(0);
+        hold(60);
+        int previous = limiter.getLimit();
+        for (int i = 0; i < 3; i++)
+        {
+            window(1);
+            assertTrue(limiter.getLimit() > previous);
+            previous = limiter.getLimit();
+        }
+        assertEquals(1000, limiter.getMinRttMicros());
+    }
+
+    /**
+     * 延迟变长时按梯度收缩，一个窗口最多收缩到一半
+     */
+    @Test
+    public void limitShrinksWhenLatencyGrows()
+    {
+        newLimiter(0);
+        hold(60);
+        window(1);
+        int before = limiter.getLimit();
+        window(10);
+        int after = limiter.getLimit();
+        assertTrue(after < before);
+        assertTrue(after >= before / 2);
+        //最小 RTT 不会被变长的延迟覆盖
+        assertEquals(1000, limiter.getMinRttMicros());
+    }
+
+    /**
+     * 并发数不到上限的一半时压力不是来自并发，上限不增长
+     */
+    @Test
+    public void appLimitedWindowsDoNotGrowTheLimit()
+    {
+        newLimiter(0);
+        for (int i = 0; i < 3; i++)
+        {
+            window(1);
+        }
+        assertEquals(100, limiter.getLimit());
+    }
+
+    /**
+     * 每隔 probeWindows 个窗口把上限降到 sqrt(limit)，跳过一个窗口，再在低并发下重新测量最小 RTT
+     */
+    @Test
+    public void probeWindowsRemeasureMinRtt()
+    {
+        newLimiter(3);
+        hold(8);
+        window(1);
+        window(1);
+        assertEquals(100, limiter.getLimit());
+        window(1);
+        assertEquals(10, limiter.getLimit());
+        //第一个探测窗口等之前放进来的请求执行完，不更新上限
+        window(20);
+        assertEquals(10, limiter.getLimit());
+        assertEquals(1000, limiter.getMinRttMicros());
+        //第二个探测窗口的平均延迟作为新的最小 RTT，即使比之前的大
+        window(5);
+        assertEquals(5000, limiter.getMinRttMicros());
+        assertTrue(limiter.getLimit() >= 10);
+    }
+
+    /**
+     * 被拒绝的请求没有占用名额，返回 503 时不释放名额
+     */
+    @Test
+    public void rejectedRequestDoesNotReleaseAPermit()
+    {
+        NettyServletContext context = newContext(new HttpServlet()
+        {
+        });
+        AdaptiveConcurrencyLimiter limiter = context.getConcurrencyLimiter();
+        assertTrue(limiter.tryAcquire(RequestPriority.CRITICAL));
+
+        channel.writeInbound(newRequest(context, "/test"));
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, readResponses().get(0).status());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(1, limiter.getRejectedCount());
+
+        limiter.release(System.nanoTime());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void permitIsReleasedAfterTheRequestCompletes()
+    {
+        NettyServletContext context = newContext(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp)
+            {
+                resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            }
+        });
+        channel.writeInbound(newRequest(context, "/test"));
+        assertEquals(HttpResponseStatus.NO_CONTENT, readResponses().get(0).status());
+        assertEquals(0, context.getConcurrencyLimiter().getInFlight());
+    }
+
+    /**
+     * 调用了 startAsync() 的请求在分发返回时就释放名额，停放期间不占用上限
+     */
+    @Test
+    public void asyncRequestReleasesThePermitWhenTheDispatchReturns()
+    {
+        final AsyncContext[] async = new AsyncContext[1];
+        NettyServletContext context = newContext(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp)
+            {
+                async[0] = req.startAsync();
+            }
+        });
+        channel.writeInbound(newRequest(context, "/test"));
+        assertNotNull(async[0]);
+        assertTrue(readResponses().isEmpty());
+        assertEquals(0, context.getConcurrencyLimiter().getInFlight());
+
+        ((HttpServletResponse) async[0].getResponse()).setStatus(HttpServletResponse.SC_ACCEPTED);
+        async[0].complete();
+        assertEquals(HttpResponseStatus.ACCEPTED, readResponses().get(0).status());
+        assertEquals(0, context.getConcurrencyLimiter().getInFlight());
+    }
+
+    private void newLimiter(int probeWindows)
+    {
+        config.setConcurrencyLimitInitial(100);
+        config.setConcurrencyLimitMin(1);
+        config.setConcurrencyLimitMax(1000);
+        config.setConcurrencyLimitRttTolerance(2.0);
+        config.setConcurrencyLimitWindowMs(WINDOW_MS);
+        config.setConcurrencyLimitProbeWindows(probeWindows);
+        limiter = new AdaptiveConcurrencyLimiter(config);
+        now = System.nanoTime();
+    }
+
+    /**
+     * 一直占用的名额，让窗口内的并发数保持在这个水平
+     */
+    private void hold(int permits)
+    {
+        for (int i = 0; i < permits; i++)
+        {
+            assertTrue(limiter.tryAcquire(RequestPriority.CRITICAL));
+        }
+    }
+
+    /**
+     * 一个窗口：10 个延迟相同的请求
+     */
+    private void window(long rttMillis)
+    {
+        now += TimeUnit.MILLISECONDS.toNanos(WINDOW_MS);
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(limiter.tryAcquire(RequestPriority.CRITICAL));
+            limiter.release(now - TimeUnit.MILLISECONDS.toNanos(rttMillis), now);
+        }
+    }
+
+    /**
+     * 打开限流，上限为 1，业务线程池由 EmbeddedChannel 的 EventLoop 代替
+     */
+    private NettyServletContext newContext(HttpServlet servlet)
+    {
+        NettyWebServerConfig global = NettyWebServerConfig.getInstance();
+        savedEnabled = global.isConcurrencyLimitEnabled();
+        savedInitial = global.getConcurrencyLimitInitial();
+        savedMin = global.getConcurrencyLimitMin();
+        global.setConcurrencyLimitEnabled(true);
+        global.setConcurrencyLimitInitial(1);
+        global.setConcurrencyLimitMin(1);
+
+        NettyServletContext context = new NettyServletContext("/", getClass().getClassLoader(), "test");
+        context.addServlet("test", servlet).addMapping("/test");
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast("servletInput", new ChannelInboundHandlerAdapter());
+        channel.pipeline().addLast("inlineDispatch", new InlineDispatchHandler(context));
+        channel.pipeline().addLast("filterChain", new NettyRequestDispatcherHandler(context));
+        return context;
+    }
+
+    private NettyServletRequest newRequest(NettyServletContext context, String uri)
+    {
+        ChannelHandlerContext ctx = channel.pipeline().context("servletInput");
+        DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri,
+                Unpooled.EMPTY_BUFFER);
+        return new NettyServletRequest(ctx, new NettyServletHandler(context), request,
+                new NettyServletResponse(ctx, context));
+    }
+
+    private List<HttpResponse> readResponses()
+    {
+        channel.runPendingTasks();
+        List<HttpResponse> responses = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null)
+        {
+            if (msg instanceof HttpResponse)
+            {
+                responses.add((HttpResponse) msg);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return responses;
+    }
+}
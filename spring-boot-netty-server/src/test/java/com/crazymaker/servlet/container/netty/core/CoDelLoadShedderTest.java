@@ -0,0 +1,118 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoDelLoadShedderTest
+{
+    private static final long TARGET_MS = 5;
+    private static final long INTERVAL_MS = 100;
+
+    private CoDelLoadShedder shedder;
+
+    /**
+     * 当前统计周期内的 System.nanoTime()
+     */
+    private long now;
+
+    @Before
+    public void setUp()
+    {
+        NettyWebServerConfig config = new NettyWebServerConfig();
+        config.setCodelEnabled(true);
+        config.setCodelTargetMs(TARGET_MS);
+        config.setCodelIntervalMs(INTERVAL_MS);
+        shedder = new CoDelLoadShedder(config);
+        now = System.nanoTime();
+    }
+
+    @Test
+    public void disabledByDefault()
+    {
+        assertFalse(new CoDelLoadShedder(new NettyWebServerConfig()).isEnabled());
+    }
+
+    /**
+     * 第一个周期还没有结算，排队再久也不丢弃
+     */
+    @Test
+    public void firstIntervalNeverDrops()
+    {
+        assertFalse(drop(1000, RequestPriority.BULK));
+        assertFalse(drop(1000, RequestPriority.NORMAL));
+        assertFalse(shedder.isOverloaded());
+    }
+
+    /**
+     * 一个周期内只要有请求排队时间低于 target，就说明队列排空过，不进入过载状态
+     */
+    @Test
+    public void shortBurstDoesNotTriggerDrops()
+    {
+        drop(100, RequestPriority.NORMAL);
+        drop(1, RequestPriority.NORMAL);
+        drop(100, RequestPriority.NORMAL);
+        nextInterval();
+        assertFalse(drop(100, RequestPriority.NORMAL));
+        assertFalse(shedder.isOverloaded());
+        assertEquals(0, shedder.getDroppedCount());
+    }
+
+    /**
+     * 过载期间 NORMAL 排队超过 2 * target、BULK 排队超过 target 丢弃，CRITICAL 从不丢弃
+     */
+    @Test
+    public void dropsByPriorityWhileOverloaded()
+    {
+        drop(20, RequestPriority.NORMAL);
+        drop(10, RequestPriority.NORMAL);
+        nextInterval();
+        //结算上一个周期的请求本身也按过载处理
+        assertTrue(drop(20, RequestPriority.NORMAL));
+        assertTrue(shedder.isOverloaded());
+
+        assertFalse(drop(2 * TARGET_MS, RequestPriority.NORMAL));
+        assertTrue(drop(2 * TARGET_MS + 1, RequestPriority.NORMAL));
+        assertFalse(drop(TARGET_MS, RequestPriority.BULK));
+        assertTrue(drop(TARGET_MS + 1, RequestPriority.BULK));
+        assertFalse(drop(1000, RequestPriority.CRITICAL));
+
+        assertEquals(3, shedder.getDroppedCount());
+        assertEquals(2, shedder.getDroppedCount(RequestPriority.NORMAL));
+        assertEquals(1, shedder.getDroppedCount(RequestPriority.BULK));
+        assertEquals(0, shedder.getDroppedCount(RequestPriority.CRITICAL));
+    }
+
+    /**
+     * 一个周期的最小排队时间回到 target 以下，退出过载状态
+     */
+    @Test
+    public void recoversWhenTheQueueDrains()
+    {
+        drop(20, RequestPriority.NORMAL);
+        nextInterval();
+        drop(20, RequestPriority.NORMAL);
+        assertTrue(shedder.isOverloaded());
+        drop(1, RequestPriority.NORMAL);
+        nextInterval();
+        assertFalse(drop(100, RequestPriority.NORMAL));
+        assertFalse(shedder.isOverloaded());
+    }
+
+    private boolean drop(long delayMillis, RequestPriority priority)
+    {
+        return shedder.shouldDrop(TimeUnit.MILLISECONDS.toNanos(delayMillis), priority, now);
+    }
+
+    private void nextInterval()
+    {
+        now += TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS) + 1;
+    }
+}
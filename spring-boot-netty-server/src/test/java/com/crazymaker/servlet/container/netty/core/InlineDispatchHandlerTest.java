@@ -0,0 +1,115 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用 EmbeddedChannel 代替业务线程池：交给下一个 Handler 的请求先放进队列，由测试决定什么时候完成
+ */
+public class InlineDispatchHandlerTest
+{
+    private NettyServletHandler handler;
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private final Queue<NettyServletRequest> executor = new ArrayDeque<>();
+
+    @Before
+    public void setUp()
+    {
+        NettyServletContext context = new NettyServletContext("/", getClass().getClassLoader(), "test");
+        context.getNonBlockingRoutes().addPattern("/inline");
+        handler = new NettyServletHandler(context);
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast("servletInput", new ChannelInboundHandlerAdapter());
+        channel.pipeline().addLast("inlineDispatch", new InlineDispatchHandler(context));
+        channel.pipeline().addLast("filterChain", new ChannelInboundHandlerAdapter()
+        {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg)
+            {
+                executor.add((NettyServletRequest) msg);
+            }
+        });
+        ctx = channel.pipeline().context("servletInput");
+    }
+
+    @After
+    public void tearDown()
+    {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void nonBlockingRouteRunsInlineOnAnIdleConnection()
+    {
+        channel.writeInbound(newRequest("/inline"));
+        assertTrue(executor.isEmpty());
+        assertResponses(1);
+    }
+
+    /**
+     * 业务线程池上的请求返回了但响应还没完成（例如调用了 startAsync()），后面的非阻塞请求也不能插队
+     */
+    @Test
+    public void pipelinedRequestWaitsForTheExecutorResponse()
+    {
+        channel.writeInbound(newRequest("/blocking"));
+        NettyServletRequest first = executor.poll();
+        channel.writeInbound(newRequest("/inline"));
+        NettyServletRequest second = executor.poll();
+        assertEquals("/inline", second.getRequestURI());
+        assertResponses(0);
+
+        NettyRequestDispatcherHandler.handleRequest(first);
+        NettyRequestDispatcherHandler.handleRequest(second);
+        assertResponses(2);
+
+        //两个响应都完成之后，连接空闲，非阻塞请求重新在 IO 线程上执行
+        channel.writeInbound(newRequest("/inline"));
+        assertNull(executor.poll());
+        assertResponses(1);
+    }
+
+    private NettyServletRequest newRequest(String uri)
+    {
+        DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri,
+                Unpooled.EMPTY_BUFFER);
+        NettyServletResponse response = new NettyServletResponse(ctx, handler.getNettyServletContext());
+        return new NettyServletRequest(ctx, handler, request, response);
+    }
+
+    private void assertResponses(int expected)
+    {
+        channel.runPendingTasks();
+        int responses = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null)
+        {
+            if (msg instanceof HttpResponse)
+            {
+                responses++;
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        assertEquals(expected, responses);
+    }
+}
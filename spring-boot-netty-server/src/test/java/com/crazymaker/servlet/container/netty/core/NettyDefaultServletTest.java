@@ -0,0 +1,42 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NettyDefaultServletTest
+{
+    @Test
+    public void matchesOneOfTheListedEntityTags()
+    {
+        assertTrue(NettyDefaultServlet.matchesETag("\"a\", \"b-1\"", "\"b-1\""));
+        assertTrue(NettyDefaultServlet.matchesETag("\"a\",\"b-1\"", "\"b-1\""));
+        assertTrue(NettyDefaultServlet.matchesETag("*", "\"b-1\""));
+    }
+
+    @Test
+    public void doesNotMatchSubstrings()
+    {
+        assertFalse(NettyDefaultServlet.matchesETag("\"ab-12\"", "\"b-1\""));
+        assertFalse(NettyDefaultServlet.matchesETag("\"b-12\", \"x\"", "\"b-1\""));
+        assertFalse(NettyDefaultServlet.matchesETag("\"b-1,\"", "\"b-1\""));
+    }
+
+    /**
+     * If-None-Match 使用弱比较
+     */
+    @Test
+    public void ignoresTheWeakPrefix()
+    {
+        assertTrue(NettyDefaultServlet.matchesETag("W/\"b-1\"", "\"b-1\""));
+        assertTrue(NettyDefaultServlet.matchesETag("\"x\", W/\"b-1\"", "W/\"b-1\""));
+    }
+
+    @Test
+    public void commaInsideQuotesDoesNotSplitTheTag()
+    {
+        assertTrue(NettyDefaultServlet.matchesETag("\"a,b\"", "\"a,b\""));
+        assertFalse(NettyDefaultServlet.matchesETag("\"a,b\"", "\"b\""));
+    }
+}
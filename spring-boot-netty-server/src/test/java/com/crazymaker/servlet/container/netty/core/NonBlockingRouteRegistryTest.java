@@ -0,0 +1,78 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NonBlockingRouteRegistryTest
+{
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private NonBlockingRouteRegistry registry;
+
+    @Before
+    public void setUp()
+    {
+        NettyWebServerConfig config = new NettyWebServerConfig();
+        config.setNonBlockingUrlPatterns(Collections.singletonList("/fast/**"));
+        config.setNonBlockingMaxMillis(10);
+        config.setNonBlockingSlowCallThreshold(3);
+        config.setNonBlockingSlowCallWindow(10);
+        registry = new NonBlockingRouteRegistry(config);
+    }
+
+    @Test
+    public void matchesRegisteredPatterns()
+    {
+        assertNotNull(registry.match("/fast/a"));
+        assertSame(registry.match("/fast/a"), registry.match("/fast/b"));
+        assertNull(registry.match("/slow"));
+        assertNull(registry.match(null));
+    }
+
+    /**
+     * 一个窗口内慢调用达到阈值，路由退回到业务线程池
+     */
+    @Test
+    public void slowCallsWithinOneWindowDemoteTheRoute()
+    {
+        NonBlockingRouteRegistry.Route route = registry.match("/fast/a");
+        registry.recordExecution(route, SLOW);
+        registry.recordExecution(route, FAST);
+        registry.recordExecution(route, SLOW);
+        assertNotNull(registry.match("/fast/a"));
+        registry.recordExecution(route, SLOW);
+        assertTrue(route.isDemoted());
+        assertNull(registry.match("/fast/a"));
+    }
+
+    /**
+     * 偶发的慢调用随窗口清零，不会累积成退回
+     */
+    @Test
+    public void occasionalSlowCallsDecayWithTheWindow()
+    {
+        NonBlockingRouteRegistry.Route route = registry.match("/fast/a");
+        for (int window = 0; window < 100; window++)
+        {
+            registry.recordExecution(route, SLOW);
+            registry.recordExecution(route, SLOW);
+            for (int i = 0; i < 8; i++)
+            {
+                registry.recordExecution(route, FAST);
+            }
+        }
+        assertEquals(0, route.getSlowCalls());
+        assertNotNull(registry.match("/fast/a"));
+    }
+}
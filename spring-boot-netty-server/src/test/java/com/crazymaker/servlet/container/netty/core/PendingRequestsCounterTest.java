@@ -0,0 +1,144 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ContainerStatus 的未完成请求数：请求到达时计入，分发返回时减掉
+ */
+public class PendingRequestsCounterTest
+{
+    private final AsyncContext[] async = new AsyncContext[1];
+    private NettyServletContext context;
+    private EmbeddedChannel channel;
+    private int pendingBefore;
+
+    @Before
+    public void setUp()
+    {
+        context = new NettyServletContext("/", getClass().getClassLoader(), "test");
+        context.addServlet("sync", new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp)
+            {
+                assertEquals(pendingBefore + 1, ContainerStatus.INSTANCE.getPendingRequests());
+                resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            }
+        }).addMapping("/sync");
+        context.addServlet("async", new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp)
+            {
+                async[0] = req.startAsync();
+            }
+        }).addMapping("/async");
+        pendingBefore = ContainerStatus.INSTANCE.getPendingRequests();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (channel != null)
+        {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void completedRequestIsNoLongerPending()
+    {
+        newChannel(null);
+        channel.writeInbound(newRequest("/sync"));
+        assertEquals(HttpResponseStatus.NO_CONTENT, readResponses().get(0).status());
+        assertEquals(pendingBefore, ContainerStatus.INSTANCE.getPendingRequests());
+    }
+
+    /**
+     * 调用了 startAsync() 的请求在分发返回后就不再计入，长轮询之类停放的请求不会把健康状态推高
+     */
+    @Test
+    public void asyncRequestIsNotPendingWhileParked()
+    {
+        newChannel(null);
+        channel.writeInbound(newRequest("/async"));
+        assertNotNull(async[0]);
+        assertTrue(readResponses().isEmpty());
+        assertEquals(pendingBefore, ContainerStatus.INSTANCE.getPendingRequests());
+
+        async[0].complete();
+        assertEquals(1, readResponses().size());
+        assertEquals(pendingBefore, ContainerStatus.INSTANCE.getPendingRequests());
+    }
+
+    /**
+     * 业务线程池已经关闭时请求到不了 NettyRequestDispatcherHandler，直接返回 503，计数照样减掉
+     */
+    @Test
+    public void requestRejectedByTheExecutorIsNotLeaked()
+    {
+        EventExecutorGroup executor = new DefaultEventExecutorGroup(1);
+        newChannel(executor);
+        executor.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS).syncUninterruptibly();
+
+        channel.writeInbound(newRequest("/sync"));
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, readResponses().get(0).status());
+        assertEquals(pendingBefore, ContainerStatus.INSTANCE.getPendingRequests());
+    }
+
+    /**
+     * @param executor 业务线程池，为 null 时由 EmbeddedChannel 的 EventLoop 代替
+     */
+    private void newChannel(EventExecutorGroup executor)
+    {
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast("servletInput", new NettyServletHandler(context));
+        channel.pipeline().addLast("inlineDispatch", new InlineDispatchHandler(context));
+        channel.pipeline().addLast(executor, "filterChain", new NettyRequestDispatcherHandler(context));
+    }
+
+    private static DefaultFullHttpRequest newRequest(String uri)
+    {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri, Unpooled.EMPTY_BUFFER);
+    }
+
+    private List<HttpResponse> readResponses()
+    {
+        channel.runPendingTasks();
+        List<HttpResponse> responses = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null)
+        {
+            if (msg instanceof HttpResponse)
+            {
+                responses.add((HttpResponse) msg);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return responses;
+    }
+}
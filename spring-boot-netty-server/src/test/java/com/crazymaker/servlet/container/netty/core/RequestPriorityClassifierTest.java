@@ -0,0 +1,111 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RequestPriorityClassifierTest
+{
+    private static final String HEADER = "X-Priority";
+
+    private final NettyWebServerConfig config = new NettyWebServerConfig();
+    private RequestPriorityClassifier classifier;
+    private EmbeddedChannel channel;
+    private NettyServletHandler handler;
+
+    @Before
+    public void setUp()
+    {
+        config.setPriorityCriticalUrlPatterns(Arrays.asList("/pay/**", "/login"));
+        config.setPriorityBulkUrlPatterns(Collections.singletonList("/**/export"));
+        classifier = new RequestPriorityClassifier(config);
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        handler = new NettyServletHandler(new NettyServletContext("/", getClass().getClassLoader(), "test"));
+    }
+
+    @After
+    public void tearDown()
+    {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void classifiesByUrlPattern()
+    {
+        assertEquals(RequestPriority.CRITICAL, classify("/pay/order/1", null));
+        assertEquals(RequestPriority.CRITICAL, classify("/login", null));
+        assertEquals(RequestPriority.BULK, classify("/report/export", null));
+        assertEquals(RequestPriority.NORMAL, classify("/report/view", null));
+        assertEquals(RequestPriority.NORMAL, classifier.classify(newRequest("/", null), null));
+    }
+
+    /**
+     * 同时命中两类时按 CRITICAL 处理
+     */
+    @Test
+    public void criticalPatternsWinOverBulk()
+    {
+        assertEquals(RequestPriority.CRITICAL, classify("/pay/export", null));
+    }
+
+    /**
+     * 配置了请求头时，合法的取值优先于 URL Pattern，不认识的取值按 URL Pattern 分类
+     */
+    @Test
+    public void headerOverridesUrlPatterns()
+    {
+        config.setPriorityHeader(HEADER);
+        assertEquals(RequestPriority.BULK, classify("/pay/order/1", "bulk"));
+        assertEquals(RequestPriority.CRITICAL, classify("/report/view", " Critical "));
+        assertEquals(RequestPriority.CRITICAL, classify("/pay/order/1", "urgent"));
+        assertEquals(RequestPriority.NORMAL, classify("/report/view", null));
+    }
+
+    @Test
+    public void headerIsIgnoredWhenNotConfigured()
+    {
+        assertEquals(RequestPriority.NORMAL, classify("/report/view", "critical"));
+    }
+
+    @Test
+    public void parsesHeaderValues()
+    {
+        assertEquals(RequestPriority.BULK, RequestPriority.parse("BULK"));
+        assertNull(RequestPriority.parse(""));
+        assertNull(RequestPriority.parse(null));
+    }
+
+    private RequestPriority classify(String path, String header)
+    {
+        return classifier.classify(newRequest(path, header), path);
+    }
+
+    private NettyServletRequest newRequest(String uri, String header)
+    {
+        DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri,
+                Unpooled.EMPTY_BUFFER);
+        if (header != null)
+        {
+            request.headers().set(HEADER, header);
+        }
+        ChannelHandlerContext ctx = channel.pipeline().firstContext();
+        NettyServletResponse response = new NettyServletResponse(ctx, handler.getNettyServletContext());
+        return new NettyServletRequest(ctx, handler, request, response);
+    }
+}
@@ -0,0 +1,161 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.netty.request.NettyServletRequest;
+import com.crazymaker.servlet.container.netty.response.NettyServletResponse;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1 KB 响应的写出基准
+ * <p>
+ * fullResponse：没有提交过的响应，结束时合并成一个 FullHttpResponse 写出；
+ * chunkedResponse：显式 chunked 的响应，响应头、内容、LastHttpContent 分开写出。
+ * EmbeddedChannel 不会产生真正的系统调用，到达 Channel 头部的每次 flush 对应一次 writev，
+ * 用 flushes / writes 两个计数器观察每个响应的系统调用和出站消息数。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseCompletionBenchmark
+{
+    private static final byte[] BODY = new byte[1024];
+    private static final int EXPLICIT_FLUSH_AFTER_FLUSHES = 256;
+
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private NettyServletHandler handler;
+    private IoCounters io;
+
+    /**
+     * 统计到达 Channel 头部的 write / flush 次数
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class IoCounters extends ChannelOutboundHandlerAdapter
+    {
+        public long writes;
+        public long flushes;
+
+        @Setup(Level.Iteration)
+        public void clean()
+        {
+            writes = 0;
+            flushes = 0;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+        {
+            writes++;
+            ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception
+        {
+            flushes++;
+            ctx.flush();
+        }
+    }
+
+    @Setup
+    public void setup(IoCounters counters)
+    {
+        io = counters;
+        NettyServletContext context = new NettyServletContext("/", getClass().getClassLoader(), "benchmark");
+        handler = new NettyServletHandler(context);
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast(io);
+        channel.pipeline().addLast(new FlushConsolidationHandler(
+                EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+        channel.pipeline().addLast(new HttpResponseEncoder());
+        channel.pipeline().addLast("servletInput", new ChannelInboundHandlerAdapter());
+        ctx = channel.pipeline().context("servletInput");
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void fullResponse() throws IOException
+    {
+        NettyServletResponse response = newResponse();
+        response.getOutputStream().write(BODY);
+        complete(response);
+    }
+
+    @Benchmark
+    public void chunkedResponse() throws IOException
+    {
+        NettyServletResponse response = newResponse();
+        response.setHeader(HttpHeaderNames.TRANSFER_ENCODING.toString(), "chunked");
+        response.getOutputStream().write(BODY);
+        response.flushBuffer();
+        complete(response);
+    }
+
+    private NettyServletResponse newResponse()
+    {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/bench",
+                Unpooled.EMPTY_BUFFER);
+        NettyServletResponse response = new NettyServletResponse(ctx, handler.getNettyServletContext());
+        response.setRequestFacade(new NettyServletRequest(ctx, handler, request, response));
+        response.setContentType("text/plain");
+        return response;
+    }
+
+    private void complete(NettyServletResponse response)
+    {
+        response.close();
+        channel.runPendingTasks();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null)
+        {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ResponseCompletionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
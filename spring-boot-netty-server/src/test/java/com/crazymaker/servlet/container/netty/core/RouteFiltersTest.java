@@ -0,0 +1,148 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.netty.filter.FilterMap;
+import org.junit.Test;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RouteFiltersTest
+{
+    private final Filter all = new NamedFilter("all");
+    private final Filter api = new NamedFilter("api");
+    private final Filter json = new NamedFilter("json");
+    private final Filter byName = new NamedFilter("byName");
+
+    @Test
+    public void pathIndependentFiltersAreFixed()
+    {
+        RouteFilters filters = RouteFilters.compile(Collections.singletonList(map("/*")),
+                Collections.singletonList(all), false, Collections.singletonList(byName));
+        assertFalse(filters.isPathDependent());
+        assertArrayEquals(new Filter[]{all, byName}, filters.resolve("/any"));
+    }
+
+    @Test
+    public void pathDependentFiltersKeepTheMappingOrder()
+    {
+        RouteFilters filters = RouteFilters.compile(Arrays.asList(map("/api/*"), map("/*"), map("*.json")),
+                Arrays.asList(api, all, json), false, Collections.singletonList(byName));
+        assertTrue(filters.isPathDependent());
+        assertArrayEquals(new Filter[]{api, all, json, byName}, filters.resolve("/api/a.json"));
+        assertArrayEquals(new Filter[]{api, all, byName}, filters.resolve("/api/a"));
+        assertArrayEquals(new Filter[]{all, json, byName}, filters.resolve("/b.json"));
+        assertArrayEquals(new Filter[]{all, byName}, filters.resolve("/other"));
+    }
+
+    /**
+     * 同样的匹配结果复用同一个数组，请求时不再分配
+     */
+    @Test
+    public void sameMatchReusesTheArray()
+    {
+        RouteFilters filters = RouteFilters.compile(Arrays.asList(map("/api/*"), map("*.json")),
+                Arrays.asList(api, json), false, Collections.<Filter>emptyList());
+        assertSame(filters.resolve("/api/a"), filters.resolve("/api/b"));
+        assertSame(filters.resolve("/x.json"), filters.resolve("/y.json"));
+    }
+
+    /**
+     * 同时配置了 URL Pattern 和 Servlet 名的过滤器（例如 /api/* 加 dispatcherServlet）只执行一次：
+     * URL 匹配时排在 URL 匹配的位置，不匹配时按 Servlet 名加入
+     */
+    @Test
+    public void filterMappedByUrlAndServletNameRunsOnce()
+    {
+        RouteFilters fixed = RouteFilters.compile(Arrays.asList(map("/*"), map("/*")),
+                Arrays.asList(api, all), false, Arrays.asList(api, byName));
+        assertArrayEquals(new Filter[]{api, all, byName}, fixed.resolve("/any"));
+
+        RouteFilters filters = RouteFilters.compile(Arrays.asList(map("/api/*"), map("*.json")),
+                Arrays.asList(api, json), false, Arrays.asList(byName, api));
+        assertArrayEquals(new Filter[]{api, byName}, filters.resolve("/api/a"));
+        assertArrayEquals(new Filter[]{api, json, byName}, filters.resolve("/api/a.json"));
+        assertArrayEquals(new Filter[]{json, byName, api}, filters.resolve("/b.json"));
+        assertArrayEquals(new Filter[]{byName, api}, filters.resolve("/other"));
+
+        List<FilterMap> maps = new ArrayList<>();
+        List<Filter> list = new ArrayList<>();
+        for (int i = 0; i < 70; i++)
+        {
+            maps.add(map("/p" + i + "/*"));
+            list.add(new NamedFilter("p" + i));
+        }
+        maps.add(map("/api/*"));
+        list.add(api);
+        RouteFilters many = RouteFilters.compile(maps, list, false, Collections.singletonList(api));
+        assertArrayEquals(new Filter[]{api}, many.resolve("/api/a"));
+        assertArrayEquals(new Filter[]{list.get(65), api}, many.resolve("/p65/x"));
+    }
+
+    /**
+     * 与路径有关的映射太多时逐个匹配，结果不变
+     */
+    @Test
+    public void manyPathDependentMappings()
+    {
+        List<FilterMap> maps = new ArrayList<>();
+        List<Filter> list = new ArrayList<>();
+        for (int i = 0; i < 70; i++)
+        {
+            maps.add(map("/p" + i + "/*"));
+            list.add(new NamedFilter("p" + i));
+        }
+        RouteFilters filters = RouteFilters.compile(maps, list, false, Collections.<Filter>emptyList());
+        assertArrayEquals(new Filter[]{list.get(65)}, filters.resolve("/p65/x"));
+        assertArrayEquals(new Filter[]{list.get(3)}, filters.resolve("/p3/x"));
+    }
+
+    private static FilterMap map(String pattern)
+    {
+        FilterMap filterMap = new FilterMap();
+        filterMap.addURLPattern(pattern);
+        return filterMap;
+    }
+
+    private static class NamedFilter implements Filter
+    {
+        private final String name;
+
+        NamedFilter(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public void init(FilterConfig filterConfig)
+        {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        {
+        }
+
+        @Override
+        public void destroy()
+        {
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+}
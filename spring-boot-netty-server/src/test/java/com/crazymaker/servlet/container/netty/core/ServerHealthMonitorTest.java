@@ -0,0 +1,148 @@
+package com.crazymaker.servlet.container.netty.core;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerHealthMonitorTest
+{
+    private final NettyWebServerConfig config = new NettyWebServerConfig();
+    private final List<HealthStateEvent> events = new ArrayList<>();
+    private ServerHealthMonitor monitor;
+
+    /**
+     * 只用未完成请求数一个指标：10 进入 YELLOW，20 进入 RED；恢复时要低于阈值的一半，连续 3 次
+     */
+    @Before
+    public void setUp()
+    {
+        config.setHealthErrorPercentYellow(0);
+        config.setHealthErrorPercentRed(0);
+        config.setHealthExecutorQueueYellow(0);
+        config.setHealthExecutorQueueRed(0);
+        config.setHealthEventLoopLagYellowMs(0);
+        config.setHealthEventLoopLagRedMs(0);
+        config.setHealthPendingRequestsYellow(10);
+        config.setHealthPendingRequestsRed(20);
+        config.setHealthRecoverRatio(0.5);
+        config.setHealthRecoverChecks(3);
+        monitor = new ServerHealthMonitor(config);
+        monitor.addListener(events::add);
+    }
+
+    @Test
+    public void disabledByDefault()
+    {
+        assertFalse(new ServerHealthMonitor(new NettyWebServerConfig()).isEnabled());
+    }
+
+    /**
+     * 变差立即切换
+     */
+    @Test
+    public void escalatesImmediately()
+    {
+        check(9);
+        assertEquals(HealthState.GREEN, monitor.getState());
+        check(10);
+        assertEquals(HealthState.YELLOW, monitor.getState());
+        check(20);
+        assertEquals(HealthState.RED, monitor.getState());
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void jumpsFromGreenToRed()
+    {
+        check(25);
+        assertEquals(HealthState.RED, monitor.getState());
+        assertEquals(1, events.size());
+        assertEquals(HealthState.GREEN, events.get(0).getFrom());
+        assertTrue(events.get(0).isEscalation());
+        assertEquals(25, events.get(0).getSignals().getPendingRequests());
+    }
+
+    /**
+     * 低于阈值但没有低于恢复线时保持原状态；连续 3 次低于恢复线才降一级，每次只降一级
+     */
+    @Test
+    public void recoversOneLevelAfterConsecutiveChecks()
+    {
+        check(20);
+        check(12);
+        check(12);
+        check(12);
+        check(12);
+        assertEquals(HealthState.RED, monitor.getState());
+
+        check(8);
+        check(8);
+        assertEquals(HealthState.RED, monitor.getState());
+        check(8);
+        assertEquals(HealthState.YELLOW, monitor.getState());
+
+        //0 也只降到 YELLOW，降到 GREEN 需要重新计数
+        check(0);
+        check(0);
+        assertEquals(HealthState.YELLOW, monitor.getState());
+        check(0);
+        assertEquals(HealthState.GREEN, monitor.getState());
+        assertEquals(3, events.size());
+        assertFalse(events.get(2).isEscalation());
+    }
+
+    /**
+     * 在恢复线附近来回波动时重新计数，不会来回切换
+     */
+    @Test
+    public void fluctuationResetsTheRecovery()
+    {
+        check(10);
+        for (int i = 0; i < 5; i++)
+        {
+            check(4);
+            check(4);
+            check(6);
+        }
+        assertEquals(HealthState.YELLOW, monitor.getState());
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void redAdmitsOnlyCriticalWhenCriticalIsConfigured()
+    {
+        config.setPriorityCriticalUrlPatterns(Collections.singletonList("/pay/**"));
+        check(20);
+        assertTrue(monitor.admit(RequestPriority.CRITICAL));
+        assertFalse(monitor.admit(RequestPriority.NORMAL));
+        assertFalse(monitor.admit(RequestPriority.BULK));
+        assertEquals(2, monitor.getRejectedCount());
+    }
+
+    /**
+     * 没有配置 CRITICAL 请求时所有请求都是 NORMAL / BULK，RED 和 YELLOW 一样只拒绝 BULK
+     */
+    @Test
+    public void redShedsOnlyBulkWhenNoCriticalIsConfigured()
+    {
+        check(20);
+        assertTrue(monitor.admit(RequestPriority.NORMAL));
+        assertFalse(monitor.admit(RequestPriority.BULK));
+
+        config.setPriorityHeader("X-Priority");
+        assertFalse(monitor.admit(RequestPriority.NORMAL));
+    }
+
+    private void check(int pendingRequests)
+    {
+        monitor.check(new ServerHealthMonitor.Signals(0, 0, 0, pendingRequests));
+    }
+}
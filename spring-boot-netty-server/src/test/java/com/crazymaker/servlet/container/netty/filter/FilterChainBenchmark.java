@@ -0,0 +1,137 @@
+package com.crazymaker.servlet.container.netty.filter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.GenericServlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 5 个过滤器 + Servlet 的过滤器链基准
+ * <p>
+ * reusedChain：按线程复用的数组过滤器链，每次请求不应产生任何对象；
+ * newChain：每次请求新建一个过滤器链，作为对照。
+ * main() 使用 GC profiler 运行，reusedChain 的 gc.alloc.rate.norm（每次操作分配的字节数）不为 0 时失败。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterChainBenchmark
+{
+    private static final int FILTER_COUNT = 5;
+
+    private Filter[] filters;
+    private CountingServlet servlet;
+
+    @Setup
+    public void setup()
+    {
+        filters = new Filter[FILTER_COUNT];
+        for (int i = 0; i < FILTER_COUNT; i++)
+        {
+            filters[i] = new PassThroughFilter();
+        }
+        servlet = new CountingServlet();
+    }
+
+    @Benchmark
+    public void reusedChain(Blackhole blackhole) throws IOException, ServletException
+    {
+        FilterChainImpl chain = FilterChainImpl.obtain(servlet, filters);
+        try
+        {
+            chain.doFilter(null, null);
+        } finally
+        {
+            chain.release();
+        }
+        blackhole.consume(servlet.calls);
+    }
+
+    @Benchmark
+    public void newChain(Blackhole blackhole) throws IOException, ServletException
+    {
+        FilterChainImpl chain = new FilterChainImpl();
+        chain.reset(servlet, filters);
+        chain.doFilter(null, null);
+        blackhole.consume(servlet.calls);
+    }
+
+    private static final class PassThroughFilter implements Filter
+    {
+        @Override
+        public void init(FilterConfig filterConfig)
+        {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                throws IOException, ServletException
+        {
+            chain.doFilter(request, response);
+        }
+
+        @Override
+        public void destroy()
+        {
+        }
+    }
+
+    private static final class CountingServlet extends GenericServlet
+    {
+        private long calls;
+
+        @Override
+        public void service(ServletRequest req, ServletResponse res)
+        {
+            calls++;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .include(FilterChainBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+        for (RunResult result : results)
+        {
+            if (!result.getParams().getBenchmark().endsWith(".reusedChain"))
+            {
+                continue;
+            }
+            Result allocated = result.getSecondaryResults().get("\u00b7gc.alloc.rate.norm");
+            //允许误差：分配速率由采样得到，不分配时约为 1e-4 B/op
+            if (null != allocated && allocated.getScore() >= 1.0)
+            {
+                throw new IllegalStateException("reusedChain allocates " + allocated.getScore() + " bytes per request");
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.crazymaker.servlet.container.netty.request;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingServletInputStreamTest
+{
+    private EmbeddedChannel channel;
+    private ExecutorService reader;
+
+    @Before
+    public void setUp()
+    {
+        channel = new EmbeddedChannel();
+        reader = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown()
+    {
+        reader.shutdownNow();
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 超过内存阈值的数据落盘，读出的顺序与到达的顺序一致
+     */
+    @Test
+    public void spilledBodyIsReadInOrder() throws Exception
+    {
+        final StreamingServletInputStream in = new StreamingServletInputStream(channel, -1, 1024, 1 << 20);
+        byte[] body = new byte[64 * 1024];
+        for (int i = 0; i < body.length; i++)
+        {
+            body[i] = (byte) (i * 31);
+        }
+        for (int offset = 0; offset < body.length; offset += 1000)
+        {
+            int length = Math.min(1000, body.length - offset);
+            in.offer(new DefaultHttpContent(Unpooled.copiedBuffer(body, offset, length)));
+        }
+        in.offer(new DefaultLastHttpContent());
+        assertTrue(in.isComplete());
+
+        byte[] read = readAll(in);
+        assertArrayEquals(body, read);
+        assertTrue(in.isFinished());
+        in.close();
+    }
+
+    /**
+     * 业务线程边读边等，IO 线程陆续放入数据
+     */
+    @Test
+    public void readerWaitsForLateChunks() throws Exception
+    {
+        final StreamingServletInputStream in = new StreamingServletInputStream(channel, -1, 16, 1 << 20);
+        Future<byte[]> result = reader.submit(new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call() throws Exception
+            {
+                return readAll(in);
+            }
+        });
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++)
+        {
+            byte[] chunk = ("chunk-" + i + ";").getBytes("UTF-8");
+            expected.write(chunk);
+            in.offer(new DefaultHttpContent(Unpooled.wrappedBuffer(chunk)));
+            Thread.sleep(1);
+        }
+        in.offer(new DefaultLastHttpContent());
+        assertArrayEquals(expected.toByteArray(), result.get(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 未读取的数据超过上限时关闭 autoRead，读走一半之后恢复
+     */
+    @Test
+    public void backpressureSuspendsAndResumesAutoRead() throws Exception
+    {
+        StreamingServletInputStream in = new StreamingServletInputStream(channel, -1, 1 << 20, 100);
+        in.offer(new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[150])));
+        assertFalse(channel.config().isAutoRead());
+        byte[] buf = new byte[100];
+        assertEquals(100, in.read(buf));
+        assertTrue(channel.config().isAutoRead());
+        in.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void bodyOverTheLimitFailsTheReader() throws Exception
+    {
+        StreamingServletInputStream in = new StreamingServletInputStream(channel, 10, 1024, 1 << 20);
+        in.offer(new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[11])));
+        in.read();
+    }
+
+    private static byte[] readAll(StreamingServletInputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b = in.read();
+        if (b >= 0)
+        {
+            out.write(b);
+        }
+        byte[] buf = new byte[777];
+        int n;
+        while (b >= 0 && (n = in.read(buf)) >= 0)
+        {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,105 @@
+package com.crazymaker.servlet.container.netty.request.parser;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.Part;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultipartParserTest
+{
+    private static final String BOUNDARY = "----boundary";
+
+    private MultipartParser parser;
+
+    @After
+    public void tearDown()
+    {
+        if (null != parser)
+        {
+            parser.recycle();
+        }
+    }
+
+    @Test
+    public void partsWithinTheLimitsAreParsed() throws Exception
+    {
+        parser = newParser(body(100));
+        List<Part> parts = parser.getParts(new MultipartConfigElement("", 1024, 4096, 0));
+        assertEquals(2, parts.size());
+        assertEquals("file", parts.get(1).getName());
+        assertEquals(100, parts.get(1).getSize());
+    }
+
+    @Test
+    public void partOverMaxFileSizeFailsEveryCall() throws Exception
+    {
+        parser = newParser(body(2048));
+        MultipartConfigElement config = new MultipartConfigElement("", 1024, -1, 0);
+        IllegalStateException first = getPartsFailure(config);
+        assertTrue(first instanceof MultipartParser.SizeLimitExceededException);
+        assertSame(first, getPartsFailure(config));
+        assertTrue(MultipartParser.isSizeLimitExceeded(new RuntimeException(first)));
+    }
+
+    @Test
+    public void requestOverMaxRequestSizeFails() throws Exception
+    {
+        parser = newParser(body(2048));
+        IllegalStateException failure = getPartsFailure(new MultipartConfigElement("", -1, 1024, 0));
+        assertTrue(failure instanceof MultipartParser.SizeLimitExceededException);
+    }
+
+    private IllegalStateException getPartsFailure(MultipartConfigElement config) throws Exception
+    {
+        try
+        {
+            parser.getParts(config);
+        } catch (IllegalStateException e)
+        {
+            return e;
+        }
+        fail("getParts() should fail");
+        return null;
+    }
+
+    private static MultipartParser newParser(String body)
+    {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/upload",
+                Unpooled.copiedBuffer(body, StandardCharsets.ISO_8859_1));
+        request.headers().set(HttpHeaderNames.CONTENT_TYPE, "multipart/form-data; boundary=" + BOUNDARY);
+        request.headers().set(HttpHeaderNames.CONTENT_LENGTH, request.content().readableBytes());
+        return new MultipartParser(request, null, ByteBufAllocator.DEFAULT);
+    }
+
+    private static String body(int fileSize)
+    {
+        StringBuilder file = new StringBuilder();
+        for (int i = 0; i < fileSize; i++)
+        {
+            file.append((char) ('a' + i % 26));
+        }
+        return "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"field\"\r\n\r\n"
+                + "value\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n"
+                + file + "\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+    }
+}
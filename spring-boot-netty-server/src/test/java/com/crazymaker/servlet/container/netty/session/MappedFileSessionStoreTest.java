@@ -0,0 +1,271 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileSessionStoreTest
+{
+    private static final long HOUR = 3600 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private MappedFileSessionStore store;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = new File(folder.getRoot(), "sessions.log");
+        store = new MappedFileSessionStore(file);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        store.close();
+    }
+
+    @Test
+    public void recordsSurviveReopen() throws IOException
+    {
+        long expire = System.currentTimeMillis() + HOUR;
+        store.save("a", bytes("first"), expire);
+        store.save("b", bytes("second"), expire);
+        store.save("a", bytes("third"), expire);
+        store.remove("b");
+        store.save("c", bytes("expired"), System.currentTimeMillis() - 1);
+
+        reopen();
+        assertEquals(1, store.getSessionCount());
+        assertArrayEquals(bytes("third"), store.load("a").getData());
+        assertNull(store.load("b"));
+        assertNull(store.load("c"));
+
+        //重新打开后从日志末尾继续追加
+        store.save("d", bytes("fourth"), expire);
+        reopen();
+        assertEquals(2, store.getSessionCount());
+        assertArrayEquals(bytes("fourth"), store.load("d").getData());
+    }
+
+    /**
+     * 访问记录只写访问时间，保存记录不变；访问延后的到期时间在重启后同样生效
+     */
+    @Test
+    public void touchRecordsAccessTimeWithoutRewritingTheRecord() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        byte[] record = new byte[4096];
+        store.save("a", record, now + 100);
+        int afterSave = store.getLogBytes();
+        store.touch("a", now + 50, now + HOUR);
+        assertTrue(store.getLogBytes() - afterSave < 64);
+        store.touch("missing", now, now + HOUR);
+
+        SessionStore.Record loaded = store.load("a");
+        assertArrayEquals(record, loaded.getData());
+        assertEquals(now + 50, loaded.getLastAccessedTime());
+
+        //保存记录本身的到期时间已经过了，之后的访问记录让它继续有效
+        store.close();
+        sleepUntil(now + 100);
+        store = new MappedFileSessionStore(file);
+        loaded = store.load("a");
+        assertArrayEquals(record, loaded.getData());
+        assertEquals(now + 50, loaded.getLastAccessedTime());
+        assertNull(store.load("missing"));
+
+        //重新保存之后，之前的访问记录不再生效
+        store.save("a", bytes("new"), now + HOUR);
+        assertEquals(0, store.load("a").getLastAccessedTime());
+    }
+
+    /**
+     * 校验失败的记录和它之后的内容都被丢弃，新的记录从这里覆盖
+     */
+    @Test
+    public void corruptedRecordTruncatesTheLog() throws IOException
+    {
+        long expire = System.currentTimeMillis() + HOUR;
+        store.save("a", bytes("first"), expire);
+        int corruptAt = store.getLogBytes();
+        store.save("b", bytes("second"), expire);
+        store.save("c", bytes("third"), expire);
+        store.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            //第二条记录的最后一个字节
+            long position = corruptAt + 1 + 4 + 4 + 8 + 4 + 1 + bytes("second").length - 1;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+
+        store = new MappedFileSessionStore(file);
+        assertEquals(1, store.getSessionCount());
+        assertEquals(corruptAt, store.getLogBytes());
+        assertArrayEquals(bytes("first"), store.load("a").getData());
+        assertNull(store.load("b"));
+        assertNull(store.load("c"));
+
+        store.save("d", bytes("fourth"), expire);
+        reopen();
+        assertEquals(2, store.getSessionCount());
+        assertArrayEquals(bytes("fourth"), store.load("d").getData());
+    }
+
+    /**
+     * 失效记录超过一半时整理日志，只保留有效的保存记录和访问记录
+     */
+    @Test
+    public void flushCompactsTheLog() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        byte[] record = new byte[16 * 1024];
+        for (int i = 0; i < 400; i++)
+        {
+            Arrays.fill(record, (byte) i);
+            store.save("a", record, now + HOUR);
+        }
+        store.save("b", bytes("small"), now + HOUR);
+        store.touch("b", now + 10, now + HOUR);
+        store.save("removed", bytes("gone"), now + HOUR);
+        store.remove("removed");
+        int before = store.getLogBytes();
+
+        store.flush();
+        assertTrue(store.getLogBytes() < before / 100);
+        assertEquals(store.getLiveBytes(), store.getLogBytes());
+        assertArrayEquals(record, store.load("a").getData());
+        assertEquals(now + 10, store.load("b").getLastAccessedTime());
+
+        //整理之后写入和重启都正常
+        store.save("c", bytes("after"), now + HOUR);
+        reopen();
+        assertEquals(3, store.getSessionCount());
+        assertArrayEquals(record, store.load("a").getData());
+        assertArrayEquals(bytes("small"), store.load("b").getData());
+        assertEquals(now + 10, store.load("b").getLastAccessedTime());
+        assertArrayEquals(bytes("after"), store.load("c").getData());
+        assertNull(store.load("removed"));
+        assertFalse(new File(file.getPath() + ".compact").exists());
+    }
+
+    /**
+     * 整理在锁外复制，期间的保存、访问和删除照常执行，替换文件前补上，重启后同样有效
+     */
+    @Test
+    public void writesDuringCompactionAreKept() throws Exception
+    {
+        final long now = System.currentTimeMillis();
+        byte[] record = new byte[16 * 1024];
+        for (int i = 0; i < 400; i++)
+        {
+            store.save("a", record, now + HOUR);
+        }
+        for (int i = 0; i < 100; i++)
+        {
+            store.save("old" + i, bytes("old" + i), now + HOUR);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread(() ->
+        {
+            try
+            {
+                int i = 0;
+                while (!done.get() || i < 1000)
+                {
+                    store.save("new" + i, bytes("new" + i), now + HOUR);
+                    store.touch("old" + (i % 100), now + i, now + HOUR);
+                    if (i % 10 == 0)
+                    {
+                        store.remove("old" + (i / 10 % 100));
+                    }
+                    written.set(++i);
+                }
+            } catch (Throwable e)
+            {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        int before = store.getLogBytes();
+        store.flush();
+        done.set(true);
+        writer.join();
+        assertNull(failure.get());
+        assertTrue(store.getLogBytes() < before);
+
+        reopen();
+        int count = written.get();
+        for (int i = 0; i < count; i++)
+        {
+            assertArrayEquals(bytes("new" + i), store.load("new" + i).getData());
+        }
+        //每个 old 的删除都发生在它最后一次访问之后
+        for (int i = 0; i < 100; i++)
+        {
+            assertNull(store.load("old" + i));
+        }
+        assertArrayEquals(record, store.load("a").getData());
+        assertEquals(count + 1, store.getSessionCount());
+        assertFalse(new File(file.getPath() + ".compact").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void closedStoreRejectsCalls() throws IOException
+    {
+        store.close();
+        store.load("a");
+    }
+
+    private void reopen() throws IOException
+    {
+        store.close();
+        store = new MappedFileSessionStore(file);
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void sleepUntil(long time)
+    {
+        long delay;
+        while ((delay = time - System.currentTimeMillis()) >= 0)
+        {
+            try
+            {
+                Thread.sleep(delay + 1);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.core.NettyServletContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 空闲 Session 的属性转存到堆外、再次访问时恢复，时间轮每格 5ms，空闲 50ms 即转存
+ */
+public class NettyHttpSessionTest
+{
+    private final NettyWebServerConfig config = NettyWebServerConfig.getInstance();
+    private boolean savedOffHeap;
+    private long savedIdleMs;
+    private long savedTickMs;
+    private int savedShards;
+    private int savedMaxCount;
+
+    private NettySessionManager manager;
+
+    @Before
+    public void setUp()
+    {
+        savedOffHeap = config.isSessionOffHeap();
+        savedIdleMs = config.getSessionOffHeapIdleMs();
+        savedTickMs = config.getSessionExpireTickMs();
+        savedShards = config.getSessionShards();
+        savedMaxCount = config.getSessionMaxCount();
+        config.setSessionOffHeap(true);
+        config.setSessionOffHeapIdleMs(50);
+        config.setSessionExpireTickMs(5);
+        config.setSessionShards(1);
+        config.setSessionMaxCount(1);
+        manager = new NettySessionManager(new NettyServletContext("/", getClass().getClassLoader(), "test"));
+    }
+
+    @After
+    public void tearDown()
+    {
+        manager.stop();
+        config.setSessionOffHeap(savedOffHeap);
+        config.setSessionOffHeapIdleMs(savedIdleMs);
+        config.setSessionExpireTickMs(savedTickMs);
+        config.setSessionShards(savedShards);
+        config.setSessionMaxCount(savedMaxCount);
+    }
+
+    /**
+     * 空闲后属性转存到堆外；读取时恢复到堆上并释放堆外内存，之后空闲又会再次转存
+     */
+    @Test
+    public void passivatesAndReactivates() throws InterruptedException
+    {
+        NettyHttpSession session = manager.createSession();
+        session.setAttribute("user", "alice");
+        awaitPassivated(session);
+        assertTrue(session.getStoredBytes() > 0);
+        assertEquals(session.getStoredBytes(), manager.getOffHeapBytes());
+        assertEquals(session.getStoredBytes(), manager.getSessionStoredBytes(session.getId()));
+        assertEquals(1, manager.getPassivatedSessionCount());
+
+        assertEquals("alice", session.getAttribute("user"));
+        assertFalse(session.isPassivated());
+        assertEquals(0, session.getStoredBytes());
+        assertEquals(0, manager.getOffHeapBytes());
+        assertEquals(0, manager.getPassivatedSessionCount());
+
+        awaitPassivated(session);
+        assertEquals("alice", session.getAttribute("user"));
+    }
+
+    /**
+     * 没有属性的 Session 不转存
+     */
+    @Test
+    public void emptySessionStaysOnHeap() throws InterruptedException
+    {
+        NettyHttpSession session = manager.createSession();
+        Thread.sleep(200);
+        assertFalse(session.isPassivated());
+        assertEquals(0, manager.getOffHeapBytes());
+    }
+
+    /**
+     * 写入与转存并发：转存反复发生，每次写入都不会丢失
+     */
+    @Test
+    public void setAttributeRacingPassivationLosesNothing() throws InterruptedException
+    {
+        config.setSessionOffHeapIdleMs(1);
+        config.setSessionExpireTickMs(1);
+        manager.stop();
+        manager = new NettySessionManager(new NettyServletContext("/", getClass().getClassLoader(), "test"));
+
+        NettyHttpSession session = manager.createSession();
+        AtomicBoolean passivated = new AtomicBoolean();
+        int count = 300;
+        for (int i = 0; i < count; i++)
+        {
+            if (session.isPassivated())
+            {
+                passivated.set(true);
+            }
+            session.setAttribute("k" + i, i);
+            if ((i & 3) == 0)
+            {
+                Thread.sleep(2);
+            }
+        }
+        assertTrue(passivated.get());
+        for (int i = 0; i < count; i++)
+        {
+            assertEquals(i, session.getAttribute("k" + i));
+        }
+    }
+
+    /**
+     * 失效和被淘汰的 Session 都会释放堆外内存
+     */
+    @Test
+    public void destroyReleasesTheOffHeapBytes() throws InterruptedException
+    {
+        NettyHttpSession session = manager.createSession();
+        session.setAttribute("user", "alice");
+        awaitPassivated(session);
+        session.invalidate();
+        assertEquals(0, session.getStoredBytes());
+        assertEquals(0, manager.getOffHeapBytes());
+        assertEquals(0, manager.getPassivatedSessionCount());
+
+        NettyHttpSession evicted = manager.createSession();
+        evicted.setAttribute("user", "bob");
+        awaitPassivated(evicted);
+        assertTrue(manager.getOffHeapBytes() > 0);
+        //上限为 1，新建的 Session 淘汰掉它
+        manager.createSession();
+        assertFalse(evicted.isValid());
+        assertEquals(0, evicted.getStoredBytes());
+        assertEquals(0, manager.getOffHeapBytes());
+        assertEquals(0, manager.getPassivatedSessionCount());
+    }
+
+    private static void awaitPassivated(NettyHttpSession session) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!session.isPassivated() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertTrue(session.isPassivated());
+    }
+}
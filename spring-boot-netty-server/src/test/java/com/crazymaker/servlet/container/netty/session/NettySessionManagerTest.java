@@ -0,0 +1,166 @@
+package com.crazymaker.servlet.container.netty.session;
+
+import com.crazymaker.servlet.container.circuitbreaker.NettyWebServerConfig;
+import com.crazymaker.servlet.container.netty.core.NettyServletContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分片 LRU 淘汰和时间轮上的到期检查，时间轮每格 10ms
+ */
+public class NettySessionManagerTest
+{
+    private final NettyWebServerConfig config = NettyWebServerConfig.getInstance();
+    private int savedShards;
+    private int savedMaxCount;
+    private long savedTickMs;
+
+    private NettyServletContext context;
+    private NettySessionManager manager;
+
+    @Before
+    public void setUp()
+    {
+        savedShards = config.getSessionShards();
+        savedMaxCount = config.getSessionMaxCount();
+        savedTickMs = config.getSessionExpireTickMs();
+        config.setSessionExpireTickMs(10);
+        context = new NettyServletContext("/", getClass().getClassLoader(), "test");
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (manager != null)
+        {
+            manager.stop();
+        }
+        config.setSessionShards(savedShards);
+        config.setSessionMaxCount(savedMaxCount);
+        config.setSessionExpireTickMs(savedTickMs);
+    }
+
+    /**
+     * 单个分片上限为 2：最近访问过的 Session 留下，最久没有访问的被淘汰并失效
+     */
+    @Test
+    public void evictsTheLeastRecentlyUsedSession()
+    {
+        newManager(1, 2);
+        NettyHttpSession first = manager.createSession();
+        NettyHttpSession second = manager.createSession();
+        assertSame(first, manager.getSession(first.getId()));
+
+        NettyHttpSession third = manager.createSession();
+        assertEquals(2, manager.getSessionCount());
+        assertEquals(1, manager.getEvictedCount());
+        assertFalse(second.isValid());
+        assertNull(manager.getSession(second.getId()));
+        assertSame(first, manager.getSession(first.getId()));
+        assertSame(third, manager.getSession(third.getId()));
+    }
+
+    /**
+     * 上限按分片平均分配：4 个分片共 8 个，每个分片最多 2 个
+     */
+    @Test
+    public void eachShardIsBoundedSeparately()
+    {
+        newManager(4, 8);
+        for (int i = 0; i < 200; i++)
+        {
+            manager.createSession();
+        }
+        assertEquals(8, manager.getSessionCount());
+        assertEquals(192, manager.getEvictedCount());
+    }
+
+    @Test
+    public void unboundedByDefault()
+    {
+        newManager(4, -1);
+        for (int i = 0; i < 200; i++)
+        {
+            manager.createSession();
+        }
+        assertEquals(200, manager.getSessionCount());
+        assertEquals(0, manager.getEvictedCount());
+    }
+
+    /**
+     * 到期任务执行时发现期间有过访问，按新的到期时间重新登记，而不是让 Session 失效
+     */
+    @Test
+    public void accessReschedulesTheExpiry() throws InterruptedException
+    {
+        newManager(1, -1);
+        NettyHttpSession session = manager.createSession();
+        session.setMaxInactiveInterval(1);
+
+        Thread.sleep(600);
+        manager.updateAccessTime(session);
+        long accessed = session.getLastAccessedTime();
+        //原来的到期时间已经过了
+        Thread.sleep(700);
+        assertTrue(session.isValid());
+        assertEquals(0, manager.getExpiredCount());
+
+        awaitInvalid(session);
+        assertTrue(System.currentTimeMillis() >= accessed + 1000);
+        assertEquals(1, manager.getExpiredCount());
+        assertEquals(0, manager.getSessionCount());
+        assertNull(manager.getSession(session.getId()));
+    }
+
+    /**
+     * 超时时间不大于 0 时永不过期，之后改回正数又会按新的超时时间到期
+     */
+    @Test
+    public void nonPositiveIntervalNeverExpires() throws InterruptedException
+    {
+        newManager(1, -1);
+        NettyHttpSession session = manager.createSession();
+        NettyHttpSession negative = manager.createSession();
+        session.setMaxInactiveInterval(1);
+        session.setMaxInactiveInterval(0);
+        negative.setMaxInactiveInterval(-1);
+        assertEquals(Long.MAX_VALUE, session.getExpireTime());
+
+        Thread.sleep(1300);
+        assertFalse(session.expire());
+        assertFalse(negative.expire());
+        assertTrue(session.isValid());
+        assertTrue(negative.isValid());
+        assertNotNull(manager.getSession(session.getId()));
+        assertEquals(0, manager.getExpiredCount());
+
+        session.setMaxInactiveInterval(1);
+        awaitInvalid(session);
+        assertTrue(negative.isValid());
+    }
+
+    private void newManager(int shards, int maxCount)
+    {
+        config.setSessionShards(shards);
+        config.setSessionMaxCount(maxCount);
+        manager = new NettySessionManager(context);
+    }
+
+    private static void awaitInvalid(NettyHttpSession session) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.isValid() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertFalse(session.isValid());
+    }
+}
@@ -0,0 +1,148 @@
+package com.crazymaker.servlet.container.netty.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestUrlPatternMapperTest
+{
+    private RequestUrlPatternMapper<String> mapper;
+
+    @Before
+    public void setUp()
+    {
+        mapper = new RequestUrlPatternMapper<>("/app");
+    }
+
+    /**
+     * /x/* 匹配 /x 本身：servletPath 为 /x，pathInfo 为 null；精确匹配优先于路径匹配
+     */
+    @Test
+    public void exactMatchAndPathPrefix() throws ServletException
+    {
+        add("/x/*");
+        assertMapping("/x", "/x/*", MappingMatch.PATH, "/x", null);
+        assertMapping("/x/", "/x/*", MappingMatch.PATH, "/x", "/");
+        assertMapping("/x/a/b", "/x/*", MappingMatch.PATH, "/x", "/a/b");
+        //前缀按段匹配，不是按字符
+        assertFalse(map("/xy"));
+
+        add("/x/a");
+        assertMapping("/x/a", "/x/a", MappingMatch.EXACT, "/x/a", null);
+        assertMapping("/x/a/b", "/x/*", MappingMatch.PATH, "/x", "/a/b");
+    }
+
+    /**
+     * 根上的 /*：servletPath 为空串，pathInfo 是整个路径
+     */
+    @Test
+    public void wildcardAtTheRoot() throws ServletException
+    {
+        add("/*");
+        assertMapping("/", "/*", MappingMatch.PATH, "", "/");
+        assertMapping("/a/b", "/*", MappingMatch.PATH, "", "/a/b");
+    }
+
+    @Test
+    public void longestPrefixWins() throws ServletException
+    {
+        add("/*");
+        add("/a/*");
+        add("/a/b/*");
+        assertMapping("/a/b/c", "/a/b/*", MappingMatch.PATH, "/a/b", "/c");
+        assertMapping("/a/bc", "/a/*", MappingMatch.PATH, "/a", "/bc");
+        assertMapping("/b", "/*", MappingMatch.PATH, "", "/b");
+    }
+
+    /**
+     * 精确匹配的 /foo 不匹配 /foo/，交给默认 Servlet
+     */
+    @Test
+    public void exactMatchIgnoresTrailingSlash() throws ServletException
+    {
+        add("/foo");
+        add("/");
+        assertMapping("/foo", "/foo", MappingMatch.EXACT, "/foo", null);
+        assertMapping("/foo/", "/", MappingMatch.DEFAULT, "/foo/", null);
+    }
+
+    /**
+     * 扩展名只看最后一段，路径匹配优先于扩展名匹配
+     */
+    @Test
+    public void extensionMatchesOnlyTheLastSegment() throws ServletException
+    {
+        add("*.do");
+        assertMapping("/a/b.do", "*.do", MappingMatch.EXTENSION, "/a/b.do", null);
+        assertFalse(map("/a.do/b"));
+        assertFalse(map("/a/b."));
+        assertFalse(map("/a/b.dox"));
+
+        add("/a/*");
+        assertMapping("/a/b.do", "/a/*", MappingMatch.PATH, "/a", "/b.do");
+    }
+
+    /**
+     * 空串只匹配上下文根，其他路径交给默认 Servlet
+     */
+    @Test
+    public void contextRootAndDefaultServlet() throws ServletException
+    {
+        add("");
+        add("/");
+        assertMapping("/", "", MappingMatch.CONTEXT_ROOT, "", "/");
+        assertMapping("/a", "/", MappingMatch.DEFAULT, "/a", null);
+        assertEquals("/", mapper.getServletNameByRequestURI("/app/a?b=c"));
+        assertEquals("", mapper.getServletNameByRequestURI("/app"));
+        assertNull(mapper.getServletNameByRequestURI("/other"));
+    }
+
+    @Test
+    public void removedMappingNoLongerMatches() throws ServletException
+    {
+        add("/a/*");
+        add("/a/b");
+        mapper.removeMapping("/a/b");
+        assertMapping("/a/b", "/a/*", MappingMatch.PATH, "/a", "/b");
+        mapper.removeMapping("/a/*");
+        assertFalse(map("/a/b"));
+    }
+
+    @Test(expected = ServletException.class)
+    public void duplicatePatternIsRejected() throws ServletException
+    {
+        add("/a/*");
+        add("/a/*");
+    }
+
+    /**
+     * 以 URL Pattern 作为 Servlet 名和 target，方便断言
+     */
+    private void add(String urlPattern) throws ServletException
+    {
+        mapper.addMapping(urlPattern, urlPattern, urlPattern);
+    }
+
+    private boolean map(String path)
+    {
+        return mapper.map(path, new MappingData<String>());
+    }
+
+    private void assertMapping(String path, String pattern, MappingMatch match, String servletPath, String pathInfo)
+    {
+        MappingData<String> mappingData = new MappingData<>();
+        assertTrue(mapper.map(path, mappingData));
+        assertEquals(pattern, mappingData.getTarget());
+        assertEquals(pattern, mappingData.getMatchValue());
+        assertEquals(match, mappingData.getMappingMatch());
+        assertEquals(servletPath, mappingData.getServletPath());
+        assertEquals(pathInfo, mappingData.getPathInfo());
+        assertEquals(path, mappingData.getRequestPath());
+    }
+}